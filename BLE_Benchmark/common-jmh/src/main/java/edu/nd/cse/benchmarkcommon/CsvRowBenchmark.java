@@ -0,0 +1,66 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of formatting one CSV result row: the way ResultSink does it (run
+ * description bytes copied, value digits written straight into the buffer)
+ * against building the row as a String and encoding it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvRowBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private String mRowPrefix;
+    private byte [] mPrefix;
+    private byte [] mDigits = new byte[20];
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(ResultSink.DEFAULT_BUFFER_SIZE);
+    private long mValue = 7500000;
+
+    @Setup
+    public void setup () {
+        mRowPrefix = ResultFile.csvRowPrefix("client", "server", 247, BenchmarkProfile.WRITE_CMD_STR, 1);
+        mPrefix = mRowPrefix.getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer sinkRow () {
+        if (mBuffer.remaining() < mPrefix.length + mDigits.length + 1) {
+            mBuffer.clear();
+        }
+        mBuffer.put(mPrefix);
+        int length = NetstringEncoder.putDecimal(++mValue, mDigits, 0);
+        mBuffer.put(mDigits, 0, length);
+        mBuffer.put((byte) '\n');
+        return mBuffer;
+    }
+
+    @Benchmark
+    public byte [] stringRow () {
+        return (mRowPrefix + (++mValue) + "\n").getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public String rowPrefix () {
+        return ResultFile.csvRowPrefix("client", "server", 247, BenchmarkProfile.WRITE_CMD_STR, 1);
+    }
+}
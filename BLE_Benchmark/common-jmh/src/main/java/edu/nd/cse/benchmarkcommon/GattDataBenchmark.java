@@ -0,0 +1,66 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getting a GattData envelope for each op: a new one (which clones
+ * the value) against one from a GattDataPool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GattDataBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Param({"20", "244", "512"})
+    public int mSize;
+
+    private byte [] mValue;
+    private GattDataPool mPool;
+
+    @Setup
+    public void setup () {
+        mValue = new PayloadSource().next(mSize).clone();
+        mPool = new GattDataPool(64);
+    }
+
+    @Benchmark
+    public GattData construct () {
+        return new GattData(ADDRESS, BenchmarkProfile.TEST_CHAR, mValue);
+    }
+
+    @Benchmark
+    public GattData constructDescriptor () {
+        return new GattData(ADDRESS, BenchmarkProfile.TEST_CHAR, BenchmarkProfile.TEST_DESC, mValue);
+    }
+
+    @Benchmark
+    public GattData pooledCopy () {
+        GattData data = mPool.obtain(ADDRESS, BenchmarkProfile.TEST_CHAR, mValue);
+        data.release();
+        return data;
+    }
+
+    @Benchmark
+    public GattData pooled () {
+        GattData data = mPool.obtain(ADDRESS, BenchmarkProfile.TEST_CHAR, mSize);
+        data.release();
+        return data;
+    }
+}
@@ -0,0 +1,70 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of moving a latency measurement (a big-endian long) through a value:
+ * the ByteBuffer way the transports use against GattData's own
+ * putLong/getLong on a pooled envelope.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyEncodingBenchmark {
+
+    private long mLatency = 7500000; //ns
+    private byte [] mEncoded;
+    private GattData mEnvelope;
+    private GattDataPool mPool;
+
+    @Setup
+    public void setup () {
+        mEncoded = ByteBuffer.allocate(Long.BYTES).putLong(mLatency).array();
+        mEnvelope = new GattData(null, BenchmarkProfile.TEST_CHAR, mEncoded);
+        mPool = new GattDataPool(64);
+    }
+
+    @Benchmark
+    public byte [] byteBufferEncode () {
+        return ByteBuffer.allocate(Long.BYTES).putLong(mLatency).array();
+    }
+
+    @Benchmark
+    public long byteBufferDecode () {
+        return ByteBuffer.wrap(mEncoded).getLong();
+    }
+
+    @Benchmark
+    public GattData putLong () {
+        mEnvelope.putLong(mLatency);
+        return mEnvelope;
+    }
+
+    @Benchmark
+    public long getLong () {
+        return mEnvelope.getLong();
+    }
+
+    @Benchmark
+    public long pooledRoundTrip () {
+        GattData data = mPool.obtainLong(null, BenchmarkProfile.TEST_CHAR, mLatency);
+        long value = data.getLong();
+        data.release();
+        return value;
+    }
+}
@@ -0,0 +1,69 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of making each op's payload: PayloadSource's pre-generated pool
+ * against generating fresh random bytes per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+    @Param({"20", "244", "512"})
+    public int mSize;
+
+    private PayloadSource mSource;
+    private Random mRandom;
+    private byte [] mBuffer;
+
+    @Setup
+    public void setup () {
+        mSource = new PayloadSource();
+        mRandom = new Random(1);
+        mBuffer = new byte[mSize];
+    }
+
+    @Benchmark
+    public byte [] fill () {
+        mSource.fill(mBuffer, 0, mSize);
+        return mBuffer;
+    }
+
+    @Benchmark
+    public byte [] fillWithSequence () {
+        mSource.fill(mBuffer, 0, mSize);
+        SequenceTracker.writeSequence(mBuffer, mSize);
+        return mBuffer;
+    }
+
+    @Benchmark
+    public ByteBuffer slice () {
+        return mSource.slice(mSize);
+    }
+
+    @Benchmark
+    public byte [] randomBytes () {
+        byte [] payload = new byte[mSize];
+        mRandom.nextBytes(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,139 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-packet cost of what the profiles do with a benchmark write: on the
+ * server, finding the central and recording the packet (ArrivalRecorder,
+ * as BenchmarkProfileServer.handleTestCharacteristic does); on the client,
+ * taking in the completion the GATT layer hands up (WriteLatencyRecorder, as
+ * BenchmarkProfileClient does), closed loop, corrected for coordinated
+ * omission, or open loop.
+ *
+ * The profiles themselves need Android, so they are not loaded here; the
+ * work they do per packet is in these common classes and is run as is.
+ * Only the lookups around it are set up the same way.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProfileDispatchBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int DATA_SIZE = 244;
+    private static final long INTERVAL = 7500000; //ns between packets
+    private static final long OP_LATENCY = 3 * INTERVAL; //long enough for the correction to backfill
+
+    /**
+     * What BenchmarkProfileServer keeps per central for a write run
+     */
+    private static class Central {
+        final LongRecorder mTimeDiffs = new LongRecorder();
+        final LongRecorder mDiffSequences = new LongRecorder();
+        final LatencyHistogram mInterArrival = new LatencyHistogram(1000, 60000000000L, 3);
+        final SlidingWindowMetrics mLiveMetrics = new SlidingWindowMetrics();
+        final SequenceTracker mSequence = new SequenceTracker();
+        final ArrivalRecorder mArrivals = new ArrivalRecorder(mTimeDiffs, mDiffSequences,
+                mInterArrival, mLiveMetrics, mSequence);
+    }
+
+    @State(Scope.Thread)
+    public static class Server {
+        final ConcurrentHashMap<String, Central> mCentrals = new ConcurrentHashMap<String, Central>();
+        GattData mWrite;
+        long mSequence = 0;
+        long mNow = 0;
+
+        @Setup
+        public void setup () {
+            mWrite = new GattData(ADDRESS, BenchmarkProfile.TEST_CHAR, new PayloadSource().next(DATA_SIZE));
+        }
+
+        /**
+         * Start every iteration from an empty run, as the server does between
+         * runs, so the time diffs do not grow across the whole fork
+         */
+        @Setup(Level.Iteration)
+        public void newRun () {
+            mCentrals.clear();
+            mCentrals.put(ADDRESS, new Central());
+            mSequence = 0;
+            mNow = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        @Param({"closed", "corrected", "open"})
+        public String mLoop;
+
+        final LongRecorder mOpLatency = new LongRecorder();
+        final LongRecorder mSendTimes = new LongRecorder();
+        final LatencyHistogram mOpLatencyHistogram = new LatencyHistogram(1000, 60000000000L, 3);
+        final SlidingWindowMetrics mLiveMetrics = new SlidingWindowMetrics();
+        final WriteLatencyRecorder mWriteLatency = new WriteLatencyRecorder(mOpLatency,
+                mSendTimes, mOpLatencyHistogram, mLiveMetrics);
+        GattData mAck;
+        long mSequence = 0;
+        long mNow = 0;
+
+        @Setup
+        public void setup () {
+            mAck = new GattData(ADDRESS, BenchmarkProfile.TEST_CHAR, new byte[Long.BYTES]);
+            mAck.putLong(OP_LATENCY);
+        }
+
+        /**
+         * Start every iteration from an empty run, as the client does
+         * between runs
+         */
+        @Setup(Level.Iteration)
+        public void newRun () {
+            mOpLatency.clear();
+            mSendTimes.clear();
+            mOpLatencyHistogram.reset();
+            mLiveMetrics.reset();
+            mWriteLatency.start(INTERVAL, "open".equals(mLoop), "corrected".equals(mLoop));
+            mSequence = 0;
+            mNow = 0;
+        }
+    }
+
+    @Benchmark
+    public GattData serverWrite (Server server) {
+        SequenceTracker.writeSequence(server.mWrite.mBuffer, server.mSequence++);
+        server.mNow += INTERVAL;
+
+        GattData data = server.mWrite;
+        Central central = server.mCentrals.get(data.mAddress);
+        synchronized (central) {
+            central.mArrivals.recordWrite(server.mNow, data.mBuffer);
+        }
+        return data;
+    }
+
+    @Benchmark
+    public long clientWriteAck (Client client) {
+        //each write was due one interval after the last and took OP_LATENCY
+        client.mWriteLatency.setIntended(client.mSequence++, client.mNow);
+        client.mNow += INTERVAL;
+        return client.mWriteLatency.completed(client.mAck.getLong(), client.mNow,
+                client.mNow + OP_LATENCY, DATA_SIZE);
+    }
+}
@@ -0,0 +1,137 @@
+package edu.nd.cse.benchmarkcommon;
+
+/**
+ * Times the packets one central moves in a run, on the server. The first
+ * packet starts the clock; each one after it records its time since the
+ * start, the sequence number it carried, the time since the packet before
+ * it and its size. Writes are also counted and their sequence numbers
+ * tracked.
+ *
+ * The recorders are handed in because the rest of the server reads them
+ * too: the time diffs are streamed back as raw data and latency blocks, and
+ * their sequence numbers alongside so the central can tell which of its
+ * packets each one belongs to; the histogram and live metrics are
+ * reported.
+ *
+ * Not thread safe: the server calls it holding the central's lock.
+ */
+public class ArrivalRecorder {
+
+    private final LongRecorder mTimeDiffs; //the delta between packet ends
+    private final LongRecorder mSequences; //of the packet behind each time diff
+    private final LatencyHistogram mInterArrival;
+    private final SlidingWindowMetrics mLiveMetrics;
+    private final SequenceTracker mSequence;
+
+    private long mStartTS = 0; //when the first packet arrived, 0 before
+    private long mLastArrivalTS = 0;
+    private long mBytesReceived = 0;
+    private long mPacketsReceived = 0;
+
+    /**
+     * @param timeDiffs - where the time (ns) since the start of each packet goes
+     * @param sequences - where the sequence number of each of those packets
+     *                  goes, -1 if it carried none
+     * @param interArrival - distribution of the times between packets
+     * @param liveMetrics - live metrics to record each packet in
+     * @param sequence - tracker for the sequence numbers of written packets
+     */
+    public ArrivalRecorder (LongRecorder timeDiffs, LongRecorder sequences,
+                            LatencyHistogram interArrival, SlidingWindowMetrics liveMetrics,
+                            SequenceTracker sequence) {
+        mTimeDiffs = timeDiffs;
+        mSequences = sequences;
+        mInterArrival = interArrival;
+        mLiveMetrics = liveMetrics;
+        mSequence = sequence;
+    }
+
+    /**
+     * Forget the timing and counts of the last run. The recorders given to
+     * the constructor are left to their owner.
+     */
+    public void reset () {
+        mStartTS = 0;
+        mLastArrivalTS = 0;
+        mBytesReceived = 0;
+        mPacketsReceived = 0;
+    }
+
+    /**
+     * Start the clock without a packet, e.g. when we start notifying
+     *
+     * @param now - the time (ns)
+     */
+    public void start (long now) {
+        mStartTS = now;
+        mLastArrivalTS = now;
+    }
+
+    /**
+     * @return true once the clock has been started
+     */
+    public boolean isStarted () {
+        return 0 != mStartTS;
+    }
+
+    /**
+     * @return when the clock was started (ns), 0 if it has not been
+     */
+    public long getStartTime () {
+        return mStartTS;
+    }
+
+    /**
+     * Time a packet. The first one starts the clock and has no time of its
+     * own.
+     *
+     * @param now - when it arrived (or was sent) (ns)
+     * @param bytes - its size
+     * @param sequence - its sequence number, -1 if it has none
+     */
+    public void record (long now, int bytes, long sequence) {
+        if (!isStarted()) {
+            start(now);
+            mLiveMetrics.record(now, bytes, -1);
+            return;
+        }
+
+        long sinceLast = now - mLastArrivalTS;
+        mTimeDiffs.add(now - mStartTS);
+        mSequences.add(sequence);
+        mInterArrival.recordValue(sinceLast);
+        mLiveMetrics.record(now, bytes, sinceLast);
+        mLastArrivalTS = now;
+    }
+
+    /**
+     * Count and time a benchmark write. The payload is not kept.
+     *
+     * @param now - when it arrived (ns)
+     * @param payload - what was written
+     */
+    public void recordWrite (long now, byte [] payload) {
+        mBytesReceived += payload.length;
+        mPacketsReceived += 1;
+        long sequence = -1;
+        if (SequenceTracker.HEADER_LENGTH <= payload.length) {
+            sequence = SequenceTracker.readSequence(payload);
+            mSequence.record(sequence);
+        }
+        record(now, payload.length, sequence);
+    }
+
+    /**
+     * @return bytes written this run
+     */
+    public long getBytesReceived () {
+        return mBytesReceived;
+    }
+
+    /**
+     * @return writes received this run
+     */
+    public long getPacketsReceived () {
+        return mPacketsReceived;
+    }
+}
@@ -48,18 +48,41 @@ public class BenchmarkProfile {
 
     public static final UUID BENCHMARK_SERVICE = UUID.fromString("00000001-0000-1000-8000-00805F9B34FB");
 
-    //Throughput benchmarking will occur on this characteristic (bytes)
+    //Throughput benchmarking will occur on this characteristic (bytes). Written and
+    //notified payloads of at least 4 bytes start with a sequence number (see
+    //SequenceTracker), counted from 0 each run
     public static final UUID TEST_CHAR = UUID.fromString("00000002-0000-1000-8000-00805F9B34FB");
 
-    //descriptor for changing the behavior of the test characteristic (n/a)
+    //descriptor for changing the behavior of the test characteristic. The client
+    //writes [opcode][args] to control server-driven benchmarks (see CONTROL_*)
     public static final UUID TEST_DESC = UUID.fromString("00000003-0000-1000-8000-00805F9B34FB");
 
+    //standard client characteristic configuration descriptor (enables notifications)
+    public static final UUID CLIENT_CONFIG_DESC = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+    public static final byte [] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    public static final byte [] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    //TEST_DESC opcodes
+    //start notifying: [CONTROL_START][data size (2 bytes)][notifications in flight (1 byte)];
+    //the stack takes one notification at a time, so servers keep one in flight whatever is asked
+    public static final byte CONTROL_START = 1;
+    //stop notifying: [CONTROL_STOP]
+    public static final byte CONTROL_STOP = 2;
+    //size of the value served by reads of the test characteristic (up to 512,
+    //longer than the MTU is read in pieces): [CONTROL_READ_SIZE][data size (2 bytes)]
+    public static final byte CONTROL_READ_SIZE = 3;
+    //forget the last run and get ready for another on the same connection: [CONTROL_RESET]
+    public static final byte CONTROL_RESET = 4;
+
     //The following characteristics are available for querying about the results of the
     //benchmarking. Note that querying these chars DURING the benchmark WILL effect the
     //the results.
 
     //used to stream data back to client (string)
-    //formatted as netstring: [num bytes].[bytes]
+    //formatted as netstrings: [num bytes]:[bytes], (see NetstringEncoder)
+    //each read returns a chunk: [4 byte stream offset][next bytes of the stream]
+    //a chunk with no stream bytes is the end. Writing a 4 byte offset moves the
+    //stream there, so an interrupted transfer can be resumed
     //characteristic must be made available, but does not need to be implemented
     //if not implemented simply return a single byte: 0
     public static final UUID RAW_DATA_CHAR = UUID.fromString("00000004-0000-1000-8000-00805F9B34FB");
@@ -69,6 +92,31 @@ public class BenchmarkProfile {
 
     public static final UUID ID_CHAR = UUID.fromString("00000006-0000-1000-8000-00805F9B34FB");
 
+    //return the latency measurements in bulk: each read returns as many as fit in a
+    //block of delta varints (see DeltaVarintCodec). A block with a count of 0 is the end
+    public static final UUID LATENCY_BULK_CHAR = UUID.fromString("00000007-0000-1000-8000-00805F9B34FB");
+
+    //read for clock synchronization (see ClockSync): [server time now (8 bytes)]
+    //[server time the reading central's run started (8 bytes), 0 before]. Both ns
+    //on the server's elapsed realtime clock; the server's timestamps are relative
+    //to the second
+    public static final UUID CLOCK_CHAR = UUID.fromString("00000008-0000-1000-8000-00805F9B34FB");
+
+    //return the server's loss, duplicate and reordering counts for the writes of the
+    //last run (see SequenceTracker.Stats)
+    public static final UUID LOSS_CHAR = UUID.fromString("00000009-0000-1000-8000-00805F9B34FB");
+
+    //return the sequence number of the packet behind each latency measurement, in
+    //blocks like LATENCY_BULK_CHAR: -1 for a packet that carried none, the read's
+    //number in the run for reads. Lets the client match the server's timestamps to
+    //its own packets (see OneWayLatency)
+    public static final UUID SEQUENCE_BULK_CHAR = UUID.fromString("0000000A-0000-1000-8000-00805F9B34FB");
+
+    //bytes of an ATT PDU in front of the value: [opcode][handle (2 bytes)] for writes
+    //and notifications, [opcode] for read responses. The value gets MTU minus these
+    public static final int ATT_HEADER = 3;
+    public static final int ATT_READ_HEADER = 1;
+
     //Constants for indicating communication method
     public static final String WRITE_REQ_STR = "write_req";
     public static final int WRITE_REQ = 0;
@@ -79,6 +127,11 @@ public class BenchmarkProfile {
     public static final String NOTIFY_STR = "notify";
     public static final int NOTIFY = 3;
 
+    //Constants for indicating how the data size is chosen once the MTU is negotiated
+    public static final int SIZE_FIXED = 0; //as given; an error if it does not fit
+    public static final int SIZE_FULL = 1; //all of the value an ATT PDU can carry
+    public static final int SIZE_FRACTION = 2; //a fraction of SIZE_FULL
+
     //constants for indicating connection priority
     public static final String BALANCED = "balanced";
     public static final String LOW_LATENCY = "low_latency";
@@ -0,0 +1,151 @@
+package edu.nd.cse.benchmarkcommon;
+
+/**
+ * Estimates how a peer's clock relates to ours from NTP-style probes, so
+ * that timestamps taken on the peer can be put on our timeline and one-way
+ * latencies worked out.
+ *
+ * A probe is: we note the time (t0), ask the peer for its clock (ts), and
+ * note the time the answer arrives (t3). If the trip was symmetric the peer
+ * read its clock halfway, so offset = ts - (t0 + t3) / 2, give or take half
+ * the round trip. Over BLE most of a round trip is waiting for connection
+ * events, which varies a lot from probe to probe, so probes are sent in
+ * bursts and only the one with the shortest round trip is kept from each.
+ *
+ * With one burst the clocks are taken to run at the same rate. With more,
+ * the first and the latest give the skew (how much faster the peer's clock
+ * runs), which matters over long runs: 20 ppm is 200 us over 10 s. The skew
+ * is only as good as the offsets it comes from, so the bursts should be
+ * well apart, e.g. one before and one after a run.
+ *
+ * Not thread safe.
+ */
+public class ClockSync {
+
+    public static final int DEFAULT_PROBES = 8;
+
+    /* best probe of the burst being collected */
+    private int mBurstProbes = 0;
+    private long mBurstRtt = Long.MAX_VALUE;
+    private long mBurstMidpoint = 0; //our time
+    private long mBurstOffset = 0;
+
+    /* estimates from the first and the latest burst */
+    private int mBursts = 0;
+    private long mFirstMidpoint = 0;
+    private long mFirstOffset = 0;
+    private long mFirstRtt = 0;
+    private long mLastMidpoint = 0;
+    private long mLastOffset = 0;
+    private long mLastRtt = 0;
+
+    /**
+     * Forget every probe and burst
+     */
+    public void reset () {
+        mBurstProbes = 0;
+        mBurstRtt = Long.MAX_VALUE;
+        mBursts = 0;
+    }
+
+    /**
+     * Add a probe to the current burst
+     *
+     * @param clientSend - our time (ns) the probe was sent
+     * @param serverTime - the peer's time (ns) in the answer
+     * @param clientReceive - our time (ns) the answer arrived
+     */
+    public void addProbe (long clientSend, long serverTime, long clientReceive) {
+        long rtt = clientReceive - clientSend;
+        if (rtt < 0) {
+            return; //clock went backwards or probes mixed up
+        }
+        ++mBurstProbes;
+        if (rtt < mBurstRtt) {
+            mBurstRtt = rtt;
+            mBurstMidpoint = clientSend + rtt / 2;
+            mBurstOffset = serverTime - mBurstMidpoint;
+        }
+    }
+
+    /**
+     * Close the current burst and update the estimate from its best probe
+     *
+     * @return false if the burst had no usable probes
+     */
+    public boolean finishBurst () {
+        if (0 == mBurstProbes) {
+            return false;
+        }
+
+        if (0 == mBursts) {
+            mFirstMidpoint = mBurstMidpoint;
+            mFirstOffset = mBurstOffset;
+            mFirstRtt = mBurstRtt;
+        }
+        mLastMidpoint = mBurstMidpoint;
+        mLastOffset = mBurstOffset;
+        mLastRtt = mBurstRtt;
+        ++mBursts;
+
+        mBurstProbes = 0;
+        mBurstRtt = Long.MAX_VALUE;
+        return true;
+    }
+
+    /**
+     * @return true once a burst has been finished
+     */
+    public boolean isSynchronized () {
+        return 0 < mBursts;
+    }
+
+    /**
+     * @return peer time minus our time (ns) at the latest burst
+     */
+    public long getOffset () {
+        return mLastOffset;
+    }
+
+    /**
+     * @return how much faster the peer's clock runs than ours (e.g. 20e-6
+     * for 20 ppm), 0 until two bursts are far enough apart to tell
+     */
+    public double getSkew () {
+        long span = mLastMidpoint - mFirstMidpoint;
+        if (mBursts < 2 || span <= 0) {
+            return 0;
+        }
+        return (double) (mLastOffset - mFirstOffset) / span;
+    }
+
+    /**
+     * @return the most a mapped time can be off by (ns): half the longest of
+     * the round trips the estimate is made from
+     */
+    public long getUncertainty () {
+        return Math.max(mFirstRtt, mLastRtt) / 2;
+    }
+
+    /**
+     * Put one of the peer's timestamps on our timeline. The offset is taken
+     * to drift linearly with the skew from the latest burst.
+     *
+     * @param serverTime - a time (ns) from the peer's clock
+     * @return the same moment on our clock (ns)
+     */
+    public long toClientTime (long serverTime) {
+        if (!isSynchronized()) {
+            throw new IllegalStateException("no clock probes yet");
+        }
+        //serverTime = t + offset + skew * (t - mid), solved for t
+        double skew = getSkew();
+        return mLastMidpoint + Math.round((serverTime - mLastOffset - mLastMidpoint) / (1 + skew));
+    }
+
+    @Override
+    public String toString () {
+        return "offset " + getOffset() + " ns, skew " + Math.round(getSkew() * 1e9) / 1000.0
+                + " ppm, +/- " + getUncertainty() + " ns";
+    }
+}
@@ -0,0 +1,137 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs runs of longs into blocks of zigzag, delta-encoded varints. This is
+ * how latency measurements are moved in bulk over LATENCY_BULK_CHAR: the
+ * time diffs grow slowly from one packet to the next, so most deltas take 2
+ * or 3 bytes instead of 8.
+ *
+ * Block layout:
+ *   [count varint][first value zigzag varint][delta zigzag varint]...
+ *
+ * Each block is self contained (the first value is relative to 0) so blocks
+ * can be decoded on their own. A block with a count of 0 marks the end of
+ * the data.
+ */
+public class DeltaVarintCodec {
+
+    private DeltaVarintCodec () {
+    }
+
+    /**
+     * Encode as many values as fit in the remaining space of the buffer
+     *
+     * @param src - values to encode
+     * @param from - index of the first value to encode
+     * @param dst - destination, at least 1 byte must remain
+     * @return the number of values encoded, 0 if from is past the end
+     */
+    public static int encodeBlock (LongRecorder src, int from, ByteBuffer dst) {
+        int limit = dst.remaining();
+        int count = 0;
+        int bytes = 0;
+        long previous = 0;
+
+        //find out how many values fit along with the count header
+        for (int i = from; i < src.size(); ++i) {
+            int size = varintSize(zigZag(src.get(i) - previous));
+            if (varintSize(count + 1) + bytes + size > limit) {
+                break;
+            }
+            bytes += size;
+            previous = src.get(i);
+            ++count;
+        }
+
+        putVarint(dst, count);
+        previous = 0;
+        for (int i = from; i < from + count; ++i) {
+            long value = src.get(i);
+            putZigZag(dst, value - previous);
+            previous = value;
+        }
+        return count;
+    }
+
+    /**
+     * Decode one block, appending the values
+     *
+     * @param src - the block
+     * @param dst - where to put the values
+     * @return the number of values decoded, 0 for the end marker
+     */
+    public static int decodeBlock (ByteBuffer src, LongRecorder dst) {
+        if (!src.hasRemaining()) {
+            return 0;
+        }
+
+        int count = (int) getVarint(src);
+        long previous = 0;
+        for (int i = 0; i < count; ++i) {
+            previous += getZigZag(src);
+            dst.add(previous);
+        }
+        return count;
+    }
+
+    /**
+     * @param value - any value
+     * @return the value mapped so that small magnitudes encode small
+     */
+    public static long zigZag (long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * @param value - the unsigned value
+     * @return how many bytes putVarint will use
+     */
+    public static int varintSize (long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    /**
+     * Write an unsigned LEB128 varint
+     */
+    public static void putVarint (ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned LEB128 varint
+     */
+    public static long getVarint (ByteBuffer src) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new IllegalArgumentException("malformed varint");
+            }
+            b = src.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public static void putZigZag (ByteBuffer dst, long value) {
+        putVarint(dst, zigZag(value));
+    }
+
+    public static long getZigZag (ByteBuffer src) {
+        long value = getVarint(src);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,61 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.util.UUID;
+
+/**
+ * Contract for the client side of the GATT I/O layer. The profile hands
+ * operations down through handleCharacteristic and asks for connection
+ * parameter changes through the ConnectionUpdaterIFace methods. Results
+ * travel back up through the handler and updater set on the transport.
+ * handleCharacteristic returns null when the op was accepted and hands the
+ * op back when the transport could not queue it.
+ *
+ * Implementations are free to talk to a real BluetoothGatt, to a server
+ * profile in the same process, or to a model of the link.
+ */
+public interface GattClientTransport extends CharacteristicHandler, ConnectionUpdaterIFace {
+
+    /**
+     * Set the characteristic handler up the stack
+     *
+     * @param charHandler - the handler
+     */
+    public void setHandler (CharacteristicHandler charHandler);
+
+    /**
+     * Set the callback used to report connection parameter changes up
+     * the stack
+     *
+     * @param connUpdater - the callback
+     */
+    public void setConnectionUpdater (ConnectionUpdater connUpdater);
+
+    /**
+     * Start looking for (and connecting to) the target service
+     *
+     * @param stopScanningOnConnect - whether to stop looking once a
+     *                              connection has been made
+     */
+    public void start (boolean stopScanningOnConnect);
+
+    /**
+     * Disconnect and release resources
+     */
+    public void stop ();
+
+    /**
+     * Set the communication method used on the given characteristic
+     *
+     * @param commMethod - the method defined in BenchmarkProfile
+     * @param charUUID - the characteristic the method applies to
+     */
+    public void setCommMethod (int commMethod, UUID charUUID);
+
+    /**
+     * Set how many write commands may be outstanding at once. Reads and
+     * write requests always go one at a time.
+     *
+     * @param window - the number of write commands to keep in flight
+     */
+    public void setPipelineWindow (int window);
+}
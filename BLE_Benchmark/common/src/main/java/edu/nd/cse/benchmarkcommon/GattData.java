@@ -7,16 +7,117 @@ import java.util.UUID;
  * and Profile layers. The convention is that if mBuffer is null
  * then it's as if this data structure is requesting to be filled
  * by the indicated characteristic at the given device address--
- * that is, it's a read op.
+ * that is, it's a read op. If mDescID is set the op is on that descriptor
+ * of the characteristic rather than on the characteristic's value.
+ *
+ * Instances created with the public constructor own a private copy of the
+ * data and are left to the garbage collector. Instances handed out by a
+ * {@link GattDataPool} are recycled instead: whoever holds one when it is
+ * no longer needed calls release(). The convention across the profile/GATT
+ * boundary is that the layer that obtained the envelope releases it, so a
+ * handler must not keep a reference (or the buffer) past its return.
+ *
+ * Results passed up to the profile carry a status. Anything but
+ * STATUS_SUCCESS means the op is over without a value: the buffer of a
+ * failed write still holds its latency, any other buffer is empty.
  */
 public class GattData {
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_FAILED = 1; //the peer or the stack refused the op
+    public static final int STATUS_UNSUPPORTED = 2; //the peer has no such characteristic/descriptor
+
     public String mAddress;
     public UUID mCharID;
     public byte [] mBuffer;
+    public UUID mDescID; //null for characteristic ops
+    public long mTimestamp; //receive time (ns) for notifications and read responses, send time for write results, 0 otherwise
+    public int mStatus = STATUS_SUCCESS; //results only, see above
+
+    private GattDataPool mPool = null;
+    private boolean mReleased = false;
 
     public GattData (String address, UUID charID, byte[] data) {
         mAddress = address;
         mCharID = charID;
         mBuffer = data == null ? null : data.clone();
     }
+
+    /**
+     * Descriptor op
+     *
+     * @param address - device address
+     * @param charID - the characteristic the descriptor belongs to
+     * @param descID - the descriptor
+     * @param data - value to write, null to read
+     */
+    public GattData (String address, UUID charID, UUID descID, byte[] data) {
+        this(address, charID, data);
+        mDescID = descID;
+    }
+
+    /**
+     * Empty envelope that belongs to a pool
+     *
+     * @param pool - the pool to go back to on release
+     */
+    GattData (GattDataPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Read the first 8 bytes of the buffer as a big-endian long, the format
+     * used for latency measurements
+     *
+     * @return the value
+     */
+    public long getLong () {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; ++i) {
+            value = (value << 8) | (mBuffer[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Write a big-endian long into the first 8 bytes of the buffer
+     *
+     * @param value - the value
+     */
+    public void putLong (long value) {
+        for (int i = Long.BYTES - 1; i >= 0; --i) {
+            mBuffer[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * @return true if this envelope goes back to a pool on release
+     */
+    public boolean isPooled () {
+        return null != mPool;
+    }
+
+    /**
+     * Hand a pooled envelope back for reuse. Does nothing for envelopes that
+     * were not obtained from a pool.
+     */
+    public void release () {
+        if (null != mPool) {
+            if (mReleased) {
+                throw new IllegalStateException("GattData released twice");
+            }
+            mReleased = true;
+            mPool.recycle(this);
+        }
+    }
+
+    /**
+     * Called by the pool when handing the envelope out again
+     */
+    void reclaim () {
+        mReleased = false;
+        mDescID = null;
+        mTimestamp = 0;
+        mStatus = STATUS_SUCCESS;
+    }
 }
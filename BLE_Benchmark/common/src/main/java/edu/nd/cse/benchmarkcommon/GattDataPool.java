@@ -0,0 +1,99 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.util.UUID;
+
+/**
+ * Pool of reusable {@link GattData} envelopes so that the steady-state
+ * benchmark loop does not allocate. An envelope's buffer is kept across
+ * uses and only replaced when a different length is asked for, which does
+ * not happen once a run has settled on its data size.
+ *
+ * The free list is an {@link OpRing}: only one thread at a time may obtain.
+ * Releases may come from any thread at once (e.g. whichever thread hands
+ * the op to the stack). If the pool runs dry a new envelope is
+ * created (and counted as a miss); if the free list is full a released
+ * envelope is simply left to the garbage collector.
+ */
+public class GattDataPool {
+
+    private final OpRing<GattData> mFree;
+    private long mMisses = 0;
+
+    /**
+     * @param capacity - how many envelopes to preallocate
+     */
+    public GattDataPool (int capacity) {
+        mFree = new OpRing<GattData>(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            GattData data = new GattData(this);
+            data.release();
+        }
+    }
+
+    /**
+     * Get an envelope with a buffer of exactly the given length. The buffer
+     * content is whatever the previous user left in it.
+     *
+     * @param address - device address
+     * @param charID - characteristic
+     * @param length - buffer length
+     * @return the envelope; release() it when done
+     */
+    public GattData obtain (String address, UUID charID, int length) {
+        GattData data = mFree.poll();
+        if (null == data) {
+            ++mMisses;
+            data = new GattData(this);
+        }
+
+        data.reclaim();
+        data.mAddress = address;
+        data.mCharID = charID;
+        if (null == data.mBuffer || data.mBuffer.length != length) {
+            data.mBuffer = new byte[length];
+        }
+        return data;
+    }
+
+    /**
+     * Get an envelope holding a copy of the given bytes
+     *
+     * @param address - device address
+     * @param charID - characteristic
+     * @param src - bytes to copy
+     * @return the envelope; release() it when done
+     */
+    public GattData obtain (String address, UUID charID, byte [] src) {
+        GattData data = obtain(address, charID, src.length);
+        System.arraycopy(src, 0, data.mBuffer, 0, src.length);
+        return data;
+    }
+
+    /**
+     * Get an 8 byte envelope holding a big-endian long, e.g. a latency
+     *
+     * @param address - device address
+     * @param charID - characteristic
+     * @param value - the value
+     * @return the envelope; release() it when done
+     */
+    public GattData obtainLong (String address, UUID charID, long value) {
+        GattData data = obtain(address, charID, Long.BYTES);
+        data.putLong(value);
+        return data;
+    }
+
+    /**
+     * @return how many times the pool was empty and had to allocate
+     */
+    public long getMissCount () {
+        return mMisses;
+    }
+
+    /**
+     * Take an envelope back. Called by GattData.release()
+     */
+    void recycle (GattData data) {
+        mFree.offer(data);
+    }
+}
@@ -0,0 +1,58 @@
+package edu.nd.cse.benchmarkcommon;
+
+/**
+ * Contract for the server side of the GATT I/O layer. Incoming reads and
+ * writes are handed up to the profile through the CharacteristicHandler and
+ * connection changes through the ConnectionUpdater. The profile pushes data
+ * with sendNotification and learns when to send the next one through the
+ * NotificationHandler.
+ */
+public interface GattServerTransport {
+
+    /**
+     * Set the callback for handling incoming data
+     *
+     * @param func - the handler
+     * @return true if the handler was set, false otherwise
+     */
+    public boolean setCharacteristicHandler (CharacteristicHandler func);
+
+    /**
+     * Set the callback to be used for communicating connection
+     * parameter changes up the stack
+     *
+     * @param updater - the callback
+     */
+    public void setConnectionUpdateCallback (ConnectionUpdater updater);
+
+    /**
+     * Set the callback used to report that a notification was sent
+     *
+     * @param handler - the callback
+     */
+    public void setNotificationHandler (NotificationHandler handler);
+
+    /**
+     * Notify a subscribed client of a new characteristic value. The value is
+     * copied before returning, so a pooled envelope can be released.
+     *
+     * @param data - address, characteristic, and value to send
+     * @return true if the stack took the notification, false if the client
+     * is not subscribed or the stack is busy (try again after the next
+     * onNotificationSent)
+     */
+    public boolean sendNotification (GattData data);
+
+    /**
+     * Start accepting connections
+     *
+     * @param stopAdvOnConnect - whether to stop advertising once a
+     *                         connection has been made
+     */
+    public void start (boolean stopAdvOnConnect);
+
+    /**
+     * Stop accepting connections and release resources
+     */
+    public void stop ();
+}
@@ -0,0 +1,432 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-memory, log-bucketed histogram of non-negative values (latencies in
+ * nanoseconds) with the semantics of HdrHistogram
+ * (http://hdrhistogram.org/): values between the lowest discernible and the
+ * highest trackable value are kept to the given number of significant
+ * decimal digits. Memory is fixed when the histogram is created and
+ * recording is a handful of shifts and an array increment, so it can sit in
+ * the per-packet path.
+ *
+ * Values above the highest trackable value are counted in the top bucket
+ * (and in getOutOfRangeCount()) rather than throwing mid-run.
+ *
+ * Not thread safe: record from one thread and merge copies with add().
+ */
+public class LatencyHistogram {
+
+    private static final int ENCODING_COOKIE = 0x4c48_0001; //"LH" v1
+
+    private final long mLowestDiscernibleValue;
+    private final long mHighestTrackableValue;
+    private final int mSignificantDigits;
+
+    private final int mUnitMagnitude;
+    private final int mSubBucketHalfCountMagnitude;
+    private final int mSubBucketCount;
+    private final int mSubBucketHalfCount;
+    private final long mSubBucketMask;
+    private final int mLeadingZeroCountBase;
+    private final int mBucketCount;
+
+    private final long [] mCounts;
+    private final int mMaxIndex;
+
+    private long mTotalCount = 0;
+    private long mOutOfRange = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+    private double mSum = 0;
+
+    /**
+     * @param highestTrackableValue - largest value that is kept exactly
+     * @param significantDigits - 1 to 5
+     */
+    public LatencyHistogram (long highestTrackableValue, int significantDigits) {
+        this(1, highestTrackableValue, significantDigits);
+    }
+
+    /**
+     * @param lowestDiscernibleValue - smallest value that is told apart from 0,
+     *                               e.g. 1000 to track nanoseconds at microsecond resolution
+     * @param highestTrackableValue - largest value that is kept exactly
+     * @param significantDigits - 1 to 5
+     */
+    public LatencyHistogram (long lowestDiscernibleValue, long highestTrackableValue,
+                             int significantDigits) {
+        if (lowestDiscernibleValue < 1) {
+            throw new IllegalArgumentException("lowestDiscernibleValue must be >= 1");
+        }
+        if (highestTrackableValue < 2 * lowestDiscernibleValue) {
+            throw new IllegalArgumentException("highestTrackableValue must be >= 2 * lowestDiscernibleValue");
+        }
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("significantDigits must be 1 to 5");
+        }
+
+        mLowestDiscernibleValue = lowestDiscernibleValue;
+        mHighestTrackableValue = highestTrackableValue;
+        mSignificantDigits = significantDigits;
+
+        //enough sub buckets to resolve a single unit at the requested precision
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        mSubBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+        mUnitMagnitude = 63 - Long.numberOfLeadingZeros(lowestDiscernibleValue);
+        mSubBucketCount = 1 << (mSubBucketHalfCountMagnitude + 1);
+        mSubBucketHalfCount = mSubBucketCount / 2;
+        mSubBucketMask = ((long) mSubBucketCount - 1) << mUnitMagnitude;
+        mLeadingZeroCountBase = 64 - mUnitMagnitude - mSubBucketHalfCountMagnitude - 1;
+
+        //each bucket doubles the range of the one before it
+        long smallestUntrackableValue = ((long) mSubBucketCount) << mUnitMagnitude;
+        int buckets = 1;
+        while (smallestUntrackableValue <= highestTrackableValue) {
+            if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+                ++buckets;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            ++buckets;
+        }
+        mBucketCount = buckets;
+
+        mCounts = new long[(mBucketCount + 1) * mSubBucketHalfCount];
+        mMaxIndex = countsIndexFor(highestTrackableValue);
+    }
+
+    /**
+     * Record a single value
+     *
+     * @param value - the value, must not be negative
+     */
+    public void recordValue (long value) {
+        recordValueWithCount(value, 1);
+    }
+
+    /**
+     * Record a value, correcting for coordinated omission the way
+     * HdrHistogram does: a load generator that waits for each op before
+     * sending the next one sends nothing while an op is stalled, so the ops
+     * that should have been sent meanwhile (and would have waited behind it)
+     * are never measured. If the value is longer than the expected interval
+     * between ops, also record value - interval, value - 2 * interval, ...
+     * down to the interval, as those missing ops would have seen.
+     *
+     * Only for latencies measured from when each op was actually sent; ones
+     * measured from when it was meant to be sent already include the wait.
+     *
+     * @param value - the value, must not be negative
+     * @param expectedInterval - ns between ops at the intended rate, 0 or
+     *                         less to record the value alone
+     */
+    public void recordValueWithExpectedInterval (long value, long expectedInterval) {
+        recordValueWithCount(value, 1);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval;
+             missing -= expectedInterval) {
+            recordValueWithCount(missing, 1);
+        }
+    }
+
+    /**
+     * Record a value several times
+     *
+     * @param value - the value, must not be negative
+     * @param count - how many times to record it
+     */
+    public void recordValueWithCount (long value, long count) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must not be negative");
+        }
+
+        int index = countsIndexFor(value);
+        if (index > mMaxIndex) {
+            index = mMaxIndex;
+            mOutOfRange += count;
+        }
+        mCounts[index] += count;
+        mTotalCount += count;
+        mSum += (double) value * count;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * Forget all recorded values
+     */
+    public void reset () {
+        java.util.Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mOutOfRange = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+        mSum = 0;
+    }
+
+    /**
+     * Merge the counts of another histogram into this one. The other
+     * histogram may have a different layout; its values are then re-recorded
+     * at its own precision.
+     *
+     * @param other - histogram to add
+     */
+    public void add (LatencyHistogram other) {
+        if (sameLayout(other)) {
+            for (int i = 0; i < mCounts.length; ++i) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mTotalCount += other.mTotalCount;
+            mOutOfRange += other.mOutOfRange;
+            mSum += other.mSum;
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        } else {
+            for (int i = 0; i < other.mCounts.length; ++i) {
+                long count = other.mCounts[i];
+                if (0 != count) {
+                    recordValueWithCount(other.valueFromIndex(i), count);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a new histogram with the same layout and counts
+     */
+    public LatencyHistogram copy () {
+        LatencyHistogram copy = new LatencyHistogram(mLowestDiscernibleValue,
+                mHighestTrackableValue, mSignificantDigits);
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * @param percentile - 0 to 100
+     * @return the value that the given percentage of recorded values are at
+     * or below (to the histogram's precision), 0 if nothing was recorded
+     */
+    public long getValueAtPercentile (double percentile) {
+        if (0 == mTotalCount) {
+            return 0;
+        }
+
+        double requested = Math.min(Math.max(percentile, 0.0), 100.0);
+        long countAtPercentile = (long) (((requested / 100.0) * mTotalCount) + 0.5);
+        countAtPercentile = Math.max(countAtPercentile, 1);
+
+        long total = 0;
+        for (int i = 0; i <= mMaxIndex; ++i) {
+            total += mCounts[i];
+            if (total >= countAtPercentile) {
+                long value = highestEquivalentValue(valueFromIndex(i));
+                return (0 == percentile) ? lowestEquivalentValue(value) : Math.min(value, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public long getTotalCount () {
+        return mTotalCount;
+    }
+
+    /**
+     * @return how many values were above the highest trackable value
+     */
+    public long getOutOfRangeCount () {
+        return mOutOfRange;
+    }
+
+    /**
+     * @return smallest recorded value, 0 if nothing was recorded
+     */
+    public long getMinValue () {
+        return (0 == mTotalCount) ? 0 : mMin;
+    }
+
+    public long getMaxValue () {
+        return mMax;
+    }
+
+    public double getMean () {
+        return (0 == mTotalCount) ? 0 : mSum / mTotalCount;
+    }
+
+    public long getHighestTrackableValue () {
+        return mHighestTrackableValue;
+    }
+
+    public int getSignificantDigits () {
+        return mSignificantDigits;
+    }
+
+    /**
+     * @param value - any value in range
+     * @return the smallest value that is counted in the same bucket
+     */
+    public long lowestEquivalentValue (long value) {
+        int bucketIndex = getBucketIndex(value);
+        int subBucketIndex = getSubBucketIndex(value, bucketIndex);
+        return valueFromIndex(bucketIndex, subBucketIndex);
+    }
+
+    /**
+     * @param value - any value in range
+     * @return the largest value that is counted in the same bucket
+     */
+    public long highestEquivalentValue (long value) {
+        return lowestEquivalentValue(value) + sizeOfEquivalentValueRange(value) - 1;
+    }
+
+    /**
+     * @return a short human readable summary, e.g. for the log
+     */
+    public String summary () {
+        return "n=" + mTotalCount
+                + " min=" + getMinValue()
+                + " p50=" + getValueAtPercentile(50)
+                + " p99=" + getValueAtPercentile(99)
+                + " p99.9=" + getValueAtPercentile(99.9)
+                + " max=" + mMax;
+    }
+
+    /**
+     * @return enough bytes to encode this histogram whatever its counts
+     */
+    public int getNeededByteBufferCapacity () {
+        //header plus a worst case 10 byte varint per count
+        return 4 + 4 + 8 + 8 + 8 + 8 + 8 + 8 + 4 + (mMaxIndex + 1) * 10;
+    }
+
+    /**
+     * Write the histogram to the buffer. Counts are stored as zigzag varints
+     * and runs of empty buckets as a single negative length, so a sparse
+     * histogram only takes a few hundred bytes.
+     *
+     * @param buffer - destination, see getNeededByteBufferCapacity()
+     * @return the number of bytes written
+     */
+    public int encode (ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(ENCODING_COOKIE);
+        buffer.putInt(mSignificantDigits);
+        buffer.putLong(mLowestDiscernibleValue);
+        buffer.putLong(mHighestTrackableValue);
+        buffer.putLong(mTotalCount);
+        buffer.putLong(mOutOfRange);
+        buffer.putLong(getMinValue());
+        buffer.putLong(mMax);
+        buffer.putDouble(mSum);
+
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        int countsStart = buffer.position();
+        int i = 0;
+        while (i <= mMaxIndex) {
+            if (0 == mCounts[i]) {
+                int zeros = 0;
+                while (i <= mMaxIndex && 0 == mCounts[i]) {
+                    ++zeros;
+                    ++i;
+                }
+                DeltaVarintCodec.putZigZag(buffer, -zeros);
+            } else {
+                DeltaVarintCodec.putZigZag(buffer, mCounts[i]);
+                ++i;
+            }
+        }
+        buffer.putInt(lengthPosition, buffer.position() - countsStart);
+        return buffer.position() - start;
+    }
+
+    /**
+     * Read a histogram written by encode()
+     *
+     * @param buffer - source, positioned at the start of the encoding
+     * @return the decoded histogram
+     */
+    public static LatencyHistogram decode (ByteBuffer buffer) {
+        if (ENCODING_COOKIE != buffer.getInt()) {
+            throw new IllegalArgumentException("not an encoded LatencyHistogram");
+        }
+        int digits = buffer.getInt();
+        long lowest = buffer.getLong();
+        long highest = buffer.getLong();
+
+        LatencyHistogram histogram = new LatencyHistogram(lowest, highest, digits);
+        histogram.mTotalCount = buffer.getLong();
+        histogram.mOutOfRange = buffer.getLong();
+        long min = buffer.getLong();
+        histogram.mMin = (0 == histogram.mTotalCount) ? Long.MAX_VALUE : min;
+        histogram.mMax = buffer.getLong();
+        histogram.mSum = buffer.getDouble();
+
+        int end = buffer.getInt() + buffer.position();
+        int index = 0;
+        while (buffer.position() < end) {
+            long count = DeltaVarintCodec.getZigZag(buffer);
+            if (count < 0) {
+                index += (int) -count;
+            } else {
+                if (index > histogram.mMaxIndex) {
+                    throw new IllegalArgumentException("encoded counts exceed histogram range");
+                }
+                histogram.mCounts[index] = count;
+                ++index;
+            }
+        }
+        return histogram;
+    }
+
+    private boolean sameLayout (LatencyHistogram other) {
+        return mUnitMagnitude == other.mUnitMagnitude
+                && mSubBucketHalfCountMagnitude == other.mSubBucketHalfCountMagnitude
+                && mCounts.length == other.mCounts.length;
+    }
+
+    private int countsIndexFor (long value) {
+        int bucketIndex = getBucketIndex(value);
+        int subBucketIndex = getSubBucketIndex(value, bucketIndex);
+        int bucketBaseIndex = (bucketIndex + 1) << mSubBucketHalfCountMagnitude;
+        int index = bucketBaseIndex + (subBucketIndex - mSubBucketHalfCount);
+        return Math.min(index, mCounts.length - 1);
+    }
+
+    private int getBucketIndex (long value) {
+        return mLeadingZeroCountBase - Long.numberOfLeadingZeros(value | mSubBucketMask);
+    }
+
+    private int getSubBucketIndex (long value, int bucketIndex) {
+        return (int) (value >>> (bucketIndex + mUnitMagnitude));
+    }
+
+    private long valueFromIndex (int bucketIndex, int subBucketIndex) {
+        return ((long) subBucketIndex) << (bucketIndex + mUnitMagnitude);
+    }
+
+    private long valueFromIndex (int index) {
+        int bucketIndex = (index >> mSubBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (mSubBucketHalfCount - 1)) + mSubBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= mSubBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return valueFromIndex(bucketIndex, subBucketIndex);
+    }
+
+    private long sizeOfEquivalentValueRange (long value) {
+        int bucketIndex = getBucketIndex(value);
+        int subBucketIndex = getSubBucketIndex(value, bucketIndex);
+        int adjustedBucket = (subBucketIndex >= mSubBucketCount) ? bucketIndex + 1 : bucketIndex;
+        return 1L << (mUnitMagnitude + adjustedBucket);
+    }
+}
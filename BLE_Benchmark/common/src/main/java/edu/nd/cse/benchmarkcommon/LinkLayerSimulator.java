@@ -0,0 +1,761 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Discrete-event model of a single BLE connection that can stand in for the
+ * GATT layer on both sides. Time is simulated: nothing happens until
+ * runFor() is called, and a simulated second takes a few microseconds of
+ * wall time, so sweeps of MTU x data size x comm method can be predicted
+ * before touching hardware.
+ *
+ * The model steps through connection events spaced one connection interval
+ * apart. In each event the central and peripheral exchange packet pairs
+ * (central PDU, T_IFS, peripheral PDU, T_IFS) until neither side has data,
+ * the controller's packets-per-event limit is reached, or the interval runs
+ * out. ATT PDUs (plus the 4 byte L2CAP header) are fragmented into link
+ * layer payloads of at most mLlPayload bytes.
+ *
+ * ATT semantics:
+ * - WRITE_CMD completes as soon as its last fragment is on the air. Up to
+ *   mMaxInFlight commands may be queued in the controller at once.
+ * - WRITE_REQ completes when the write response arrives. The peripheral
+ *   cannot answer in the event that carried the request, so the response
+ *   goes out in the next event at the earliest. One request at a time.
+ * - READ is answered in the next event with at most MTU - 1 bytes, and
+ *   followed by read blob requests until the whole value has been read.
+ * - NOTIFY is only sent once the client has written the CCCD. Each
+ *   notification is reported sent to the server as soon as it is on the air;
+ *   the peripheral's controller accepts up to mMaxInFlight at once when
+ *   predicting.
+ *
+ * The same GattData callbacks that GattClient.onCharacteristicWrite and
+ * GattServer.onCharacteristicWriteRequest produce are fed to the handlers set
+ * on getClientEnd()/getServerEnd(), so the benchmark profiles can sit on top
+ * unchanged. Note that the profiles take their own timestamps from the
+ * system clock; only the latencies passed up by the client end are in
+ * simulated time.
+ */
+public class LinkLayerSimulator {
+
+    public static final String CLIENT_ADDRESS = "00:00:00:00:00:01";
+    public static final String SERVER_ADDRESS = "00:00:00:00:00:02";
+
+    /* Link layer timing */
+    private static final long T_IFS_NS = 150000; //inter frame space
+    private static final int LL_OVERHEAD_BYTES = 14; //preamble, AA, header, MIC, CRC
+    private static final int LL_EMPTY_BYTES = 10; //empty PDUs carry no MIC
+
+    /* Header sizes (bytes) */
+    private static final int L2CAP_HEADER = 4;
+    private static final int ATT_WRITE_HEADER = 3;
+    private static final int ATT_WRITE_RSP = 1;
+    private static final int ATT_READ_REQ = 3;
+    private static final int ATT_READ_BLOB_REQ = 5;
+    private static final int ATT_READ_RSP_HEADER = 1;
+    private static final int ATT_NOTIFY_HEADER = 3;
+
+    private final int MAX_MTU = 517;
+
+    /* Link parameters */
+    private long mConnIntervalNanos = 7500000; //7.5 ms
+    private int mLlPayload = 27; //251 with data length extension
+    private int mMaxPacketsPerEvent = 6;
+    private int mPhy = 1; //1M or 2M
+    private int mPeerMaxMtu = MAX_MTU;
+    private int mMtu = 23;
+    private int mCommMethod = BenchmarkProfile.WRITE_REQ;
+    private int mMaxInFlight = 1;
+    private long mHostTurnaroundNanos = 250000; //callback to next op
+
+    /* Simulation state */
+    private long mNow = 0;
+    private long mNextEvent = 0;
+    private long mEventCount = 0;
+    private final ArrayDeque<Runnable> mHostEvents = new ArrayDeque<Runnable>();
+    private final ArrayDeque<PendingOp> mPending = new ArrayDeque<PendingOp>();
+    private final ArrayDeque<Transfer> mCentralTx = new ArrayDeque<Transfer>();
+    private final ArrayDeque<Transfer> mPeripheralTx = new ArrayDeque<Transfer>();
+    private int mInFlight = 0;
+    private int mNotifyInFlight = 0;
+    private boolean mSubscribed = false;
+    private boolean mRequestOutstanding = false;
+    private long mNextOpReady = 0;
+    private GattData mSaturatingOp = null;
+
+    /* Statistics */
+    private long mBytesDelivered = 0;
+    private long mOpsCompleted = 0;
+    private long mOpLatencySum = 0;
+    private long mPacketPairs = 0;
+
+    private final ClientEnd mClientEnd = new ClientEnd();
+    private final ServerEnd mServerEnd = new ServerEnd();
+
+    /**
+     * @return the end to hand to the client profile
+     */
+    public GattClientTransport getClientEnd () {
+        return mClientEnd;
+    }
+
+    /**
+     * @return the end to hand to the server profile
+     */
+    public GattServerTransport getServerEnd () {
+        return mServerEnd;
+    }
+
+    /**
+     * @param nanos - the connection interval in (simulated) nanoseconds.
+     *              BLE allows 7.5 ms to 4 s in steps of 1.25 ms
+     */
+    public void setConnIntervalNanos (long nanos) {
+        mConnIntervalNanos = nanos;
+    }
+
+    /**
+     * @param bytes - the maximum link layer payload. 27 without data length
+     *              extension, up to 251 with it
+     */
+    public void setLlPayload (int bytes) {
+        mLlPayload = bytes;
+    }
+
+    /**
+     * @param packets - the controller's limit on packet pairs per
+     *                connection event
+     */
+    public void setMaxPacketsPerEvent (int packets) {
+        mMaxPacketsPerEvent = packets;
+    }
+
+    /**
+     * @param phy - 1 for LE 1M, 2 for LE 2M
+     */
+    public void setPhy (int phy) {
+        mPhy = phy;
+    }
+
+    /**
+     * @param mtu - the largest MTU the peripheral will accept
+     */
+    public void setPeerMaxMtu (int mtu) {
+        mPeerMaxMtu = mtu;
+    }
+
+    /**
+     * @param ops - how many write commands may be queued in the controller
+     *            at once
+     */
+    public void setMaxInFlight (int ops) {
+        mMaxInFlight = ops;
+    }
+
+    /**
+     * @param nanos - time the host needs between an op completing and the
+     *              next op being handed to the controller
+     */
+    public void setHostTurnaroundNanos (long nanos) {
+        mHostTurnaroundNanos = nanos;
+    }
+
+    /**
+     * @return the current simulated time in nanoseconds
+     */
+    public long now () {
+        return mNow;
+    }
+
+    /**
+     * @return the negotiated MTU
+     */
+    public int getMtu () {
+        return mMtu;
+    }
+
+    /**
+     * Advance simulated time, processing every connection event that falls
+     * within the window
+     *
+     * @param nanos - how much simulated time to run
+     */
+    public void runFor (long nanos) {
+        long end = mNow + nanos;
+        while (mNextEvent <= end) {
+            mNow = mNextEvent;
+            connectionEvent();
+            mNextEvent += mConnIntervalNanos;
+        }
+        mNow = Math.max(mNow, end);
+    }
+
+    /**
+     * Run a saturating sender (an op is always waiting on the host) for the
+     * given amount of simulated time and report what the link delivered.
+     * Any profile attached to the client end is bypassed; a server profile
+     * attached to the server end still receives every write.
+     *
+     * @param dataSize - bytes per operation
+     * @param commMethod - the method defined in BenchmarkProfile
+     * @param durationNanos - simulated run time
+     * @return the predicted performance
+     */
+    public Prediction predict (int dataSize, int commMethod, long durationNanos) {
+        mCommMethod = commMethod;
+        resetStatistics();
+
+        byte [] payload = null;
+        if (BenchmarkProfile.READ != commMethod) {
+            payload = new byte[dataSize];
+            Arrays.fill(payload, (byte) 0x5A);
+        }
+        mSaturatingOp = new GattData(SERVER_ADDRESS, BenchmarkProfile.TEST_CHAR, payload);
+
+        CharacteristicHandler saved = mClientEnd.mCharHandler;
+        mClientEnd.mCharHandler = null;
+
+        long pairsAtStart = mPacketPairs;
+        long eventsAtStart = mEventCount;
+        runFor(durationNanos);
+
+        mSaturatingOp = null;
+        mPending.clear();
+        mNotifyInFlight = 0;
+        mClientEnd.mCharHandler = saved;
+
+        return new Prediction(dataSize, commMethod, mMtu, durationNanos,
+                mBytesDelivered, mOpsCompleted,
+                0 == mOpsCompleted ? 0 : mOpLatencySum / mOpsCompleted,
+                mEventCount - eventsAtStart, mPacketPairs - pairsAtStart);
+    }
+
+    private void resetStatistics () {
+        mBytesDelivered = 0;
+        mOpsCompleted = 0;
+        mOpLatencySum = 0;
+    }
+
+    /**
+     * Air time of a PDU carrying the given payload
+     */
+    private long airTime (int payload) {
+        int bytes = (0 == payload) ? LL_EMPTY_BYTES : payload + LL_OVERHEAD_BYTES;
+        if (2 == mPhy) {
+            bytes += 1; //two byte preamble
+            return bytes * 4000L;
+        }
+        return bytes * 8000L;
+    }
+
+    /**
+     * One connection event: run host callbacks that are due, hand eligible
+     * ops to the controller, then exchange packet pairs
+     */
+    private void connectionEvent () {
+        ++mEventCount;
+        while (!mHostEvents.isEmpty()) {
+            mHostEvents.poll().run();
+        }
+
+        long eventStart = mNow;
+        long eventEnd = eventStart + mConnIntervalNanos;
+        long slot = eventStart;
+        int pairs = 0;
+
+        while (pairs < mMaxPacketsPerEvent) {
+            mNow = slot;
+            startOps();
+
+            Transfer m = eligible(mCentralTx, slot);
+            Transfer s = eligible(mPeripheralTx, slot);
+            if (null == m && null == s && 0 < pairs) {
+                break; //no more data either way
+            }
+
+            int mBytes = (null == m) ? 0 : Math.min(mLlPayload, m.mRemaining);
+            int sBytes = (null == s) ? 0 : Math.min(mLlPayload, s.mRemaining);
+            long mAir = airTime(mBytes);
+            long pairTime = mAir + T_IFS_NS + airTime(sBytes) + T_IFS_NS;
+            if (slot + pairTime > eventEnd) {
+                break;
+            }
+
+            ++pairs;
+            ++mPacketPairs;
+
+            if (null != m) {
+                m.mRemaining -= mBytes;
+                if (0 == m.mRemaining) {
+                    mCentralTx.poll();
+                    mNow = slot + mAir;
+                    m.mOnDelivered.run();
+                }
+            }
+            if (null != s) {
+                s.mRemaining -= sBytes;
+                if (0 == s.mRemaining) {
+                    mPeripheralTx.poll();
+                    mNow = slot + pairTime - T_IFS_NS;
+                    s.mOnDelivered.run();
+                }
+            }
+
+            if (null == m && null == s) {
+                break; //poll only
+            }
+            slot += pairTime;
+        }
+    }
+
+    private Transfer eligible (ArrayDeque<Transfer> queue, long slot) {
+        Transfer t = queue.peek();
+        return (null != t && t.mEligible <= slot) ? t : null;
+    }
+
+    /**
+     * Hand as many pending ops to the controller as the ATT rules allow
+     */
+    private void startOps () {
+        if (null != mSaturatingOp && BenchmarkProfile.NOTIFY == mCommMethod) {
+            //the peripheral is the sender: keep its controller queue full
+            while (mNotifyInFlight < mMaxInFlight) {
+                startNotification(mSaturatingOp.mCharID, mSaturatingOp.mBuffer);
+            }
+            return;
+        }
+
+        if (mPending.isEmpty() && null != mSaturatingOp) {
+            mPending.add(new PendingOp(mSaturatingOp, mNow));
+        }
+
+        while (!mPending.isEmpty() && mNextOpReady <= mNow) {
+            PendingOp op = mPending.peek();
+            if (op.mReady > mNow) {
+                return;
+            }
+
+            boolean command = null != op.mData.mBuffer
+                    && null == op.mData.mDescID
+                    && BenchmarkProfile.WRITE_CMD == mCommMethod
+                    && BenchmarkProfile.TEST_CHAR.equals(op.mData.mCharID);
+            if (command) {
+                if (mInFlight >= mMaxInFlight) {
+                    return;
+                }
+            } else if (mRequestOutstanding || 0 < mInFlight) {
+                return;
+            }
+
+            mPending.poll();
+            if (mPending.isEmpty() && null != mSaturatingOp) {
+                mPending.add(new PendingOp(mSaturatingOp, mNow));
+            }
+
+            if (command) {
+                ++mInFlight;
+                startWriteCommand(op.mData, mNow);
+            } else if (null == op.mData.mBuffer) {
+                mRequestOutstanding = true;
+                startRead(op.mData, mNow);
+            } else {
+                mRequestOutstanding = true;
+                startWriteRequest(op.mData, mNow);
+            }
+        }
+    }
+
+    private void startWriteCommand (final GattData data, final long opInit) {
+        mCentralTx.add(new Transfer(L2CAP_HEADER + ATT_WRITE_HEADER + data.mBuffer.length,
+                mNow, new Runnable() {
+            @Override
+            public void run() {
+                deliverWrite(data);
+                --mInFlight;
+                completeWrite(data, opInit);
+                data.release();
+            }
+        }));
+    }
+
+    private void startWriteRequest (final GattData data, final long opInit) {
+        mCentralTx.add(new Transfer(L2CAP_HEADER + ATT_WRITE_HEADER + data.mBuffer.length,
+                mNow, new Runnable() {
+            @Override
+            public void run() {
+                deliverWrite(data);
+                //response goes out in the next event at the earliest
+                mPeripheralTx.add(new Transfer(L2CAP_HEADER + ATT_WRITE_RSP,
+                        mNextEvent + mConnIntervalNanos, new Runnable() {
+                    @Override
+                    public void run() {
+                        mRequestOutstanding = false;
+                        completeWrite(data, opInit);
+                        data.release();
+                    }
+                }));
+            }
+        }));
+    }
+
+    private void startRead (final GattData data, final long opInit) {
+        mCentralTx.add(new Transfer(L2CAP_HEADER + ATT_READ_REQ, mNow, new Runnable() {
+            @Override
+            public void run() {
+                GattData response = null;
+                if (null != mServerEnd.mHandler) {
+                    response = mServerEnd.mHandler.handleCharacteristic(
+                            new GattData(CLIENT_ADDRESS, data.mCharID, data.mDescID, null));
+                } else if (BenchmarkProfile.TEST_CHAR.equals(data.mCharID)) {
+                    response = new GattData(null, null, new byte[mMtu - 1]);
+                }
+                byte [] value = (null == response || null == response.mBuffer)
+                        ? new byte[0] : response.mBuffer;
+                readChunk(data, value, 0, opInit);
+            }
+        }));
+    }
+
+    /**
+     * Peripheral answers a (blob) read with the next MTU - 1 bytes. If the
+     * value is longer, the central asks for the rest in the following event
+     */
+    private void readChunk (final GattData data, final byte [] value, final int offset,
+                            final long opInit) {
+        final int chunk = Math.min(mMtu - 1, value.length - offset);
+        mPeripheralTx.add(new Transfer(L2CAP_HEADER + ATT_READ_RSP_HEADER + chunk,
+                mNextEvent + mConnIntervalNanos, new Runnable() {
+            @Override
+            public void run() {
+                final int next = offset + chunk;
+                if (chunk == mMtu - 1 && next < value.length) {
+                    mCentralTx.add(new Transfer(L2CAP_HEADER + ATT_READ_BLOB_REQ, mNow,
+                            new Runnable() {
+                        @Override
+                        public void run() {
+                            readChunk(data, value, next, opInit);
+                        }
+                    }));
+                    return;
+                }
+
+                mRequestOutstanding = false;
+                mBytesDelivered += value.length;
+                completeOp(opInit);
+                if (null != mClientEnd.mCharHandler) {
+                    GattData envelope = new GattData(SERVER_ADDRESS, data.mCharID,
+                            data.mDescID, value);
+                    envelope.mTimestamp = mNow;
+                    mClientEnd.mCharHandler.handleCharacteristic(envelope);
+                }
+                data.release();
+            }
+        }));
+    }
+
+    private void deliverWrite (GattData data) {
+        if (BenchmarkProfile.CLIENT_CONFIG_DESC.equals(data.mDescID)) {
+            //the stack keeps track of subscriptions, same as GattServer
+            mSubscribed = Arrays.equals(BenchmarkProfile.ENABLE_NOTIFICATION_VALUE, data.mBuffer);
+            return;
+        }
+
+        mBytesDelivered += data.mBuffer.length;
+        if (null != mServerEnd.mHandler) {
+            mServerEnd.mHandler.handleCharacteristic(
+                    new GattData(CLIENT_ADDRESS, data.mCharID, data.mDescID, data.mBuffer));
+        }
+    }
+
+    /**
+     * Peripheral pushes a value. Once it is on the air the client gets it,
+     * stamped with the simulated receive time, and the server is told it
+     * was sent
+     */
+    private void startNotification (final UUID charID, final byte [] value) {
+        final long opInit = mNow;
+        ++mNotifyInFlight;
+        mPeripheralTx.add(new Transfer(L2CAP_HEADER + ATT_NOTIFY_HEADER + value.length,
+                mNow, new Runnable() {
+            @Override
+            public void run() {
+                --mNotifyInFlight;
+                mBytesDelivered += value.length;
+                completeOp(opInit);
+                if (null != mClientEnd.mCharHandler) {
+                    GattData notification = new GattData(SERVER_ADDRESS, charID, value);
+                    notification.mTimestamp = mNow;
+                    mClientEnd.mCharHandler.handleCharacteristic(notification);
+                }
+                if (null != mServerEnd.mNotificationHandler) {
+                    mServerEnd.mNotificationHandler.onNotificationSent(CLIENT_ADDRESS, true);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Same envelope GattClient.onCharacteristicWrite passes up: the op
+     * latency as a long
+     */
+    private void completeWrite (GattData data, long opInit) {
+        long timeDiff = completeOp(opInit);
+        if (null != mClientEnd.mCharHandler) {
+            GattData envelope = new GattData(SERVER_ADDRESS, data.mCharID, data.mDescID,
+                    ByteBuffer.allocate(Long.BYTES).putLong(timeDiff).array());
+            envelope.mTimestamp = opInit;
+            mClientEnd.mCharHandler.handleCharacteristic(envelope);
+        }
+    }
+
+    private long completeOp (long opInit) {
+        long timeDiff = mNow - opInit;
+        ++mOpsCompleted;
+        mOpLatencySum += timeDiff;
+        mNextOpReady = mNow + mHostTurnaroundNanos;
+        return timeDiff;
+    }
+
+    /**
+     * An op handed down by the host, waiting to go to the controller
+     */
+    private static class PendingOp {
+        final GattData mData;
+        final long mReady;
+
+        PendingOp (GattData data, long ready) {
+            mData = data;
+            mReady = ready;
+        }
+    }
+
+    /**
+     * An L2CAP SDU waiting to be (or being) fragmented onto the air
+     */
+    private static class Transfer {
+        int mRemaining;
+        final long mEligible;
+        final Runnable mOnDelivered;
+
+        Transfer (int bytes, long eligible, Runnable onDelivered) {
+            mRemaining = bytes;
+            mEligible = eligible;
+            mOnDelivered = onDelivered;
+        }
+    }
+
+    /**
+     * Result of a saturated run
+     */
+    public static class Prediction {
+        public final int mDataSize;
+        public final int mCommMethod;
+        public final int mMtu;
+        public final long mDurationNanos;
+        public final long mBytesDelivered;
+        public final long mOpsCompleted;
+        public final long mMeanOpLatencyNanos;
+        public final long mConnectionEvents;
+        public final long mPacketPairs;
+
+        Prediction (int dataSize, int commMethod, int mtu, long durationNanos,
+                    long bytesDelivered, long opsCompleted, long meanOpLatencyNanos,
+                    long connectionEvents, long packetPairs) {
+            mDataSize = dataSize;
+            mCommMethod = commMethod;
+            mMtu = mtu;
+            mDurationNanos = durationNanos;
+            mBytesDelivered = bytesDelivered;
+            mOpsCompleted = opsCompleted;
+            mMeanOpLatencyNanos = meanOpLatencyNanos;
+            mConnectionEvents = connectionEvents;
+            mPacketPairs = packetPairs;
+        }
+
+        /**
+         * @return application-level throughput in bits per second
+         */
+        public long getThroughput () {
+            return 0 == mDurationNanos ? 0 : (mBytesDelivered * 8 * 1000000000) / mDurationNanos;
+        }
+
+        /**
+         * @return average packet pairs used per connection event
+         */
+        public float getPacketsPerEvent () {
+            return 0 == mConnectionEvents ? 0 : (float) mPacketPairs / mConnectionEvents;
+        }
+    }
+
+    /**
+     * Client side of the simulated link. Stands in for GattClient.
+     */
+    private class ClientEnd implements GattClientTransport {
+        private CharacteristicHandler mCharHandler = null;
+        private ConnectionUpdater mConnUpdater = new ConnectionUpdater();
+        private boolean mStarted = false;
+
+        @Override
+        public void setHandler (CharacteristicHandler charHandler) {
+            mCharHandler = charHandler;
+        }
+
+        @Override
+        public void setConnectionUpdater (ConnectionUpdater connUpdater) {
+            mConnUpdater = connUpdater;
+        }
+
+        @Override
+        public void start (boolean stopScanningOnConnect) {
+            mStarted = true;
+            mHostEvents.add(new Runnable() {
+                @Override
+                public void run() {
+                    mConnUpdater.connectionUpdate(SERVER_ADDRESS, 1);
+                }
+            });
+        }
+
+        @Override
+        public void stop () {
+            if (mStarted) {
+                mStarted = false;
+                if (null != mServerEnd.mConnUpdater) {
+                    mServerEnd.mConnUpdater.connectionUpdate(CLIENT_ADDRESS, 0);
+                }
+            }
+        }
+
+        /**
+         * Notifications need the client to subscribe first, which goes over
+         * the air like GattClient's descriptor write
+         */
+        @Override
+        public void setCommMethod (int commMethod, UUID charUUID) {
+            mCommMethod = commMethod;
+            if (BenchmarkProfile.NOTIFY == commMethod) {
+                handleCharacteristic(new GattData(SERVER_ADDRESS, charUUID,
+                        BenchmarkProfile.CLIENT_CONFIG_DESC,
+                        BenchmarkProfile.ENABLE_NOTIFICATION_VALUE));
+            }
+        }
+
+        @Override
+        public void setPipelineWindow (int window) {
+            setMaxInFlight(window);
+        }
+
+        @Override
+        public GattData handleCharacteristic (GattData data) {
+            if (null != data) {
+                mPending.add(new PendingOp(data, mNow));
+            }
+            return null;
+        }
+
+        /**
+         * MTU exchange takes a request and a response, so the result is
+         * reported an event later
+         */
+        @Override
+        public void mtuUpdate (String address, int mtu) {
+            mtu = (mtu > MAX_MTU) ? MAX_MTU : mtu;
+            mMtu = Math.max(23, Math.min(mtu, mPeerMaxMtu));
+            mHostEvents.add(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != mServerEnd.mConnUpdater) {
+                        mServerEnd.mConnUpdater.mtuUpdate(CLIENT_ADDRESS, mMtu);
+                    }
+                    mConnUpdater.mtuUpdate(SERVER_ADDRESS, mMtu);
+                }
+            });
+        }
+
+        /**
+         * Map the Android connection priority onto an interval: high 7.5 ms,
+         * balanced 30 ms, low power 100 ms
+         */
+        @Override
+        public void connIntervalUpdate (String address, final int interval) {
+            int result = interval;
+            switch (interval) {
+                case 0:
+                    mConnIntervalNanos = 30000000;
+                    break;
+                case 1:
+                    mConnIntervalNanos = 7500000;
+                    break;
+                case 2:
+                    mConnIntervalNanos = 100000000;
+                    break;
+                default:
+                    result = -1;
+            }
+
+            final int reported = result;
+            mHostEvents.add(new Runnable() {
+                @Override
+                public void run() {
+                    mConnUpdater.connIntervalUpdate(SERVER_ADDRESS, reported);
+                }
+            });
+        }
+
+        @Override
+        public void connectionUpdate (String address, int state) {
+            // does nothing right now, same as GattClient
+        }
+    }
+
+    /**
+     * Server side of the simulated link. Stands in for GattServer.
+     */
+    private class ServerEnd implements GattServerTransport {
+        private CharacteristicHandler mHandler = null;
+        private ConnectionUpdater mConnUpdater = null;
+        private NotificationHandler mNotificationHandler = null;
+
+        @Override
+        public void setNotificationHandler (NotificationHandler handler) {
+            mNotificationHandler = handler;
+        }
+
+        @Override
+        public boolean sendNotification (GattData data) {
+            if (!mSubscribed || null == data.mBuffer) {
+                return false;
+            }
+            startNotification(data.mCharID, data.mBuffer.clone());
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicHandler (CharacteristicHandler func) {
+            if (null != func) {
+                mHandler = func;
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @Override
+        public void setConnectionUpdateCallback (ConnectionUpdater updater) {
+            mConnUpdater = updater;
+        }
+
+        @Override
+        public void start (boolean stopAdvOnConnect) {
+            //always "advertising"
+        }
+
+        @Override
+        public void stop () {
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Append-only list of primitive longs for recording measurements. Values are
+ * stored in fixed-size chunks so the recorder grows without ever copying
+ * recorded values (only the small table of chunk references is resized) and
+ * without boxing. Chunks are kept across clear() so a recorder that is reused
+ * for several runs stops allocating once it has reached its largest size.
+ *
+ * Not thread safe: meant to be owned by the thread that records.
+ */
+public class LongRecorder {
+
+    public static final int DEFAULT_CHUNK_SHIFT = 12; //4096 values per chunk
+
+    private final int mChunkShift;
+    private final int mChunkSize;
+    private final int mChunkMask;
+
+    private long [][] mChunks = new long[8][];
+    private int mAllocatedChunks = 0;
+    private int mSize = 0;
+
+    public LongRecorder () {
+        this(DEFAULT_CHUNK_SHIFT);
+    }
+
+    /**
+     * @param chunkShift - log2 of the number of values per chunk
+     */
+    public LongRecorder (int chunkShift) {
+        if (chunkShift < 1 || chunkShift > 24) {
+            throw new IllegalArgumentException("chunkShift must be 1 to 24");
+        }
+        mChunkShift = chunkShift;
+        mChunkSize = 1 << chunkShift;
+        mChunkMask = mChunkSize - 1;
+    }
+
+    /**
+     * Record a value
+     *
+     * @param value - the value to append
+     */
+    public void add (long value) {
+        int chunk = mSize >>> mChunkShift;
+        if (chunk == mAllocatedChunks) {
+            addChunk();
+        }
+        mChunks[chunk][mSize & mChunkMask] = value;
+        ++mSize;
+    }
+
+    /**
+     * @param index - 0 to size() - 1
+     * @return the value recorded at index
+     */
+    public long get (int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        return mChunks[index >>> mChunkShift][index & mChunkMask];
+    }
+
+    /**
+     * @return the most recently recorded value
+     */
+    public long getLast () {
+        return get(mSize - 1);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public int size () {
+        return mSize;
+    }
+
+    public boolean isEmpty () {
+        return 0 == mSize;
+    }
+
+    /**
+     * Forget all values. The chunks are kept for reuse.
+     */
+    public void clear () {
+        mSize = 0;
+    }
+
+    /**
+     * Hand every value, in order, to the consumer
+     *
+     * @param consumer - called once per value
+     */
+    public void forEach (LongConsumer consumer) {
+        int remaining = mSize;
+        for (int c = 0; remaining > 0; ++c) {
+            long [] chunk = mChunks[c];
+            int n = Math.min(remaining, mChunkSize);
+            for (int i = 0; i < n; ++i) {
+                consumer.accept(chunk[i]);
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Bulk copy a range of values into an array
+     *
+     * @param from - index of the first value to copy
+     * @param dst - destination
+     * @param dstOffset - where to start in dst
+     * @param length - number of values to copy
+     */
+    public void copyTo (int from, long [] dst, int dstOffset, int length) {
+        if (from < 0 || length < 0 || from + length > mSize) {
+            throw new IndexOutOfBoundsException("range " + from + "+" + length + ", size " + mSize);
+        }
+
+        while (length > 0) {
+            int offset = from & mChunkMask;
+            int n = Math.min(length, mChunkSize - offset);
+            System.arraycopy(mChunks[from >>> mChunkShift], offset, dst, dstOffset, n);
+            from += n;
+            dstOffset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * @return a new array holding every recorded value
+     */
+    public long [] toArray () {
+        long [] values = new long[mSize];
+        copyTo(0, values, 0, mSize);
+        return values;
+    }
+
+    private void addChunk () {
+        if (mAllocatedChunks == mChunks.length) {
+            long [][] chunks = new long[mChunks.length * 2][];
+            System.arraycopy(mChunks, 0, chunks, 0, mAllocatedChunks);
+            mChunks = chunks;
+        }
+        mChunks[mAllocatedChunks] = new long[mChunkSize];
+        ++mAllocatedChunks;
+    }
+}
@@ -0,0 +1,368 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Transport that wires a client profile directly to a server profile in the
+ * same process. There is no radio in the loop: every operation handed to the
+ * client end is delivered to the server's CharacteristicHandler and the result
+ * is handed back up to the client's CharacteristicHandler.
+ *
+ * Notifications pushed by the server are delivered to the client's handler
+ * stamped with their receive time, then reported sent to the server.
+ *
+ * All deliveries happen on a single "link" thread. This keeps operations in
+ * order, mimics the Binder thread that the real GATT callbacks arrive on, and
+ * keeps chained requests (e.g. one latency read per measurement) from
+ * recursing through the stack.
+ *
+ * Usage:
+ *   LoopbackTransport link = new LoopbackTransport();
+ *   server = new BenchmarkProfileServer(link.getServerEnd(), serverCB);
+ *   client = new BenchmarkProfileClient(link.getClientEnd(), clientCB);
+ */
+public class LoopbackTransport {
+
+    public static final String CLIENT_ADDRESS = "00:00:00:00:00:01";
+    public static final String SERVER_ADDRESS = "00:00:00:00:00:02";
+
+    private final int MAX_MTU = 517;
+
+    private final String mClientAddress;
+    private final String mServerAddress;
+
+    private final ExecutorService mLink;
+    private final ClientEnd mClientEnd = new ClientEnd();
+    private final ServerEnd mServerEnd = new ServerEnd();
+
+    private boolean mClientStarted = false;
+    private boolean mServerStarted = false;
+    private boolean mConnected = false;
+    private volatile boolean mSubscribed = false; //client enabled notifications
+
+    /**
+     * Create a loopback link using the default device addresses
+     */
+    public LoopbackTransport () {
+        this(CLIENT_ADDRESS, SERVER_ADDRESS);
+    }
+
+    /**
+     * Create a loopback link
+     *
+     * @param clientAddress - the address the server will see for the client
+     * @param serverAddress - the address the client will see for the server
+     */
+    public LoopbackTransport (String clientAddress, String serverAddress) {
+        mClientAddress = clientAddress;
+        mServerAddress = serverAddress;
+        mLink = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "loopback-link");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the end to hand to the client profile
+     */
+    public GattClientTransport getClientEnd () {
+        return mClientEnd;
+    }
+
+    /**
+     * @return the end to hand to the server profile
+     */
+    public GattServerTransport getServerEnd () {
+        return mServerEnd;
+    }
+
+    /**
+     * Stop the link thread. Pending deliveries are dropped.
+     */
+    public void close () {
+        mLink.shutdownNow();
+    }
+
+    /**
+     * Once both ends have been started, report the connection to the client
+     * the same way GattClient does after service discovery
+     */
+    private synchronized void maybeConnect () {
+        if (mClientStarted && mServerStarted && !mConnected) {
+            mConnected = true;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mClientEnd.mConnUpdater.connectionUpdate(mServerAddress, 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Report a broken connection to both sides
+     */
+    private synchronized void disconnect () {
+        if (mConnected) {
+            mConnected = false;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != mServerEnd.mConnUpdater) {
+                        mServerEnd.mConnUpdater.connectionUpdate(mClientAddress, 0);
+                    }
+                    mClientEnd.mConnUpdater.connectionUpdate(mServerAddress, 0);
+                }
+            });
+        }
+    }
+
+    private void post (Runnable r) {
+        if (!mLink.isShutdown()) {
+            mLink.execute(r);
+        }
+    }
+
+    /**
+     * Client side of the link. Stands in for GattClient.
+     */
+    private class ClientEnd implements GattClientTransport {
+        private CharacteristicHandler mCharHandler = null;
+        private ConnectionUpdater mConnUpdater = new ConnectionUpdater();
+
+        @Override
+        public void setHandler (CharacteristicHandler charHandler) {
+            mCharHandler = charHandler;
+        }
+
+        @Override
+        public void setConnectionUpdater (ConnectionUpdater connUpdater) {
+            mConnUpdater = connUpdater;
+        }
+
+        @Override
+        public void start (boolean stopScanningOnConnect) {
+            synchronized (LoopbackTransport.this) {
+                mClientStarted = true;
+            }
+            maybeConnect();
+        }
+
+        @Override
+        public void stop () {
+            synchronized (LoopbackTransport.this) {
+                mClientStarted = false;
+            }
+            disconnect();
+        }
+
+        /**
+         * Writes and reads are delivered the same way over the loopback.
+         * Notifications need the client to subscribe first, which goes over
+         * the link like GattClient's descriptor write.
+         */
+        @Override
+        public void setCommMethod (int commMethod, UUID charUUID) {
+            if (BenchmarkProfile.NOTIFY == commMethod) {
+                handleCharacteristic(new GattData(mServerAddress, charUUID,
+                        BenchmarkProfile.CLIENT_CONFIG_DESC,
+                        BenchmarkProfile.ENABLE_NOTIFICATION_VALUE));
+            }
+        }
+
+        @Override
+        public void setPipelineWindow (int window) {
+            //ops are delivered one after another on the link thread
+        }
+
+        /**
+         * Deliver the operation to the server on the link thread. Reads are
+         * answered with the server's response; writes are answered with the
+         * operation latency, stamped with when the write was taken off the
+         * queue, just like GattClient.onCharacteristicWrite. An op
+         * the server's handler returns null for is answered as failed, the way
+         * GattServer refuses it over the air.
+         *
+         * @param data - the operation
+         * @return null, results are delivered asynchronously
+         */
+        @Override
+        public GattData handleCharacteristic (final GattData data) {
+            if (null != data) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(data);
+                    }
+                });
+            }
+            return null;
+        }
+
+        private void deliver (GattData data) {
+            CharacteristicHandler server = mServerEnd.mHandler;
+            if (null == server || null == mCharHandler) {
+                data.release();
+                return;
+            }
+
+            //the server gets its own copy, so the op can go back to its pool
+            //before the result is handed up, as GattClient does
+            GattData request = new GattData(mClientAddress, data.mCharID, data.mDescID, data.mBuffer);
+            data.release();
+
+            boolean clientConfig = BenchmarkProfile.CLIENT_CONFIG_DESC.equals(request.mDescID);
+            if (null == request.mBuffer) { //read
+                byte [] value = null;
+                if (clientConfig) {
+                    value = mSubscribed ? BenchmarkProfile.ENABLE_NOTIFICATION_VALUE
+                            : BenchmarkProfile.DISABLE_NOTIFICATION_VALUE;
+                } else {
+                    GattData response = server.handleCharacteristic(request);
+                    if (null != response) {
+                        value = response.mBuffer;
+                    }
+                }
+                GattData envelope = new GattData(mServerAddress, request.mCharID,
+                        request.mDescID, (null != value) ? value : new byte[0]);
+                if (null != value) {
+                    envelope.mTimestamp = System.nanoTime();
+                } else {
+                    envelope.mStatus = GattData.STATUS_FAILED;
+                }
+                mCharHandler.handleCharacteristic(envelope);
+            } else { //write
+                long opInit = System.nanoTime();
+                boolean accepted = true;
+                if (clientConfig) {
+                    mSubscribed = Arrays.equals(BenchmarkProfile.ENABLE_NOTIFICATION_VALUE, request.mBuffer);
+                } else {
+                    accepted = null != server.handleCharacteristic(request);
+                }
+                long timeDiff = System.nanoTime() - opInit;
+                GattData envelope = new GattData(mServerAddress, request.mCharID,
+                        request.mDescID, ByteBuffer.allocate(Long.BYTES).putLong(timeDiff).array());
+                envelope.mTimestamp = opInit;
+                if (!accepted) {
+                    envelope.mStatus = GattData.STATUS_FAILED;
+                }
+                mCharHandler.handleCharacteristic(envelope);
+            }
+        }
+
+        @Override
+        public void mtuUpdate (String address, final int mtu) {
+            final int negotiated = (mtu > MAX_MTU) ? MAX_MTU : mtu;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != mServerEnd.mConnUpdater) {
+                        mServerEnd.mConnUpdater.mtuUpdate(mClientAddress, negotiated);
+                    }
+                    mConnUpdater.mtuUpdate(mServerAddress, negotiated);
+                }
+            });
+        }
+
+        @Override
+        public void connIntervalUpdate (String address, final int interval) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    //same priorities that GattClient accepts
+                    int result = (0 <= interval && interval <= 2) ? interval : -1;
+                    mConnUpdater.connIntervalUpdate(mServerAddress, result);
+                }
+            });
+        }
+
+        @Override
+        public void connectionUpdate (String address, int state) {
+            // does nothing right now, same as GattClient
+        }
+    }
+
+    /**
+     * Server side of the link. Stands in for GattServer.
+     */
+    private class ServerEnd implements GattServerTransport {
+        private CharacteristicHandler mHandler = null;
+        private ConnectionUpdater mConnUpdater = null;
+        private NotificationHandler mNotificationHandler = null;
+
+        @Override
+        public void setNotificationHandler (NotificationHandler handler) {
+            mNotificationHandler = handler;
+        }
+
+        /**
+         * Deliver the value to the client on the link thread, then report it
+         * sent
+         */
+        @Override
+        public boolean sendNotification (GattData data) {
+            if (!mSubscribed || null == data.mBuffer) {
+                return false;
+            }
+
+            final UUID charID = data.mCharID;
+            final byte [] value = data.mBuffer.clone();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    CharacteristicHandler client = mClientEnd.mCharHandler;
+                    if (null != client) {
+                        GattData notification = new GattData(mServerAddress, charID, value);
+                        notification.mTimestamp = System.nanoTime();
+                        client.handleCharacteristic(notification);
+                    }
+                    if (null != mNotificationHandler) {
+                        mNotificationHandler.onNotificationSent(mClientAddress, true);
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicHandler (CharacteristicHandler func) {
+            if (null != func) {
+                mHandler = func;
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @Override
+        public void setConnectionUpdateCallback (ConnectionUpdater updater) {
+            mConnUpdater = updater;
+        }
+
+        @Override
+        public void start (boolean stopAdvOnConnect) {
+            synchronized (LoopbackTransport.this) {
+                mServerStarted = true;
+            }
+            maybeConnect();
+        }
+
+        @Override
+        public void stop () {
+            synchronized (LoopbackTransport.this) {
+                mServerStarted = false;
+            }
+            disconnect();
+        }
+    }
+}
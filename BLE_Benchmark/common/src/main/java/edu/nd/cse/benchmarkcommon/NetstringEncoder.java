@@ -0,0 +1,161 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams a list of longs as a sequence of netstrings
+ * (https://cr.yp.to/proto/netstrings.txt), one per value, e.g. 1234 becomes
+ * "4:1234,". The values are written as ASCII digits straight into the
+ * destination buffer; no Strings are built.
+ *
+ * The stream is produced in chunks of whatever size the caller asks for, so
+ * a netstring may be split across chunks. The encoder remembers where it is
+ * in the stream and can be moved to any byte offset with seek(), which is
+ * how an interrupted transfer is resumed.
+ *
+ * Not thread safe.
+ */
+public class NetstringEncoder {
+
+    //"20:" + 20 digits + "," is the longest encoding of a long
+    private static final int MAX_ITEM_LENGTH = 24;
+
+    private final LongRecorder mValues;
+    private final byte [] mItem = new byte[MAX_ITEM_LENGTH];
+    private int mItemLength = 0; //0 until the current item has been encoded
+
+    private int mIndex = 0; //value being streamed
+    private int mItemOffset = 0; //bytes of that value already streamed
+    private long mPosition = 0; //byte offset in the stream
+
+    /**
+     * @param values - values to stream; may keep growing while streaming
+     */
+    public NetstringEncoder (LongRecorder values) {
+        mValues = values;
+    }
+
+    /**
+     * @return the stream offset of the next byte encode() will write
+     */
+    public long position () {
+        return mPosition;
+    }
+
+    /**
+     * Move to a byte offset in the stream. Seeking backwards rescans from the
+     * start, which only counts digits.
+     *
+     * @param offset - the stream offset, clamped to the end of the stream
+     */
+    public void seek (long offset) {
+        if (offset == mPosition) {
+            return;
+        }
+        if (offset < mPosition) {
+            mIndex = 0;
+            mItemOffset = 0;
+            mItemLength = 0;
+            mPosition = 0;
+        }
+
+        long itemStart = mPosition - mItemOffset;
+        while (mIndex < mValues.size()) {
+            int length = encodedLength(mValues.get(mIndex));
+            if (itemStart + length > offset) {
+                break;
+            }
+            itemStart += length;
+            ++mIndex;
+        }
+        mItemLength = 0;
+        mItemOffset = (mIndex < mValues.size()) ? (int) (offset - itemStart) : 0;
+        mPosition = itemStart + mItemOffset;
+    }
+
+    /**
+     * Write as much of the stream as fits in the destination
+     *
+     * @param dst - destination
+     * @return the number of bytes written, 0 at the end of the stream
+     */
+    public int encode (ByteBuffer dst) {
+        int written = 0;
+        while (dst.hasRemaining() && mIndex < mValues.size()) {
+            if (0 == mItemLength) {
+                mItemLength = encodeItem(mValues.get(mIndex), mItem);
+            }
+
+            int n = Math.min(dst.remaining(), mItemLength - mItemOffset);
+            dst.put(mItem, mItemOffset, n);
+            mItemOffset += n;
+            written += n;
+
+            if (mItemOffset == mItemLength) {
+                ++mIndex;
+                mItemOffset = 0;
+                mItemLength = 0;
+            }
+        }
+        mPosition += written;
+        return written;
+    }
+
+    /**
+     * @param value - the value
+     * @return the number of bytes of its netstring
+     */
+    public static int encodedLength (long value) {
+        int digits = decimalLength(value);
+        return decimalLength(digits) + 1 + digits + 1;
+    }
+
+    /**
+     * Write the netstring for a value
+     *
+     * @param value - the value
+     * @param dst - at least MAX_ITEM_LENGTH bytes
+     * @return the number of bytes written
+     */
+    private static int encodeItem (long value, byte [] dst) {
+        int digits = decimalLength(value);
+        int offset = putDecimal(digits, dst, 0);
+        dst[offset++] = ':';
+        offset = putDecimal(value, dst, offset);
+        dst[offset++] = ',';
+        return offset;
+    }
+
+    /**
+     * @return the number of ASCII characters needed to write the value
+     */
+    static int decimalLength (long value) {
+        int length = (value < 0) ? 2 : 1; //sign plus first digit
+        //work with negative numbers so that Long.MIN_VALUE is not a special case
+        long v = (value < 0) ? value : -value;
+        while (v <= -10) {
+            v /= 10;
+            ++length;
+        }
+        return length;
+    }
+
+    /**
+     * Write the value as ASCII digits
+     *
+     * @return the offset after the last digit
+     */
+    static int putDecimal (long value, byte [] dst, int offset) {
+        int end = offset + decimalLength(value);
+        int i = end;
+        long v = (value < 0) ? value : -value;
+        do {
+            dst[--i] = (byte) ('0' - (v % 10));
+            v /= 10;
+        } while (0 != v);
+        if (value < 0) {
+            dst[--i] = '-';
+        }
+        return end;
+    }
+}
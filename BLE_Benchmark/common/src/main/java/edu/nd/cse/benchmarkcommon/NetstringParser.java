@@ -0,0 +1,180 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental netstring (https://cr.yp.to/proto/netstrings.txt) parser.
+ * Chunks of the stream are fed in as they arrive and each complete
+ * netstring is handed to the listener as a ByteBuffer holding just its
+ * payload. When a payload lies entirely within a chunk the listener gets a
+ * view of the chunk itself; only payloads split across chunks are copied
+ * (into a buffer that is reused).
+ *
+ * Not thread safe.
+ */
+public class NetstringParser {
+
+    /**
+     * Receives each complete netstring
+     */
+    public interface Listener {
+        /**
+         * @param payload - position to limit is the payload; only valid
+         *                during the call
+         */
+        public void onNetstring (ByteBuffer payload);
+    }
+
+    private static final int LENGTH = 0;
+    private static final int PAYLOAD = 1;
+    private static final int TERMINATOR = 2;
+
+    private final Listener mListener;
+    private final int mMaxLength;
+    private final byte [] mPayload;
+    private final ByteBuffer mPayloadView;
+
+    private int mState = LENGTH;
+    private int mLength = 0;
+    private int mLengthDigits = 0;
+    private int mFilled = 0;
+
+    /**
+     * @param maxLength - longest payload accepted
+     * @param listener - called for each complete netstring
+     */
+    public NetstringParser (int maxLength, Listener listener) {
+        mMaxLength = maxLength;
+        mListener = listener;
+        mPayload = new byte[maxLength];
+        mPayloadView = ByteBuffer.wrap(mPayload);
+    }
+
+    /**
+     * Parse the next chunk of the stream. The chunk is consumed entirely.
+     *
+     * @param src - the chunk
+     * @throws IllegalArgumentException if the stream is not valid netstrings
+     */
+    public void feed (ByteBuffer src) {
+        while (src.hasRemaining()) {
+            switch (mState) {
+                case LENGTH:
+                    parseLength(src.get());
+                    break;
+
+                case PAYLOAD:
+                    if (0 == mFilled && src.remaining() > mLength) {
+                        //the whole payload and its terminator are here: no copy
+                        int start = src.position();
+                        int limit = src.limit();
+                        if (',' != src.get(start + mLength)) {
+                            throw new IllegalArgumentException("netstring not terminated by ','");
+                        }
+                        src.limit(start + mLength);
+                        mListener.onNetstring(src);
+                        src.limit(limit);
+                        src.position(start + mLength + 1);
+                        reset();
+                    } else {
+                        int n = Math.min(src.remaining(), mLength - mFilled);
+                        src.get(mPayload, mFilled, n);
+                        mFilled += n;
+                        if (mFilled == mLength) {
+                            mState = TERMINATOR;
+                        }
+                    }
+                    break;
+
+                case TERMINATOR:
+                    if (',' != src.get()) {
+                        throw new IllegalArgumentException("netstring not terminated by ','");
+                    }
+                    mPayloadView.clear();
+                    mPayloadView.limit(mLength);
+                    mListener.onNetstring(mPayloadView);
+                    reset();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return true if the stream so far ended on a netstring boundary
+     */
+    public boolean isIdle () {
+        return LENGTH == mState && 0 == mLengthDigits;
+    }
+
+    /**
+     * Drop any partial netstring and start over
+     */
+    public void reset () {
+        mState = LENGTH;
+        mLength = 0;
+        mLengthDigits = 0;
+        mFilled = 0;
+    }
+
+    /**
+     * Parse ASCII decimal digits (with an optional leading '-') without
+     * moving the buffer's position
+     *
+     * @param digits - position to limit holds the number
+     * @return the value
+     * @throws NumberFormatException if the bytes are not a decimal long
+     */
+    public static long parseLong (ByteBuffer digits) {
+        int i = digits.position();
+        int end = digits.limit();
+        if (i == end) {
+            throw new NumberFormatException("empty number");
+        }
+
+        boolean negative = '-' == digits.get(i);
+        if (negative) {
+            ++i;
+        }
+        if (i == end) {
+            throw new NumberFormatException("no digits");
+        }
+
+        //accumulate negatively so that Long.MIN_VALUE parses
+        long value = 0;
+        for (; i < end; ++i) {
+            int d = digits.get(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("not a digit");
+            }
+            if (value < (Long.MIN_VALUE + d) / 10) {
+                throw new NumberFormatException("number out of range");
+            }
+            value = value * 10 - d;
+        }
+
+        if (!negative) {
+            if (Long.MIN_VALUE == value) {
+                throw new NumberFormatException("number out of range");
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    private void parseLength (byte b) {
+        if (':' == b) {
+            if (0 == mLengthDigits) {
+                throw new IllegalArgumentException("netstring has no length");
+            }
+            mState = (0 == mLength) ? TERMINATOR : PAYLOAD;
+        } else if ('0' <= b && b <= '9') {
+            mLength = mLength * 10 + (b - '0');
+            ++mLengthDigits;
+            if (mLength > mMaxLength) {
+                throw new IllegalArgumentException("netstring longer than " + mMaxLength);
+            }
+        } else {
+            throw new IllegalArgumentException("bad netstring length");
+        }
+    }
+}
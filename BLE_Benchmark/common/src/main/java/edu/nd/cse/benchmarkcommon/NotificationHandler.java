@@ -0,0 +1,15 @@
+package edu.nd.cse.benchmarkcommon;
+
+/**
+ * Callback the server side GATT layer uses to tell the profile that a
+ * notification has been handed to the controller, i.e. that there is room
+ * for the next one.
+ */
+public interface NotificationHandler {
+
+    /**
+     * @param address - the device the notification was sent to
+     * @param success - false if the stack failed to send it
+     */
+    public void onNotificationSent (String address, boolean success);
+}
@@ -0,0 +1,97 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.util.Arrays;
+
+/**
+ * Works out the one-way latency of each packet from the central's and the
+ * server's timestamps of it. The two sides are matched by the packets'
+ * sequence numbers, not by position: one packet lost on the way would
+ * otherwise shift every pair after it. Packets only one side saw are left
+ * out, and a sequence number a side saw more than once is timed by its
+ * first sighting.
+ *
+ * The server's timestamps are relative to the start of its run and are
+ * put on the central's clock with a ClockSync.
+ */
+public class OneWayLatency {
+
+    private static final int INDEX_BITS = 31; //below the sequence number in a sort key
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+    private static final long MAX_SEQUENCE = 0xFFFFFFFFL;
+
+    private OneWayLatency () {
+    }
+
+    /**
+     * @param ourTimes - the central's timestamp (ns) of each packet, -1 for
+     *                 one that was never sent
+     * @param ourSequences - the sequence number of each of ours, null if
+     *                     ourTimes is indexed by sequence number
+     * @param serverTimes - the server's time (ns) since the start of its run
+     *                    of each packet
+     * @param serverSequences - the sequence number of each of the server's,
+     *                        -1 if the packet carried none
+     * @param serverStart - the server's time (ns) its run started
+     * @param clock - the server's clock, synchronized
+     * @param toServer - true if the central sent the packets, false if the
+     *                 server did
+     * @return the one-way latency (ns) of each packet both sides saw, in
+     * sequence number order
+     */
+    public static long [] pair (LongRecorder ourTimes, LongRecorder ourSequences,
+                                LongRecorder serverTimes, LongRecorder serverSequences,
+                                long serverStart, ClockSync clock, boolean toServer) {
+        long [] ours = bySequence(ourSequences, ourTimes.size());
+        long [] theirs = bySequence(serverSequences,
+                Math.min(serverTimes.size(), serverSequences.size()));
+        LongRecorder oneWay = new LongRecorder();
+
+        int i = 0;
+        int j = 0;
+        while (i < ours.length && j < theirs.length) {
+            long sequence = ours[i] >>> INDEX_BITS;
+            long theirSequence = theirs[j] >>> INDEX_BITS;
+            if (sequence < theirSequence) {
+                ++i;
+                continue;
+            } else if (sequence > theirSequence) {
+                ++j;
+                continue;
+            }
+
+            long ourTime = ourTimes.get((int) (ours[i] & INDEX_MASK));
+            if (0 <= ourTime) {
+                long serverTime = clock.toClientTime(serverStart
+                        + serverTimes.get((int) (theirs[j] & INDEX_MASK)));
+                oneWay.add(toServer ? serverTime - ourTime : ourTime - serverTime);
+            }
+            while (i < ours.length && sequence == ours[i] >>> INDEX_BITS) {
+                ++i;
+            }
+            while (j < theirs.length && sequence == theirs[j] >>> INDEX_BITS) {
+                ++j;
+            }
+        }
+        return oneWay.toArray();
+    }
+
+    /**
+     * @param sequences - sequence numbers, null for 0, 1, 2...
+     * @param count - how many of them to take
+     * @return [sequence number][index] of each one that is valid, sorted:
+     * by sequence number, then in the order they were recorded
+     */
+    private static long [] bySequence (LongRecorder sequences, int count) {
+        long [] keys = new long[count];
+        int valid = 0;
+        for (int i = 0; i < count; ++i) {
+            long sequence = (null == sequences) ? i : sequences.get(i);
+            if (0 <= sequence && sequence <= MAX_SEQUENCE) {
+                keys[valid++] = (sequence << INDEX_BITS) | i;
+            }
+        }
+        keys = Arrays.copyOf(keys, valid);
+        Arrays.sort(keys);
+        return keys;
+    }
+}
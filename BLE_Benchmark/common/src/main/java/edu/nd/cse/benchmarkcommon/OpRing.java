@@ -0,0 +1,129 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, preallocated, lock-free ring for handing operations from any
+ * number of producer threads to one consumer thread. Enqueueing never blocks
+ * and never allocates: when the ring is full offer() returns false and the
+ * overflow is counted instead.
+ *
+ * Producers claim a slot by moving the tail with a CAS, fill it, then
+ * publish it through the slot's sequence number. The consumer only reads a
+ * slot whose sequence says it is published, so a producer that has claimed
+ * a slot but not filled it yet looks like the end of the ring until it does.
+ * Items come out in the order their slots were claimed.
+ *
+ * Any thread may call offer() at any time. Only one thread may call
+ * peek()/poll() at a time.
+ */
+public class OpRing<T> {
+
+    private final Object [] mSlots;
+    private final AtomicLongArray mSequences; //slot i is free for ticket s when equal to s, full when s + 1
+    private final int mMask;
+
+    private final AtomicLong mHead = new AtomicLong(0); //next slot to read
+    private final AtomicLong mTail = new AtomicLong(0); //next slot to claim
+    private final AtomicLong mOverflows = new AtomicLong(0);
+
+    /**
+     * @param capacity - the number of slots, rounded up to a power of two
+     */
+    public OpRing (int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mSlots = new Object[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Add an item without blocking. Safe to call from several threads at once.
+     *
+     * @param item - the item to add
+     * @return true if added, false if the ring was full
+     */
+    public boolean offer (T item) {
+        while (true) {
+            long tail = mTail.get();
+            int index = (int) tail & mMask;
+            long sequence = mSequences.get(index);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mSlots[index] = item;
+                    mSequences.lazySet(index, tail + 1); //publish the slot
+                    return true;
+                }
+            } else if (sequence < tail) { //the consumer has not freed it yet
+                mOverflows.incrementAndGet();
+                return false;
+            }
+            //another producer claimed it first: try the next one
+        }
+    }
+
+    /**
+     * @return the oldest item without removing it, null if empty
+     */
+    @SuppressWarnings("unchecked")
+    public T peek () {
+        long head = mHead.get();
+        int index = (int) head & mMask;
+        if (mSequences.get(index) != head + 1) {
+            return null;
+        }
+        return (T) mSlots[index];
+    }
+
+    /**
+     * @return the oldest item, null if empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll () {
+        long head = mHead.get();
+        int index = (int) head & mMask;
+        if (mSequences.get(index) != head + 1) {
+            return null;
+        }
+
+        T item = (T) mSlots[index];
+        mSlots[index] = null;
+        mSequences.lazySet(index, head + mSlots.length); //hand the slot back to the producers
+        mHead.lazySet(head + 1);
+        return item;
+    }
+
+    /**
+     * @return true if there is nothing to read
+     */
+    public boolean isEmpty () {
+        return null == peek();
+    }
+
+    /**
+     * @return the number of items currently in the ring, counting slots that
+     * have been claimed but not yet published
+     */
+    public int size () {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mSlots.length));
+    }
+
+    /**
+     * @return the number of slots
+     */
+    public int capacity () {
+        return mSlots.length;
+    }
+
+    /**
+     * @return how many offers have been refused because the ring was full
+     */
+    public long getOverflowCount () {
+        return mOverflows.get();
+    }
+}
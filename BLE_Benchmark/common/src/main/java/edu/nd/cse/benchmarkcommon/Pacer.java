@@ -0,0 +1,246 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task at a steady rate on a thread of its own, for sending at a
+ * target rate rather than whenever a Handler gets round to it.
+ *
+ * Tick n is due at start + n * period, on an absolute timeline: a tick that
+ * runs late does not push the ones after it back, so the rate holds over
+ * the run however the individual ticks land (drift compensation). The
+ * thread parks until shortly before a tick is due and spins the rest of the
+ * way, since parking alone is only good to tens of microseconds. After a
+ * stall the missed ticks are run back to back to catch up, unless a burst
+ * limit is set, in which case the rest are skipped.
+ *
+ * The task is told when each tick was due as well as when it ran, so a
+ * caller can measure from the intended time.
+ */
+public class Pacer {
+
+    public static final long DEFAULT_SPIN = 200000; //ns before a tick to stop parking
+
+    /**
+     * What a Pacer runs
+     */
+    public interface Task {
+        /**
+         * @param intended - when the tick was due (ns, the pacer's clock)
+         * @param now - when it is running
+         * @return false to stop the pacer
+         */
+        public boolean onTick (long intended, long now);
+    }
+
+    /**
+     * Where a Pacer gets the time from
+     */
+    public interface Clock {
+        public long nanos ();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanos () {
+            return System.nanoTime();
+        }
+    };
+
+    private final String mName;
+    private final Task mTask;
+    private Clock mClock = SYSTEM_CLOCK;
+    private long mSpin = DEFAULT_SPIN;
+    private int mMaxBurst = 0; //0 for no limit
+
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+
+    /* written by the pacer thread, read once it has stopped */
+    private volatile long mTicks = 0;
+    private volatile long mLate = 0; //ticks that ran more than the spin time late
+    private volatile long mMaxLateness = 0; //ns
+    private volatile long mSkipped = 0;
+
+    /**
+     * @param name - name of the thread
+     * @param task - what to run each tick
+     */
+    public Pacer (String name, Task task) {
+        mName = name;
+        mTask = task;
+    }
+
+    /**
+     * @param opsPerSecond - the rate to run at, 0 or less for as fast as possible
+     * @return the period (ns) for start()
+     */
+    public static long periodForOps (double opsPerSecond) {
+        return (0 < opsPerSecond) ? Math.max(1, Math.round(1e9 / opsPerSecond)) : 0;
+    }
+
+    /**
+     * @param bytesPerSecond - the rate to move bytes at, 0 or less for as fast as possible
+     * @param bytesPerOp - bytes each tick moves
+     * @return the period (ns) for start()
+     */
+    public static long periodForBytes (double bytesPerSecond, int bytesPerOp) {
+        return (0 < bytesPerSecond) ? Math.max(1, Math.round(1e9 * bytesPerOp / bytesPerSecond)) : 0;
+    }
+
+    /**
+     * @param clock - the clock ticks are scheduled and reported on; the
+     *              default is System.nanoTime. Must be set before start()
+     */
+    public void setClock (Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param ns - how long before a tick to stop parking and spin; more is
+     *           more precise and costs more CPU
+     */
+    public void setSpinThreshold (long ns) {
+        mSpin = Math.max(0, ns);
+    }
+
+    /**
+     * @param ticks - how many late ticks may run back to back to catch up
+     *              after a stall; the rest are skipped. 0 (the default) to
+     *              catch up on all of them
+     */
+    public void setMaxBurst (int ticks) {
+        mMaxBurst = Math.max(0, ticks);
+    }
+
+    /**
+     * Start ticking, the first tick right away
+     *
+     * @param period - ns between ticks, 0 to run the task back to back
+     */
+    public synchronized void start (final long period) {
+        if (mRunning) {
+            throw new IllegalStateException(mName + " already running");
+        }
+        mTicks = 0;
+        mLate = 0;
+        mMaxLateness = 0;
+        mSkipped = 0;
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop(period);
+            }
+        }, mName);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop ticking and wait for the tick in progress, if any. Safe to call
+     * from the task, in which case it does not wait.
+     */
+    public void stop () {
+        Thread thread;
+        synchronized (this) {
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+        if (null == thread || Thread.currentThread() == thread) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning () {
+        return mRunning;
+    }
+
+    public long getTickCount () {
+        return mTicks;
+    }
+
+    /**
+     * @return ticks that ran later than the spin threshold after they were due
+     */
+    public long getLateCount () {
+        return mLate;
+    }
+
+    /**
+     * @return the latest (ns) a tick ran after it was due
+     */
+    public long getMaxLateness () {
+        return mMaxLateness;
+    }
+
+    /**
+     * @return ticks skipped because of the burst limit
+     */
+    public long getSkippedCount () {
+        return mSkipped;
+    }
+
+    private void loop (long period) {
+        long start = mClock.nanos();
+        long tick = 0;
+        while (mRunning) {
+            long intended = start + tick * period;
+            if (!waitUntil(intended)) {
+                break;
+            }
+
+            long now = mClock.nanos();
+            long lateness = now - intended;
+            if (lateness > mSpin) {
+                ++mLate;
+                if (lateness > mMaxLateness) {
+                    mMaxLateness = lateness;
+                }
+            }
+
+            ++mTicks;
+            if (!mTask.onTick(intended, now)) {
+                break;
+            }
+            ++tick;
+
+            if (0 < mMaxBurst && 0 < period) {
+                long behind = (mClock.nanos() - (start + tick * period)) / period;
+                if (behind > mMaxBurst) {
+                    tick += behind - mMaxBurst;
+                    mSkipped += behind - mMaxBurst;
+                }
+            }
+        }
+        mRunning = false;
+    }
+
+    /**
+     * Park until just before the deadline, then spin up to it
+     *
+     * @return false if stopped while waiting
+     */
+    private boolean waitUntil (long deadline) {
+        long remaining = deadline - mClock.nanos();
+        while (0 < remaining) {
+            if (!mRunning) {
+                return false;
+            }
+            if (remaining > mSpin) {
+                LockSupport.parkNanos(remaining - mSpin);
+            } else {
+                Thread.yield();
+            }
+            remaining = deadline - mClock.nanos();
+        }
+        return mRunning;
+    }
+}
@@ -0,0 +1,114 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Source of benchmark payloads that does not allocate per packet. A large
+ * pool of pseudo-random bytes is generated once, as suggested by RFC4814
+ * (https://tools.ietf.org/html/rfc4814#section-3), so that the data cannot be
+ * meaningfully compressed. Payloads are then copied (or sliced) out of the
+ * pool at a rolling offset.
+ *
+ * The pool size is deliberately not a multiple of common payload sizes so
+ * that consecutive passes over the pool start at different alignments.
+ *
+ * Not thread safe: meant to be owned by the thread that generates packets.
+ */
+public class PayloadSource {
+
+    public static final int MAX_PAYLOAD = 512; //max characteristic size
+    public static final int DEFAULT_POOL_SIZE = 64 * 1024 - 1;
+
+    private final byte [] mPool;
+    private final int mPoolSize;
+    private final ByteBuffer mSlice;
+    private int mOffset = 0;
+    private byte [] mBuffer = new byte[0];
+
+    /**
+     * Create a source with the default pool size and a fixed seed so that
+     * runs are repeatable
+     */
+    public PayloadSource () {
+        this(DEFAULT_POOL_SIZE, 4814);
+    }
+
+    /**
+     * @param poolSize - how many distinct random bytes to generate
+     * @param seed - seed for the generator
+     */
+    public PayloadSource (int poolSize, long seed) {
+        mPoolSize = poolSize;
+        //the tail repeats the head so any slice up to MAX_PAYLOAD is contiguous
+        mPool = new byte[poolSize + MAX_PAYLOAD];
+        byte [] head = new byte[poolSize];
+        new Random(seed).nextBytes(head);
+        System.arraycopy(head, 0, mPool, 0, poolSize);
+        for (int i = 0; i < MAX_PAYLOAD; ++i) {
+            mPool[poolSize + i] = mPool[i % poolSize];
+        }
+        mSlice = ByteBuffer.wrap(mPool).asReadOnlyBuffer();
+    }
+
+    /**
+     * Fill a reused buffer of the given size with the next pseudo-random
+     * bytes. The same array is returned on every call (it is only replaced
+     * when the size changes), so the caller must be done with it (or have
+     * copied it) before calling again.
+     *
+     * @param size - number of bytes, 0 to MAX_PAYLOAD
+     * @return the filled buffer
+     */
+    public byte [] next (int size) {
+        int start = advance(size); //checks the size before it is allocated
+        if (mBuffer.length != size) {
+            mBuffer = new byte[size];
+        }
+        System.arraycopy(mPool, start, mBuffer, 0, size);
+        return mBuffer;
+    }
+
+    /**
+     * Copy the next pseudo-random bytes into the caller's buffer
+     *
+     * @param dst - destination
+     * @param offset - where to start in dst
+     * @param size - number of bytes, 0 to MAX_PAYLOAD
+     */
+    public void fill (byte [] dst, int offset, int size) {
+        System.arraycopy(mPool, advance(size), dst, offset, size);
+    }
+
+    /**
+     * Hand out the next pseudo-random bytes as a read-only view of the pool.
+     * Like next(), the same view object is repositioned on every call.
+     *
+     * @param size - number of bytes, 0 to MAX_PAYLOAD
+     * @return a view whose position and limit bracket the payload
+     */
+    public ByteBuffer slice (int size) {
+        int start = advance(size);
+        mSlice.clear();
+        mSlice.position(start).limit(start + size);
+        return mSlice;
+    }
+
+    /**
+     * Move the rolling offset past the next payload
+     *
+     * @return where the payload starts in the pool
+     */
+    private int advance (int size) {
+        if (size < 0 || size > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("payload size must be 0 to " + MAX_PAYLOAD);
+        }
+
+        int start = mOffset;
+        mOffset += size;
+        if (mOffset >= mPoolSize) {
+            mOffset -= mPoolSize;
+        }
+        return start;
+    }
+}
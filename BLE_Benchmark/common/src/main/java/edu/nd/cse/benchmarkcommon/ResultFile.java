@@ -0,0 +1,207 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Binary, columnar form of a benchmark run's results. The run description is
+ * stored once in the header instead of on every row as in the CSVs, and each
+ * series of measurements is stored as a column of longs, either fixed width
+ * or as zigzag varint deltas, which takes 2 to 4 bytes for typical
+ * latencies and timestamps.
+ *
+ * Layout (big-endian):
+ *   [MAGIC int][VERSION byte]
+ *   [client ID][server ID][comm method]    strings: [length short][UTF-8]
+ *   [mtu int][conn interval int]
+ *   [column count short]
+ *   per column:
+ *     [name][encoding byte][value count int][data length int][data]
+ *
+ * Read it back with ResultFileReader. Write it with ResultSink, or
+ * directly with writeTo().
+ */
+public class ResultFile {
+
+    public static final int MAGIC = 0x424C5246; //"BLRF"
+    public static final byte VERSION = 1;
+
+    public static final byte FIXED = 0; //8 bytes per value
+    public static final byte DELTA = 1; //zigzag varint of the difference from the previous value
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_VARINT = 10;
+
+    public final String mClientID;
+    public final String mServerID;
+    public final String mCommMethod;
+    public final int mMtu;
+    public final int mConnInterval;
+
+    private final ArrayList<String> mNames = new ArrayList<String>();
+    private final ArrayList<Byte> mEncodings = new ArrayList<Byte>();
+    private final ArrayList<long []> mColumns = new ArrayList<long []>();
+
+    /**
+     * @param clientID - the client's device ID
+     * @param serverID - the server's device ID
+     * @param mtu - the MTU used for the run
+     * @param commMethod - the name of the method used, as in BenchmarkProfile
+     * @param connInterval - the connection interval (priority) used
+     */
+    public ResultFile (String clientID, String serverID, int mtu, String commMethod,
+                       int connInterval) {
+        mClientID = clientID;
+        mServerID = serverID;
+        mMtu = mtu;
+        mCommMethod = commMethod;
+        mConnInterval = connInterval;
+    }
+
+    /**
+     * Add a column of measurements
+     *
+     * @param name - column name, e.g. "latency_op_return"
+     * @param values - the values. Not copied, so it must not be changed
+     *               until the file has been written
+     * @param encoding - FIXED or DELTA
+     * @return this, for chaining
+     */
+    public ResultFile addColumn (String name, long [] values, byte encoding) {
+        if (FIXED != encoding && DELTA != encoding) {
+            throw new IllegalArgumentException("unknown encoding " + encoding);
+        }
+        mNames.add(name);
+        mEncodings.add(encoding);
+        mColumns.add(values);
+        return this;
+    }
+
+    /**
+     * Header line of the CSV for a measurement, matching the rows that
+     * csvRowPrefix starts
+     *
+     * @param measurement - name of the last column
+     * @return the header, without a newline
+     */
+    public static String csvHeader (String measurement) {
+        return "client_device_id, server_device_id, phone_vendor, bt_version, bt_vendor, mtu, comm_method, conn_int, "
+                + measurement;
+    }
+
+    /**
+     * The columns every CSV row starts with, describing the run
+     */
+    public static String csvRowPrefix (String clientID, String serverID,
+                                       int mtu, String commMethod, int connInt) {
+        return clientID + ", " + serverID + ", unknown, unknown, unknown, " + String.valueOf(mtu)
+                + ", " + commMethod + "," + connInt + ",";
+    }
+
+    /**
+     * Stream the file to the channel through the given buffer, draining it
+     * whenever it fills
+     *
+     * @param channel - destination
+     * @param buffer - scratch buffer, at least 16 bytes. Cleared first
+     * @throws IOException if the channel fails
+     */
+    public void writeTo (WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        putString(channel, buffer, mClientID);
+        putString(channel, buffer, mServerID);
+        putString(channel, buffer, mCommMethod);
+        ensure(channel, buffer, Integer.BYTES);
+        buffer.putInt(mMtu);
+        ensure(channel, buffer, Integer.BYTES + Short.BYTES);
+        buffer.putInt(mConnInterval);
+        buffer.putShort((short) mColumns.size());
+
+        for (int c = 0; c < mColumns.size(); ++c) {
+            long [] values = mColumns.get(c);
+            byte encoding = mEncodings.get(c);
+
+            putString(channel, buffer, mNames.get(c));
+            ensure(channel, buffer, 1 + Integer.BYTES);
+            buffer.put(encoding);
+            buffer.putInt(values.length);
+            ensure(channel, buffer, Integer.BYTES);
+            buffer.putInt(dataLength(values, encoding));
+
+            long previous = 0;
+            for (long value : values) {
+                if (FIXED == encoding) {
+                    ensure(channel, buffer, Long.BYTES);
+                    buffer.putLong(value);
+                } else {
+                    ensure(channel, buffer, MAX_VARINT);
+                    DeltaVarintCodec.putZigZag(buffer, value - previous);
+                    previous = value;
+                }
+            }
+        }
+        drain(channel, buffer);
+    }
+
+    /**
+     * @return the bytes a column's data takes
+     */
+    private static int dataLength (long [] values, byte encoding) {
+        long length = 0;
+        if (FIXED == encoding) {
+            length = (long) values.length * Long.BYTES;
+        } else {
+            long previous = 0;
+            for (long value : values) {
+                length += DeltaVarintCodec.varintSize(DeltaVarintCodec.zigZag(value - previous));
+                previous = value;
+            }
+        }
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("column too large");
+        }
+        return (int) length;
+    }
+
+    private static void putString (WritableByteChannel channel, ByteBuffer buffer, String s)
+            throws IOException {
+        byte [] bytes = s.getBytes(UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("string too long");
+        }
+        ensure(channel, buffer, Short.BYTES);
+        buffer.putShort((short) bytes.length);
+
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensure(channel, buffer, 1);
+            int n = Math.min(bytes.length - offset, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Make room for the given number of bytes
+     */
+    private static void ensure (WritableByteChannel channel, ByteBuffer buffer, int bytes)
+            throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(channel, buffer);
+        }
+    }
+
+    private static void drain (WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,226 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Reads a ResultFile by mapping it into memory. Only the header is parsed
+ * up front; a column is decoded straight out of the mapping when it is
+ * asked for, so pulling one series out of a large file touches only that
+ * series' pages.
+ *
+ * Can also be run on its own to convert a result file to the CSVs the app
+ * used to write, one per column:
+ *   java edu.nd.cse.benchmarkcommon.ResultFileReader results.blr [out dir]
+ */
+public class ResultFileReader {
+
+    private final MappedByteBuffer mMap;
+
+    private final String mClientID;
+    private final String mServerID;
+    private final String mCommMethod;
+    private final int mMtu;
+    private final int mConnInterval;
+
+    private final ArrayList<String> mNames = new ArrayList<String>();
+    private final ArrayList<Byte> mEncodings = new ArrayList<Byte>();
+    private final ArrayList<Integer> mCounts = new ArrayList<Integer>();
+    private final ArrayList<Integer> mOffsets = new ArrayList<Integer>();
+    private final ArrayList<Integer> mLengths = new ArrayList<Integer>();
+
+    /**
+     * Map the file and parse its header
+     *
+     * @param file - a file written from a ResultFile
+     * @throws IOException if it cannot be read or is not a result file
+     */
+    public ResultFileReader (File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close(); //the mapping stays valid
+        }
+
+        ByteBuffer in = mMap.duplicate();
+        try {
+            if (ResultFile.MAGIC != in.getInt()) {
+                throw new IOException(file + " is not a result file");
+            }
+            byte version = in.get();
+            if (ResultFile.VERSION != version) {
+                throw new IOException("unsupported result file version " + version);
+            }
+
+            mClientID = getString(in);
+            mServerID = getString(in);
+            mCommMethod = getString(in);
+            mMtu = in.getInt();
+            mConnInterval = in.getInt();
+
+            int columns = in.getShort() & 0xFFFF;
+            for (int c = 0; c < columns; ++c) {
+                mNames.add(getString(in));
+                mEncodings.add(in.get());
+                mCounts.add(in.getInt());
+                int length = in.getInt();
+                mOffsets.add(in.position());
+                mLengths.add(length);
+                in.position(in.position() + length);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(file + " is truncated");
+        }
+    }
+
+    public String getClientID () {
+        return mClientID;
+    }
+
+    public String getServerID () {
+        return mServerID;
+    }
+
+    public String getCommMethod () {
+        return mCommMethod;
+    }
+
+    public int getMtu () {
+        return mMtu;
+    }
+
+    public int getConnInterval () {
+        return mConnInterval;
+    }
+
+    public int getColumnCount () {
+        return mNames.size();
+    }
+
+    public String getColumnName (int column) {
+        return mNames.get(column);
+    }
+
+    /**
+     * @return the number of values in the column
+     */
+    public int getColumnSize (int column) {
+        return mCounts.get(column);
+    }
+
+    /**
+     * @param name - a column name
+     * @return its index, -1 if there is no such column
+     */
+    public int findColumn (String name) {
+        return mNames.indexOf(name);
+    }
+
+    /**
+     * @param column - index of the column
+     * @return the column's values
+     */
+    public long [] readColumn (int column) {
+        long [] values = new long[getColumnSize(column)];
+        ByteBuffer in = columnData(column);
+        if (ResultFile.FIXED == mEncodings.get(column)) {
+            in.asLongBuffer().get(values);
+        } else {
+            long previous = 0;
+            for (int i = 0; i < values.length; ++i) {
+                previous += DeltaVarintCodec.getZigZag(in);
+                values[i] = previous;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Append the column's values to a recorder
+     *
+     * @param column - index of the column
+     * @param dst - where to put the values
+     */
+    public void readColumn (int column, LongRecorder dst) {
+        int count = getColumnSize(column);
+        ByteBuffer in = columnData(column);
+        boolean fixed = ResultFile.FIXED == mEncodings.get(column);
+        long previous = 0;
+        for (int i = 0; i < count; ++i) {
+            if (fixed) {
+                dst.add(in.getLong());
+            } else {
+                previous += DeltaVarintCodec.getZigZag(in);
+                dst.add(previous);
+            }
+        }
+    }
+
+    /**
+     * Queue one CSV per column, in the same layout as the app's CSVs
+     *
+     * @param sink - writes the files
+     * @param dir - where to put them
+     * @param suffix - added to each column name to make the file name
+     */
+    public void toCsv (ResultSink sink, File dir, String suffix) {
+        String prefix = ResultFile.csvRowPrefix(mClientID, mServerID, mMtu, mCommMethod,
+                mConnInterval);
+        for (int c = 0; c < getColumnCount(); ++c) {
+            String name = getColumnName(c);
+            sink.write(new File(dir, name + suffix + ".csv"), ResultFile.csvHeader(name),
+                    prefix, readColumn(c), false);
+        }
+    }
+
+    /**
+     * A view of one column's data, independent of other readers
+     */
+    private ByteBuffer columnData (int column) {
+        ByteBuffer in = mMap.duplicate();
+        int offset = mOffsets.get(column);
+        in.position(offset);
+        in.limit(offset + mLengths.get(column));
+        return in.slice();
+    }
+
+    private static String getString (ByteBuffer in) {
+        byte [] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, ResultFile.UTF_8);
+    }
+
+    /**
+     * Convert a result file to CSVs
+     *
+     * @param args - the result file and, optionally, the output directory
+     */
+    public static void main (String [] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: ResultFileReader <result file> [out dir]");
+            System.exit(2);
+        }
+
+        File in = new File(args[0]);
+        File dir = (args.length > 1) ? new File(args[1]) : in.getAbsoluteFile().getParentFile();
+        String name = in.getName();
+        int dot = name.lastIndexOf('.');
+        String suffix = "-" + ((dot > 0) ? name.substring(0, dot) : name);
+
+        ResultSink sink = new ResultSink();
+        new ResultFileReader(in).toCsv(sink, dir, suffix);
+        sink.close(Long.MAX_VALUE);
+        if (0 < sink.getErrorCount()) {
+            System.err.println("failed: " + sink.getLastError());
+            System.exit(1);
+        }
+    }
+}
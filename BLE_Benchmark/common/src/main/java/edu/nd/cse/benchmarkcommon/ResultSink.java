@@ -0,0 +1,248 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes benchmark results to CSV files from a single background thread.
+ *
+ * A result file is a header line followed by one row per measurement, where
+ * every row is the same run description (device IDs, MTU, comm method, ...)
+ * followed by the measurement. The run description is encoded once; each
+ * row then costs a copy of those bytes plus the measurement's ASCII digits,
+ * which are written straight into a reused direct buffer. The buffer is
+ * drained into the file's FileChannel whenever it fills, so a file of any
+ * length is written in the same, constant, amount of memory.
+ *
+ * Binary ResultFiles are written the same way, through the same buffer.
+ *
+ * Writes are queued and done in order. Call close() before exiting to wait
+ * for them.
+ */
+public class ResultSink {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_DIGITS = 20; //Long.MIN_VALUE
+
+    private final ExecutorService mWriter;
+    private final ByteBuffer mBuffer; //writer thread only
+    private final byte [] mDigits = new byte[MAX_DIGITS]; //writer thread only
+    private final AtomicInteger mErrors = new AtomicInteger(0);
+    private volatile IOException mLastError = null;
+
+    /**
+     * Create a sink with the default buffer size
+     */
+    public ResultSink () {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize - bytes buffered before each write to a file
+     */
+    public ResultSink (int bufferSize) {
+        mBuffer = ByteBuffer.allocateDirect(bufferSize);
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "result-sink");
+            }
+        });
+    }
+
+    /**
+     * Queue a file of one row per value: [rowPrefix][value]\n
+     *
+     * @param file - the file to write
+     * @param header - first line of the file, without the newline
+     * @param rowPrefix - what every row starts with, e.g. "a, b, "
+     * @param values - one row each. Not copied, so it must not be changed
+     *               after the call
+     * @param append - add to the end of the file instead of replacing it
+     */
+    public void write (final File file, String header, String rowPrefix,
+                       final long [] values, final boolean append) {
+        final byte [] head = (header + "\n").getBytes(UTF_8);
+        final byte [] prefix = rowPrefix.getBytes(UTF_8);
+
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeRows(file, head, prefix, values, append);
+            }
+        });
+    }
+
+    /**
+     * Queue a file with a single row
+     *
+     * @see #write(File, String, String, long[], boolean)
+     */
+    public void write (File file, String header, String rowPrefix, long value) {
+        write(file, header, rowPrefix, new long [] {value}, false);
+    }
+
+    /**
+     * Queue a file of rows that are already made up, e.g. when the rows
+     * describe different runs
+     *
+     * @param file - the file to write
+     * @param header - first line of the file, without the newline
+     * @param rows - the lines after it, without newlines. Not copied
+     */
+    public void write (final File file, String header, final String [] rows) {
+        final byte [] head = (header + "\n").getBytes(UTF_8);
+
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeLines(file, head, rows);
+            }
+        });
+    }
+
+    /**
+     * Queue a binary result file
+     *
+     * @param file - the file to write
+     * @param results - the results. Its columns must not be changed after
+     *                the call
+     */
+    public void write (final File file, final ResultFile results) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream stream = null;
+                try {
+                    stream = new FileOutputStream(file);
+                    results.writeTo(stream.getChannel(), mBuffer);
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    close(stream);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop taking writes and wait for the queued ones to finish
+     *
+     * @param timeoutMillis - how long to wait
+     * @return true if everything was written (or failed) in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean close (long timeoutMillis) throws InterruptedException {
+        mWriter.shutdown();
+        return mWriter.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return how many files could not be written
+     */
+    public int getErrorCount () {
+        return mErrors.get();
+    }
+
+    /**
+     * @return why the last failed file failed, null if none has
+     */
+    public IOException getLastError () {
+        return mLastError;
+    }
+
+    private void writeRows (File file, byte [] head, byte [] prefix, long [] values,
+                            boolean append) {
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(file, append);
+            FileChannel channel = stream.getChannel();
+            mBuffer.clear();
+
+            put(channel, head, head.length);
+            for (long value : values) {
+                put(channel, prefix, prefix.length);
+                int length = NetstringEncoder.putDecimal(value, mDigits, 0);
+                put(channel, mDigits, length);
+                if (!mBuffer.hasRemaining()) {
+                    drain(channel);
+                }
+                mBuffer.put((byte) '\n');
+            }
+            drain(channel);
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            close(stream);
+        }
+    }
+
+    private void writeLines (File file, byte [] head, String [] rows) {
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(file);
+            FileChannel channel = stream.getChannel();
+            mBuffer.clear();
+
+            put(channel, head, head.length);
+            for (String row : rows) {
+                byte [] line = (row + "\n").getBytes(UTF_8);
+                put(channel, line, line.length);
+            }
+            drain(channel);
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            close(stream);
+        }
+    }
+
+    private void close (FileOutputStream stream) {
+        if (null != stream) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void fail (IOException e) {
+        mErrors.incrementAndGet();
+        mLastError = e;
+    }
+
+    /**
+     * Copy bytes into the buffer, draining it to the channel as it fills
+     */
+    private void put (FileChannel channel, byte [] src, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!mBuffer.hasRemaining()) {
+                drain(channel);
+            }
+            int n = Math.min(length - offset, mBuffer.remaining());
+            mBuffer.put(src, offset, n);
+            offset += n;
+        }
+    }
+
+    private void drain (FileChannel channel) throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            channel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,216 @@
+package edu.nd.cse.benchmarkcommon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counts lost, duplicated and reordered packets on the receiving side of a
+ * run, from a sequence number the sender puts at the start of each payload
+ * (see writeSequence). Sequence numbers start at 0 for every run.
+ *
+ * The tracker remembers which of the last window sequence numbers (up to
+ * the highest seen) have arrived in a bitmap that slides forward with the
+ * highest one. A packet below the highest fills a gap and counts as
+ * reordered, by how far behind it was; one whose bit is already set is a
+ * duplicate. A packet too far behind to be in the bitmap any more is
+ * counted as late and left lost, since it cannot be told from a duplicate.
+ * Anything after the highest sequence seen is unknowable, so loss at the
+ * very end of a run is not counted.
+ *
+ * Not thread safe.
+ */
+public class SequenceTracker {
+
+    public static final int HEADER_LENGTH = 4; //bytes of sequence number at the start of a payload
+    public static final int DEFAULT_WINDOW = 1024; //packets
+
+    /**
+     * What the tracker has counted, also as it goes over the air:
+     * [received][lost][duplicates][reordered][max reorder distance], each an
+     * unsigned 4 byte int
+     */
+    public static class Stats {
+        public static final int LENGTH = 5 * Integer.BYTES;
+
+        public final long mReceived;
+        public final long mLost;
+        public final long mDuplicates;
+        public final long mReordered;
+        public final long mMaxReorderDistance; //packets
+
+        public Stats (long received, long lost, long duplicates, long reordered,
+                      long maxReorderDistance) {
+            mReceived = received;
+            mLost = lost;
+            mDuplicates = duplicates;
+            mReordered = reordered;
+            mMaxReorderDistance = maxReorderDistance;
+        }
+
+        /**
+         * @return lost / sent, 0 if nothing was sent
+         */
+        public float getLossRate () {
+            long sent = mReceived + mLost;
+            return (0 == sent) ? 0 : (float) mLost / sent;
+        }
+
+        public byte [] toBytes () {
+            return ByteBuffer.allocate(LENGTH)
+                    .putInt((int) mReceived)
+                    .putInt((int) mLost)
+                    .putInt((int) mDuplicates)
+                    .putInt((int) mReordered)
+                    .putInt((int) mMaxReorderDistance)
+                    .array();
+        }
+
+        /**
+         * @param value - as from toBytes
+         * @return the stats, or null if the value is too short
+         */
+        public static Stats fromBytes (byte [] value) {
+            if (null == value || value.length < LENGTH) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(value);
+            return new Stats(buffer.getInt() & 0xFFFFFFFFL,
+                    buffer.getInt() & 0xFFFFFFFFL,
+                    buffer.getInt() & 0xFFFFFFFFL,
+                    buffer.getInt() & 0xFFFFFFFFL,
+                    buffer.getInt() & 0xFFFFFFFFL);
+        }
+
+        @Override
+        public String toString () {
+            return mReceived + " received, " + mLost + " lost (" + getLossRate() * 100 + "%), "
+                    + mDuplicates + " duplicates, " + mReordered + " reordered (up to "
+                    + mMaxReorderDistance + " behind)";
+        }
+    }
+
+    private final long [] mSeen; //bit s % window is set if s has arrived
+    private final int mWindow;
+    private long mHighest = -1;
+    private long mReceived = 0;
+    private long mDuplicates = 0;
+    private long mReordered = 0;
+    private long mLate = 0;
+    private long mMaxReorderDistance = 0;
+
+    public SequenceTracker () {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window - how many packets behind the highest one a packet may
+     *               arrive and still be counted, rounded up to a multiple of 64
+     */
+    public SequenceTracker (int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("bad window " + window);
+        }
+        mSeen = new long[(window + Long.SIZE - 1) / Long.SIZE];
+        mWindow = mSeen.length * Long.SIZE;
+    }
+
+    /**
+     * Put a sequence number at the start of a payload
+     *
+     * @param payload - at least HEADER_LENGTH bytes
+     * @param sequence - the packet's sequence number
+     */
+    public static void writeSequence (byte [] payload, long sequence) {
+        payload[0] = (byte) (sequence >>> 24);
+        payload[1] = (byte) (sequence >>> 16);
+        payload[2] = (byte) (sequence >>> 8);
+        payload[3] = (byte) sequence;
+    }
+
+    /**
+     * @param payload - at least HEADER_LENGTH bytes
+     * @return the sequence number at its start
+     */
+    public static long readSequence (byte [] payload) {
+        return ((payload[0] & 0xFFL) << 24) | ((payload[1] & 0xFFL) << 16)
+                | ((payload[2] & 0xFFL) << 8) | (payload[3] & 0xFFL);
+    }
+
+    /**
+     * Forget everything, e.g. at the start of a run
+     */
+    public void reset () {
+        java.util.Arrays.fill(mSeen, 0);
+        mHighest = -1;
+        mReceived = 0;
+        mDuplicates = 0;
+        mReordered = 0;
+        mLate = 0;
+        mMaxReorderDistance = 0;
+    }
+
+    /**
+     * Count a packet
+     *
+     * @param sequence - its sequence number
+     */
+    public void record (long sequence) {
+        if (sequence > mHighest) {
+            //slide the window up, forgetting whatever falls out of it
+            if (sequence - mHighest >= mWindow) {
+                java.util.Arrays.fill(mSeen, 0);
+            } else {
+                for (long s = mHighest + 1; s < sequence; ++s) {
+                    clear(s);
+                }
+            }
+            set(sequence);
+            mHighest = sequence;
+            ++mReceived;
+            return;
+        }
+
+        long distance = mHighest - sequence;
+        if (distance >= mWindow) {
+            ++mLate;
+        } else if (isSet(sequence)) {
+            ++mDuplicates;
+        } else {
+            set(sequence);
+            ++mReceived;
+            ++mReordered;
+            mMaxReorderDistance = Math.max(mMaxReorderDistance, distance);
+        }
+    }
+
+    /**
+     * @return the counts so far; every gap below the highest sequence number
+     * seen counts as lost
+     */
+    public Stats getStats () {
+        return new Stats(mReceived, (mHighest + 1) - mReceived, mDuplicates, mReordered,
+                mMaxReorderDistance);
+    }
+
+    /**
+     * @return packets that arrived too far behind to be told apart from
+     * duplicates
+     */
+    public long getLateCount () {
+        return mLate;
+    }
+
+    private void set (long sequence) {
+        int bit = (int) (sequence % mWindow);
+        mSeen[bit >>> 6] |= 1L << (bit & 63);
+    }
+
+    private void clear (long sequence) {
+        int bit = (int) (sequence % mWindow);
+        mSeen[bit >>> 6] &= ~(1L << (bit & 63));
+    }
+
+    private boolean isSet (long sequence) {
+        int bit = (int) (sequence % mWindow);
+        return 0 != (mSeen[bit >>> 6] & (1L << (bit & 63)));
+    }
+}
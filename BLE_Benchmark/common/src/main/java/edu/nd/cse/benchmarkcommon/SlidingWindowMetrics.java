@@ -0,0 +1,176 @@
+package edu.nd.cse.benchmarkcommon;
+
+/**
+ * Throughput, op rate and latency percentiles over the last few seconds of
+ * a run, kept up to date as packets come and go so they can be looked at
+ * while the run is still going.
+ *
+ * The window is split into a ring of equal slots. Each slot counts the bytes
+ * and ops that fell into it and has a small histogram of their latencies.
+ * Recording touches only the current slot; when time moves into a new slot
+ * the oldest one is cleared and reused. A snapshot adds up the slots still
+ * inside the window, so its cost depends on the number of slots, not on
+ * the number of packets. Memory is fixed when the metrics are created.
+ *
+ * Thread safe: one thread may record while another takes snapshots.
+ */
+public class SlidingWindowMetrics {
+
+    public static final long DEFAULT_WINDOW = 5000000000L; //ns
+    public static final int DEFAULT_SLOTS = 10;
+
+    //coarser than the end-of-run histograms to keep a slot small: 1us to 10s, 2 digits
+    private static final long LOWEST_LATENCY = 1000;
+    private static final long HIGHEST_LATENCY = 10000000000L;
+    private static final int LATENCY_DIGITS = 2;
+
+    /**
+     * The metrics at one moment
+     */
+    public static class Snapshot {
+        public final long mWindow; //ns of the run covered, up to the window length
+        public final double mBytesPerSecond;
+        public final double mOpsPerSecond;
+        public final long mOps; //ops in the window
+        public final long mLatencyP50; //ns
+        public final long mLatencyP90;
+        public final long mLatencyP99;
+        public final long mLatencyMax;
+
+        Snapshot (long window, long bytes, long ops, LatencyHistogram latency) {
+            mWindow = window;
+            mBytesPerSecond = (0 < window) ? bytes * 1e9 / window : 0;
+            mOpsPerSecond = (0 < window) ? ops * 1e9 / window : 0;
+            mOps = ops;
+            mLatencyP50 = latency.getValueAtPercentile(50);
+            mLatencyP90 = latency.getValueAtPercentile(90);
+            mLatencyP99 = latency.getValueAtPercentile(99);
+            mLatencyMax = latency.getMaxValue();
+        }
+
+        /**
+         * @return e.g. "1024 B/s, 51.2 ops/s, latency us p50 7500 p90 7600 p99 15000 max 15100"
+         */
+        @Override
+        public String toString () {
+            return Math.round(mBytesPerSecond) + " B/s, "
+                    + Math.round(mOpsPerSecond * 10) / 10.0 + " ops/s, latency us"
+                    + " p50 " + mLatencyP50 / 1000
+                    + " p90 " + mLatencyP90 / 1000
+                    + " p99 " + mLatencyP99 / 1000
+                    + " max " + mLatencyMax / 1000;
+        }
+    }
+
+    private final long mSlotLength; //ns
+    private final long [] mSlotEpochs; //which slot of the run each entry currently holds
+    private final long [] mBytes;
+    private final long [] mOps;
+    private final LatencyHistogram [] mLatency;
+    private final LatencyHistogram mMerged; //scratch for snapshots
+
+    private long mStart = -1; //time of the first record, -1 before
+
+    public SlidingWindowMetrics () {
+        this(DEFAULT_WINDOW, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param window - how far back (ns) to look
+     * @param slots - how many pieces the window is cut into; more makes the
+     *              window slide more smoothly and costs a histogram each
+     */
+    public SlidingWindowMetrics (long window, int slots) {
+        if (slots < 1 || window < slots) {
+            throw new IllegalArgumentException("bad window " + window + " / " + slots);
+        }
+        mSlotLength = window / slots;
+        mSlotEpochs = new long[slots];
+        mBytes = new long[slots];
+        mOps = new long[slots];
+        mLatency = new LatencyHistogram[slots];
+        for (int i = 0; i < slots; ++i) {
+            mLatency[i] = new LatencyHistogram(LOWEST_LATENCY, HIGHEST_LATENCY, LATENCY_DIGITS);
+        }
+        mMerged = new LatencyHistogram(LOWEST_LATENCY, HIGHEST_LATENCY, LATENCY_DIGITS);
+        reset();
+    }
+
+    /**
+     * Forget everything, e.g. at the start of a run
+     */
+    public synchronized void reset () {
+        java.util.Arrays.fill(mSlotEpochs, -1);
+        java.util.Arrays.fill(mBytes, 0);
+        java.util.Arrays.fill(mOps, 0);
+        for (LatencyHistogram latency : mLatency) {
+            latency.reset();
+        }
+        mStart = -1;
+    }
+
+    /**
+     * Count an op
+     *
+     * @param now - when it happened (ns, same clock for every call)
+     * @param bytes - bytes it moved
+     * @param latency - its latency (ns), negative if it has none (e.g. the
+     *                first arrival, which has nothing to be timed against)
+     */
+    public synchronized void record (long now, long bytes, long latency) {
+        if (-1 == mStart) {
+            mStart = now;
+        }
+        int slot = slotFor(now);
+        mBytes[slot] += bytes;
+        mOps[slot] += 1;
+        if (0 <= latency) {
+            mLatency[slot].recordValue(latency);
+        }
+    }
+
+    /**
+     * @param now - the current time (ns, same clock as record)
+     * @return the metrics over the window ending now. Until the run has
+     * lasted a whole window the rates are over the time so far.
+     */
+    public synchronized Snapshot snapshot (long now) {
+        long bytes = 0;
+        long ops = 0;
+        mMerged.reset();
+
+        long epoch = now / mSlotLength;
+        for (int i = 0; i < mSlotEpochs.length; ++i) {
+            if (-1 != mSlotEpochs[i] && epoch - mSlotEpochs[i] < mSlotEpochs.length) {
+                bytes += mBytes[i];
+                ops += mOps[i];
+                mMerged.add(mLatency[i]);
+            }
+        }
+
+        //the current, partly elapsed, slot and the whole slots before it
+        long window = mSlotEpochs.length * mSlotLength - (mSlotLength - now % mSlotLength);
+        if (-1 == mStart) {
+            window = 0;
+        } else {
+            window = Math.min(window, now - mStart);
+        }
+        return new Snapshot(window, bytes, ops, mMerged);
+    }
+
+    /**
+     * @return the slot for the time, cleared first if it last held an
+     * older part of the run
+     */
+    private int slotFor (long now) {
+        long epoch = now / mSlotLength;
+        int slot = (int) (epoch % mSlotEpochs.length);
+        if (mSlotEpochs[slot] != epoch) {
+            mSlotEpochs[slot] = epoch;
+            mBytes[slot] = 0;
+            mOps[slot] = 0;
+            mLatency[slot].reset();
+        }
+        return slot;
+    }
+}
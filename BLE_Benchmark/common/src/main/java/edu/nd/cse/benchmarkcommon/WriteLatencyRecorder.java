@@ -0,0 +1,140 @@
+package edu.nd.cse.benchmarkcommon;
+
+/**
+ * Takes in the completions of a run's benchmark writes as the GATT layer
+ * hands them up and records each write's latency, and when it was handed
+ * to the stack.
+ *
+ * Closed loop, the latency is the op latency the GATT layer measured. Open
+ * loop, it is measured from when the write was due, so time spent waiting
+ * for room in the queue counts. Writes complete in the order they were
+ * sent, so the n-th completion belongs to the n-th write sent. That only
+ * holds if every completion is counted, so failed writes have to be
+ * reported through failed() as well. The send times end up indexed by
+ * write, the n-th being the n-th write's.
+ *
+ * Thread safe. The due times are set on the sending thread, completions
+ * come up on the binder thread and failures on whichever thread the GATT
+ * layer gave up on the write (a dispatching thread or the main looper), so
+ * every method takes the recorder's lock. It is only contended when a
+ * failure and a completion arrive together.
+ */
+public class WriteLatencyRecorder {
+
+    //only writes in flight are needed, and far fewer than this fit in the
+    //GATT queue and window
+    private final int INTENDED_TIMES = 4096;
+    private final long [] mIntendedTimes = new long[INTENDED_TIMES];
+
+    private final LongRecorder mLatencies;
+    private final LongRecorder mSendTimes;
+    private final LatencyHistogram mHistogram;
+    private final SlidingWindowMetrics mLiveMetrics;
+
+    private long mPeriod = 0; //ns between writes, 0 if unpaced
+    private boolean mOpenLoop = false;
+    private boolean mCorrectOmission = false;
+    private long mCompleted = 0;
+    private long mFailed = 0;
+
+    /**
+     * @param latencies - where each latency (ns) goes
+     * @param sendTimes - where the time (ns) each write was handed to the
+     *                  stack goes, -1 for failed writes
+     * @param histogram - distribution of the latencies
+     * @param liveMetrics - live metrics to record each completed write in
+     */
+    public WriteLatencyRecorder (LongRecorder latencies, LongRecorder sendTimes,
+                                 LatencyHistogram histogram, SlidingWindowMetrics liveMetrics) {
+        mLatencies = latencies;
+        mSendTimes = sendTimes;
+        mHistogram = histogram;
+        mLiveMetrics = liveMetrics;
+    }
+
+    /**
+     * Get ready for a run. The recorders given to the constructor are left
+     * alone; they are shared with the rest of the profile.
+     *
+     * @param period - ns between writes, 0 if unpaced
+     * @param openLoop - measure from when each write was due (paced runs only)
+     * @param correctOmission - correct the histogram for coordinated omission
+     *                        (paced, closed loop runs only)
+     */
+    public synchronized void start (long period, boolean openLoop, boolean correctOmission) {
+        mPeriod = period;
+        mOpenLoop = openLoop && 0 < period;
+        mCorrectOmission = correctOmission && 0 < period && !mOpenLoop;
+        mCompleted = 0;
+        mFailed = 0;
+    }
+
+    /**
+     * @return true if latencies are measured from when writes were due
+     */
+    public synchronized boolean isOpenLoop () {
+        return mOpenLoop;
+    }
+
+    /**
+     * Note when a write was due. Called before the write is handed down.
+     *
+     * @param sequence - the write's number in the run, counting only writes
+     *                 the GATT layer took
+     * @param intended - when it was due (ns)
+     */
+    public synchronized void setIntended (long sequence, long intended) {
+        mIntendedTimes[(int) (sequence % INTENDED_TIMES)] = intended;
+    }
+
+    /**
+     * A write completed
+     *
+     * @param opLatency - the op latency (ns) the GATT layer measured
+     * @param sent - when the GATT layer handed it to the stack (ns)
+     * @param now - the time (ns, same clock as the due times)
+     * @param size - bytes written
+     * @return the latency recorded
+     */
+    public synchronized long completed (long opLatency, long sent, long now, int size) {
+        long latency = opLatency;
+        if (mOpenLoop) {
+            latency = now - mIntendedTimes[(int) (mCompleted % INTENDED_TIMES)];
+        }
+        ++mCompleted;
+
+        mLatencies.add(latency);
+        mSendTimes.add(sent);
+        if (mCorrectOmission) {
+            mHistogram.recordValueWithExpectedInterval(latency, mPeriod);
+        } else {
+            mHistogram.recordValue(latency);
+        }
+        mLiveMetrics.record(now, size, latency);
+        return latency;
+    }
+
+    /**
+     * A write failed. It has no latency or send time, but it takes its
+     * place in the order of completions.
+     */
+    public synchronized void failed () {
+        mSendTimes.add(-1);
+        ++mCompleted;
+        ++mFailed;
+    }
+
+    /**
+     * @return writes completed this run, including failed ones
+     */
+    public synchronized long getCompletedCount () {
+        return mCompleted;
+    }
+
+    /**
+     * @return writes failed this run
+     */
+    public synchronized long getFailedCount () {
+        return mFailed;
+    }
+}
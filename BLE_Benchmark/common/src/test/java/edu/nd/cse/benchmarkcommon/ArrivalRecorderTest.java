@@ -0,0 +1,83 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The server's packet timing with hand picked arrival times
+ */
+public class ArrivalRecorderTest {
+
+    private final LongRecorder mTimeDiffs = new LongRecorder();
+    private final LongRecorder mSequences = new LongRecorder();
+    private final LatencyHistogram mInterArrival = new LatencyHistogram(1, 60000000000L, 3);
+    private final SlidingWindowMetrics mLiveMetrics = new SlidingWindowMetrics();
+    private final SequenceTracker mSequence = new SequenceTracker();
+    private final ArrivalRecorder mArrivals = new ArrivalRecorder(mTimeDiffs, mSequences,
+            mInterArrival, mLiveMetrics, mSequence);
+
+    @Test
+    public void firstPacket_startsTheClock() {
+        assertFalse(mArrivals.isStarted());
+        mArrivals.record(1000, 20, 0);
+
+        assertTrue(mArrivals.isStarted());
+        assertEquals(1000, mArrivals.getStartTime());
+        assertTrue(mTimeDiffs.isEmpty());
+        assertEquals(0, mInterArrival.getTotalCount());
+    }
+
+    @Test
+    public void laterPackets_recordTimeSinceStartAndLast() {
+        mArrivals.record(1000, 20, 0);
+        mArrivals.record(1500, 20, 1);
+        mArrivals.record(3500, 20, 2);
+
+        assertArrayEquals(new long[] {500, 2500}, mTimeDiffs.toArray());
+        assertArrayEquals(new long[] {1, 2}, mSequences.toArray()); //the first has no time
+        assertEquals(2, mInterArrival.getTotalCount());
+        assertEquals(500, mInterArrival.getMinValue());
+        assertEquals(2000, mInterArrival.getMaxValue());
+    }
+
+    @Test
+    public void startedWithoutPacket_timesTheFirstOne() {
+        mArrivals.start(1000); //as when notifying
+        mArrivals.record(1200, 20, 0);
+        assertArrayEquals(new long[] {200}, mTimeDiffs.toArray());
+        assertArrayEquals(new long[] {0}, mSequences.toArray());
+    }
+
+    @Test
+    public void writes_areCountedAndSequenced() {
+        for (int i = 0; i < 5; ++i) {
+            if (2 == i) {
+                continue; //lost
+            }
+            byte [] payload = new byte[20];
+            SequenceTracker.writeSequence(payload, i);
+            mArrivals.recordWrite(1000 + i, payload);
+        }
+        mArrivals.recordWrite(2000, new byte[2]); //too short for a sequence number
+
+        assertEquals(4 * 20 + 2, mArrivals.getBytesReceived());
+        assertEquals(5, mArrivals.getPacketsReceived());
+        assertEquals(4, mSequence.getStats().mReceived);
+        assertEquals(1, mSequence.getStats().mLost);
+        assertEquals(4, mTimeDiffs.size());
+        assertArrayEquals(new long[] {1, 3, 4, -1}, mSequences.toArray());
+    }
+
+    @Test
+    public void reset_forgetsTheRunButNotTheRecorders() {
+        mArrivals.recordWrite(1000, new byte[20]);
+        mArrivals.recordWrite(2000, new byte[20]);
+        mArrivals.reset();
+
+        assertFalse(mArrivals.isStarted());
+        assertEquals(0, mArrivals.getBytesReceived());
+        assertEquals(0, mArrivals.getPacketsReceived());
+        assertEquals(1, mTimeDiffs.size()); //the owner clears these
+    }
+}
@@ -0,0 +1,154 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Probes against a made up server clock with a known offset and skew,
+ * taken over round trips of known length and symmetry.
+ */
+public class ClockSyncTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final long T0 = 5000 * SECOND; //our clock at the first burst
+    private static final long OFFSET = -1234567890L; //server minus ours at T0
+    private static final long MS = 1000000L;
+
+    private final ClockSync mSync = new ClockSync();
+
+    /**
+     * @return the server's clock at our time t, running skew faster than ours
+     */
+    private static long server (long t, double skew) {
+        return t + OFFSET + Math.round(skew * (t - T0));
+    }
+
+    /**
+     * A probe sent at our time t that takes up ns to reach the server and
+     * down ns to come back
+     */
+    private void probe (long t, long up, long down, double skew) {
+        mSync.addProbe(t, server(t + up, skew), t + up + down);
+    }
+
+    @Test
+    public void symmetricProbe_givesTheOffset () {
+        probe(T0, 3 * MS, 3 * MS, 0);
+        assertTrue(mSync.finishBurst());
+
+        assertTrue(mSync.isSynchronized());
+        assertEquals(OFFSET, mSync.getOffset());
+        assertEquals(0.0, mSync.getSkew(), 0.0);
+        assertEquals(3 * MS, mSync.getUncertainty());
+        assertEquals(T0 + 7 * SECOND, mSync.toClientTime(server(T0 + 7 * SECOND, 0)));
+    }
+
+    @Test
+    public void shortestRoundTrip_isKept () {
+        //long, lopsided round trips waiting on connection events, and one quick one
+        probe(T0, 30 * MS, 2 * MS, 0);
+        probe(T0 + 100 * MS, 2 * MS, 45 * MS, 0);
+        probe(T0 + 200 * MS, MS, MS, 0);
+        probe(T0 + 300 * MS, 7500 * 1000, 15 * MS, 0);
+        assertTrue(mSync.finishBurst());
+
+        assertEquals(OFFSET, mSync.getOffset());
+        assertEquals(MS, mSync.getUncertainty());
+    }
+
+    @Test
+    public void asymmetricProbe_isOffByHalfTheDifference () {
+        probe(T0, 9 * MS, MS, 0);
+        mSync.finishBurst();
+
+        //the server read its clock 4 ms after the midpoint we assume
+        assertEquals(OFFSET + 4 * MS, mSync.getOffset());
+        assertTrue(Math.abs(mSync.getOffset() - OFFSET) <= mSync.getUncertainty());
+    }
+
+    @Test
+    public void twoBursts_giveTheSkew () {
+        double skew = 20e-6; //20 ppm
+        for (int i = 0; i < ClockSync.DEFAULT_PROBES; ++i) {
+            probe(T0 + i * 10 * MS, (i + 1) * MS, (i + 1) * MS, skew);
+        }
+        mSync.finishBurst();
+        assertEquals(0.0, mSync.getSkew(), 0.0); //one burst: same rate
+
+        long later = T0 + 10 * SECOND;
+        for (int i = 0; i < ClockSync.DEFAULT_PROBES; ++i) {
+            probe(later + i * 10 * MS, (8 - i) * MS, (8 - i) * MS, skew);
+        }
+        mSync.finishBurst();
+
+        assertEquals(skew, mSync.getSkew(), 1e-9);
+        //as of the best probe of the latest burst: the last, read 10.071 s after T0
+        assertEquals(OFFSET + Math.round(skew * (later + 71 * MS - T0)), mSync.getOffset());
+        //mapped back to within rounding, before, between and after the bursts
+        long [] times = {T0 - SECOND, T0 + 5 * SECOND, later, later + 60 * SECOND};
+        for (long t : times) {
+            assertEquals(t, mSync.toClientTime(server(t, skew)), 2);
+        }
+    }
+
+    @Test
+    public void skew_comesFromTheFirstAndLatestBursts () {
+        double skew = -50e-6;
+        long [] bursts = {T0, T0 + SECOND, T0 + 4 * SECOND};
+        for (long t : bursts) {
+            probe(t, MS, MS, skew);
+            mSync.finishBurst();
+        }
+        assertEquals(skew, mSync.getSkew(), 1e-9);
+        assertEquals(OFFSET + Math.round(skew * (4 * SECOND + MS)), mSync.getOffset());
+    }
+
+    @Test
+    public void burstsAtTheSameTime_haveNoSkew () {
+        probe(T0, MS, MS, 0);
+        mSync.finishBurst();
+        mSync.addProbe(T0 - MS, server(T0 + MS, 0), T0 + 3 * MS); //same midpoint, longer trip
+        mSync.finishBurst();
+        assertEquals(0.0, mSync.getSkew(), 0.0);
+        assertEquals(2 * MS, mSync.getUncertainty());
+    }
+
+    @Test
+    public void unusableProbes () {
+        assertFalse(mSync.finishBurst()); //nothing in it
+        mSync.addProbe(T0, server(T0, 0), T0 - 1); //answered before it was sent
+        assertFalse(mSync.finishBurst());
+        assertFalse(mSync.isSynchronized());
+        try {
+            mSync.toClientTime(T0);
+            fail("mapped a time without a clock");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void reset_forgetsEverything () {
+        probe(T0, MS, MS, 0);
+        mSync.finishBurst();
+        probe(T0 + SECOND, 2 * MS, 2 * MS, 0); //a burst left half done
+        mSync.reset();
+        assertFalse(mSync.isSynchronized());
+        assertFalse(mSync.finishBurst());
+
+        probe(T0, MS, MS, 1e-3);
+        probe(T0 + SECOND, MS, MS, 1e-3);
+        mSync.finishBurst();
+        //the first probe of the two, both as quick, read 1 ms after T0
+        assertEquals(OFFSET + Math.round(1e-3 * MS), mSync.getOffset());
+        assertEquals(0.0, mSync.getSkew(), 0.0);
+    }
+
+    @Test
+    public void toString_describesTheEstimate () {
+        probe(T0, MS, MS, 0);
+        mSync.finishBurst();
+        assertEquals("offset " + OFFSET + " ns, skew 0.0 ppm, +/- 1000000 ns", mSync.toString());
+    }
+}
@@ -0,0 +1,131 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through encodeBlock/decodeBlock the way the latency
+ * measurements go over LATENCY_BULK_CHAR: one block per read, blocks
+ * decoded on their own, an empty block at the end.
+ */
+public class DeltaVarintCodecTest {
+
+    private static final int BLOCK = 22; //an MTU 23 read
+
+    @Test
+    public void roundTrip_acrossBlocks() {
+        LongRecorder src = new LongRecorder();
+        long value = 0;
+        for (int i = 0; i < 1000; ++i) {
+            value += 7500000 + (i % 7) * 1000;
+            src.add(value);
+        }
+
+        LongRecorder dst = transfer(src, BLOCK);
+        assertArrayEquals(src.toArray(), dst.toArray());
+    }
+
+    @Test
+    public void blockBoundaries_fillButNeverOverflow() {
+        LongRecorder src = new LongRecorder();
+        for (int i = 0; i < 100; ++i) {
+            src.add(i * 300L); //2 byte deltas
+        }
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK);
+        int count = DeltaVarintCodec.encodeBlock(src, 0, block);
+        //1 byte count + 1 byte first value (0) + 2 bytes a delta
+        assertEquals(1 + (BLOCK - 2) / 2, count);
+        assertEquals(BLOCK, block.position());
+
+        //each block starts from 0, so the next one can be decoded alone
+        ByteBuffer next = ByteBuffer.allocate(BLOCK);
+        count = DeltaVarintCodec.encodeBlock(src, 11, next);
+        next.flip();
+        LongRecorder dst = new LongRecorder();
+        assertEquals(count, DeltaVarintCodec.decodeBlock(next, dst));
+        assertEquals(11 * 300L, dst.get(0));
+    }
+
+    @Test
+    public void negativeDeltas() {
+        long [] values = {1000, 10, -5, -5, 3000000000L, -3000000000L, 0};
+        LongRecorder src = new LongRecorder();
+        for (long value : values) {
+            src.add(value);
+        }
+        assertArrayEquals(values, transfer(src, BLOCK).toArray());
+    }
+
+    @Test
+    public void extremes() {
+        long [] values = {Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, 0, Long.MIN_VALUE, -1, 1};
+        LongRecorder src = new LongRecorder();
+        for (long value : values) {
+            src.add(value);
+        }
+        //a wrapped delta is still 10 bytes at most
+        assertArrayEquals(values, transfer(src, BLOCK).toArray());
+        assertEquals(10, DeltaVarintCodec.varintSize(DeltaVarintCodec.zigZag(Long.MIN_VALUE)));
+    }
+
+    @Test
+    public void endMarker() {
+        LongRecorder src = new LongRecorder();
+        src.add(5);
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK);
+        assertEquals(0, DeltaVarintCodec.encodeBlock(src, 1, block)); //past the end
+        assertEquals(1, block.position()); //just the 0 count
+        block.flip();
+
+        LongRecorder dst = new LongRecorder();
+        assertEquals(0, DeltaVarintCodec.decodeBlock(block, dst));
+        assertEquals(0, DeltaVarintCodec.decodeBlock(ByteBuffer.allocate(0), dst)); //empty read
+        assertTrue(dst.isEmpty());
+    }
+
+    @Test
+    public void emptySource_isJustTheEndMarker() {
+        assertEquals(0, transfer(new LongRecorder(), BLOCK).size());
+    }
+
+    @Test
+    public void zigZag_smallMagnitudesStaySmall() {
+        assertEquals(0, DeltaVarintCodec.zigZag(0));
+        assertEquals(1, DeltaVarintCodec.zigZag(-1));
+        assertEquals(2, DeltaVarintCodec.zigZag(1));
+        assertEquals(-1L, DeltaVarintCodec.zigZag(Long.MIN_VALUE)); //all ones
+        assertEquals(-2L, DeltaVarintCodec.zigZag(Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedVarint_throws() {
+        byte [] tooLong = new byte[11];
+        Arrays.fill(tooLong, (byte) 0x80);
+        DeltaVarintCodec.getVarint(ByteBuffer.wrap(tooLong));
+    }
+
+    /**
+     * Move everything across in blocks of the given size until the end
+     * marker, like the client pulling LATENCY_BULK_CHAR
+     */
+    private static LongRecorder transfer (LongRecorder src, int blockSize) {
+        LongRecorder dst = new LongRecorder();
+        int from = 0;
+        for (int blocks = 0; blocks <= src.size() + 1; ++blocks) {
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            from += DeltaVarintCodec.encodeBlock(src, from, block);
+            block.flip();
+            if (0 == DeltaVarintCodec.decodeBlock(block, dst)) {
+                return dst;
+            }
+        }
+        fail("no end marker");
+        return null;
+    }
+}
@@ -0,0 +1,125 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the pooled envelope path does not allocate once it has warmed
+ * up. Runs on the host JVM, which can count the bytes a thread allocates.
+ */
+public class GattDataPoolTest {
+
+    private static final String ADDRESS = "00:00:00:00:00:01";
+    private static final UUID CHAR = BenchmarkProfile.TEST_CHAR;
+    private static final int ITERATIONS = 100000;
+
+    //slack for anything the JVM itself allocates while we measure
+    private static final long ALLOCATION_SLACK = 4096;
+
+    @Test
+    public void obtainAndRelease_reusesEnvelopes() {
+        GattDataPool pool = new GattDataPool(2);
+        GattData first = pool.obtain(ADDRESS, CHAR, 20);
+        first.release();
+        GattData second = pool.obtain(ADDRESS, CHAR, 20);
+
+        assertTrue(second.isPooled());
+        assertEquals(20, second.mBuffer.length);
+        assertEquals(0, pool.getMissCount());
+        second.release();
+    }
+
+    @Test
+    public void emptyPool_countsMiss() {
+        GattDataPool pool = new GattDataPool(1);
+        GattData a = pool.obtain(ADDRESS, CHAR, 8);
+        GattData b = pool.obtain(ADDRESS, CHAR, 8);
+
+        assertEquals(1, pool.getMissCount());
+        a.release();
+        b.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleRelease_throws() {
+        GattDataPool pool = new GattDataPool(1);
+        GattData data = pool.obtain(ADDRESS, CHAR, 8);
+        data.release();
+        data.release();
+    }
+
+    @Test
+    public void unpooledRelease_isNoop() {
+        GattData data = new GattData(ADDRESS, CHAR, new byte[4]);
+        data.release();
+        data.release();
+        assertFalse(data.isPooled());
+    }
+
+    @Test
+    public void longRoundTrip() {
+        GattDataPool pool = new GattDataPool(1);
+        GattData data = pool.obtainLong(ADDRESS, BenchmarkProfile.LATENCY_CHAR, -123456789L);
+        assertEquals(-123456789L, data.getLong());
+        data.release();
+    }
+
+    @Test
+    public void steadyState_doesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        Assume.assumeTrue(null != threads);
+
+        GattDataPool writePool = new GattDataPool(4);
+        GattDataPool latencyPool = new GattDataPool(4);
+        PayloadSource payload = new PayloadSource();
+
+        loop(writePool, latencyPool, payload, ITERATIONS); //warm up and JIT
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long sum = loop(writePool, latencyPool, payload, ITERATIONS);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < ALLOCATION_SLACK);
+        assertEquals(0, writePool.getMissCount());
+        assertEquals(0, latencyPool.getMissCount());
+        assertTrue(sum > 0);
+    }
+
+    /**
+     * One write plus its latency report per iteration, the same way the
+     * profile client and GATT client use the pools
+     */
+    private long loop (GattDataPool writePool, GattDataPool latencyPool,
+                       PayloadSource payload, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; ++i) {
+            GattData write = writePool.obtain(ADDRESS, CHAR, 20);
+            payload.fill(write.mBuffer, 0, 20);
+            sum += write.mBuffer[0] & 0xFF;
+            write.release();
+
+            GattData latency = latencyPool.obtainLong(ADDRESS, BenchmarkProfile.LATENCY_CHAR, i + 1);
+            sum += latency.getLong();
+            latency.release();
+        }
+        return sum;
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean () {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,254 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Percentiles against exact ones from the sorted values, the encoding the
+ * server sends the client, merging histograms of different layouts and the
+ * coordinated omission correction.
+ */
+public class LatencyHistogramTest {
+
+    private static final long HIGHEST = 60000000000L; //a minute in ns
+    private static final double [] PERCENTILES = {0, 1, 25, 50, 75, 90, 99, 99.9, 100};
+
+    @Test
+    public void percentiles_withinSignificantDigits () {
+        for (int digits = 1; digits <= 4; ++digits) {
+            long [] values = latencies(new Random(digits), 10000);
+            LatencyHistogram histogram = new LatencyHistogram(HIGHEST, digits);
+            for (long value : values) {
+                histogram.recordValue(value);
+            }
+            assertPercentiles(values, histogram, Math.pow(10, -digits));
+        }
+    }
+
+    @Test
+    public void percentiles_atMicrosecondResolution () {
+        long [] values = latencies(new Random(7), 10000);
+        LatencyHistogram histogram = new LatencyHistogram(1000, HIGHEST, 3);
+        for (long value : values) {
+            histogram.recordValue(value);
+        }
+        //values within the unit (512 ns here) are not told apart, above it 3 digits hold
+        assertPercentiles(values, histogram, 1e-3);
+        assertEquals(values.length, histogram.getTotalCount());
+    }
+
+    @Test
+    public void minMaxMean_areExact () {
+        LatencyHistogram histogram = new LatencyHistogram(HIGHEST, 2);
+        histogram.recordValue(1234567);
+        histogram.recordValue(7654321);
+        histogram.recordValueWithCount(1000000, 2);
+
+        assertEquals(1000000, histogram.getMinValue());
+        assertEquals(7654321, histogram.getMaxValue());
+        assertEquals((1234567 + 7654321 + 2 * 1000000) / 4.0, histogram.getMean(), 1e-6);
+        assertEquals(7654321, histogram.getValueAtPercentile(100)); //capped at the max
+    }
+
+    @Test
+    public void empty_reportsZeros () {
+        LatencyHistogram histogram = new LatencyHistogram(HIGHEST, 3);
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getMinValue());
+        assertEquals(0, histogram.getMaxValue());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void outOfRange_countedInTopBucket () {
+        LatencyHistogram histogram = new LatencyHistogram(1000000, 3);
+        histogram.recordValue(500);
+        histogram.recordValue(5000000);
+
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(1, histogram.getOutOfRangeCount());
+        assertEquals(5000000, histogram.getMaxValue());
+        assertTrue(histogram.getValueAtPercentile(100) >= 1000000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValue_throws () {
+        new LatencyHistogram(HIGHEST, 3).recordValue(-1);
+    }
+
+    @Test
+    public void encodeDecode_roundTrip () {
+        LatencyHistogram histogram = new LatencyHistogram(1000, HIGHEST, 3);
+        for (long value : latencies(new Random(42), 5000)) {
+            histogram.recordValue(value);
+        }
+        histogram.recordValue(2 * HIGHEST); //out of range survives too
+
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int length = histogram.encode(buffer);
+        assertEquals(buffer.position(), length);
+        buffer.flip();
+        LatencyHistogram decoded = LatencyHistogram.decode(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        assertSame(histogram, decoded);
+
+        //and encodes to the same bytes again
+        ByteBuffer again = ByteBuffer.allocate(decoded.getNeededByteBufferCapacity());
+        assertEquals(length, decoded.encode(again));
+        assertArrayEquals(Arrays.copyOf(buffer.array(), length), Arrays.copyOf(again.array(), length));
+    }
+
+    @Test
+    public void encodeDecode_empty () {
+        LatencyHistogram histogram = new LatencyHistogram(HIGHEST, 2);
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encode(buffer);
+        buffer.flip();
+
+        LatencyHistogram decoded = LatencyHistogram.decode(buffer);
+        assertEquals(0, decoded.getTotalCount());
+        assertEquals(0, decoded.getMinValue());
+        decoded.recordValue(10); //the min was not left at 0
+        assertEquals(10, decoded.getMinValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsOtherData () {
+        LatencyHistogram.decode(ByteBuffer.wrap(new byte[64]));
+    }
+
+    @Test
+    public void add_sameLayout_isExact () {
+        LatencyHistogram a = new LatencyHistogram(1000, HIGHEST, 3);
+        LatencyHistogram b = new LatencyHistogram(1000, HIGHEST, 3);
+        LatencyHistogram both = new LatencyHistogram(1000, HIGHEST, 3);
+        Random random = new Random(3);
+        for (long value : latencies(random, 2000)) {
+            a.recordValue(value);
+            both.recordValue(value);
+        }
+        for (long value : latencies(random, 3000)) {
+            b.recordValue(value);
+            both.recordValue(value);
+        }
+
+        a.add(b);
+        assertSame(both, a);
+        assertSame(a, a.copy());
+    }
+
+    @Test
+    public void add_otherLayout_keepsItsPrecision () {
+        long [] values = latencies(new Random(11), 5000);
+        LatencyHistogram fine = new LatencyHistogram(HIGHEST, 3);
+        LatencyHistogram coarse = new LatencyHistogram(1000, HIGHEST, 2);
+        for (long value : values) {
+            coarse.recordValue(value);
+        }
+
+        fine.add(coarse);
+        assertEquals(values.length, fine.getTotalCount());
+        //the coarse buckets' starts are re-recorded, so the coarse precision
+        //and resolution is the best there is
+        for (double percentile : PERCENTILES) {
+            long expected = coarse.getValueAtPercentile(percentile);
+            long actual = fine.getValueAtPercentile(percentile);
+            assertEquals("p" + percentile, expected, actual, expected * 1e-2 + 1000);
+        }
+
+        //and the other way round
+        LatencyHistogram back = new LatencyHistogram(1000, HIGHEST, 2);
+        back.add(fine);
+        assertEquals(values.length, back.getTotalCount());
+    }
+
+    @Test
+    public void expectedInterval_zeroRecordsValueAlone () {
+        LatencyHistogram histogram = new LatencyHistogram(HIGHEST, 3);
+        histogram.recordValueWithExpectedInterval(10000000, 0);
+        histogram.recordValueWithExpectedInterval(10000000, -1);
+
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(10000000, histogram.getMinValue());
+    }
+
+    @Test
+    public void expectedInterval_backfillsMissingOps () {
+        LatencyHistogram histogram = new LatencyHistogram(HIGHEST, 3);
+        long interval = 1000000;
+        histogram.recordValueWithExpectedInterval(10 * interval, interval);
+
+        //10, 9, ... 1 intervals
+        assertEquals(10, histogram.getTotalCount());
+        assertEquals(interval, histogram.getMinValue());
+        assertEquals(10 * interval, histogram.getMaxValue());
+        assertEquals(5.5 * interval, histogram.getMean(), 1e-6);
+
+        //shorter than the interval, nothing was held back
+        histogram.reset();
+        histogram.recordValueWithExpectedInterval(interval / 2, interval);
+        assertEquals(1, histogram.getTotalCount());
+
+        //not a whole number of intervals
+        histogram.reset();
+        histogram.recordValueWithExpectedInterval(2 * interval + interval / 2, interval);
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(interval + interval / 2, histogram.getMinValue());
+    }
+
+    /**
+     * Log normal-ish latencies from a few hundred ns up to about a second,
+     * the spread a BLE run sees
+     */
+    private static long [] latencies (Random random, int count) {
+        long [] values = new long[count];
+        for (int i = 0; i < count; ++i) {
+            values[i] = (long) Math.exp(6 + random.nextDouble() * 14);
+        }
+        return values;
+    }
+
+    /**
+     * Each percentile against the exact one from the sorted values: the
+     * histogram reports the top of the value's bucket, so it may be above it
+     * by the relative error, or by one unit for small values, but never below
+     */
+    private static void assertPercentiles (long [] values, LatencyHistogram histogram,
+                                           double relativeError) {
+        long [] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double percentile : PERCENTILES) {
+            int rank = (int) Math.max(Math.round(percentile / 100.0 * sorted.length), 1);
+            long exact = sorted[rank - 1];
+            long actual = histogram.getValueAtPercentile(percentile);
+            String message = "p" + percentile + " at " + histogram.getSignificantDigits() + " digits";
+            if (0 == percentile) {
+                assertEquals(message, histogram.lowestEquivalentValue(exact), actual);
+            } else {
+                assertTrue(message + ": " + actual + " < " + exact,
+                        actual >= histogram.lowestEquivalentValue(exact));
+                assertTrue(message + ": " + actual + " > " + exact,
+                        actual - exact <= exact * relativeError + histogram.highestEquivalentValue(0) + 1);
+            }
+        }
+    }
+
+    private static void assertSame (LatencyHistogram expected, LatencyHistogram actual) {
+        assertEquals(expected.getTotalCount(), actual.getTotalCount());
+        assertEquals(expected.getOutOfRangeCount(), actual.getOutOfRangeCount());
+        assertEquals(expected.getMinValue(), actual.getMinValue());
+        assertEquals(expected.getMaxValue(), actual.getMaxValue());
+        assertEquals(expected.getMean(), actual.getMean(), 1e-6);
+        for (double percentile = 0; percentile <= 100; percentile += 0.5) {
+            assertEquals("p" + percentile, expected.getValueAtPercentile(percentile),
+                    actual.getValueAtPercentile(percentile));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pins the simulator's predictions for link setups whose numbers can be
+ * worked out by hand. At LE 1M a byte is 8 us on the air, a data PDU has 14
+ * bytes of overhead (10 for an empty one) and packets are T_IFS = 150 us
+ * apart. One second at a 7.5 ms interval holds 134 connection events (the
+ * first at t = 0).
+ */
+public class LinkLayerSimulatorTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final long INTERVAL = 7500000; //7.5 ms
+    private static final long EVENTS = 134;
+
+    private LinkLayerSimulator link (int mtu, int llPayload, int inFlight) {
+        LinkLayerSimulator sim = new LinkLayerSimulator();
+        sim.setConnIntervalNanos(INTERVAL);
+        sim.setLlPayload(llPayload);
+        sim.setMaxInFlight(inFlight);
+        sim.getClientEnd().mtuUpdate(LinkLayerSimulator.SERVER_ADDRESS, mtu);
+        return sim;
+    }
+
+    @Test
+    public void writeCommand_mtu23_sixPacketsPerEvent() {
+        //20 bytes + ATT (3) + L2CAP (4) = 27: one LL packet per write
+        LinkLayerSimulator.Prediction p = link(23, 27, 6)
+                .predict(20, BenchmarkProfile.WRITE_CMD, SECOND);
+
+        assertEquals(EVENTS, p.mConnectionEvents);
+        assertEquals(6.0f, p.getPacketsPerEvent(), 0);
+        assertEquals(6 * EVENTS, p.mOpsCompleted);
+        assertEquals(6 * EVENTS * 20, p.mBytesDelivered);
+        assertEquals(6 * EVENTS * 20 * 8, p.getThroughput());
+    }
+
+    @Test
+    public void writeCommand_windowOfOne_latencyIsAirTime() {
+        //the host turnaround (250 us) is shorter than a packet pair, so a
+        //window of one still fills every slot
+        LinkLayerSimulator.Prediction p = link(23, 27, 1)
+                .predict(20, BenchmarkProfile.WRITE_CMD, SECOND);
+
+        assertEquals(6 * EVENTS, p.mOpsCompleted);
+        assertEquals((27 + 14) * 8000, p.mMeanOpLatencyNanos);
+    }
+
+    @Test
+    public void writeRequest_oneOpPerTwoEvents() {
+        //the response cannot go out in the event that carried the request
+        LinkLayerSimulator.Prediction p = link(23, 27, 6)
+                .predict(20, BenchmarkProfile.WRITE_REQ, SECOND);
+
+        assertEquals(EVENTS / 2, p.mOpsCompleted);
+        assertEquals(1.0f, p.getPacketsPerEvent(), 0);
+        //next event: empty central PDU, T_IFS, then the 5 byte response
+        assertEquals(INTERVAL + 10 * 8000 + 150000 + (5 + 14) * 8000, p.mMeanOpLatencyNanos);
+    }
+
+    @Test
+    public void read_oneOpPerTwoEvents() {
+        LinkLayerSimulator.Prediction p = link(23, 27, 1)
+                .predict(0, BenchmarkProfile.READ, SECOND);
+
+        assertEquals(EVENTS / 2, p.mOpsCompleted);
+        assertEquals(EVENTS / 2 * 22, p.mBytesDelivered); //MTU - 1 per read
+    }
+
+    @Test
+    public void notify_mtu23_sixPacketsPerEvent() {
+        LinkLayerSimulator.Prediction p = link(23, 27, 6)
+                .predict(20, BenchmarkProfile.NOTIFY, SECOND);
+
+        assertEquals(6.0f, p.getPacketsPerEvent(), 0);
+        assertEquals(6 * EVENTS, p.mOpsCompleted);
+    }
+
+    @Test
+    public void dataLengthExtension_threeFullPacketsPerEvent() {
+        //244 + 7 = 251 bytes in one packet: 2120 us + 150 + 80 + 150 = 2.5 ms a pair
+        LinkLayerSimulator.Prediction p = link(247, 251, 6)
+                .predict(244, BenchmarkProfile.WRITE_CMD, SECOND);
+
+        assertEquals(247, p.mMtu);
+        assertEquals(3.0f, p.getPacketsPerEvent(), 0);
+        assertEquals(3 * EVENTS * 244, p.mBytesDelivered);
+    }
+
+    @Test
+    public void largeMtu_withoutDataLength_isFragmented() {
+        //251 bytes in 27 byte fragments: 10 packets a write, 6 packets an event
+        LinkLayerSimulator.Prediction p = link(247, 27, 6)
+                .predict(244, BenchmarkProfile.WRITE_CMD, SECOND);
+
+        assertEquals(6 * EVENTS, p.mPacketPairs);
+        assertEquals(6 * EVENTS / 10, p.mOpsCompleted);
+    }
+
+    @Test
+    public void mtu_clampedToPeer() {
+        LinkLayerSimulator sim = new LinkLayerSimulator();
+        sim.setPeerMaxMtu(185);
+        sim.getClientEnd().mtuUpdate(LinkLayerSimulator.SERVER_ADDRESS, 517);
+        assertEquals(185, sim.getMtu());
+
+        sim.getClientEnd().mtuUpdate(LinkLayerSimulator.SERVER_ADDRESS, 10);
+        assertEquals(23, sim.getMtu());
+    }
+
+    @Test
+    public void connectionPriority_setsInterval() {
+        LinkLayerSimulator sim = link(23, 27, 1);
+        sim.getClientEnd().connIntervalUpdate(LinkLayerSimulator.SERVER_ADDRESS, 0); //balanced, 30 ms
+
+        LinkLayerSimulator.Prediction p = sim.predict(20, BenchmarkProfile.WRITE_REQ, SECOND);
+        assertEquals(34, p.mConnectionEvents);
+    }
+
+    @Test
+    public void serverProfile_seesEveryWrite() {
+        LinkLayerSimulator sim = link(23, 27, 6);
+        final long [] received = {0};
+        sim.getServerEnd().setCharacteristicHandler(new CharacteristicHandler() {
+            @Override
+            public GattData handleCharacteristic (GattData data) {
+                assertEquals(LinkLayerSimulator.CLIENT_ADDRESS, data.mAddress);
+                received[0] += data.mBuffer.length;
+                return data;
+            }
+        });
+
+        LinkLayerSimulator.Prediction p = sim.predict(20, BenchmarkProfile.WRITE_CMD, SECOND);
+        assertEquals(p.mBytesDelivered, received[0]);
+    }
+}
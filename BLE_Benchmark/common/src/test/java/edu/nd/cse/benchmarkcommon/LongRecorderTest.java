@@ -0,0 +1,159 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import java.util.function.LongConsumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recorders with 4 value chunks, so a few dozen values cross several chunk
+ * boundaries and grow the chunk table past its first size.
+ */
+public class LongRecorderTest {
+
+    private static final int SHIFT = 2; //4 values per chunk
+
+    @Test
+    public void growth_acrossChunkBoundaries () {
+        LongRecorder recorder = new LongRecorder(SHIFT);
+        //8 chunks fit the first table; 100 values need 25
+        for (int i = 0; i < 100; ++i) {
+            recorder.add(value(i));
+            assertEquals(i + 1, recorder.size());
+            assertEquals(value(i), recorder.getLast());
+        }
+        for (int i = 0; i < 100; ++i) {
+            assertEquals("index " + i, value(i), recorder.get(i));
+        }
+    }
+
+    @Test
+    public void clear_thenReuse () {
+        LongRecorder recorder = new LongRecorder(SHIFT);
+        for (int i = 0; i < 50; ++i) {
+            recorder.add(value(i));
+        }
+        recorder.clear();
+        assertEquals(0, recorder.size());
+        assertTrue(recorder.isEmpty());
+        assertEquals(0, recorder.toArray().length);
+        assertGetThrows(recorder, 0); //the old values are not reachable
+
+        //fewer values than before, then more, through the kept chunks
+        for (int i = 0; i < 7; ++i) {
+            recorder.add(-value(i));
+        }
+        assertEquals(7, recorder.size());
+        assertEquals(-value(6), recorder.get(6));
+        assertGetThrows(recorder, 7);
+        for (int i = 7; i < 80; ++i) {
+            recorder.add(-value(i));
+        }
+        for (int i = 0; i < 80; ++i) {
+            assertEquals(-value(i), recorder.get(i));
+        }
+    }
+
+    @Test
+    public void get_outOfRange_throws () {
+        LongRecorder recorder = new LongRecorder(SHIFT);
+        assertGetThrows(recorder, 0);
+        recorder.add(1);
+        assertGetThrows(recorder, -1);
+        assertGetThrows(recorder, 1);
+        assertGetThrows(recorder, 4); //inside an allocated chunk, past the size
+    }
+
+    @Test
+    public void toArray_everySize () {
+        for (int size = 0; size <= 17; ++size) {
+            LongRecorder recorder = new LongRecorder(SHIFT);
+            long [] expected = new long[size];
+            for (int i = 0; i < size; ++i) {
+                expected[i] = value(i);
+                recorder.add(expected[i]);
+            }
+            assertArrayEquals("size " + size, expected, recorder.toArray());
+        }
+    }
+
+    @Test
+    public void copyTo_rangesAcrossChunks () {
+        LongRecorder recorder = new LongRecorder(SHIFT);
+        for (int i = 0; i < 20; ++i) {
+            recorder.add(value(i));
+        }
+
+        for (int from = 0; from <= 20; ++from) {
+            for (int length = 0; from + length <= 20; ++length) {
+                long [] dst = new long[length + 2];
+                recorder.copyTo(from, dst, 1, length);
+                assertEquals(0, dst[0]);
+                for (int i = 0; i < length; ++i) {
+                    assertEquals(value(from + i), dst[1 + i]);
+                }
+                assertEquals(0, dst[length + 1]);
+            }
+        }
+
+        try {
+            recorder.copyTo(15, new long[10], 0, 6);
+            fail("copied past the end");
+        } catch (IndexOutOfBoundsException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void forEach_inOrder () {
+        LongRecorder recorder = new LongRecorder(SHIFT);
+        for (int i = 0; i < 13; ++i) {
+            recorder.add(value(i));
+        }
+
+        final int [] seen = new int[1];
+        recorder.forEach(new LongConsumer() {
+            @Override
+            public void accept (long value) {
+                assertEquals(value(seen[0]), value);
+                ++seen[0];
+            }
+        });
+        assertEquals(13, seen[0]);
+    }
+
+    @Test
+    public void defaultChunks () {
+        LongRecorder recorder = new LongRecorder();
+        int size = 3 * (1 << LongRecorder.DEFAULT_CHUNK_SHIFT) + 1;
+        for (int i = 0; i < size; ++i) {
+            recorder.add(value(i));
+        }
+        long [] values = recorder.toArray();
+        assertEquals(size, values.length);
+        assertEquals(value(size - 1), values[size - 1]);
+        assertEquals(value(1 << LongRecorder.DEFAULT_CHUNK_SHIFT), values[1 << LongRecorder.DEFAULT_CHUNK_SHIFT]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badChunkShift_throws () {
+        new LongRecorder(0);
+    }
+
+    /**
+     * Distinct, and large enough to need all 64 bits
+     */
+    private static long value (int i) {
+        return 7500000L * i + ((long) i << 40);
+    }
+
+    private static void assertGetThrows (LongRecorder recorder, int index) {
+        try {
+            recorder.get(index);
+            fail("got index " + index + " of " + recorder.size());
+        } catch (IndexOutOfBoundsException e) {
+            //expected
+        }
+    }
+}
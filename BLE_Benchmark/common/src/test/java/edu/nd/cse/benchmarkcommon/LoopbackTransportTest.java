@@ -0,0 +1,218 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through the loopback: what the client end hands down reaches
+ * the server's handler, and what comes back reaches the client's handler,
+ * the way GattClient and GattServer would deliver it.
+ */
+public class LoopbackTransportTest {
+
+    private static final long TIMEOUT = 5; //s
+
+    private LoopbackTransport mLink;
+    private GattClientTransport mClient;
+    private GattServerTransport mServer;
+
+    private final BlockingQueue<GattData> mAtServer = new LinkedBlockingQueue<GattData>();
+    private final BlockingQueue<GattData> mAtClient = new LinkedBlockingQueue<GattData>();
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+    private byte [] mServerValue = {1, 2, 3};
+
+    @Before
+    public void setUp () throws Exception {
+        mLink = new LoopbackTransport();
+        mClient = mLink.getClientEnd();
+        mServer = mLink.getServerEnd();
+
+        mServer.setCharacteristicHandler(new CharacteristicHandler() {
+            @Override
+            public GattData handleCharacteristic (GattData data) {
+                mAtServer.add(data);
+                if (BenchmarkProfile.LOSS_CHAR.equals(data.mCharID)) {
+                    return null; //refused, whether read or written
+                }
+                if (null == data.mBuffer) {
+                    return new GattData(null, data.mCharID, mServerValue);
+                }
+                return data;
+            }
+        });
+        mServer.setConnectionUpdateCallback(new ConnectionUpdater() {
+            @Override
+            public void mtuUpdate (String address, int mtu) {
+                mEvents.add("server mtu " + mtu + " " + address);
+            }
+        });
+        mServer.setNotificationHandler(new NotificationHandler() {
+            @Override
+            public void onNotificationSent (String address, boolean success) {
+                mEvents.add("sent " + success + " " + address);
+            }
+        });
+        mClient.setHandler(new CharacteristicHandler() {
+            @Override
+            public GattData handleCharacteristic (GattData data) {
+                mAtClient.add(data);
+                return null;
+            }
+        });
+        mClient.setConnectionUpdater(new ConnectionUpdater() {
+            @Override
+            public void mtuUpdate (String address, int mtu) {
+                mEvents.add("client mtu " + mtu + " " + address);
+            }
+
+            @Override
+            public void connectionUpdate (String address, int state) {
+                mEvents.add("connection " + state + " " + address);
+            }
+        });
+
+        mServer.start(false);
+        mClient.start(false);
+        assertEquals("connection 1 " + LoopbackTransport.SERVER_ADDRESS, next(mEvents));
+    }
+
+    @After
+    public void tearDown () {
+        mLink.close();
+    }
+
+    @Test
+    public void write_reachesServerAndAcksLatency () throws Exception {
+        byte [] value = {9, 8, 7, 6};
+        assertNull(mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                BenchmarkProfile.TEST_CHAR, value)));
+
+        GattData atServer = next(mAtServer);
+        assertEquals(LoopbackTransport.CLIENT_ADDRESS, atServer.mAddress);
+        assertEquals(BenchmarkProfile.TEST_CHAR, atServer.mCharID);
+        assertArrayEquals(value, atServer.mBuffer);
+
+        GattData ack = next(mAtClient);
+        assertEquals(LoopbackTransport.SERVER_ADDRESS, ack.mAddress);
+        assertEquals(BenchmarkProfile.TEST_CHAR, ack.mCharID);
+        assertEquals(Long.BYTES, ack.mBuffer.length);
+        assertTrue(ack.getLong() >= 0);
+    }
+
+    @Test
+    public void pooledWrite_isReleased () throws Exception {
+        GattDataPool pool = new GattDataPool(1);
+        GattData data = pool.obtain(LoopbackTransport.SERVER_ADDRESS, BenchmarkProfile.TEST_CHAR, 4);
+        mClient.handleCharacteristic(data);
+        next(mAtClient);
+
+        pool.obtain(LoopbackTransport.SERVER_ADDRESS, BenchmarkProfile.TEST_CHAR, 4);
+        assertEquals(0, pool.getMissCount());
+    }
+
+    @Test
+    public void read_returnsServerValue () throws Exception {
+        long before = System.nanoTime();
+        mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                BenchmarkProfile.ID_CHAR, null));
+
+        GattData atServer = next(mAtServer);
+        assertNull(atServer.mBuffer);
+        assertEquals(BenchmarkProfile.ID_CHAR, atServer.mCharID);
+
+        GattData response = next(mAtClient);
+        assertEquals(BenchmarkProfile.ID_CHAR, response.mCharID);
+        assertArrayEquals(mServerValue, response.mBuffer);
+        assertTrue(response.mTimestamp >= before);
+    }
+
+    @Test
+    public void descriptorWrite_reachesServerWithDescriptor () throws Exception {
+        byte [] control = {BenchmarkProfile.CONTROL_RESET};
+        mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                BenchmarkProfile.TEST_CHAR, BenchmarkProfile.TEST_DESC, control));
+
+        GattData atServer = next(mAtServer);
+        assertEquals(BenchmarkProfile.TEST_DESC, atServer.mDescID);
+        assertArrayEquals(control, atServer.mBuffer);
+
+        GattData ack = next(mAtClient);
+        assertEquals(BenchmarkProfile.TEST_DESC, ack.mDescID);
+    }
+
+    @Test
+    public void notify_needsSubscription () throws Exception {
+        GattData value = new GattData(LoopbackTransport.CLIENT_ADDRESS,
+                BenchmarkProfile.TEST_CHAR, new byte[] {4, 5});
+        assertFalse(mServer.sendNotification(value));
+
+        mClient.setCommMethod(BenchmarkProfile.NOTIFY, BenchmarkProfile.TEST_CHAR);
+        GattData subscribed = next(mAtClient); //the configuration descriptor write acks
+        assertEquals(BenchmarkProfile.CLIENT_CONFIG_DESC, subscribed.mDescID);
+        assertTrue(mAtServer.isEmpty()); //handled by the transport, as GattServer does
+
+        mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                BenchmarkProfile.TEST_CHAR, BenchmarkProfile.CLIENT_CONFIG_DESC, null));
+        assertArrayEquals(BenchmarkProfile.ENABLE_NOTIFICATION_VALUE, next(mAtClient).mBuffer);
+
+        assertTrue(mServer.sendNotification(value));
+        value.mBuffer[0] = 0; //copied before sendNotification returned
+
+        GattData notification = next(mAtClient);
+        assertEquals(BenchmarkProfile.TEST_CHAR, notification.mCharID);
+        assertArrayEquals(new byte[] {4, 5}, notification.mBuffer);
+        assertTrue(0 != notification.mTimestamp);
+        assertEquals("sent true " + LoopbackTransport.CLIENT_ADDRESS, next(mEvents));
+    }
+
+    @Test
+    public void mtu_reportedToBothEnds () throws Exception {
+        mClient.mtuUpdate(LoopbackTransport.SERVER_ADDRESS, 1000);
+        assertEquals("server mtu 517 " + LoopbackTransport.CLIENT_ADDRESS, next(mEvents));
+        assertEquals("client mtu 517 " + LoopbackTransport.SERVER_ADDRESS, next(mEvents));
+    }
+
+    @Test
+    public void refusedOps_areReportedFailed () throws Exception {
+        mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                BenchmarkProfile.LOSS_CHAR, new byte[] {1}));
+        GattData write = next(mAtClient);
+        assertEquals(GattData.STATUS_FAILED, write.mStatus);
+        assertEquals(Long.BYTES, write.mBuffer.length); //still carries the latency
+
+        mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                BenchmarkProfile.LOSS_CHAR, null));
+        GattData read = next(mAtClient);
+        assertEquals(GattData.STATUS_FAILED, read.mStatus);
+        assertEquals(BenchmarkProfile.LOSS_CHAR, read.mCharID);
+        assertEquals(0, read.mBuffer.length);
+
+        mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                BenchmarkProfile.ID_CHAR, null));
+        assertEquals(GattData.STATUS_SUCCESS, next(mAtClient).mStatus);
+    }
+
+    @Test
+    public void opsDeliveredInOrder () throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                    BenchmarkProfile.TEST_CHAR, new byte[] {(byte) i}));
+        }
+        for (int i = 0; i < 100; ++i) {
+            assertEquals((byte) i, next(mAtServer).mBuffer[0]);
+        }
+    }
+
+    private static <T> T next (BlockingQueue<T> queue) throws InterruptedException {
+        T item = queue.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertNotNull("timed out", item);
+        return item;
+    }
+}
@@ -0,0 +1,316 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The encoder's stream fed back through the parser in chunks of every size,
+ * the parser's zero copy and copying paths, malformed input and parseLong
+ * at the ends of the range.
+ */
+public class NetstringTest {
+
+    private static final int MAX_LENGTH = 20;
+
+    private final List<String> mPayloads = new ArrayList<String>();
+    private final List<Boolean> mCopied = new ArrayList<Boolean>();
+    private ByteBuffer mChunk; //the chunk being fed
+    private NetstringParser mParser;
+
+    @Before
+    public void setUp () {
+        mParser = new NetstringParser(MAX_LENGTH, new NetstringParser.Listener() {
+            @Override
+            public void onNetstring (ByteBuffer payload) {
+                byte [] bytes = new byte[payload.remaining()];
+                payload.duplicate().get(bytes);
+                mPayloads.add(new String(bytes, StandardCharsets.US_ASCII));
+                mCopied.add(payload != mChunk);
+            }
+        });
+    }
+
+    @Test
+    public void wholePayload_isNotCopied () {
+        feed("5:hello,3:abc,0:,");
+
+        assertEquals(list("hello", "abc", ""), mPayloads);
+        assertFalse(mCopied.get(0));
+        assertFalse(mCopied.get(1));
+        assertTrue(mParser.isIdle());
+    }
+
+    @Test
+    public void splitPayload_isCopied () {
+        feed("5:he");
+        assertTrue(mPayloads.isEmpty());
+        assertFalse(mParser.isIdle());
+        feed("llo,3:a");
+        feed("bc");
+        feed(",");
+
+        assertEquals(list("hello", "abc"), mPayloads);
+        assertTrue(mCopied.get(0));
+        assertTrue(mCopied.get(1));
+        assertTrue(mParser.isIdle());
+    }
+
+    @Test
+    public void splitBeforePayload_isNotCopied () {
+        //only the length prefix is in the earlier chunk
+        feed("1");
+        feed("1:hello world,");
+
+        assertEquals(list("hello world"), mPayloads);
+        assertFalse(mCopied.get(0));
+    }
+
+    @Test
+    public void payloadEndingAtChunkEnd_waitsForTerminator () {
+        //the terminator is not in the chunk, so the zero copy check can't be made
+        feed("5:hello");
+        assertTrue(mPayloads.isEmpty());
+        feed(",");
+
+        assertEquals(list("hello"), mPayloads);
+        assertTrue(mCopied.get(0));
+    }
+
+    @Test
+    public void payloadView_isOnlyThePayload () {
+        ByteBuffer chunk = ascii("xx3:abc,yy");
+        chunk.position(2);
+        chunk.limit(8);
+        mChunk = chunk;
+        mParser.feed(chunk);
+
+        assertEquals(list("abc"), mPayloads);
+        assertEquals(8, chunk.position()); //consumed up to its own limit
+        assertEquals(8, chunk.limit()); //and the limit put back
+    }
+
+    @Test
+    public void maxLength_isAccepted () {
+        String payload = "01234567890123456789";
+        feed(MAX_LENGTH + ":" + payload + ",");
+        assertEquals(list(payload), mPayloads);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overMaxLength_throws () {
+        feed((MAX_LENGTH + 1) + ":");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hugeLength_throwsBeforeOverflow () {
+        feed("99999999999999999999:");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badTerminator_wholePayload_throws () {
+        feed("3:abc;");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badTerminator_splitPayload_throws () {
+        feed("3:ab");
+        feed("c;");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badTerminator_emptyPayload_throws () {
+        feed("0:x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingLength_throws () {
+        feed(":abc,");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badLength_throws () {
+        feed("-3:abc,");
+    }
+
+    @Test
+    public void reset_dropsPartialNetstring () {
+        feed("5:hel");
+        mParser.reset();
+        assertTrue(mParser.isIdle());
+        feed("2:ok,");
+
+        assertEquals(list("ok"), mPayloads);
+    }
+
+    @Test
+    public void parseLong_extremes () {
+        assertEquals(Long.MAX_VALUE, NetstringParser.parseLong(ascii("9223372036854775807")));
+        assertEquals(Long.MIN_VALUE, NetstringParser.parseLong(ascii("-9223372036854775808")));
+        assertEquals(0, NetstringParser.parseLong(ascii("0")));
+        assertEquals(0, NetstringParser.parseLong(ascii("-0")));
+        assertEquals(-1, NetstringParser.parseLong(ascii("-1")));
+        assertEquals(42, NetstringParser.parseLong(ascii("00042")));
+    }
+
+    @Test
+    public void parseLong_leavesPosition () {
+        ByteBuffer digits = ascii("x123y");
+        digits.position(1);
+        digits.limit(4);
+
+        assertEquals(123, NetstringParser.parseLong(digits));
+        assertEquals(1, digits.position());
+    }
+
+    @Test
+    public void parseLong_rejects () {
+        String [] bad = {"", "-", "9223372036854775808", "-9223372036854775809",
+                "99999999999999999999", "12a", "+1", " 1", "1-"};
+        for (String number : bad) {
+            try {
+                NetstringParser.parseLong(ascii(number));
+                fail("parsed \"" + number + "\"");
+            } catch (NumberFormatException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void encodedLength_matchesEncoding () {
+        long [] values = {0, 9, 10, -1, -10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            String expected = String.valueOf(value);
+            expected = expected.length() + ":" + expected + ",";
+            assertEquals(expected, encodeAll(recorder(value), 64));
+            assertEquals(expected.length(), NetstringEncoder.encodedLength(value));
+        }
+    }
+
+    @Test
+    public void roundTrip_everyChunkSize () {
+        LongRecorder values = recorder(0, 1, -1, 9, 10, 99, 100, 7500000, -7500000,
+                Long.MAX_VALUE, Long.MIN_VALUE, 1234567890123456789L);
+        String stream = encodeAll(values, 1024);
+
+        for (int chunk = 1; chunk <= stream.length(); ++chunk) {
+            //the encoder's own chunking, fed straight to the parser
+            NetstringEncoder encoder = new NetstringEncoder(values);
+            LongRecorder parsed = new LongRecorder();
+            NetstringParser parser = longParser(parsed);
+            ByteBuffer buffer = ByteBuffer.allocate(chunk);
+            while (0 != encoder.encode(buffer)) {
+                buffer.flip();
+                parser.feed(buffer);
+                buffer.clear();
+            }
+
+            assertTrue("chunk " + chunk, parser.isIdle());
+            assertArrayEquals("chunk " + chunk, values.toArray(), parsed.toArray());
+            assertEquals(stream.length(), encoder.position());
+        }
+    }
+
+    @Test
+    public void oneByteAtATime_matchesWhole () {
+        LongRecorder values = recorder(3, 14, 159, -2653, 58979, Long.MIN_VALUE);
+        ByteBuffer stream = ascii(encodeAll(values, 1024));
+
+        LongRecorder whole = new LongRecorder();
+        longParser(whole).feed(stream.duplicate());
+
+        LongRecorder bytes = new LongRecorder();
+        NetstringParser parser = longParser(bytes);
+        for (int i = 0; i < stream.limit(); ++i) {
+            parser.feed(ByteBuffer.wrap(stream.array(), i, 1));
+        }
+
+        assertArrayEquals(values.toArray(), whole.toArray());
+        assertArrayEquals(values.toArray(), bytes.toArray());
+    }
+
+    @Test
+    public void seek_resumesMidStream () {
+        LongRecorder values = recorder(1, 22, 333, -4444, 55555, Long.MAX_VALUE);
+        String stream = encodeAll(values, 1024);
+
+        for (int offset = 0; offset <= stream.length(); ++offset) {
+            NetstringEncoder encoder = new NetstringEncoder(values);
+            encoder.encode(ByteBuffer.allocate(stream.length() / 2)); //somewhere else first
+            encoder.seek(offset);
+            assertEquals(offset, encoder.position());
+            assertEquals("offset " + offset, stream.substring(offset), encodeRest(encoder, 5));
+        }
+
+        NetstringEncoder encoder = new NetstringEncoder(values);
+        encoder.seek(stream.length() + 100);
+        assertEquals(stream.length(), encoder.position()); //clamped
+        assertEquals(0, encoder.encode(ByteBuffer.allocate(8)));
+    }
+
+    @Test
+    public void growingValues_areStreamedAsTheyArrive () {
+        LongRecorder values = recorder(1);
+        NetstringEncoder encoder = new NetstringEncoder(values);
+        assertEquals("1:1,", encodeRest(encoder, 8));
+        assertEquals(0, encoder.encode(ByteBuffer.allocate(8)));
+
+        values.add(20);
+        assertEquals("2:20,", encodeRest(encoder, 8));
+    }
+
+    private void feed (String chunk) {
+        mChunk = ascii(chunk);
+        mParser.feed(mChunk);
+    }
+
+    private static NetstringParser longParser (final LongRecorder dst) {
+        return new NetstringParser(MAX_LENGTH, new NetstringParser.Listener() {
+            @Override
+            public void onNetstring (ByteBuffer payload) {
+                dst.add(NetstringParser.parseLong(payload));
+            }
+        });
+    }
+
+    private static String encodeAll (LongRecorder values, int chunk) {
+        return encodeRest(new NetstringEncoder(values), chunk);
+    }
+
+    private static String encodeRest (NetstringEncoder encoder, int chunk) {
+        StringBuilder stream = new StringBuilder();
+        ByteBuffer buffer = ByteBuffer.allocate(chunk);
+        while (0 != encoder.encode(buffer)) {
+            stream.append(new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+            buffer.clear();
+        }
+        return stream.toString();
+    }
+
+    private static LongRecorder recorder (long... values) {
+        LongRecorder recorder = new LongRecorder();
+        for (long value : values) {
+            recorder.add(value);
+        }
+        return recorder;
+    }
+
+    private static ByteBuffer ascii (String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static List<String> list (String... items) {
+        List<String> list = new ArrayList<String>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,159 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packets with known one-way latencies, some lost, duplicated or reordered
+ * on one side, matched up against a server clock with a known offset.
+ */
+public class OneWayLatencyTest {
+
+    private static final long OFFSET = 777000000L; //server minus ours
+    private static final long START = 2000000000L; //server time its run started
+    private static final long GAP = 7500000; //ns between packets
+    private static final long LATENCY = 3000000; //ns each packet takes
+
+    private final ClockSync mClock = new ClockSync();
+    private final LongRecorder mOurTimes = new LongRecorder();
+    private final LongRecorder mOurSequences = new LongRecorder();
+    private final LongRecorder mServerTimes = new LongRecorder();
+    private final LongRecorder mServerSequences = new LongRecorder();
+
+    @Before
+    public void setUp () {
+        mClock.addProbe(1000, 1050 + OFFSET, 1100);
+        mClock.finishBurst();
+    }
+
+    /**
+     * @return our time of packet sequence, as the sender
+     */
+    private static long sent (long sequence) {
+        return START - OFFSET + sequence * GAP;
+    }
+
+    /**
+     * The server saw the packet LATENCY after we sent it, plus extra
+     */
+    private void serverSaw (long sequence, long extra) {
+        mServerTimes.add(sent(sequence) + LATENCY + extra + OFFSET - START);
+        mServerSequences.add(sequence);
+    }
+
+    private long [] toServer () {
+        return OneWayLatency.pair(mOurTimes, null, mServerTimes, mServerSequences,
+                START, mClock, true);
+    }
+
+    private long [] fromServer () {
+        return OneWayLatency.pair(mOurTimes, mOurSequences, mServerTimes, mServerSequences,
+                START, mClock, false);
+    }
+
+    @Test
+    public void lostWrite_doesNotShiftLaterPairs () {
+        for (int s = 0; s < 10; ++s) {
+            mOurTimes.add(sent(s));
+            if (3 != s) {
+                serverSaw(s, s); //each a little slower, to tell them apart
+            }
+        }
+
+        long [] oneWay = toServer();
+        assertArrayEquals(new long[] {LATENCY, LATENCY + 1, LATENCY + 2, LATENCY + 4,
+                LATENCY + 5, LATENCY + 6, LATENCY + 7, LATENCY + 8, LATENCY + 9}, oneWay);
+    }
+
+    @Test
+    public void failedWrite_isLeftOut () {
+        for (int s = 0; s < 5; ++s) {
+            mOurTimes.add((2 == s) ? -1 : sent(s));
+            serverSaw(s, 0);
+        }
+        assertEquals(4, toServer().length);
+    }
+
+    @Test
+    public void serverOnlyPackets_areLeftOut () {
+        //the first write started the server's run and has no time; the
+        //server also saw one we have no record of sending, and one without
+        //a sequence number
+        mOurTimes.add(sent(0));
+        mOurTimes.add(sent(1));
+        serverSaw(1, 0);
+        serverSaw(7, 0);
+        mServerTimes.add(123);
+        mServerSequences.add(-1);
+
+        assertArrayEquals(new long[] {LATENCY}, toServer());
+    }
+
+    @Test
+    public void notifications_lostDuplicatedAndReordered () {
+        for (int s = 0; s < 8; ++s) {
+            serverSaw(s, 0); //the server's time is when it sent
+        }
+        //we saw 0 1 2 4 3 4 7 (5 and 6 lost, 4 twice, 3 late)
+        long [] order = {0, 1, 2, 4, 3, 4, 7};
+        long [] late = {0, 10, 20, 40, 30, 99, 70};
+        for (int i = 0; i < order.length; ++i) {
+            mOurTimes.add(sent(order[i]) + 2 * LATENCY + late[i]);
+            mOurSequences.add(order[i]);
+        }
+
+        //in sequence order, the duplicate timed by its first arrival
+        long base = LATENCY; //arrived 2 * LATENCY after our send time, sent LATENCY after it
+        assertArrayEquals(new long[] {base, base + 10, base + 20, base + 30, base + 40, base + 70},
+                fromServer());
+    }
+
+    @Test
+    public void packetsWithoutSequence_areLeftOut () {
+        serverSaw(0, 0);
+        serverSaw(1, 0);
+        mOurTimes.add(sent(0) + 2 * LATENCY);
+        mOurSequences.add(-1);
+        mOurTimes.add(sent(1) + 2 * LATENCY);
+        mOurSequences.add(1);
+
+        assertArrayEquals(new long[] {LATENCY}, fromServer());
+    }
+
+    @Test
+    public void serverTimesWithoutSequences_areIgnored () {
+        //a straggler recorded between the two transfers
+        mOurTimes.add(sent(0));
+        mOurTimes.add(sent(1));
+        serverSaw(0, 0);
+        mServerTimes.add(sent(1) + LATENCY + OFFSET - START);
+
+        assertArrayEquals(new long[] {LATENCY}, toServer());
+    }
+
+    @Test
+    public void highSequenceNumbers_sortAsUnsigned () {
+        //numbers from late in a very long run, on packets sent GAP apart
+        long [] sequences = {0xFFFFFFFEL, 0x80000000L, 0xFFFFFFFFL, 5};
+        for (int i = 0; i < sequences.length; ++i) {
+            mServerTimes.add(sent(i) + LATENCY + i + OFFSET - START);
+            mServerSequences.add(sequences[i]);
+            mOurTimes.add(sent(i) + 2 * LATENCY);
+            mOurSequences.add(sequences[i]);
+        }
+        mOurTimes.add(sent(9));
+        mOurSequences.add(0x100000000L); //not a sequence number
+
+        assertArrayEquals(new long[] {LATENCY - 3, LATENCY - 1, LATENCY, LATENCY - 2}, fromServer());
+    }
+
+    @Test
+    public void nothingInCommon () {
+        mOurTimes.add(sent(0));
+        assertEquals(0, toServer().length);
+        serverSaw(1, 0);
+        assertEquals(0, toServer().length);
+    }
+}
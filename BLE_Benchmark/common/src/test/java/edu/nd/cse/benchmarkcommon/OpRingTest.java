@@ -0,0 +1,107 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Single threaded behaviour of the ring, then several producers racing one
+ * consumer the way the pacer, the handlers and the GATT callbacks all queue
+ * ops on the same link.
+ */
+public class OpRingTest {
+
+    @Test
+    public void capacity_roundedUpToPowerOfTwo() {
+        assertEquals(32, new OpRing<Integer>(32).capacity());
+        assertEquals(8, new OpRing<Integer>(5).capacity());
+        assertEquals(2, new OpRing<Integer>(1).capacity());
+    }
+
+    @Test
+    public void fifo_acrossWrap() {
+        OpRing<Integer> ring = new OpRing<Integer>(4);
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(ring.offer(i));
+            assertTrue(ring.offer(100 + i));
+            assertEquals(2, ring.size());
+            assertEquals(Integer.valueOf(i), ring.peek());
+            assertEquals(Integer.valueOf(i), ring.poll());
+            assertEquals(Integer.valueOf(100 + i), ring.poll());
+            assertTrue(ring.isEmpty());
+            assertNull(ring.poll());
+        }
+    }
+
+    @Test
+    public void full_refusesAndCounts() {
+        OpRing<Integer> ring = new OpRing<Integer>(2);
+        assertTrue(ring.offer(1));
+        assertTrue(ring.offer(2));
+        assertFalse(ring.offer(3));
+        assertEquals(1, ring.getOverflowCount());
+
+        assertEquals(Integer.valueOf(1), ring.poll());
+        assertTrue(ring.offer(3));
+        assertEquals(Integer.valueOf(2), ring.poll());
+        assertEquals(Integer.valueOf(3), ring.poll());
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void manyProducers_oneConsumer() throws Exception {
+        final int producers = 4;
+        final int perProducer = 200000;
+        final OpRing<long []> ring = new OpRing<long []>(32);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread [] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; ) {
+                        if (ring.offer(new long[] {producer, i})) {
+                            ++i;
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        //every item arrives once, and each producer's items in order
+        long [] expected = new long[producers];
+        long received = 0;
+        start.countDown();
+        while (received < (long) producers * perProducer) {
+            long [] item = ring.poll();
+            if (null == item) {
+                Thread.yield();
+                continue;
+            }
+            int producer = (int) item[0];
+            assertEquals(expected[producer], item[1]);
+            ++expected[producer];
+            ++received;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+        for (int p = 0; p < producers; ++p) {
+            assertEquals(perProducer, expected[p]);
+        }
+    }
+}
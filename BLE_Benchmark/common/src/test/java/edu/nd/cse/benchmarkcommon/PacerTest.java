@@ -0,0 +1,222 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the pacer on a fake clock that moves on a little every time it is
+ * read and jumps when a task takes long, so tick times, stalls and skips
+ * are the same on every run. The spin threshold is a whole period, so the
+ * pacer never parks on the fake time.
+ */
+public class PacerTest {
+
+    private static final long START = 1000000000L;
+    private static final long STEP = 10; //ns the clock moves each read
+    private static final long PERIOD = 100000; //ns
+    private static final int TICKS = 20;
+
+    /**
+     * Only read by the pacer thread, and by the test once it has stopped
+     */
+    private static class FakeClock implements Pacer.Clock {
+        private volatile long mNow = START;
+
+        @Override
+        public long nanos () {
+            mNow += STEP;
+            return mNow;
+        }
+
+        void advance (long ns) {
+            mNow += ns;
+        }
+    }
+
+    /**
+     * Records when each tick was due and ran, and takes the given time
+     */
+    private static class Recording implements Pacer.Task {
+        final FakeClock mClock;
+        final long [] mIntended = new long[TICKS];
+        final long [] mNow = new long[TICKS];
+        final CountDownLatch mDone = new CountDownLatch(1);
+        long mWork = 0; //ns each tick takes
+        int mStallAt = -1; //tick that takes STALL
+        long mStall = 0;
+        int mTicks = 0;
+
+        Recording (FakeClock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public boolean onTick (long intended, long now) {
+            mIntended[mTicks] = intended;
+            mNow[mTicks] = now;
+            mClock.advance((mTicks == mStallAt) ? mStall : mWork);
+            if (++mTicks == TICKS) {
+                mDone.countDown();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void ticks_stayOnAbsoluteTimeline () throws Exception {
+        FakeClock clock = new FakeClock();
+        Recording task = new Recording(clock);
+        task.mWork = PERIOD * 7 / 10; //each tick takes most of a period
+        Pacer pacer = run(clock, task, 0);
+
+        //the first tick is at start, one clock read after the pacer's own
+        long start = task.mIntended[0];
+        assertEquals(START + STEP, start);
+        for (int i = 0; i < TICKS; ++i) {
+            assertEquals("tick " + i, start + i * PERIOD, task.mIntended[i]);
+            //the work does not push later ticks back
+            long lateness = task.mNow[i] - task.mIntended[i];
+            assertTrue("tick " + i + " " + lateness + " ns late", 0 <= lateness && lateness < 10 * STEP);
+        }
+        assertEquals(TICKS, pacer.getTickCount());
+        assertEquals(0, pacer.getLateCount());
+        assertEquals(0, pacer.getSkippedCount());
+    }
+
+    @Test
+    public void stall_isCaughtUpBackToBack () throws Exception {
+        FakeClock clock = new FakeClock();
+        Recording task = new Recording(clock);
+        task.mStallAt = 5;
+        task.mStall = 10 * PERIOD;
+        Pacer pacer = run(clock, task, 0);
+
+        //no limit: every missed tick still runs, late, in order
+        long start = task.mIntended[0];
+        for (int i = 0; i < TICKS; ++i) {
+            assertEquals("tick " + i, start + i * PERIOD, task.mIntended[i]);
+        }
+        //ticks 6 to 14 were due during the stall
+        assertEquals(9, pacer.getLateCount());
+        assertTrue(pacer.getMaxLateness() >= 9 * PERIOD);
+        assertTrue(task.mNow[15] - task.mIntended[15] < PERIOD); //back on time
+        assertEquals(0, pacer.getSkippedCount());
+    }
+
+    @Test
+    public void stall_overMaxBurst_isSkipped () throws Exception {
+        FakeClock clock = new FakeClock();
+        Recording task = new Recording(clock);
+        task.mStallAt = 5;
+        task.mStall = 10 * PERIOD;
+        Pacer pacer = run(clock, task, 2);
+
+        //after tick 5 the pacer is 9 ticks behind: 7 are skipped, 2 run late
+        long start = task.mIntended[0];
+        for (int i = 0; i <= 5; ++i) {
+            assertEquals("tick " + i, start + i * PERIOD, task.mIntended[i]);
+        }
+        for (int i = 6; i < TICKS; ++i) {
+            assertEquals("tick " + i, start + (i + 7) * PERIOD, task.mIntended[i]);
+        }
+        assertEquals(7, pacer.getSkippedCount());
+        assertEquals(2, pacer.getLateCount());
+        assertTrue(task.mNow[8] - task.mIntended[8] < PERIOD); //back on time
+        assertEquals(TICKS, pacer.getTickCount());
+    }
+
+    @Test
+    public void unpaced_runsBackToBack () throws Exception {
+        FakeClock clock = new FakeClock();
+        Recording task = new Recording(clock);
+        Pacer pacer = new Pacer("test-pacer", task);
+        pacer.setClock(clock);
+        pacer.setMaxBurst(2); //no meaning without a period
+        pacer.start(0);
+        assertTrue("timed out", task.mDone.await(5, TimeUnit.SECONDS));
+        pacer.stop();
+
+        for (int i = 1; i < TICKS; ++i) {
+            assertEquals(task.mIntended[0], task.mIntended[i]);
+        }
+        assertEquals(0, pacer.getSkippedCount());
+    }
+
+    @Test
+    public void stop_fromTask () throws Exception {
+        final Thread [] pacerThread = new Thread[1];
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final int [] ticks = new int[1];
+        final Pacer [] pacer = new Pacer[1];
+        pacer[0] = new Pacer("test-pacer", new Pacer.Task() {
+            @Override
+            public boolean onTick (long intended, long now) {
+                if (3 == ++ticks[0]) {
+                    pacerThread[0] = Thread.currentThread();
+                    pacer[0].stop(); //must not wait for itself
+                    stopped.countDown();
+                }
+                return true;
+            }
+        });
+        pacer[0].setClock(new FakeClock());
+        pacer[0].setSpinThreshold(PERIOD);
+        pacer[0].start(PERIOD);
+
+        assertTrue("stop() from the task did not return", stopped.await(5, TimeUnit.SECONDS));
+        pacerThread[0].join(5000);
+        assertFalse(pacerThread[0].isAlive());
+        assertFalse(pacer[0].isRunning());
+        assertEquals(3, ticks[0]); //no tick after the stop
+        assertEquals(3, pacer[0].getTickCount());
+
+        pacer[0].stop(); //again, from outside: nothing to wait for
+
+        //and it can be started again
+        ticks[0] = 0;
+        pacer[0].start(PERIOD);
+        pacer[0].stop();
+        assertFalse(pacer[0].isRunning());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_whileRunning_throws () {
+        Pacer pacer = new Pacer("test-pacer", new Pacer.Task() {
+            @Override
+            public boolean onTick (long intended, long now) {
+                return true;
+            }
+        });
+        pacer.start(PERIOD);
+        try {
+            pacer.start(PERIOD);
+        } finally {
+            pacer.stop();
+        }
+    }
+
+    @Test
+    public void periods () {
+        assertEquals(7500000, Pacer.periodForOps(1e9 / 7500000));
+        assertEquals(0, Pacer.periodForOps(0));
+        assertEquals(1, Pacer.periodForOps(1e12)); //never 0 for a rate
+        assertEquals(20000000, Pacer.periodForBytes(1000, 20)); //20 bytes at 1 kB/s
+        assertEquals(0, Pacer.periodForBytes(-1, 20));
+    }
+
+    private static Pacer run (FakeClock clock, Recording task, int maxBurst) throws InterruptedException {
+        Pacer pacer = new Pacer("test-pacer", task);
+        pacer.setClock(clock);
+        pacer.setSpinThreshold(PERIOD);
+        pacer.setMaxBurst(maxBurst);
+        pacer.start(PERIOD);
+        assertTrue("timed out", task.mDone.await(5, TimeUnit.SECONDS));
+        pacer.stop();
+        return pacer;
+    }
+}
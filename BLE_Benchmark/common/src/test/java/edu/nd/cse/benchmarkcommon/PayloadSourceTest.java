@@ -0,0 +1,130 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Payloads of every size, through next(), fill() and slice(), against the
+ * pool worked out independently: the seed's random bytes, repeated.
+ */
+public class PayloadSourceTest {
+
+    private static final int POOL_SIZE = 1021; //prime, so payloads wrap at every alignment
+    private static final long SEED = 4814;
+
+    @Test
+    public void sameSeed_sameStream () {
+        PayloadSource a = new PayloadSource();
+        PayloadSource b = new PayloadSource();
+        for (int i = 0; i < 1000; ++i) {
+            assertArrayEquals(a.next(244).clone(), b.next(244));
+        }
+        assertFalse(Arrays.equals(new PayloadSource(POOL_SIZE, 1).next(64).clone(),
+                new PayloadSource(POOL_SIZE, 2).next(64)));
+    }
+
+    @Test
+    public void next_followsThePool_acrossSizes () {
+        byte [] expected = expectedStream(20 * POOL_SIZE);
+        PayloadSource source = new PayloadSource(POOL_SIZE, SEED);
+        int [] sizes = {0, 1, 20, 23, 244, 512, 7, 509};
+
+        int position = 0;
+        for (int i = 0; position + PayloadSource.MAX_PAYLOAD < expected.length; ++i) {
+            int size = sizes[i % sizes.length];
+            byte [] payload = source.next(size);
+            assertEquals(size, payload.length);
+            assertArrayEquals("payload " + i + " at " + position,
+                    Arrays.copyOfRange(expected, position, position + size), payload);
+            position += size;
+        }
+    }
+
+    @Test
+    public void next_reusesItsBuffer () {
+        PayloadSource source = new PayloadSource(POOL_SIZE, SEED);
+        byte [] first = source.next(20);
+        assertSame(first, source.next(20));
+        assertNotSame(first, source.next(21)); //only replaced when the size changes
+    }
+
+    @Test
+    public void fill_onlyTouchesItsRange () {
+        byte [] expected = expectedStream(2 * POOL_SIZE);
+        PayloadSource source = new PayloadSource(POOL_SIZE, SEED);
+        byte [] dst = new byte[600];
+
+        int position = 0;
+        int [][] ranges = {{0, 100}, {5, 512}, {599, 1}, {88, 0}, {50, 300}};
+        for (int [] range : ranges) {
+            Arrays.fill(dst, (byte) 0x5A);
+            source.fill(dst, range[0], range[1]);
+
+            for (int i = 0; i < dst.length; ++i) {
+                int j = i - range[0];
+                byte want = (0 <= j && j < range[1]) ? expected[position + j] : (byte) 0x5A;
+                assertEquals("byte " + i + " of " + Arrays.toString(range), want, dst[i]);
+            }
+            position += range[1];
+        }
+    }
+
+    @Test
+    public void slice_matchesFill_acrossTheWrap () {
+        PayloadSource sliced = new PayloadSource(POOL_SIZE, SEED);
+        PayloadSource filled = new PayloadSource(POOL_SIZE, SEED);
+        byte [] dst = new byte[PayloadSource.MAX_PAYLOAD];
+
+        for (int i = 0; i < 100; ++i) {
+            int size = 1 + (i * 37) % PayloadSource.MAX_PAYLOAD;
+            ByteBuffer slice = sliced.slice(size);
+            assertTrue(slice.isReadOnly());
+            assertEquals(size, slice.remaining());
+
+            byte [] got = new byte[size];
+            slice.get(got);
+            filled.fill(dst, 0, size);
+            assertArrayEquals("payload " + i, Arrays.copyOf(dst, size), got);
+        }
+    }
+
+    @Test
+    public void badSizes_throw () {
+        PayloadSource source = new PayloadSource(POOL_SIZE, SEED);
+        int [] sizes = {-1, PayloadSource.MAX_PAYLOAD + 1};
+        for (int size : sizes) {
+            try {
+                source.next(size);
+                fail("size " + size);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+            try {
+                source.slice(size);
+                fail("size " + size);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+        //and the stream did not move
+        assertArrayEquals(Arrays.copyOf(expectedStream(8), 8), source.next(8));
+    }
+
+    /**
+     * The pool's random bytes, over and over
+     */
+    private static byte [] expectedStream (int length) {
+        byte [] pool = new byte[POOL_SIZE];
+        new Random(SEED).nextBytes(pool);
+        byte [] stream = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            stream[i] = pool[i % POOL_SIZE];
+        }
+        return stream;
+    }
+}
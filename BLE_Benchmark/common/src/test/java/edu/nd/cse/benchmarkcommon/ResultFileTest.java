@@ -0,0 +1,206 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes ResultFiles through ResultSink, as the client does, and reads them
+ * back with ResultFileReader, both as columns and converted to the CSVs.
+ */
+public class ResultFileTest {
+
+    private static final String CLIENT = "client-\u00e9\u00e8"; //not just ASCII
+    private static final String SERVER = "AA:BB:CC:DD:EE:FF";
+    private static final String METHOD = "WRITE_NO_RESPONSE";
+    private static final int MTU = 247;
+    private static final int CONN_INTERVAL = 1;
+
+    private static final long [] LATENCIES = {7500000, 7499000, 15000000, 0, 7500001};
+    private static final long [] TIMESTAMPS = {1000000000L, 1007500000L, 1015000000L, 1022500000L};
+    private static final long [] EXTREMES = {Long.MAX_VALUE, Long.MIN_VALUE, 0, -1,
+            Long.MIN_VALUE, Long.MAX_VALUE, 1};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip_throughSink () throws Exception {
+        //16 bytes is the smallest buffer writeTo takes: every field is drained on its own
+        int [] bufferSizes = {16, 17, 100, ResultSink.DEFAULT_BUFFER_SIZE};
+        for (int bufferSize : bufferSizes) {
+            File file = write(results(), bufferSize);
+            ResultFileReader reader = new ResultFileReader(file);
+
+            assertEquals(CLIENT, reader.getClientID());
+            assertEquals(SERVER, reader.getServerID());
+            assertEquals(METHOD, reader.getCommMethod());
+            assertEquals(MTU, reader.getMtu());
+            assertEquals(CONN_INTERVAL, reader.getConnInterval());
+            assertColumns(reader);
+        }
+    }
+
+    @Test
+    public void roundTrip_intoRecorder () throws Exception {
+        ResultFileReader reader = new ResultFileReader(write(results(), 32));
+
+        for (int c = 0; c < reader.getColumnCount(); ++c) {
+            LongRecorder values = new LongRecorder();
+            values.add(-42); //appended after what is there
+            reader.readColumn(c, values);
+
+            assertEquals(reader.getColumnSize(c) + 1, values.size());
+            assertEquals(-42, values.get(0));
+            long [] column = reader.readColumn(c);
+            for (int i = 0; i < column.length; ++i) {
+                assertEquals(reader.getColumnName(c) + "[" + i + "]", column[i], values.get(i + 1));
+            }
+        }
+    }
+
+    @Test
+    public void deltaColumn_isSmallerThanFixed () throws Exception {
+        long [] timestamps = new long[1000];
+        for (int i = 0; i < timestamps.length; ++i) {
+            timestamps[i] = 1000000000L + i * 7500000L;
+        }
+        File fixed = write(header().addColumn("ts", timestamps, ResultFile.FIXED), 64);
+        File delta = write(header().addColumn("ts", timestamps, ResultFile.DELTA), 64);
+
+        //7.5 ms deltas take 4 bytes instead of 8
+        assertTrue(delta.length() < fixed.length() * 6 / 10);
+        assertArrayEquals(timestamps, new ResultFileReader(delta).readColumn(0));
+        assertArrayEquals(timestamps, new ResultFileReader(fixed).readColumn(0));
+    }
+
+    @Test
+    public void noColumns () throws Exception {
+        ResultFileReader reader = new ResultFileReader(write(header(), 16));
+        assertEquals(0, reader.getColumnCount());
+        assertEquals(-1, reader.findColumn("latency_op_return"));
+        assertEquals(MTU, reader.getMtu());
+    }
+
+    @Test
+    public void toCsv_matchesTheAppsCsvs () throws Exception {
+        File dir = mFolder.newFolder();
+        ResultFileReader reader = new ResultFileReader(write(results(), 64));
+        ResultSink sink = new ResultSink(7);
+        reader.toCsv(sink, dir, "-run1");
+        assertTrue("timed out", sink.close(5000));
+        assertEquals(0, sink.getErrorCount());
+
+        String prefix = ResultFile.csvRowPrefix(CLIENT, SERVER, MTU, METHOD, CONN_INTERVAL);
+        assertCsv(new File(dir, "latency_op_return-run1.csv"), "latency_op_return", prefix, LATENCIES);
+        assertCsv(new File(dir, "timestamps-run1.csv"), "timestamps", prefix, TIMESTAMPS);
+        assertCsv(new File(dir, "a_column_name_longer_than_the_buffer-run1.csv"),
+                "a_column_name_longer_than_the_buffer", prefix, EXTREMES);
+        assertCsv(new File(dir, "empty-run1.csv"), "empty", prefix, new long[0]);
+        assertEquals(4, dir.list().length);
+    }
+
+    @Test
+    public void main_writesCsvsNamedAfterTheFile () throws Exception {
+        File dir = mFolder.newFolder();
+        File file = new File(mFolder.getRoot(), "results.blr");
+        assertTrue(write(results(), 64).renameTo(file));
+
+        ResultFileReader.main(new String [] {file.getPath(), dir.getPath()});
+
+        String prefix = ResultFile.csvRowPrefix(CLIENT, SERVER, MTU, METHOD, CONN_INTERVAL);
+        assertCsv(new File(dir, "latency_op_return-results.csv"), "latency_op_return", prefix, LATENCIES);
+        assertEquals(4, dir.list().length);
+    }
+
+    @Test
+    public void notAResultFile_throws () throws Exception {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), "client, server\n1, 2\n".getBytes(StandardCharsets.UTF_8));
+        assertUnreadable(file);
+        assertUnreadable(mFolder.newFile()); //empty
+    }
+
+    @Test
+    public void truncated_throws () throws Exception {
+        File file = write(results(), 64);
+        long length = file.length();
+        //in the last column's data, in a column header, in the run description
+        long [] cuts = {length - 1, length / 2, 10};
+        for (long cut : cuts) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(cut);
+            } finally {
+                raf.close();
+            }
+            assertUnreadable(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEncoding_throws () {
+        header().addColumn("x", new long [] {1}, (byte) 2);
+    }
+
+    private static ResultFile header () {
+        return new ResultFile(CLIENT, SERVER, MTU, METHOD, CONN_INTERVAL);
+    }
+
+    private static ResultFile results () {
+        return header()
+                .addColumn("latency_op_return", LATENCIES, ResultFile.FIXED)
+                .addColumn("timestamps", TIMESTAMPS, ResultFile.DELTA)
+                .addColumn("a_column_name_longer_than_the_buffer", EXTREMES, ResultFile.DELTA)
+                .addColumn("empty", new long[0], ResultFile.FIXED);
+    }
+
+    private static void assertColumns (ResultFileReader reader) {
+        assertEquals(4, reader.getColumnCount());
+        assertArrayEquals(LATENCIES, reader.readColumn(reader.findColumn("latency_op_return")));
+        assertArrayEquals(TIMESTAMPS, reader.readColumn(reader.findColumn("timestamps")));
+        assertArrayEquals(EXTREMES, reader.readColumn(reader.findColumn("a_column_name_longer_than_the_buffer")));
+        assertEquals(0, reader.getColumnSize(reader.findColumn("empty")));
+        assertEquals(0, reader.readColumn(3).length);
+
+        //columns can be read in any order and more than once
+        assertArrayEquals(TIMESTAMPS, reader.readColumn(1));
+        assertArrayEquals(LATENCIES, reader.readColumn(0));
+    }
+
+    private File write (ResultFile results, int bufferSize) throws Exception {
+        File file = mFolder.newFile();
+        ResultSink sink = new ResultSink(bufferSize);
+        sink.write(file, results);
+        assertTrue("timed out", sink.close(5000));
+        assertEquals(0, sink.getErrorCount());
+        return file;
+    }
+
+    private static void assertCsv (File file, String measurement, String prefix, long [] values)
+            throws IOException {
+        StringBuilder expected = new StringBuilder(ResultFile.csvHeader(measurement)).append('\n');
+        for (long value : values) {
+            expected.append(prefix).append(value).append('\n');
+        }
+        assertEquals(expected.toString(),
+                new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    private static void assertUnreadable (File file) {
+        try {
+            new ResultFileReader(file);
+            fail("read " + file.length() + " bytes");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
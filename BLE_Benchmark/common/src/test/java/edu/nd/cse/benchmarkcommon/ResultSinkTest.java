@@ -0,0 +1,145 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes rows through the sink and compares the file's bytes with the same
+ * rows built as Strings, with buffers small enough that prefixes, digits
+ * and newlines are split across drains.
+ */
+public class ResultSinkTest {
+
+    private static final String HEADER = "client, server, mtu, latency (ns)";
+    private static final String PREFIX = "AA:BB, CC:DD, 247, ";
+    private static final long [] VALUES = {0, 7, -7, 7500000, 123456789012L,
+            Long.MAX_VALUE, Long.MIN_VALUE};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void rows_matchTheirStrings () throws Exception {
+        //1 byte: every byte is its own drain; 64k: one drain at the end
+        int [] bufferSizes = {1, 2, 7, 19, 20, 21, ResultSink.DEFAULT_BUFFER_SIZE};
+        for (int bufferSize : bufferSizes) {
+            File file = mFolder.newFile();
+            ResultSink sink = new ResultSink(bufferSize);
+            sink.write(file, HEADER, PREFIX, VALUES, false);
+            close(sink);
+
+            assertEquals("buffer " + bufferSize, expected(HEADER, PREFIX, VALUES), read(file));
+        }
+    }
+
+    @Test
+    public void manyRows_throughSmallBuffer () throws Exception {
+        long [] values = new long[10000];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = i * 7500013L - 1000000;
+        }
+        File file = mFolder.newFile();
+        ResultSink sink = new ResultSink(100);
+        sink.write(file, HEADER, PREFIX, values, false);
+        close(sink);
+
+        assertEquals(expected(HEADER, PREFIX, values), read(file));
+    }
+
+    @Test
+    public void append_addsAfterTheFile () throws Exception {
+        File file = mFolder.newFile();
+        ResultSink sink = new ResultSink(16);
+        sink.write(file, HEADER, PREFIX, new long [] {1, 2}, false);
+        sink.write(file, HEADER, PREFIX, new long [] {3}, true);
+        close(sink);
+
+        assertEquals(expected(HEADER, PREFIX, new long [] {1, 2})
+                + expected(HEADER, PREFIX, new long [] {3}), read(file));
+    }
+
+    @Test
+    public void replace_dropsTheOldFile () throws Exception {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), "a much longer file than the one that replaces it\n".getBytes(StandardCharsets.UTF_8));
+        ResultSink sink = new ResultSink();
+        sink.write(file, HEADER, PREFIX, 42);
+        close(sink);
+
+        assertEquals(HEADER + "\n" + PREFIX + "42\n", read(file));
+    }
+
+    @Test
+    public void noValues_isJustTheHeader () throws Exception {
+        File file = mFolder.newFile();
+        ResultSink sink = new ResultSink(4);
+        sink.write(file, HEADER, PREFIX, new long[0], false);
+        close(sink);
+
+        assertEquals(HEADER + "\n", read(file));
+    }
+
+    @Test
+    public void lines_areWrittenAsGiven () throws Exception {
+        String [] rows = {"run 1, 20, 3.5", "run 2, 244, 12.25", "", "r\u00e9sum\u00e9, 1, 0"};
+        File file = mFolder.newFile();
+        ResultSink sink = new ResultSink(5);
+        sink.write(file, "name, size, rate", rows);
+        close(sink);
+
+        StringBuilder expected = new StringBuilder("name, size, rate\n");
+        for (String row : rows) {
+            expected.append(row).append('\n');
+        }
+        assertEquals(expected.toString(), read(file));
+    }
+
+    @Test
+    public void unicodePrefix_isUtf8 () throws Exception {
+        String prefix = "\u00b5s, ";
+        File file = mFolder.newFile();
+        ResultSink sink = new ResultSink(3);
+        sink.write(file, "\u00b5", prefix, new long [] {5, 6}, false);
+        close(sink);
+
+        byte [] bytes = Files.readAllBytes(file.toPath());
+        assertArrayEquals(expected("\u00b5", prefix, new long [] {5, 6}).getBytes(StandardCharsets.UTF_8), bytes);
+    }
+
+    @Test
+    public void unwritableFile_isCountedAndLaterFilesStillWritten () throws Exception {
+        File dir = mFolder.newFolder(); //can't be opened as a file
+        File file = mFolder.newFile();
+        ResultSink sink = new ResultSink(8);
+        sink.write(dir, HEADER, PREFIX, VALUES, false);
+        sink.write(file, HEADER, PREFIX, VALUES, false);
+        close(sink);
+
+        assertEquals(1, sink.getErrorCount());
+        assertNotNull(sink.getLastError());
+        assertEquals(expected(HEADER, PREFIX, VALUES), read(file));
+    }
+
+    private static void close (ResultSink sink) throws InterruptedException {
+        assertTrue("timed out", sink.close(5000));
+    }
+
+    private static String expected (String header, String prefix, long [] values) {
+        StringBuilder rows = new StringBuilder(header).append('\n');
+        for (long value : values) {
+            rows.append(prefix).append(value).append('\n');
+        }
+        return rows.toString();
+    }
+
+    private static String read (File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
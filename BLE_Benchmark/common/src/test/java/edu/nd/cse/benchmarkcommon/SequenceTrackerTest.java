@@ -0,0 +1,240 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Crafted streams of sequence numbers with known loss, duplicates and
+ * reordering, most of them on a 64 packet window so that the bitmap wraps
+ * many times over, and random streams against a model that keeps every
+ * sequence number it has seen.
+ */
+public class SequenceTrackerTest {
+
+    private static final int WINDOW = 64; //a single word of bitmap
+
+    @Test
+    public void inOrder_acrossManyWraps () {
+        SequenceTracker tracker = new SequenceTracker(WINDOW);
+        for (int s = 0; s < 10 * WINDOW; ++s) {
+            tracker.record(s);
+        }
+        assertStats(tracker, 10 * WINDOW, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void gaps_areLost () {
+        SequenceTracker tracker = record(new SequenceTracker(WINDOW), 0, 1, 3, 4, 8, 9);
+        assertStats(tracker, 6, 4, 0, 0, 0); //2, 5, 6, 7
+
+        //loss after the highest sequence can't be seen
+        assertEquals(4, tracker.getStats().mLost);
+        assertEquals(0.4f, tracker.getStats().getLossRate(), 1e-6f);
+    }
+
+    @Test
+    public void firstPacketsLost () {
+        SequenceTracker tracker = record(new SequenceTracker(WINDOW), 5, 6);
+        assertStats(tracker, 2, 5, 0, 0, 0);
+    }
+
+    @Test
+    public void duplicates () {
+        SequenceTracker tracker = record(new SequenceTracker(WINDOW), 0, 0, 1, 2, 2, 2, 1, 3);
+        assertStats(tracker, 4, 0, 4, 0, 0);
+    }
+
+    @Test
+    public void reordered_fillGaps () {
+        SequenceTracker tracker = record(new SequenceTracker(WINDOW), 0, 2, 1, 5, 3, 4, 6);
+        //1 was 1 behind 2; 3 and 4 were 2 and 1 behind 5
+        assertStats(tracker, 7, 0, 0, 3, 2);
+
+        //a reordered packet that arrives twice is a duplicate the second time
+        record(tracker, 4);
+        assertStats(tracker, 7, 0, 1, 3, 2);
+    }
+
+    @Test
+    public void reorderedAcrossTheWrap () {
+        SequenceTracker tracker = new SequenceTracker(WINDOW);
+        for (int s = 0; s < 100; ++s) {
+            if (60 != s && 70 != s) {
+                tracker.record(s);
+            }
+        }
+        //60 and 70 sit either side of where the bitmap wraps (bit 63 to bit 6)
+        record(tracker, 70, 60);
+        assertStats(tracker, 100, 0, 0, 2, 39);
+        record(tracker, 60, 70);
+        assertStats(tracker, 100, 0, 2, 2, 39);
+    }
+
+    @Test
+    public void lastInWindow_isReordered_firstOutIsLate () {
+        SequenceTracker tracker = new SequenceTracker(WINDOW);
+        record(tracker, 0, 1, 2, 3, 3 + WINDOW);
+
+        //WINDOW - 1 behind is still in the bitmap
+        record(tracker, 4);
+        assertStats(tracker, 6, WINDOW - 2, 0, 1, WINDOW - 1);
+        assertEquals(0, tracker.getLateCount());
+
+        //WINDOW behind has fallen out: late, and left lost
+        record(tracker, 3);
+        assertStats(tracker, 6, WINDOW - 2, 0, 1, WINDOW - 1);
+        assertEquals(1, tracker.getLateCount());
+    }
+
+    @Test
+    public void staleBit_isNotTakenForADuplicate () {
+        SequenceTracker tracker = record(new SequenceTracker(WINDOW), 0, WINDOW);
+        //0 and WINDOW share a bit: 0 is late, WINDOW is the duplicate
+        record(tracker, 0);
+        assertEquals(1, tracker.getLateCount());
+        record(tracker, WINDOW);
+        assertStats(tracker, 2, WINDOW - 1, 1, 0, 0);
+
+        //the bits skipped over on the jump were cleared, so the gaps can fill
+        record(tracker, 1, WINDOW - 1);
+        assertStats(tracker, 4, WINDOW - 3, 1, 2, WINDOW - 1);
+    }
+
+    @Test
+    public void bigJump_clearsWholeBitmap () {
+        SequenceTracker tracker = new SequenceTracker(WINDOW);
+        for (int s = 0; s < WINDOW; ++s) {
+            tracker.record(s);
+        }
+        record(tracker, 5 * WINDOW + 7);
+        //the bit of every sequence in the window below it is clear
+        record(tracker, 4 * WINDOW + 8, 5 * WINDOW + 6);
+        assertStats(tracker, WINDOW + 3, 4 * WINDOW + 5, 0, 2, WINDOW - 1);
+        assertEquals(0, tracker.getLateCount());
+    }
+
+    @Test
+    public void window_isRoundedUpToWholeWords () {
+        SequenceTracker tracker = new SequenceTracker(65); //two words
+        record(tracker, 0, 127, 1);
+        assertEquals(0, tracker.getLateCount());
+        record(tracker, 0); //127 behind: still a duplicate at 128
+        assertStats(tracker, 3, 125, 1, 1, 126);
+    }
+
+    @Test
+    public void reset_startsOver () {
+        SequenceTracker tracker = record(new SequenceTracker(WINDOW), 0, 5, 5, 3, 200, 1);
+        tracker.reset();
+        assertStats(tracker, 0, 0, 0, 0, 0);
+        assertEquals(0, tracker.getLateCount());
+        record(tracker, 0, 1);
+        assertStats(tracker, 2, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void randomStreams_matchModel () {
+        int [] windows = {WINDOW, 100, SequenceTracker.DEFAULT_WINDOW};
+        for (int window : windows) {
+            Random random = new Random(window);
+            SequenceTracker tracker = new SequenceTracker(window);
+            int bitmap = (window + 63) / 64 * 64;
+
+            HashSet<Long> seen = new HashSet<Long>();
+            long highest = -1;
+            long duplicates = 0;
+            long reordered = 0;
+            long late = 0;
+            long maxDistance = 0;
+
+            for (long next = 0; next < 20000; ++next) {
+                //mostly in order, with loss, repeats, stragglers and the odd burst lost
+                long sequence = next;
+                int dice = random.nextInt(100);
+                if (dice < 5) {
+                    continue;
+                } else if (dice < 10) {
+                    sequence = Math.max(0, next - random.nextInt(2 * bitmap));
+                } else if (dice < 11) {
+                    next += random.nextInt(3 * bitmap);
+                    sequence = next;
+                }
+                tracker.record(sequence);
+
+                if (sequence > highest) {
+                    seen.add(sequence);
+                    highest = sequence;
+                } else if (highest - sequence >= bitmap) {
+                    ++late;
+                } else if (!seen.add(sequence)) {
+                    ++duplicates;
+                } else {
+                    ++reordered;
+                    maxDistance = Math.max(maxDistance, highest - sequence);
+                }
+            }
+
+            String message = "window " + window;
+            SequenceTracker.Stats stats = tracker.getStats();
+            assertEquals(message, seen.size(), stats.mReceived);
+            assertEquals(message, highest + 1 - seen.size(), stats.mLost);
+            assertEquals(message, duplicates, stats.mDuplicates);
+            assertEquals(message, reordered, stats.mReordered);
+            assertEquals(message, maxDistance, stats.mMaxReorderDistance);
+            assertEquals(message, late, tracker.getLateCount());
+            assertTrue(message, 0 < duplicates && 0 < reordered && 0 < late);
+        }
+    }
+
+    @Test
+    public void header_roundTrip () {
+        byte [] payload = new byte[SequenceTracker.HEADER_LENGTH + 2];
+        long [] sequences = {0, 1, 255, 256, 0x7FFFFFFFL, 0x80000000L, 0xFFFFFFFFL};
+        for (long sequence : sequences) {
+            SequenceTracker.writeSequence(payload, sequence);
+            assertEquals(sequence, SequenceTracker.readSequence(payload));
+        }
+        assertEquals(0, payload[SequenceTracker.HEADER_LENGTH]); //nothing after the header touched
+    }
+
+    @Test
+    public void stats_overTheAir () {
+        SequenceTracker.Stats stats = new SequenceTracker.Stats(0xFFFFFFFFL, 2, 3, 4, 5);
+        SequenceTracker.Stats back = SequenceTracker.Stats.fromBytes(stats.toBytes());
+        assertEquals(0xFFFFFFFFL, back.mReceived); //unsigned
+        assertEquals(2, back.mLost);
+        assertEquals(3, back.mDuplicates);
+        assertEquals(4, back.mReordered);
+        assertEquals(5, back.mMaxReorderDistance);
+
+        assertNull(SequenceTracker.Stats.fromBytes(new byte[SequenceTracker.Stats.LENGTH - 1]));
+        assertNull(SequenceTracker.Stats.fromBytes(null));
+        assertEquals(0f, new SequenceTracker.Stats(0, 0, 0, 0, 0).getLossRate(), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noWindow_throws () {
+        new SequenceTracker(0);
+    }
+
+    private static SequenceTracker record (SequenceTracker tracker, long... sequences) {
+        for (long sequence : sequences) {
+            tracker.record(sequence);
+        }
+        return tracker;
+    }
+
+    private static void assertStats (SequenceTracker tracker, long received, long lost,
+                                     long duplicates, long reordered, long maxDistance) {
+        SequenceTracker.Stats stats = tracker.getStats();
+        assertEquals("received", received, stats.mReceived);
+        assertEquals("lost", lost, stats.mLost);
+        assertEquals("duplicates", duplicates, stats.mDuplicates);
+        assertEquals("reordered", reordered, stats.mReordered);
+        assertEquals("max reorder distance", maxDistance, stats.mMaxReorderDistance);
+    }
+}
@@ -0,0 +1,156 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds ops at fixed timestamps into a 10 s window of 1 s slots and checks
+ * which slots each snapshot still counts and the rates it works out.
+ */
+public class SlidingWindowMetricsTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final long MS = 1000000L;
+    private static final long WINDOW = 10 * SECOND;
+    private static final int SLOTS = 10;
+    private static final long T0 = 1000 * SECOND; //the clocks used don't start at 0
+
+    private final SlidingWindowMetrics mMetrics = new SlidingWindowMetrics(WINDOW, SLOTS);
+
+    @Test
+    public void nothingRecorded () {
+        SlidingWindowMetrics.Snapshot snapshot = mMetrics.snapshot(T0);
+        assertEquals(0, snapshot.mWindow);
+        assertEquals(0, snapshot.mOps);
+        assertEquals(0.0, snapshot.mBytesPerSecond, 0.0);
+        assertEquals(0.0, snapshot.mOpsPerSecond, 0.0);
+        assertEquals(0, snapshot.mLatencyMax);
+    }
+
+    @Test
+    public void shortRun_ratesOverTimeSoFar () {
+        //10 ops/s of 100 bytes for 3 s, starting mid slot
+        long start = T0 + 500 * MS;
+        for (int i = 0; i < 30; ++i) {
+            mMetrics.record(start + i * 100 * MS, 100, 5 * MS);
+        }
+
+        SlidingWindowMetrics.Snapshot snapshot = mMetrics.snapshot(start + 3 * SECOND);
+        assertEquals(3 * SECOND, snapshot.mWindow);
+        assertEquals(30, snapshot.mOps);
+        assertEquals(10.0, snapshot.mOpsPerSecond, 1e-9);
+        assertEquals(1000.0, snapshot.mBytesPerSecond, 1e-9);
+        assertEquals(5 * MS, snapshot.mLatencyP50, 5 * MS / 100);
+        assertEquals(5 * MS, snapshot.mLatencyMax, 5 * MS / 100);
+    }
+
+    @Test
+    public void longRun_countsOnlyTheWindow () {
+        //10 ops/s for 20 s
+        for (int i = 0; i < 200; ++i) {
+            mMetrics.record(T0 + i * 100 * MS, 20, 7 * MS);
+        }
+
+        //mid slot: the 9.95 s from the oldest slot still held to now
+        SlidingWindowMetrics.Snapshot snapshot = mMetrics.snapshot(T0 + 19950 * MS);
+        assertEquals(9950 * MS, snapshot.mWindow);
+        assertEquals(100, snapshot.mOps);
+        assertEquals(100 / 9.95, snapshot.mOpsPerSecond, 1e-9);
+        assertEquals(20 * 100 / 9.95, snapshot.mBytesPerSecond, 1e-9);
+
+        //on a slot boundary: the slot from 10 s ago has expired, the new one is empty
+        snapshot = mMetrics.snapshot(T0 + 20 * SECOND);
+        assertEquals(9 * SECOND, snapshot.mWindow);
+        assertEquals(90, snapshot.mOps);
+        assertEquals(10.0, snapshot.mOpsPerSecond, 1e-9);
+    }
+
+    @Test
+    public void rateChange_isSeenWithinTheWindow () {
+        //10 ops/s for 10 s, then 100 ops/s for 5 s
+        long t = T0;
+        for (int i = 0; i < 100; ++i, t += 100 * MS) {
+            mMetrics.record(t, 1, 10 * MS);
+        }
+        for (int i = 0; i < 500; ++i, t += 10 * MS) {
+            mMetrics.record(t, 1, MS);
+        }
+        assertEquals(T0 + 15 * SECOND, t);
+
+        //the last 10 slots: 5 s of each rate
+        SlidingWindowMetrics.Snapshot snapshot = mMetrics.snapshot(t - 1);
+        assertEquals(550, snapshot.mOps);
+        assertEquals(MS, snapshot.mLatencyP50, MS / 100); //most ops are the fast ones
+        assertEquals(10 * MS, snapshot.mLatencyP99, 10 * MS / 100);
+
+        //5 s later only the fast ones are left
+        snapshot = mMetrics.snapshot(t + 5 * SECOND);
+        assertEquals(400, snapshot.mOps);
+        assertEquals(MS, snapshot.mLatencyMax, MS / 100);
+    }
+
+    @Test
+    public void idleGap_expiresEverything () {
+        for (int i = 0; i < 10; ++i) {
+            mMetrics.record(T0 + i * 100 * MS, 100, MS);
+        }
+        SlidingWindowMetrics.Snapshot snapshot = mMetrics.snapshot(T0 + 30 * SECOND);
+        assertEquals(0, snapshot.mOps);
+        assertEquals(0.0, snapshot.mOpsPerSecond, 0.0);
+        assertEquals(0, snapshot.mLatencyP99);
+    }
+
+    @Test
+    public void reusedSlot_isCleared () {
+        mMetrics.record(T0 + 500 * MS, 1000, 9 * MS);
+        //one window later the same slot holds the new second
+        mMetrics.record(T0 + WINDOW + 500 * MS, 10, 2 * MS);
+
+        SlidingWindowMetrics.Snapshot snapshot = mMetrics.snapshot(T0 + WINDOW + 600 * MS);
+        assertEquals(1, snapshot.mOps);
+        assertEquals(2 * MS, snapshot.mLatencyMax);
+        assertEquals(10 * 1e9 / snapshot.mWindow, snapshot.mBytesPerSecond, 1e-9);
+    }
+
+    @Test
+    public void noLatency_isCountedButNotTimed () {
+        mMetrics.record(T0, 100, -1); //the first arrival
+        mMetrics.record(T0 + 100 * MS, 100, 3 * MS);
+
+        SlidingWindowMetrics.Snapshot snapshot = mMetrics.snapshot(T0 + 200 * MS);
+        assertEquals(2, snapshot.mOps);
+        assertEquals(1000.0, snapshot.mBytesPerSecond, 1e-9);
+        assertEquals(3 * MS, snapshot.mLatencyP50, 3 * MS / 100);
+    }
+
+    @Test
+    public void reset_startsOver () {
+        mMetrics.record(T0, 100, MS);
+        mMetrics.reset();
+        assertEquals(0, mMetrics.snapshot(T0 + MS).mOps);
+        assertEquals(0, mMetrics.snapshot(T0 + MS).mWindow);
+
+        //the run time starts again from the next record
+        mMetrics.record(T0 + 2 * SECOND, 100, MS);
+        assertEquals(SECOND, mMetrics.snapshot(T0 + 3 * SECOND).mWindow);
+    }
+
+    @Test
+    public void snapshot_toString () {
+        mMetrics.record(T0, 1024, 7500 * 1000);
+        mMetrics.record(T0 + SECOND / 2, 1024, 7500 * 1000);
+        String s = mMetrics.snapshot(T0 + SECOND).toString();
+        assertTrue(s, s.startsWith("2048 B/s, 2.0 ops/s, latency us p50 75"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noSlots_throws () {
+        new SlidingWindowMetrics(WINDOW, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowShorterThanSlots_throws () {
+        new SlidingWindowMetrics(5, 10);
+    }
+}
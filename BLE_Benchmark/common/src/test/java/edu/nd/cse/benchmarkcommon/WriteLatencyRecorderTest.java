@@ -0,0 +1,164 @@
+package edu.nd.cse.benchmarkcommon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Open loop latencies are matched to writes by the order they complete in.
+ * Runs writes over the loopback to a server that refuses some of them and
+ * checks that every latency still belongs to its own write.
+ */
+public class WriteLatencyRecorderTest {
+
+    private static final long NOW = 1000000000L;
+    private static final long PERIOD = 1000; //ns
+    private static final int WRITES = 100;
+    private static final int DATA_SIZE = 20;
+
+    private LoopbackTransport mLink;
+    private GattClientTransport mClient;
+
+    private final LongRecorder mLatencies = new LongRecorder();
+    private final LongRecorder mSendTimes = new LongRecorder();
+    private final LatencyHistogram mHistogram = new LatencyHistogram(1, 60000000000L, 3);
+    private final WriteLatencyRecorder mRecorder = new WriteLatencyRecorder(mLatencies,
+            mSendTimes, mHistogram, new SlidingWindowMetrics());
+    private final CountDownLatch mDone = new CountDownLatch(WRITES);
+
+    @Before
+    public void setUp () {
+        mLink = new LoopbackTransport();
+        mClient = mLink.getClientEnd();
+
+        mLink.getServerEnd().setCharacteristicHandler(new CharacteristicHandler() {
+            @Override
+            public GattData handleCharacteristic (GattData data) {
+                int sequence = (int) SequenceTracker.readSequence(data.mBuffer);
+                return (0 == sequence % 3) ? null : data; //refuse every third write
+            }
+        });
+        mClient.setHandler(new CharacteristicHandler() {
+            @Override
+            public GattData handleCharacteristic (GattData data) {
+                if (GattData.STATUS_SUCCESS == data.mStatus) {
+                    mRecorder.completed(data.getLong(), data.mTimestamp, NOW, DATA_SIZE);
+                } else {
+                    mRecorder.failed();
+                }
+                mDone.countDown();
+                return data;
+            }
+        });
+        mLink.getServerEnd().start(false);
+        mClient.start(false);
+    }
+
+    @After
+    public void tearDown () {
+        mLink.close();
+    }
+
+    @Test
+    public void openLoop_failedWritesKeepLatenciesAligned () throws Exception {
+        mRecorder.start(PERIOD, true, false);
+        assertTrue(mRecorder.isOpenLoop());
+        sendWrites();
+
+        //write i was due i periods before NOW
+        assertEquals(WRITES, mRecorder.getCompletedCount());
+        assertEquals((WRITES + 2) / 3, mRecorder.getFailedCount());
+        int recorded = 0;
+        for (int i = 0; i < WRITES; ++i) {
+            if (0 != i % 3) {
+                assertEquals("write " + i, i * PERIOD, mLatencies.get(recorded++));
+            }
+        }
+        assertEquals(recorded, mLatencies.size());
+        assertEquals(recorded, mHistogram.getTotalCount());
+
+        //send times are by write: the link's stamps, in order, and none for failures
+        assertEquals(WRITES, mSendTimes.size());
+        long last = 0;
+        for (int i = 0; i < WRITES; ++i) {
+            if (0 == i % 3) {
+                assertEquals("write " + i, -1, mSendTimes.get(i));
+            } else {
+                assertTrue("write " + i, 0 < mSendTimes.get(i) && last <= mSendTimes.get(i));
+                last = mSendTimes.get(i);
+            }
+        }
+    }
+
+    @Test
+    public void closedLoop_recordsOpLatency () throws Exception {
+        mRecorder.start(PERIOD, false, false);
+        assertFalse(mRecorder.isOpenLoop());
+        sendWrites();
+
+        for (int i = 0; i < mLatencies.size(); ++i) {
+            assertTrue(mLatencies.get(i) < NOW / 2); //the loopback's own timing, not NOW - due
+        }
+    }
+
+    @Test
+    public void unpaced_isNeverOpenLoop () {
+        mRecorder.start(0, true, true);
+        assertFalse(mRecorder.isOpenLoop());
+    }
+
+    @Test
+    public void correctedClosedLoop_backfillsHistogram () {
+        mRecorder.start(PERIOD, false, true);
+        mRecorder.completed(10 * PERIOD, NOW, NOW, DATA_SIZE);
+
+        assertEquals(1, mLatencies.size());
+        assertEquals(10, mHistogram.getTotalCount()); //10, 9, ... 1 periods
+    }
+
+    @Test
+    public void completionsAndFailures_fromDifferentThreads () throws Exception {
+        mRecorder.start(PERIOD, true, false);
+        final int each = 100000;
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread failing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < each; ++i) {
+                    mRecorder.failed();
+                }
+            }
+        });
+        failing.start();
+        go.countDown();
+        for (int i = 0; i < each; ++i) {
+            mRecorder.completed(0, NOW, NOW, DATA_SIZE);
+        }
+        failing.join(5000);
+
+        assertEquals(2 * each, mRecorder.getCompletedCount());
+        assertEquals(each, mRecorder.getFailedCount());
+        assertEquals(each, mLatencies.size());
+    }
+
+    private void sendWrites () throws InterruptedException {
+        for (int i = 0; i < WRITES; ++i) {
+            byte [] value = new byte[DATA_SIZE];
+            SequenceTracker.writeSequence(value, i);
+            mRecorder.setIntended(i, NOW - i * PERIOD);
+            mClient.handleCharacteristic(new GattData(LoopbackTransport.SERVER_ADDRESS,
+                    BenchmarkProfile.TEST_CHAR, value));
+        }
+        assertTrue("timed out", mDone.await(5, TimeUnit.SECONDS));
+    }
+}
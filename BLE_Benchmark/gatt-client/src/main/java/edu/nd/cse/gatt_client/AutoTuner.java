@@ -0,0 +1,485 @@
+package edu.nd.cse.gatt_client;
+
+import edu.nd.cse.benchmarkcommon.BenchmarkProfile;
+import edu.nd.cse.benchmarkcommon.ClockSync;
+import edu.nd.cse.benchmarkcommon.GattClientTransport;
+import edu.nd.cse.benchmarkcommon.SequenceTracker;
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the configuration with the highest throughput between this phone
+ * and a server by successive halving, instead of a full grid sweep.
+ *
+ * Every candidate gets a short probe run. The faster half goes on to the
+ * next round, where each probe runs twice as long, until one wins, so
+ * most of the time goes to the candidates that are worth measuring well.
+ * Probes run one after the other over a single connection, reconfigured
+ * between runs as in BenchmarkSweep, and are scored by the bytes they moved
+ * over their duration.
+ *
+ * Live throughput is watched while a probe runs: once half of it has gone
+ * by, a probe doing less than a quarter of the best finished probe of the
+ * round is stopped early, since it would not survive anyway.
+ *
+ * Many stacks only let the MTU go up on an open connection, so each round
+ * runs its candidates in increasing MTU order and every probe records the
+ * MTU it actually got.
+ */
+public class AutoTuner {
+    private static final String TAG = AutoTuner.class.getSimpleName();
+
+    private final long DEFAULT_PROBE_DURATION = 1000; //ms, first round
+    private final long DEFAULT_RUN_TIMEOUT = 30000; //ms on top of a probe's duration
+    private final long LIVE_METRICS_PERIOD = 250; //ms
+    private final double CUT_SHORT_FRACTION = 0.25; //of the round's best
+
+    /**
+     * One configuration to try
+     */
+    public static class Config {
+        public final int mMtu;
+        public final int mConnInterval;
+        public final int mCommMethod;
+        public final float mPayloadFraction; //of the full ATT payload
+
+        public Config (int mtu, int connInterval, int commMethod, float payloadFraction) {
+            mMtu = mtu;
+            mConnInterval = connInterval;
+            mCommMethod = commMethod;
+            mPayloadFraction = payloadFraction;
+        }
+
+        @Override
+        public String toString () {
+            return "mtu " + mMtu + ", interval " + mConnInterval + ", method " + mCommMethod
+                    + ", payload " + mPayloadFraction;
+        }
+    }
+
+    /**
+     * One probe run: an entry of the search trace
+     */
+    public static class Probe {
+        public final int mRound;
+        public final Config mConfig;
+        public final long mDuration; //ms planned
+        public final int mMtu; //actually used
+        public final int mDataSize; //actually used
+        public final long mBytes;
+        public final double mThroughput; //bytes/s, 0 on error
+        public final boolean mCutShort;
+        public final String mError; //null if the probe ran
+
+        Probe (int round, Config config, long duration, int mtu, int dataSize, long bytes,
+               double throughput, boolean cutShort, String error) {
+            mRound = round;
+            mConfig = config;
+            mDuration = duration;
+            mMtu = mtu;
+            mDataSize = dataSize;
+            mBytes = bytes;
+            mThroughput = throughput;
+            mCutShort = cutShort;
+            mError = error;
+        }
+
+        @Override
+        public String toString () {
+            return "round " + mRound + " (" + mConfig + "): "
+                    + ((null == mError) ? Math.round(mThroughput) + " B/s at mtu " + mMtu
+                            + ", size " + mDataSize + (mCutShort ? ", cut short" : "")
+                    : "error " + mError);
+        }
+    }
+
+    /**
+     * Told about the progress of the search. Called on the main thread.
+     */
+    public interface TunerListener {
+        public void onProbeStart (int round, Config config);
+
+        public void onProbeComplete (Probe probe);
+
+        /**
+         * @param round - the round just finished
+         * @param survivors - the candidates going on to the next round
+         */
+        public void onRoundComplete (int round, List<Config> survivors);
+
+        /**
+         * @param best - the last probe of the winning configuration, null if
+         *             no candidate could be run
+         * @param trace - every probe, in order
+         */
+        public void onTuningComplete (Probe best, List<Probe> trace);
+    }
+
+    private final BenchmarkProfileClient mClient;
+    private final TunerListener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private long mProbeDuration = DEFAULT_PROBE_DURATION;
+    private long mRunTimeout = DEFAULT_RUN_TIMEOUT;
+
+    private final List<Probe> mTrace = new ArrayList<Probe>();
+    private List<Config> mQueue = new ArrayList<Config>(); //left to probe this round
+    private List<Probe> mRoundProbes = new ArrayList<Probe>();
+    private int mRound = 0;
+    private long mDuration;
+
+    private Config mCurrent = null;
+    private volatile int mProbeCount = 0; //tells callbacks for an earlier probe from current ones
+    private long mCurrentStart = 0; //ns, 0 until the profile starts sending
+    private boolean mCutShort = false;
+    private double mRoundBest = 0; //best throughput of the round so far
+
+    private boolean mPrepared = false;
+    private volatile boolean mConnected = false;
+    private String mServerID = "?";
+
+    /**
+     * @param transport - the GATT client to run over, e.g. a GattClient
+     * @param listener - told about each probe
+     */
+    public AutoTuner (GattClientTransport transport, TunerListener listener) {
+        mClient = new BenchmarkProfileClient(transport, mCallback);
+        mClient.setClockProbes(0); //probes only need throughput
+        mClient.setLiveMetricsPeriod(LIVE_METRICS_PERIOD);
+        mListener = listener;
+    }
+
+    /**
+     * Every combination of the given parameters
+     *
+     * @param mtus - MTUs to try
+     * @param connIntervals - connection priorities to try
+     * @param commMethods - methods (as in BenchmarkProfile) to try
+     * @param payloadFractions - data sizes to try, as fractions of the full
+     *                         ATT payload at the MTU used
+     * @return the candidates
+     */
+    public static List<Config> candidates (int [] mtus, int [] connIntervals, int [] commMethods,
+                                           float [] payloadFractions) {
+        List<Config> candidates = new ArrayList<Config>();
+        for (int mtu : mtus) {
+            for (int interval : connIntervals) {
+                for (int method : commMethods) {
+                    for (float fraction : payloadFractions) {
+                        candidates.add(new Config(mtu, interval, method, fraction));
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @param ms - duration of each probe in the first round; it doubles
+     *           every round
+     */
+    public void setProbeDuration (long ms) {
+        mProbeDuration = ms;
+    }
+
+    /**
+     * @param ms - how long a probe may take on top of its duration before it
+     *           is given up on
+     */
+    public void setRunTimeout (long ms) {
+        mRunTimeout = ms;
+    }
+
+    /**
+     * @param window - as BenchmarkProfileClient.setPipelineWindow, for every probe
+     */
+    public void setPipelineWindow (int window) {
+        mClient.setPipelineWindow(window);
+    }
+
+    /**
+     * Connect and search
+     *
+     * @param candidates - the configurations to choose from, e.g. from candidates()
+     */
+    public void start (List<Config> candidates) {
+        mTrace.clear();
+        mRound = 0;
+        mDuration = mProbeDuration;
+        startRound(new ArrayList<Config>(candidates));
+    }
+
+    /**
+     * Disconnect. The search stops where it is.
+     */
+    public void cleanup () {
+        mHandler.removeCallbacksAndMessages(null);
+        mClient.cleanup();
+    }
+
+    public String getServerID () {
+        return mServerID;
+    }
+
+    /**
+     * @return every probe so far, in order
+     */
+    public List<Probe> getTrace () {
+        return mTrace;
+    }
+
+    private void startRound (List<Config> candidates) {
+        Collections.sort(candidates, new Comparator<Config>() {
+            @Override
+            public int compare (Config a, Config b) {
+                return Integer.compare(a.mMtu, b.mMtu);
+            }
+        });
+        mQueue = candidates;
+        mRoundProbes = new ArrayList<Probe>();
+        mRoundBest = 0;
+        mHandler.post(mNextProbe);
+    }
+
+    /**
+     * Keep the faster half of the round, or finish once one is left
+     */
+    private void endRound () {
+        List<Probe> ranked = new ArrayList<Probe>();
+        for (Probe probe : mRoundProbes) {
+            if (null == probe.mError) {
+                ranked.add(probe);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Probe>() {
+            @Override
+            public int compare (Probe a, Probe b) {
+                return Double.compare(b.mThroughput, a.mThroughput);
+            }
+        });
+
+        //with two left the faster one is the only survivor: no need to run it again
+        if (ranked.size() <= 2) {
+            Probe best = ranked.isEmpty() ? null : ranked.get(0);
+            Log.d(TAG, "best: " + best);
+            mListener.onTuningComplete(best, mTrace);
+            return;
+        }
+
+        List<Config> survivors = new ArrayList<Config>();
+        for (int i = 0; i < (ranked.size() + 1) / 2; ++i) {
+            survivors.add(ranked.get(i).mConfig);
+        }
+        mListener.onRoundComplete(mRound, survivors);
+
+        ++mRound;
+        mDuration *= 2;
+        startRound(survivors);
+    }
+
+    /**
+     * Start the next probe of the round, or end the round. The first probe
+     * connects; the rest reuse the connection.
+     */
+    private Runnable mNextProbe = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(mProbeTimedOut);
+            if (mQueue.isEmpty()) {
+                mCurrent = null;
+                endRound();
+                return;
+            }
+
+            mCurrent = mQueue.remove(0);
+            ++mProbeCount;
+            mCurrentStart = 0;
+            mCutShort = false;
+            Log.d(TAG, "round " + mRound + ": " + mCurrent);
+            mListener.onProbeStart(mRound, mCurrent);
+
+            if (1 <= mCurrent.mPayloadFraction) {
+                mClient.setPayloadSizing(BenchmarkProfile.SIZE_FULL, 1);
+            } else {
+                mClient.setPayloadSizing(BenchmarkProfile.SIZE_FRACTION, mCurrent.mPayloadFraction);
+            }
+
+            //the data size is worked out from the MTU
+            if (!mPrepared) {
+                mPrepared = true;
+                mClient.prepare(mCurrent.mMtu, mCurrent.mConnInterval, 0, mCurrent.mCommMethod);
+            } else if (!mConnected) {
+                //still scanning after a whole probe's time: nothing else will work either
+                finishProbe("never connected");
+                mQueue.clear();
+                mRoundProbes.clear();
+                mHandler.post(this);
+                return;
+            } else {
+                mClient.reconfigure(mCurrent.mMtu, mCurrent.mConnInterval, 0,
+                        mCurrent.mCommMethod);
+            }
+            mClient.beginBenchmark(mDuration, true);
+
+            mHandler.postDelayed(mProbeTimedOut, mDuration + mRunTimeout);
+        }
+    };
+
+    private Runnable mProbeTimedOut = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, mCurrent + " timed out");
+            finishProbe("did not finish in time");
+            mNextProbe.run();
+        }
+    };
+
+    /**
+     * Record the probe in flight in the trace
+     *
+     * @param error - why it failed, null if it ran
+     */
+    private void finishProbe (String error) {
+        long bytes = mClient.getBytesSent();
+        double throughput = 0;
+        if (null == error) {
+            long elapsed = SystemClock.elapsedRealtimeNanos() - mCurrentStart;
+            throughput = (0 < mCurrentStart && 0 < elapsed) ? bytes * 1e9 / elapsed : 0;
+            mRoundBest = Math.max(mRoundBest, throughput);
+        }
+
+        Probe probe = new Probe(mRound, mCurrent, mDuration, mClient.getMtu(),
+                mClient.getDataSize(), bytes, throughput, mCutShort, error);
+        mTrace.add(probe);
+        mRoundProbes.add(probe);
+        mCurrent = null;
+        mListener.onProbeComplete(probe);
+    }
+
+    /**
+     * Stop a probe that is far behind the best of the round, once it has
+     * had half of its time
+     */
+    private void checkProgress (SlidingWindowMetrics.Snapshot metrics) {
+        if (null == mCurrent || 0 == mCurrentStart || mCutShort || 0 == mRoundBest) {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - mCurrentStart;
+        if (elapsed * 2 >= mDuration * 1000000
+                && metrics.mBytesPerSecond < mRoundBest * CUT_SHORT_FRACTION) {
+            Log.d(TAG, "cutting " + mCurrent + " short at " + metrics);
+            mCutShort = true;
+            mClient.endBenchmark();
+        }
+    }
+
+    /**
+     * Drives the search from the profile's callbacks, which may arrive on
+     * other threads, so everything is moved to the main thread
+     */
+    private BenchmarkProfileClientCallback mCallback = new BenchmarkProfileClientCallback() {
+        @Override
+        public void onBenchmarkStart () {
+            final int probe = mProbeCount;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != mCurrent && probe == mProbeCount) {
+                        mCurrentStart = SystemClock.elapsedRealtimeNanos();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onBenchmarkComplete () {
+            final int probe = mProbeCount;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (null == mCurrent || probe != mProbeCount) {
+                        return;
+                    }
+                    if ("?".equals(mServerID)) {
+                        mClient.requestServerID();
+                    }
+                    finishProbe(null);
+                    mNextProbe.run();
+                }
+            });
+        }
+
+        @Override
+        public void onLatencyMeasurementsAvailable (long [] clientMeasurements,
+                                                    long [] serverMeasurements) {
+        }
+
+        @Override
+        public void onBenchmarkError (final int code, final String details) {
+            final int probe = mProbeCount;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (null == mCurrent || probe != mProbeCount) {
+                        return;
+                    }
+                    finishProbe(code + ": " + details);
+                    mNextProbe.run();
+                }
+            });
+        }
+
+        @Override
+        public void onStartupLatencyAvailable (long startLatency) {
+            mConnected = true;
+        }
+
+        @Override
+        public void onServerIDAvailable (String id) {
+            mServerID = id;
+        }
+
+        @Override
+        public void onRawDataAvailable (long [] data) {
+        }
+
+        @Override
+        public void onBytesSentAvailable (long bytesSent) {
+        }
+
+        @Override
+        public void onThroughputAvailable (float throughput) {
+        }
+
+        @Override
+        public void onLossRateAvailable (float lossRate) {
+        }
+
+        @Override
+        public void onSequenceStatsAvailable (SequenceTracker.Stats stats) {
+        }
+
+        @Override
+        public void onLiveMetricsAvailable (final SlidingWindowMetrics.Snapshot metrics) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    checkProgress(metrics);
+                }
+            });
+        }
+
+        @Override
+        public void onOneWayLatencyAvailable (long [] oneWay, ClockSync clock) {
+        }
+    };
+}
@@ -1,6 +1,10 @@
 package edu.nd.cse.gatt_client;
 
-import edu.nd.cse.benchmarkcommon.SaveToFileRunnable;
+import edu.nd.cse.benchmarkcommon.ClockSync;
+import edu.nd.cse.benchmarkcommon.ResultFile;
+import edu.nd.cse.benchmarkcommon.ResultSink;
+import edu.nd.cse.benchmarkcommon.SequenceTracker;
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
 import edu.nd.cse.benchmarkcommon.BluetoothRestarter;
 import edu.nd.cse.benchmarkcommon.BenchmarkProfile;
 
@@ -20,6 +24,7 @@ import android.os.Build;
 import java.io.File;
 import java.sql.Timestamp;
 import java.util.Date;
+import java.util.List;
 import java.text.SimpleDateFormat;
 
 
@@ -37,6 +42,9 @@ public class BenchmarkClient extends Activity{
 
     /* Profile related things */
     private BenchmarkProfileClient mBenchmarkClient;
+    private BenchmarkSweep mSweep;
+    private MultiServerBenchmark mMultiServer;
+    private AutoTuner mTuner;
 
     /* Default parameters */
     private final int DEFAULT_MTU = 23;
@@ -45,17 +53,32 @@ public class BenchmarkClient extends Activity{
     private final int DEFAULT_CONN_INTERVAL = 0;
     private final int DEFAULT_DURATION = 10000;
     private final int DEFAULT_DURATION_IS_TIME  = 1;
+    private final int DEFAULT_PIPELINE_WINDOW = 1;
+    private final int DEFAULT_REPETITIONS = 1;
+    private final int DEFAULT_SERVERS = 1;
+    private final int DEFAULT_LIVE_METRICS_PERIOD = 1000; //ms, 0 for none
+    private final int DEFAULT_CLOCK_PROBES = ClockSync.DEFAULT_PROBES; //per burst, 0 for none
+    private final float DEFAULT_PAYLOAD_FRACTION = 1;
 
-    private Thread mWriteStartupLatencyThread = null;
-    private Thread mWritePayloadLatencyThread = null;
-    private Thread mWriteOpLatencyThread = null;
-    private Thread mWriteJitterThread = null;
+    /* Default search space of the tuner */
+    private final int [] DEFAULT_TUNE_MTUS = {23, 185, 247, 517};
+    private final int [] DEFAULT_TUNE_CONN_INTERVALS = {0, 1, 2};
+    private final int [] DEFAULT_TUNE_COMM_METHODS = {BenchmarkProfile.WRITE_REQ,
+            BenchmarkProfile.WRITE_CMD, BenchmarkProfile.READ, BenchmarkProfile.NOTIFY};
+    private final float [] DEFAULT_TUNE_PAYLOAD_FRACTIONS = {1};
+    private final int DEFAULT_PROBE_DURATION = 1000; //ms, first round
+
+    private final long RESULT_WRITE_TIMEOUT = 10000; //ms
+
+    private ResultSink mResultSink = new ResultSink();
 
     private String mServerID = new String ("?");
     private long mStartupLatency = 0;
 
     private Handler mCloseHandler = new Handler();
 
+    private String mRunTag = ""; //added to result file names so runs of a sweep don't collide
+
 
     /**
      * Convenience method to write text to the screen
@@ -141,6 +164,33 @@ public class BenchmarkClient extends Activity{
     }
 
 
+    private File resultFile (String name, String extension) {
+        String timeSuffix = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+        return new File(this.getExternalFilesDir(null), name + "-" + timeSuffix + mRunTag + extension);
+    }
+
+    private File resultFile (String name) {
+        return resultFile(name, ".csv");
+    }
+
+    /**
+     * Write the op latencies and server timestamps to one binary, columnar
+     * file (see ResultFile). Both series are stored as deltas.
+     *
+     * @param mtu the link layer maximum transmission unit used for the test
+     * @param comm_method the method of communication used for the test
+     * @param opLatency the times from the initiation of an op to its return
+     * @param serverTimes the timestamps (since the start) of consecutive messages
+     */
+    private void writeResultFile (String clientID, String serverID,
+                                  int mtu, String comm_method, int connInt,
+                                  long [] opLatency, long [] serverTimes) {
+        ResultFile results = new ResultFile(clientID, serverID, mtu, comm_method, connInt)
+                .addColumn("latency_op_return", opLatency, ResultFile.DELTA)
+                .addColumn("jitter", serverTimes, ResultFile.DELTA);
+        mResultSink.write(resultFile("results", ".blr"), results);
+    }
+
     /**
      * Write the recorded start-up latency to a file
      *
@@ -151,15 +201,8 @@ public class BenchmarkClient extends Activity{
     private void writeStartupLatencyToFile(String clientID, String serverID,
                                     int mtu, String comm_method, int connInt,
                                     long latencyStartup) {
-        String timeSuffix = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
-        File file = new File(this.getExternalFilesDir(null), "latency_startup-" + timeSuffix + ".csv");
-        StringBuilder out = new StringBuilder("client_device_id, server_device_id, phone_vendor, bt_version, bt_vendor, mtu, comm_method, conn_int, latency_startup\n");
-        out.append(clientID + ", " + serverID + ", unknown, unknown, unknown, " + String.valueOf(mtu)
-                + ", " + comm_method + "," + connInt + "," + String.valueOf(latencyStartup) +
-                "\n");
-
-        mWriteStartupLatencyThread = new Thread(new SaveToFileRunnable(file, out.toString().getBytes(), false));
-        mWriteStartupLatencyThread.start();
+        mResultSink.write(resultFile("latency_startup"), ResultFile.csvHeader("latency_startup"),
+                ResultFile.csvRowPrefix(clientID, serverID, mtu, comm_method, connInt), latencyStartup);
     }
 
     /**
@@ -172,15 +215,8 @@ public class BenchmarkClient extends Activity{
     private void writePayloadLatencyToFile ( String clientID, String serverID,
                                             int mtu, String comm_method, int connInt,
                                             long latencyPayload) {
-        String timeSuffix = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
-        File file = new File(this.getExternalFilesDir(null), "latency_payload-" + timeSuffix + ".csv");
-        StringBuilder out = new StringBuilder("client_device_id, server_device_id, phone_vendor, bt_version, bt_vendor, mtu, comm_method, conn_int, latency_payload\n");
-        out.append(clientID + ", " + serverID + ", unknown, unknown, unknown, " + String.valueOf(mtu)
-                + ", " + comm_method + "," + connInt + "," + String.valueOf(latencyPayload) +
-                "\n");
-
-        mWritePayloadLatencyThread = new Thread(new SaveToFileRunnable(file, out.toString().getBytes(), false));
-        mWritePayloadLatencyThread.start();
+        mResultSink.write(resultFile("latency_payload"), ResultFile.csvHeader("latency_payload"),
+                ResultFile.csvRowPrefix(clientID, serverID, mtu, comm_method, connInt), latencyPayload);
     }
 
     /**
@@ -193,17 +229,40 @@ public class BenchmarkClient extends Activity{
     private void writeOpLatencyToFile (     String clientID, String serverID,
                                             int mtu, String comm_method, int connInt,
                                             long [] opLatency) {
-        String timeSuffix = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
-        File file = new File(this.getExternalFilesDir(null), "latency_op_return-" + timeSuffix + ".csv");
-        StringBuilder out = new StringBuilder("client_device_id, server_device_id, phone_vendor, bt_version, bt_vendor, mtu, comm_method, conn_int, latency_op_return\n");
+        mResultSink.write(resultFile("latency_op_return"), ResultFile.csvHeader("latency_op_return"),
+                ResultFile.csvRowPrefix(clientID, serverID, mtu, comm_method, connInt), opLatency, false);
+    }
 
-        for (long time : opLatency) {
-            out.append(clientID + ", " + serverID + ", unknown, unknown, unknown, " + String.valueOf(mtu)
-                    + ", " + comm_method + "," + connInt + "," + String.valueOf(time) +
-                    "\n");
-        }
-        mWriteOpLatencyThread = new Thread(new SaveToFileRunnable(file, out.toString().getBytes(), false));
-        mWriteOpLatencyThread.start();
+    /**
+     * Write the one-way latency of every packet to a file
+     *
+     * @param mtu the link layer maximum transmission unit used for the test
+     * @param comm_method the method of communication used for the test
+     * @param oneWay the times from one side sending a packet to the other receiving it
+     */
+    private void writeOneWayLatencyToFile (String clientID, String serverID,
+                                           int mtu, String comm_method, int connInt,
+                                           long [] oneWay) {
+        mResultSink.write(resultFile("latency_one_way"), ResultFile.csvHeader("latency_one_way"),
+                ResultFile.csvRowPrefix(clientID, serverID, mtu, comm_method, connInt), oneWay, false);
+    }
+
+    /**
+     * Write the loss, duplicate and reordering counts to a file
+     *
+     * @param mtu the link layer maximum transmission unit used for the test
+     * @param comm_method the method of communication used for the test
+     * @param stats the counts from the receiving side
+     */
+    private void writeLossToFile (String clientID, String serverID,
+                                  int mtu, String comm_method, int connInt,
+                                  SequenceTracker.Stats stats) {
+        mResultSink.write(resultFile("loss"),
+                ResultFile.csvHeader("received, lost, duplicates, reordered, max_reorder_distance"),
+                ResultFile.csvRowPrefix(clientID, serverID, mtu, comm_method, connInt)
+                        + stats.mReceived + ", " + stats.mLost + ", " + stats.mDuplicates + ", "
+                        + stats.mReordered + ", ",
+                stats.mMaxReorderDistance);
     }
 
     /**
@@ -216,17 +275,8 @@ public class BenchmarkClient extends Activity{
     private void writeJitterToFile (   String clientID, String serverID,
                                        int mtu, String comm_method, int connInt,
                                        long [] jitter) {
-        String timeSuffix = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
-        File file = new File(this.getExternalFilesDir(null), "jitter-" + timeSuffix + ".csv");
-        StringBuilder out = new StringBuilder("client_device_id, server_device_id, phone_vendor, bt_version, bt_vendor, mtu, comm_method, conn_int, jitter\n");
-
-        for (long time : jitter) {
-            out.append(clientID + ", " + serverID + ", unknown, unknown, unknown, " + String.valueOf(mtu)
-                    + ", " + comm_method + "," + connInt + "," + String.valueOf(time) +
-                    "\n");
-        }
-        mWriteJitterThread = new Thread(new SaveToFileRunnable(file, out.toString().getBytes(), false));
-        mWriteJitterThread.start();
+        mResultSink.write(resultFile("jitter"), ResultFile.csvHeader("jitter"),
+                ResultFile.csvRowPrefix(clientID, serverID, mtu, comm_method, connInt), jitter, false);
     }
 
     /**
@@ -259,6 +309,31 @@ public class BenchmarkClient extends Activity{
         return retStr;
     }
 
+    /**
+     * Describe the data size for the UI
+     *
+     * @param dataSize the data size given, used for SIZE_FIXED
+     * @param payloadSizing how the data size is chosen, as defined in BenchmarkProfile
+     * @param payloadFraction the share of the full size for SIZE_FRACTION
+     * @return e.g. "20" or "full ATT payload"
+     */
+    private String getDataSizeString (int dataSize, int payloadSizing, float payloadFraction) {
+        String retStr;
+        switch (payloadSizing) {
+            case BenchmarkProfile.SIZE_FULL:
+                retStr = "full ATT payload";
+                break;
+            case BenchmarkProfile.SIZE_FRACTION:
+                retStr = payloadFraction + " of the ATT payload";
+                break;
+            default:
+                retStr = String.valueOf(dataSize);
+                break;
+        }
+
+        return retStr;
+    }
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -284,16 +359,72 @@ public class BenchmarkClient extends Activity{
         final int duration = receiveBundle.getInt("duration", DEFAULT_DURATION);
         final int durationIsTime = receiveBundle.getInt("durationIsTime", DEFAULT_DURATION_IS_TIME);
         final int commMethod = receiveBundle.getInt("commMethod", DEFAULT_COMM_METHOD);
+        final int pipelineWindow = receiveBundle.getInt("pipelineWindow", DEFAULT_PIPELINE_WINDOW);
+        final int liveMetricsPeriod = receiveBundle.getInt("liveMetricsPeriod", DEFAULT_LIVE_METRICS_PERIOD);
+        final int clockProbes = receiveBundle.getInt("clockProbes", DEFAULT_CLOCK_PROBES);
+        //unless told a data size, fill the whole ATT payload of whatever MTU is negotiated
+        final boolean sizeGiven = receiveBundle.containsKey("dataSize") || receiveBundle.containsKey("dataSizes");
+        final int payloadSizing = receiveBundle.getInt("payloadSizing",
+                sizeGiven ? BenchmarkProfile.SIZE_FIXED : BenchmarkProfile.SIZE_FULL);
+        final float payloadFraction = receiveBundle.getFloat("payloadFraction", DEFAULT_PAYLOAD_FRACTION);
+        //writes are sent as fast as the GATT queue takes them unless given a rate
+        final float opsPerSecond = receiveBundle.getFloat("opsPerSecond", 0);
+        final float bytesPerSecond = receiveBundle.getFloat("bytesPerSecond", 0);
+        final int openLoop = receiveBundle.getInt("openLoop", 0);
+        final int correctOmission = receiveBundle.getInt("correctOmission", 0);
 
 
         mUpdates = (TextView) findViewById(R.id.updates);
 
+        final int servers = receiveBundle.getInt("servers", DEFAULT_SERVERS);
+        if (1 < servers) {
+            runMultiServer(servers, mtu, connInterval, dataSize, commMethod, pipelineWindow,
+                    payloadSizing, payloadFraction, duration, 1 == durationIsTime);
+            return;
+        }
+
+        if (1 == receiveBundle.getInt("tune", 0)) {
+            float [] fractions = receiveBundle.getFloatArray("payloadFractions");
+            runTuner(AutoTuner.candidates(
+                    getIntArray(receiveBundle, "mtus", DEFAULT_TUNE_MTUS),
+                    getIntArray(receiveBundle, "connIntervals", DEFAULT_TUNE_CONN_INTERVALS),
+                    getIntArray(receiveBundle, "commMethods", DEFAULT_TUNE_COMM_METHODS),
+                    (null == fractions || 0 == fractions.length) ? DEFAULT_TUNE_PAYLOAD_FRACTIONS : fractions),
+                    pipelineWindow, receiveBundle.getInt("probeDuration", DEFAULT_PROBE_DURATION));
+            return;
+        }
+
+        //any list of values turns the run into a sweep over all combinations
+        if (null != receiveBundle.getIntArray("mtus") || null != receiveBundle.getIntArray("connIntervals")
+                || null != receiveBundle.getIntArray("dataSizes") || null != receiveBundle.getIntArray("commMethods")) {
+            runSweep(BenchmarkSweep.plan(
+                    getIntArray(receiveBundle, "mtus", mtu),
+                    getIntArray(receiveBundle, "connIntervals", connInterval),
+                    getIntArray(receiveBundle, "dataSizes", dataSize),
+                    getIntArray(receiveBundle, "commMethods", commMethod),
+                    receiveBundle.getInt("repetitions", DEFAULT_REPETITIONS)),
+                    pipelineWindow, payloadSizing, payloadFraction, duration, 1 == durationIsTime);
+            return;
+        }
+
         writeUpdate("Parameters:");
         //Here we append a text version of all of the parameters
         writeUpdate("\tMethod: " + getCommMethodString(commMethod));
         writeUpdate("\tMTU: " + String.valueOf(mtu));
-        writeUpdate("\tData Size: " + String.valueOf(dataSize));
+        writeUpdate("\tData Size: " + getDataSizeString(dataSize, payloadSizing, payloadFraction));
         writeUpdate("\tConn Interval: " + String.valueOf(connInterval));
+        writeUpdate("\tPipeline Window: " + String.valueOf(pipelineWindow));
+        if (0 < bytesPerSecond) {
+            writeUpdate("\tTarget Rate: " + String.valueOf(bytesPerSecond) + " bytes/s");
+        } else if (0 < opsPerSecond) {
+            writeUpdate("\tTarget Rate: " + String.valueOf(opsPerSecond) + " ops/s");
+        }
+        if (1 == openLoop) {
+            writeUpdate("\tOpen Loop: latency from intended send time");
+        } else if (1 == correctOmission) {
+            writeUpdate("\tCoordinated Omission Correction: on");
+        }
+        writeUpdate("\tClock Probes: " + String.valueOf(clockProbes));
         writeUpdate("\tDuration: " + String.valueOf(duration) + (1 == durationIsTime? " ms" : " bytes"));
         writeUpdate("\tClient ID: " + Build.DISPLAY);
         writeUpdate("----------------------------");
@@ -329,7 +460,7 @@ public class BenchmarkClient extends Activity{
             }
 
             @Override
-            public void onRawDataAvailable (String [] data){
+            public void onRawDataAvailable (long [] data){
                 //nothing
             }
 
@@ -343,6 +474,12 @@ public class BenchmarkClient extends Activity{
                 writeUpdate("Loss Rate: " + lossRate);
             }
 
+            @Override
+            public void onSequenceStatsAvailable (SequenceTracker.Stats stats) {
+                writeUpdate("Sequence: " + stats);
+                writeLossToFile(Build.DISPLAY, mServerID, mtu, getCommMethodString(commMethod), connInterval, stats);
+            }
+
             @Override
             public void onBenchmarkError (final int code, final String details) {
                 writeUpdate("Error " + code + ": " + details);
@@ -354,24 +491,29 @@ public class BenchmarkClient extends Activity{
                 writeUpdate(clientMeasurements.length + " client measurements available");
                 writeUpdate(serverMeasurements.length + " server measurements available");
                 mBenchmarkClient.requestThroughput();
+                mBenchmarkClient.requestLossRate();
                 writeUpdate("Writing results to file...");
                 writeStartupLatencyToFile (Build.DISPLAY, mServerID, mtu, getCommMethodString(commMethod), connInterval, mStartupLatency);
                 writePayloadLatencyToFile(Build.DISPLAY, mServerID, mtu, getCommMethodString(commMethod), connInterval, serverMeasurements[serverMeasurements.length - 1]);
                 writeOpLatencyToFile(Build.DISPLAY,mServerID, mtu, getCommMethodString(commMethod), connInterval, clientMeasurements);
                 writeJitterToFile(Build.DISPLAY,mServerID, mtu, getCommMethodString(commMethod), connInterval, serverMeasurements);
+                writeResultFile(Build.DISPLAY,mServerID, mtu, getCommMethodString(commMethod), connInterval, clientMeasurements, serverMeasurements);
 
                 mCloseHandler.postDelayed(new Runnable() {
                     public void run() {
                         /* Wait for writes to be done and then exit */
                         try {
-                            mWriteStartupLatencyThread.join();
-                            mWritePayloadLatencyThread.join();
-                            mWriteOpLatencyThread.join();
-                            mWriteJitterThread.join();
+                            if (!mResultSink.close(RESULT_WRITE_TIMEOUT)) {
+                                Log.w(TAG, "result writes did not finish");
+                            }
                         } catch (InterruptedException e){
                             //meh
                             Log.w(TAG, "writes were interrupted");
                         }
+                        if (0 < mResultSink.getErrorCount()) {
+                            Log.e(TAG, mResultSink.getErrorCount() + " result files failed",
+                                    mResultSink.getLastError());
+                        }
 
                         mBenchmarkClient.cleanup();
 
@@ -388,12 +530,334 @@ public class BenchmarkClient extends Activity{
                 writeUpdate("Server ID: " + id);
                 mServerID = id;
             }
+
+            @Override
+            public void onLiveMetricsAvailable (SlidingWindowMetrics.Snapshot metrics) {
+                writeUpdate("Live: " + metrics);
+            }
+
+            @Override
+            public void onOneWayLatencyAvailable (long [] oneWay, ClockSync clock) {
+                writeUpdate("Server clock: " + clock);
+                writeOneWayLatencyToFile(Build.DISPLAY, mServerID, mtu, getCommMethodString(commMethod), connInterval, oneWay);
+            }
         });
 
+        mBenchmarkClient.setPipelineWindow(pipelineWindow);
+        mBenchmarkClient.setLiveMetricsPeriod(liveMetricsPeriod);
+        mBenchmarkClient.setClockProbes(clockProbes);
+        mBenchmarkClient.setPayloadSizing(payloadSizing, payloadFraction);
+        if (0 < bytesPerSecond) {
+            mBenchmarkClient.setTargetRate(bytesPerSecond, true);
+        } else {
+            mBenchmarkClient.setTargetRate(opsPerSecond, false);
+        }
+        mBenchmarkClient.setOpenLoop(1 == openLoop);
+        mBenchmarkClient.setCoordinatedOmissionCorrection(1 == correctOmission);
         mBenchmarkClient.prepare(mtu, connInterval, dataSize, commMethod);
         mBenchmarkClient.beginBenchmark(duration, 1 == durationIsTime);
     }
 
+    /**
+     * @param bundle - the intent's extras
+     * @param key - name of an int array extra
+     * @param fallback - the single value to use if the extra is missing
+     * @return the array
+     */
+    private static int [] getIntArray (Bundle bundle, String key, int fallback) {
+        return getIntArray(bundle, key, new int [] {fallback});
+    }
+
+    /**
+     * @param bundle - the intent's extras
+     * @param key - name of an int array extra
+     * @param fallback - the values to use if the extra is missing
+     * @return the array
+     */
+    private static int [] getIntArray (Bundle bundle, String key, int [] fallback) {
+        int [] values = bundle.getIntArray(key);
+        return (null == values || 0 == values.length) ? fallback : values;
+    }
+
+    /**
+     * Run every configuration of the plan over one connection, writing the
+     * same result files as a single run for each, then exit
+     *
+     * @param plan - the runs, from BenchmarkSweep.plan()
+     * @param pipelineWindow - ops in flight, for every run
+     * @param payloadSizing - how the data size is chosen, for every run
+     * @param payloadFraction - the share of the full size for SIZE_FRACTION
+     * @param duration - duration of each run
+     * @param durationIsTime - whether duration is in ms (or bytes)
+     */
+    private void runSweep (final List<BenchmarkSweep.Run> plan, int pipelineWindow,
+                           int payloadSizing, float payloadFraction,
+                           long duration, boolean durationIsTime) {
+        writeUpdate("Sweep of " + plan.size() + " runs:");
+        writeUpdate("\tPipeline Window: " + String.valueOf(pipelineWindow));
+        if (BenchmarkProfile.SIZE_FIXED != payloadSizing) {
+            writeUpdate("\tData Size: " + getDataSizeString(0, payloadSizing, payloadFraction));
+        }
+        writeUpdate("\tDuration: " + String.valueOf(duration) + (durationIsTime ? " ms" : " bytes"));
+        writeUpdate("\tClient ID: " + Build.DISPLAY);
+        writeUpdate("----------------------------");
+
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        mSweep = new BenchmarkSweep(new GattClient(this, BenchmarkProfile.BENCHMARK_SERVICE),
+                new BenchmarkSweep.SweepListener() {
+            @Override
+            public void onRunStart (BenchmarkSweep.Run run) {
+                writeUpdate("Starting " + run);
+            }
+
+            @Override
+            public void onRunComplete (BenchmarkSweep.Run run, int mtu, long bytesSent,
+                                       long [] clientMeasurements, long [] serverMeasurements) {
+                String method = getCommMethodString(run.mCommMethod);
+                String serverID = mSweep.getServerID();
+                writeUpdate("Run " + run.mIndex + " done: " + bytesSent + " bytes sent, "
+                        + clientMeasurements.length + " client and "
+                        + serverMeasurements.length + " server measurements");
+
+                mRunTag = "-r" + run.mIndex;
+                if (0 == run.mIndex) {
+                    writeStartupLatencyToFile(Build.DISPLAY, serverID, mtu, method, run.mConnInterval, mSweep.getStartupLatency());
+                }
+                if (0 < serverMeasurements.length) {
+                    writePayloadLatencyToFile(Build.DISPLAY, serverID, mtu, method, run.mConnInterval, serverMeasurements[serverMeasurements.length - 1]);
+                }
+                writeOpLatencyToFile(Build.DISPLAY, serverID, mtu, method, run.mConnInterval, clientMeasurements);
+                writeJitterToFile(Build.DISPLAY, serverID, mtu, method, run.mConnInterval, serverMeasurements);
+                writeResultFile(Build.DISPLAY, serverID, mtu, method, run.mConnInterval, clientMeasurements, serverMeasurements);
+                mRunTag = "";
+            }
+
+            @Override
+            public void onRunError (BenchmarkSweep.Run run, int code, String details) {
+                writeUpdate("Run " + (null == run ? "?" : String.valueOf(run.mIndex))
+                        + " error " + code + ": " + details);
+            }
+
+            @Override
+            public void onSweepComplete () {
+                writeUpdate("Sweep complete");
+                try {
+                    if (!mResultSink.close(RESULT_WRITE_TIMEOUT)) {
+                        Log.w(TAG, "result writes did not finish");
+                    }
+                } catch (InterruptedException e){
+                    Log.w(TAG, "writes were interrupted");
+                }
+                if (0 < mResultSink.getErrorCount()) {
+                    Log.e(TAG, mResultSink.getErrorCount() + " result files failed",
+                            mResultSink.getLastError());
+                }
+
+                mSweep.cleanup();
+
+                int pid = android.os.Process.myPid();
+                android.os.Process.killProcess(pid);
+            }
+        });
+
+        mSweep.setPipelineWindow(pipelineWindow);
+        mSweep.setPayloadSizing(payloadSizing, payloadFraction);
+        mSweep.start(plan, duration, durationIsTime);
+    }
+
+    /**
+     * Run the benchmark against several servers at once, writing the usual
+     * result files and throughput for each link plus the aggregate
+     * throughput, then exit
+     *
+     * @param servers - how many servers to connect to
+     * @param pipelineWindow - ops in flight, on every link
+     * @param payloadSizing - how the data size is chosen, on every link
+     * @param payloadFraction - the share of the full size for SIZE_FRACTION
+     * @param duration - duration of the run on each link
+     * @param durationIsTime - whether duration is in ms (or bytes)
+     */
+    private void runMultiServer (final int servers, int mtu, final int connInterval, int dataSize,
+                                 final int commMethod, int pipelineWindow,
+                                 int payloadSizing, float payloadFraction,
+                                 long duration, boolean durationIsTime) {
+        writeUpdate("Parameters:");
+        writeUpdate("\tServers: " + String.valueOf(servers));
+        writeUpdate("\tMethod: " + getCommMethodString(commMethod));
+        writeUpdate("\tMTU: " + String.valueOf(mtu));
+        writeUpdate("\tData Size: " + getDataSizeString(dataSize, payloadSizing, payloadFraction));
+        writeUpdate("\tConn Interval: " + String.valueOf(connInterval));
+        writeUpdate("\tPipeline Window: " + String.valueOf(pipelineWindow));
+        writeUpdate("\tDuration: " + String.valueOf(duration) + (durationIsTime ? " ms" : " bytes"));
+        writeUpdate("\tClient ID: " + Build.DISPLAY);
+        writeUpdate("----------------------------");
+
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        mMultiServer = new MultiServerBenchmark(this, new MultiServerBenchmark.MultiServerListener() {
+            @Override
+            public void onLinkConnected (String address, int connected) {
+                writeUpdate("Connected to " + address + " (" + connected + "/" + servers + ")");
+            }
+
+            @Override
+            public void onBenchmarkStart (int links) {
+                Timestamp ts = new Timestamp(new Date().getTime());
+                writeUpdate("Benchmark started on " + links + " links at: " + ts);
+            }
+
+            @Override
+            public void onLinkComplete (MultiServerBenchmark.LinkResult result) {
+                String method = getCommMethodString(commMethod);
+                writeUpdate("Link " + result.mIndex + " (" + result.mServerID + "): "
+                        + result.mBytesSent + " bytes, " + result.mThroughput + " bps");
+
+                mRunTag = "-l" + result.mIndex;
+                writeStartupLatencyToFile(Build.DISPLAY, result.mServerID, result.mMtu, method, connInterval, result.mStartupLatency);
+                writeOpLatencyToFile(Build.DISPLAY, result.mServerID, result.mMtu, method, connInterval, result.mClientMeasurements);
+                writeJitterToFile(Build.DISPLAY, result.mServerID, result.mMtu, method, connInterval, result.mServerMeasurements);
+                writeResultFile(Build.DISPLAY, result.mServerID, result.mMtu, method, connInterval, result.mClientMeasurements, result.mServerMeasurements);
+                writeThroughputToFile(Build.DISPLAY, result.mServerID, result.mMtu, method, connInterval, result.mThroughput);
+                mRunTag = "";
+            }
+
+            @Override
+            public void onLinkError (String address, int code, String details) {
+                writeUpdate("Error on " + address + " " + code + ": " + details);
+            }
+
+            @Override
+            public void onBenchmarkComplete (List<MultiServerBenchmark.LinkResult> results,
+                                             float aggregateThroughput) {
+                Timestamp ts = new Timestamp(new Date().getTime());
+                writeUpdate("Benchmark ended at: " + ts);
+                writeUpdate("Aggregate throughput over " + results.size() + " links: "
+                        + aggregateThroughput);
+                //the aggregate row has "all" for the server and the link count for the MTU
+                writeThroughputToFile(Build.DISPLAY, "all", results.size(),
+                        getCommMethodString(commMethod), connInterval, aggregateThroughput);
+
+                try {
+                    if (!mResultSink.close(RESULT_WRITE_TIMEOUT)) {
+                        Log.w(TAG, "result writes did not finish");
+                    }
+                } catch (InterruptedException e){
+                    Log.w(TAG, "writes were interrupted");
+                }
+                if (0 < mResultSink.getErrorCount()) {
+                    Log.e(TAG, mResultSink.getErrorCount() + " result files failed",
+                            mResultSink.getLastError());
+                }
+
+                mMultiServer.cleanup();
+
+                int pid = android.os.Process.myPid();
+                android.os.Process.killProcess(pid);
+            }
+        });
+
+        mMultiServer.setPipelineWindow(pipelineWindow);
+        mMultiServer.setPayloadSizing(payloadSizing, payloadFraction);
+        mMultiServer.start(servers, mtu, connInterval, dataSize, commMethod, duration, durationIsTime);
+    }
+
+    /**
+     * Search for the configuration with the highest throughput, writing the
+     * trace of every probe to a file, then exit
+     *
+     * @param candidates - the configurations to choose from
+     * @param pipelineWindow - ops in flight, for every probe
+     * @param probeDuration - ms each probe runs in the first round
+     */
+    private void runTuner (List<AutoTuner.Config> candidates, int pipelineWindow, long probeDuration) {
+        writeUpdate("Tuning over " + candidates.size() + " configurations:");
+        writeUpdate("\tPipeline Window: " + String.valueOf(pipelineWindow));
+        writeUpdate("\tProbe Duration: " + String.valueOf(probeDuration) + " ms");
+        writeUpdate("\tClient ID: " + Build.DISPLAY);
+        writeUpdate("----------------------------");
+
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        mTuner = new AutoTuner(new GattClient(this, BenchmarkProfile.BENCHMARK_SERVICE),
+                new AutoTuner.TunerListener() {
+            @Override
+            public void onProbeStart (int round, AutoTuner.Config config) {
+            }
+
+            @Override
+            public void onProbeComplete (AutoTuner.Probe probe) {
+                writeUpdate(probe.toString());
+            }
+
+            @Override
+            public void onRoundComplete (int round, List<AutoTuner.Config> survivors) {
+                writeUpdate("Round " + round + " done, " + survivors.size() + " left");
+            }
+
+            @Override
+            public void onTuningComplete (AutoTuner.Probe best, List<AutoTuner.Probe> trace) {
+                writeUpdate("Best: " + best);
+                writeTuningTraceToFile(Build.DISPLAY, mTuner.getServerID(), trace);
+                try {
+                    if (!mResultSink.close(RESULT_WRITE_TIMEOUT)) {
+                        Log.w(TAG, "result writes did not finish");
+                    }
+                } catch (InterruptedException e){
+                    Log.w(TAG, "writes were interrupted");
+                }
+                if (0 < mResultSink.getErrorCount()) {
+                    Log.e(TAG, mResultSink.getErrorCount() + " result files failed",
+                            mResultSink.getLastError());
+                }
+
+                mTuner.cleanup();
+
+                int pid = android.os.Process.myPid();
+                android.os.Process.killProcess(pid);
+            }
+        });
+
+        mTuner.setPipelineWindow(pipelineWindow);
+        mTuner.setProbeDuration(probeDuration);
+        mTuner.start(candidates);
+    }
+
+    /**
+     * Write the tuner's search trace to a file, one row per probe
+     *
+     * @param trace the probes, in the order they ran
+     */
+    private void writeTuningTraceToFile (String clientID, String serverID,
+                                         List<AutoTuner.Probe> trace) {
+        String [] rows = new String[trace.size()];
+        for (int i = 0; i < rows.length; ++i) {
+            AutoTuner.Probe probe = trace.get(i);
+            rows[i] = ResultFile.csvRowPrefix(clientID, serverID, probe.mMtu,
+                    getCommMethodString(probe.mConfig.mCommMethod), probe.mConfig.mConnInterval)
+                    + probe.mRound + ", " + probe.mConfig.mMtu + ", " + probe.mDataSize
+                    + ", " + probe.mDuration + ", " + probe.mBytes + ", " + Math.round(probe.mThroughput)
+                    + ", " + (probe.mCutShort ? 1 : 0) + ", " + ((null == probe.mError) ? "" : probe.mError.replace(',', ';'));
+        }
+        mResultSink.write(resultFile("tuning"),
+                ResultFile.csvHeader("round, mtu_asked, data_size, duration_ms, bytes, throughput_Bps, cut_short, error"),
+                rows);
+    }
+
+    /**
+     * Write a throughput (bps) to a file
+     *
+     * @param mtu the link layer maximum transmission unit used for the test
+     * @param comm_method the method of communication used for the test
+     * @param throughput the throughput
+     */
+    private void writeThroughputToFile (String clientID, String serverID,
+                                        int mtu, String comm_method, int connInt,
+                                        float throughput) {
+        mResultSink.write(resultFile("throughput"), ResultFile.csvHeader("throughput"),
+                ResultFile.csvRowPrefix(clientID, serverID, mtu, comm_method, connInt), (long) throughput);
+    }
+
     @Override
     protected void onResume(){
         super.onResume();
@@ -402,7 +866,15 @@ public class BenchmarkClient extends Activity{
     @Override
     protected void onStop(){
         super.onStop();
-        mBenchmarkClient.cleanup();
+        if (null != mSweep) {
+            mSweep.cleanup();
+        } else if (null != mTuner) {
+            mTuner.cleanup();
+        } else if (null != mMultiServer) {
+            mMultiServer.cleanup();
+        } else if (null != mBenchmarkClient) {
+            mBenchmarkClient.cleanup();
+        }
     }
 
     @Override
@@ -2,8 +2,21 @@ package edu.nd.cse.gatt_client;
 
 import edu.nd.cse.benchmarkcommon.BenchmarkProfile;
 import edu.nd.cse.benchmarkcommon.CharacteristicHandler;
+import edu.nd.cse.benchmarkcommon.ClockSync;
 import edu.nd.cse.benchmarkcommon.ConnectionUpdater;
+import edu.nd.cse.benchmarkcommon.DeltaVarintCodec;
+import edu.nd.cse.benchmarkcommon.GattClientTransport;
 import edu.nd.cse.benchmarkcommon.GattData;
+import edu.nd.cse.benchmarkcommon.GattDataPool;
+import edu.nd.cse.benchmarkcommon.LatencyHistogram;
+import edu.nd.cse.benchmarkcommon.LongRecorder;
+import edu.nd.cse.benchmarkcommon.NetstringParser;
+import edu.nd.cse.benchmarkcommon.OneWayLatency;
+import edu.nd.cse.benchmarkcommon.Pacer;
+import edu.nd.cse.benchmarkcommon.PayloadSource;
+import edu.nd.cse.benchmarkcommon.SequenceTracker;
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
+import edu.nd.cse.benchmarkcommon.WriteLatencyRecorder;
 
 import android.os.Handler;
 import android.content.Context;
@@ -11,7 +24,8 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
  * This class implements the behavior of the client-side interactions
@@ -31,36 +45,90 @@ import java.util.Random;
  * - get receiver side timestamps
  * - get loss rate
  * - get throughput
+ * - get one-way latency (clocks synchronized with the server)
  *
- * Assumes that only ONE connection will be made. The majority of the
- * interaction with the profile is asynchronous--fitting with how the
- * GATT communication works and how UI interactions work
+ * Assumes that only ONE connection will be made; to benchmark several
+ * servers at once, MultiServerBenchmark runs one profile per connection.
+ * The majority of the interaction with the profile is asynchronous--fitting
+ * with how the GATT communication works and how UI interactions work
  */
 public class BenchmarkProfileClient extends BenchmarkProfile implements CharacteristicHandler{
     private static final String TAG = BenchmarkProfileClient.class.getSimpleName();
 
-    private GattClient mGattClient;
+    private GattClientTransport mGattClient;
     private BenchmarkProfileClientCallback mCB;
     private String mServerAddress = null;
+    private volatile boolean mConnected = false;
 
 
     private Handler mPrepHandler = new Handler();
     private Handler mBenchmarkHandler = new Handler();
 
-    private boolean mRun;
+    private volatile boolean mRun;
 
     /* Benchmark-related variables*/
     private long mBenchmarkStart = 0; //nanoseconds
     private long mBenchmarkDuration = 0;
     private boolean mBenchmarkDurationIsTime;
-    private long mBenchmarkBytesSent = 0;
+    private long mBenchmarkBytesSent = 0; //bytes moved, received when the server notifies or we read
+    private long mOpsDropped = 0;
+    private double mTargetRate = 0; //writes or bytes per second, 0 for as fast as possible
+    private boolean mTargetRateIsBytes = false;
+    private final long BACKPRESSURE_WAIT = 250000; //ns to wait on a full queue when unpaced
+    private long mWritePeriod = 0; //ns between writes this run, 0 if unpaced
+    private boolean mOpenLoop = false;
+    private boolean mCorrectOmission = false;
+    private PayloadSource mPayloadSource = new PayloadSource();
+    private GattDataPool mWritePool = new GattDataPool(64);
+    private long mNextSequence = 0; //of the next write
+    private SequenceTracker mSequence = new SequenceTracker(); //of the notifications
+
+    /* server-driven (NOTIFY) and pull (READ) benchmarks */
+    private volatile boolean mNotifying = false;
+    private volatile boolean mReading = false;
+    private long mLastArrival = 0; //receive time (ns) of the previous notification or read
+    private final GattData mReadOp = new GattData(null, BenchmarkProfile.TEST_CHAR, null);
 
     private long mStartScanning = 0;
     private long mLatencyStartup = 0;
-    private long mOpLatency[] = new long[16000];
-    private long mServerLatency[] = new long[16000];
-    private int mLatencyIndex = 0;
-    private int mServerLatencyIndex = 0;
+    private LongRecorder mOpLatency = new LongRecorder();
+    private LongRecorder mServerLatency = new LongRecorder();
+    private LongRecorder mServerSequences = new LongRecorder(); //of the packet behind each of mServerLatency
+    //1us resolution up to a minute, 3 significant digits
+    private LatencyHistogram mOpLatencyHistogram = new LatencyHistogram(1000, 60000000000L, 3);
+
+    /* live metrics over the last few seconds, published while a run is going */
+    private SlidingWindowMetrics mLiveMetrics = new SlidingWindowMetrics();
+    private LongRecorder mSendTimes = new LongRecorder(); //when each write was handed to the stack, by sequence
+    private WriteLatencyRecorder mWriteLatency = new WriteLatencyRecorder(mOpLatency, mSendTimes,
+            mOpLatencyHistogram, mLiveMetrics);
+    private long mLiveMetricsPeriod = 0; //ms, 0 for none
+
+    /* clock synchronization with the server, for one-way latency */
+    private ClockSync mClockSync = new ClockSync();
+    private int mClockProbes = ClockSync.DEFAULT_PROBES; //per burst, 0 for none
+    private final long CLOCK_SYNC_TIMEOUT = 2000; //ms a burst may take before we go on without it
+    private int mClockProbesLeft = 0; //0 when no burst is going
+    private int mClockProbesInFlight = 0; //including ones a timed out burst left behind
+    private long mClockProbeSent = 0; //when the probe in flight was handed down (ns)
+    private boolean mClockAfterRun = false; //whether the burst going is the one after the run
+    private long mServerStart = 0; //server time (ns) the run started, from the probes
+    private final GattData mClockOp = new GattData(null, BenchmarkProfile.CLOCK_CHAR, null);
+    private LongRecorder mArrivalTimes = new LongRecorder(); //when each notification or read arrived
+    private LongRecorder mArrivalSequences = new LongRecorder(); //and its sequence number, -1 if none
+
+    /* raw timestamp stream */
+    private final int MAX_RAW_ITEM = 24; //longest netstring payload we expect
+    private LongRecorder mRawData = new LongRecorder();
+    private long mRawOffset = 0; //next byte of the stream we need
+    private int mRawAcksPending = 0; //offset writes not yet acknowledged
+    private NetstringParser mRawParser = new NetstringParser(MAX_RAW_ITEM,
+            new NetstringParser.Listener() {
+                @Override
+                public void onNetstring (ByteBuffer payload) {
+                    mRawData.add(NetstringParser.parseLong(payload));
+                }
+            });
 
 
     /* performance parameters */
@@ -70,8 +138,14 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
     private boolean mConnIntervalState;
     private int mDataSize = 20;
     private boolean mDataSizeState;
+    private int mPayloadSizing = BenchmarkProfile.SIZE_FIXED;
+    private float mPayloadFraction = 1;
     private int mCommMethod = BenchmarkProfile.WRITE_REQ;
     private boolean mCommMethodState;
+    private boolean mClockState;
+    private int mPipelineWindow = 1;
+    private int mLinkMtu = 0; //what the link has negotiated, 0 before the first exchange
+    private volatile boolean mResetPending = false;
 
 
     /**
@@ -80,9 +154,29 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
      * @param cb - callback defined by the application to handle interactions
      */
     public BenchmarkProfileClient (Context context, BenchmarkProfileClientCallback cb) {
-        mGattClient = new GattClient(context, BenchmarkProfile.BENCHMARK_SERVICE,
-                                        this, mConnUpdater);
+        this(new GattClient(context, BenchmarkProfile.BENCHMARK_SERVICE), cb);
+    }
+
+    /**
+     * Ready the profile on top of the given transport. Use this to run the
+     * profile over something other than the phone's radio, e.g. a
+     * {@link edu.nd.cse.benchmarkcommon.LoopbackTransport}
+     *
+     * @param transport - the GATT layer to use
+     * @param cb - callback defined by the application to handle interactions
+     */
+    public BenchmarkProfileClient (GattClientTransport transport, BenchmarkProfileClientCallback cb) {
+        mGattClient = transport;
+        mGattClient.setHandler(this);
+        mGattClient.setConnectionUpdater(mConnUpdater);
         mCB = cb;
+        //tick on the clock the run is timed and timestamped on
+        mPacer.setClock(new Pacer.Clock() {
+            @Override
+            public long nanos () {
+                return SystemClock.elapsedRealtimeNanos ();
+            }
+        });
     }
 
 
@@ -99,22 +193,233 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
      *
      * @param mtu - the maximum transmission unit to be used by LL.
      * @param interval - the connection interval to be used.
-     * @param dataSize - the amount of data to send in each packet.
+     * @param dataSize - the amount of data to send in each packet (see
+     *                 setPayloadSizing).
      */
     public void prepare(int mtu, int interval, int dataSize, int commMethod){
         Log.d(TAG, "preparing...");
         mStartScanning = SystemClock.elapsedRealtimeNanos ();
-        mGattClient.start(); // will scan and connect to first device
+        mGattClient.start(true); // will scan and connect to first device
+        mMtu = mtu;
+        mConnInterval = interval;
+        mDataSize = dataSize;
+        mCommMethod = commMethod;
+    }
+
+    /**
+     * Get ready for another run on the current connection with new
+     * parameters, instead of restarting the app. Everything recorded for the
+     * last run is dropped here and, once the server has acknowledged a
+     * reset, the parameters are applied the same way as after connecting.
+     * Call beginBenchmark afterwards as usual; it waits for the parameters.
+     *
+     * Many stacks only exchange the MTU once per connection, so a smaller
+     * MTU than the current one may not take. getMtu() tells what was used.
+     *
+     * @param mtu - the maximum transmission unit to be used by LL.
+     * @param interval - the connection interval to be used.
+     * @param dataSize - the amount of data to send in each packet (see
+     *                 setPayloadSizing).
+     * @param commMethod - the method defined in BenchmarkProfile
+     */
+    public void reconfigure (int mtu, int interval, int dataSize, int commMethod) {
+        if (null == mServerAddress) {
+            throw new IllegalStateException("not connected; use prepare()");
+        }
+
+        mRun = false;
+        mPrepHandler.removeCallbacks(readyToStartBenchmark);
+        mPrepHandler.removeCallbacks(clockSyncTimeout);
+        mBenchmarkHandler.removeCallbacks(goTest);
+        mBenchmarkHandler.removeCallbacks(finishWrites);
+        mPacer.stop();
+        mBenchmarkHandler.removeCallbacks(stopNotifications);
+        mBenchmarkHandler.removeCallbacks(publishLiveMetrics);
+        mNotifying = false;
+        mReading = false;
+
+        mMtuState = false;
+        mConnIntervalState = false;
+        mDataSizeState = false;
+        mCommMethodState = false;
+        mClockState = false;
         mMtu = mtu;
         mConnInterval = interval;
         mDataSize = dataSize;
         mCommMethod = commMethod;
+
+        mBenchmarkBytesSent = 0;
+        mOpsDropped = 0;
+        mNextSequence = 0;
+        mWritePeriod = 0;
+        mSequence.reset();
+        mLastArrival = 0;
+        mOpLatency.clear();
+        mServerLatency.clear();
+        mServerSequences.clear();
+        mOpLatencyHistogram.reset();
+        mSendTimes.clear();
+        mArrivalTimes.clear();
+        mArrivalSequences.clear();
+        mClockSync.reset();
+        mServerStart = 0;
+
+        mResetPending = true;
+        mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                BenchmarkProfile.TEST_CHAR, BenchmarkProfile.TEST_DESC,
+                new byte[] {BenchmarkProfile.CONTROL_RESET}));
+    }
+
+    /**
+     * The server has forgotten the last run: apply the new parameters,
+     * starting with the MTU. If the link already has it there is nothing to
+     * exchange.
+     */
+    private void onServerReset () {
+        if (mMtu == mLinkMtu) {
+            mConnUpdater.mtuUpdate(mServerAddress, mLinkMtu);
+        } else {
+            setMtu(mMtu);
+        }
+    }
+
+    /**
+     * @return the MTU in use (negotiated, which may differ from the one asked for)
+     */
+    public int getMtu () {
+        return mMtu;
+    }
+
+    /**
+     * @return the data size in use: as given for SIZE_FIXED, otherwise
+     * worked out from the negotiated MTU
+     */
+    public int getDataSize () {
+        return mDataSize;
+    }
+
+    /**
+     * @return the bytes moved by the last run
+     */
+    public long getBytesSent () {
+        return mBenchmarkBytesSent;
+    }
+
+    /**
+     * Set how many write commands the GATT layer may keep in flight. Only
+     * applies to WRITE_CMD (NOTIFY passes it on, but the server's stack takes
+     * one notification at a time); must be called before prepare()
+     *
+     * @param window - the number of outstanding ops allowed
+     */
+    public void setPipelineWindow (int window) {
+        mPipelineWindow = window;
+    }
+
+    /**
+     * Set how the data size is chosen once the MTU has been negotiated.
+     * SIZE_FULL fills the whole value an ATT PDU can carry (MTU - 3, or
+     * MTU - 1 for READ), so each op moves as much as the link allows and
+     * throughput numbers are comparable across MTUs. SIZE_FRACTION takes a
+     * share of that. SIZE_FIXED (the default) uses the data size given to
+     * prepare() or reconfigure(), which is then ignored by the other modes.
+     * Must be called before prepare() or reconfigure()
+     *
+     * @param mode - SIZE_FIXED, SIZE_FULL or SIZE_FRACTION from BenchmarkProfile
+     * @param fraction - for SIZE_FRACTION, the share (0 to 1] of the full size
+     */
+    public void setPayloadSizing (int mode, float fraction) {
+        if (BenchmarkProfile.SIZE_FRACTION == mode && !(0 < fraction && fraction <= 1)) {
+            throw new IllegalArgumentException("bad fraction " + fraction);
+        }
+        mPayloadSizing = mode;
+        mPayloadFraction = fraction;
+    }
+
+    /**
+     * Send writes at a target rate rather than as fast as the GATT queue
+     * takes them. The writes are paced on a thread of their own against an
+     * absolute timeline, so the rate holds to well under a millisecond
+     * however the ticks land; a write the queue has no room for is dropped
+     * and counted. Only applies to WRITE_REQ and WRITE_CMD; takes effect
+     * from the next run
+     *
+     * @param rate - writes per second, or bytes per second if bytes is
+     *             set; 0 (the default) for as fast as possible
+     * @param bytes - whether rate is in bytes rather than writes
+     */
+    public void setTargetRate (double rate, boolean bytes) {
+        mTargetRate = Math.max(0, rate);
+        mTargetRateIsBytes = bytes;
+    }
+
+    /**
+     * Run writes open loop: each write is due at its tick of the target
+     * rate whether or not the ones before it have gone, as a sensor
+     * streaming at a fixed rate would send. A write the GATT queue has no
+     * room for waits instead of being dropped, and the op latencies are
+     * measured from when each write was due rather than from when it was
+     * handed down, so the time spent stuck behind a slow op is counted
+     * instead of hidden. Needs a target rate (see setTargetRate); takes
+     * effect from the next run
+     *
+     * @param openLoop - true for open loop, false (the default) for closed
+     */
+    public void setOpenLoop (boolean openLoop) {
+        mOpenLoop = openLoop;
+    }
+
+    /**
+     * Correct the op latency histogram for coordinated omission (see
+     * LatencyHistogram.recordValueWithExpectedInterval), using the target
+     * rate's interval between writes. Only used for paced, closed loop
+     * runs: open loop latencies already include the wait, and without a
+     * target rate there is no expected interval. The raw op latencies are
+     * left as measured
+     *
+     * @param correct - true to correct, false (the default) to record as measured
+     */
+    public void setCoordinatedOmissionCorrection (boolean correct) {
+        mCorrectOmission = correct;
+    }
+
+    /**
+     * Publish live metrics (see SlidingWindowMetrics) through
+     * onLiveMetricsAvailable every period while a run is going
+     *
+     * @param ms - the period, 0 (the default) to publish nothing
+     */
+    public void setLiveMetricsPeriod (long ms) {
+        mLiveMetricsPeriod = Math.max(0, ms);
+    }
+
+    /**
+     * Set how many clock probes are sent before and after each run to
+     * synchronize with the server's clock (see ClockSync). More probes give
+     * a better chance of one with a short round trip. Must be called before
+     * prepare()
+     *
+     * @param probes - probes per burst, 0 for no synchronization (and no
+     *               one-way latencies)
+     */
+    public void setClockProbes (int probes) {
+        mClockProbes = Math.max(0, probes);
+    }
+
+    /**
+     * @return how the server's clock maps onto ours, as of the last burst
+     * of probes
+     */
+    public ClockSync getClockSync () {
+        return mClockSync;
     }
 
     /**
      * Close connections and release resources
      */
     public void cleanup () {
+        mRun = false;
+        mPacer.stop();
         mGattClient.stop();
     }
 
@@ -157,12 +462,17 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
         @Override
         public void run() {
            // Log.d(TAG, "mtustate: " +  mMtuState + " connIntervalState: " + mConnIntervalState + " dataSizeState: " +  mDataSizeState);
-            if (mMtuState && mConnIntervalState && mDataSizeState && mCommMethodState) {
+            if (mMtuState && mConnIntervalState && mDataSizeState && mCommMethodState
+                    && mClockState) {
                 Log.d(TAG, "Ready to start benchmark");
                 mCB.onBenchmarkStart();
                 //kick off benchmark
-                mBenchmarkHandler.post(goTest);
                 mBenchmarkStart = SystemClock.elapsedRealtimeNanos ();
+                mBenchmarkHandler.post(goTest);
+                mLiveMetrics.reset();
+                if (0 < mLiveMetricsPeriod) {
+                    mBenchmarkHandler.postDelayed(publishLiveMetrics, mLiveMetricsPeriod);
+                }
             } else {
                 //check back later
                 if (mRun) {
@@ -172,74 +482,351 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
         }
     };
 
+    /**
+     * Hand the application the metrics of the last few seconds and come
+     * back after another period, until the run finishes
+     */
+    private Runnable publishLiveMetrics = new Runnable() {
+        @Override
+        public void run() {
+            mCB.onLiveMetricsAvailable(mLiveMetrics.snapshot(SystemClock.elapsedRealtimeNanos()));
+            mBenchmarkHandler.postDelayed(this, mLiveMetricsPeriod);
+        }
+    };
+
+    /**
+     * Start the run: for NOTIFY and READ, ask the server to notify or start
+     * reading; for writes, start the pacer that sends them (see sendWrite).
+     */
+    private Runnable goTest = new Runnable () {
+        @Override
+        public void run() {
+            if (BenchmarkProfile.NOTIFY == mCommMethod) {
+                startNotifications();
+                return;
+            } else if (BenchmarkProfile.READ == mCommMethod) {
+                startReads();
+                return;
+            }
+
+            mWritePeriod = mTargetRateIsBytes ? Pacer.periodForBytes(mTargetRate, mDataSize)
+                    : Pacer.periodForOps(mTargetRate);
+            mWriteLatency.start(mWritePeriod, mOpenLoop, mCorrectOmission);
+            mPacer.stop(); //the last run's thread may still be on its way out
+            mPacer.start(mWritePeriod);
+        }
+    };
+
     /**
      * Create some random bytes and pass them off to the Gatt layer directed
-     * at the test device. Schedule to do this again after conn interval ms if
-     * this will not exceed the benchmark duration. Call onBenchmarkComplete
-     * when done.
+     * at the test device, once per tick of mPacer. Call onBenchmarkComplete
+     * once the duration has been reached.
      *
      * Data to be sent is a pseudo-random collection of bits as suggested by
      * RFC4814 (https://tools.ietf.org/html/rfc4814#section-3). Since the data
      * to be sent *could* be encoded or compressed, it is imperative to not
-     * just test using alpha-numeric characters.
+     * just test using alpha-numeric characters. The bytes come out of a
+     * pre-generated pool straight into a recycled envelope so that no
+     * garbage is created per packet.
+     *
+     * Runs on the pacer's thread. Without a target rate a full GATT queue is
+     * backpressure: wait a little and try again. With one, the op is dropped
+     * and counted, since the rate is what is being held to, unless the run
+     * is open loop (see setOpenLoop), in which case the op waits for room
+     * and the ticks behind it catch up once it is in. Room never comes once
+     * the link is gone, so then the write is counted as failed instead.
      */
-    private Runnable goTest = new Runnable () {
+    private Pacer mPacer = new Pacer("benchmark-writes", new Pacer.Task() {
         @Override
-        public void run() {
+        public boolean onTick (long intended, long now) {
+            if (!mRun || (mBenchmarkDurationIsTime && now - mBenchmarkStart >= mBenchmarkDuration)) {
+                mBenchmarkHandler.post(finishWrites);
+                return false;
+            }
+
             int packetSize = mDataSize;
             if (!mBenchmarkDurationIsTime &&
                     packetSize + mBenchmarkBytesSent > mBenchmarkDuration){
 
                 packetSize = Math.toIntExact(mBenchmarkDuration - mBenchmarkBytesSent);
             }
-            byte [] b = new byte[packetSize];
-            new Random().nextBytes(b);
-            GattData data = new GattData(mServerAddress, BenchmarkProfile.TEST_CHAR, b);
-            mBenchmarkBytesSent += packetSize;
+            GattData data = mWritePool.obtain(mServerAddress, BenchmarkProfile.TEST_CHAR, packetSize);
+            mPayloadSource.fill(data.mBuffer, 0, packetSize);
+            if (SequenceTracker.HEADER_LENGTH <= packetSize) {
+                SequenceTracker.writeSequence(data.mBuffer, mNextSequence);
+            }
 
-            mGattClient.handleCharacteristic(data);
+            mWriteLatency.setIntended(mNextSequence, intended);
 
-            long now = SystemClock.elapsedRealtimeNanos ();
+            //the GATT layer releases the op once sent, or hands it back if its queue is full
+            boolean accepted = null == mGattClient.handleCharacteristic(data);
+            while (!accepted && mWriteLatency.isOpenLoop() && mRun && mConnected) {
+                LockSupport.parkNanos(BACKPRESSURE_WAIT);
+                accepted = null == mGattClient.handleCharacteristic(data);
+            }
 
-            if (mBenchmarkDurationIsTime) {
-                // if one more interval will not exceed the duration then post delayed
-                if ((now - mBenchmarkStart) + (mConnInterval * 1000000) < mBenchmarkDuration
-                        && mRun) {
-                    mBenchmarkHandler.postDelayed(this, mConnInterval);
-                }
-                else {
-                    mCB.onBenchmarkComplete();
-                    mCB.onBytesSentAvailable(mBenchmarkBytesSent);
-                }
+            if (accepted) {
+                mBenchmarkBytesSent += packetSize;
+                ++mNextSequence;
             } else {
-                if (mBenchmarkBytesSent < mBenchmarkDuration) {
-                    mBenchmarkHandler.postDelayed(this, mConnInterval);
-                }
-                else {
-                    mCB.onBenchmarkComplete();
-                    mCB.onBytesSentAvailable(mBenchmarkBytesSent);
+                data.release();
+                if (mWriteLatency.isOpenLoop() && !mConnected) {
+                    //the link is gone, so nothing in flight completes ahead of it
+                    mWriteLatency.failed();
+                    ++mNextSequence;
+                } else if (0 == mWritePeriod) {
+                    LockSupport.parkNanos(BACKPRESSURE_WAIT);
+                } else if (!mWriteLatency.isOpenLoop()) {
+                    ++mOpsDropped;
                 }
             }
 
+            if (!mBenchmarkDurationIsTime && mBenchmarkBytesSent >= mBenchmarkDuration) {
+                mBenchmarkHandler.post(finishWrites);
+                return false;
+            }
+            return true;
+        }
+    });
+
+    private Runnable finishWrites = new Runnable() {
+        @Override
+        public void run() {
+            if (0 < mTargetRate && 0 < mPacer.getLateCount()) {
+                Log.w(TAG, mPacer.getLateCount() + " of " + mPacer.getTickCount()
+                        + " writes late, by up to " + mPacer.getMaxLateness() / 1000 + " us");
+            }
+            finishBenchmark();
+        }
+    };
+
+    /**
+     * Ask the server to start notifying. The server paces the notifications
+     * itself, keeping mPipelineWindow of them queued in its controller. A
+     * time based run is stopped from here when the time is up; a byte based
+     * run is stopped once enough bytes have arrived.
+     */
+    private void startNotifications () {
+        ByteBuffer control = ByteBuffer.allocate(4);
+        control.put(BenchmarkProfile.CONTROL_START);
+        control.putShort((short) mDataSize);
+        control.put((byte) mPipelineWindow);
+
+        mLastArrival = 0;
+        mNotifying = true;
+        mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                BenchmarkProfile.TEST_CHAR, BenchmarkProfile.TEST_DESC, control.array()));
+
+        if (mBenchmarkDurationIsTime) {
+            mBenchmarkHandler.postDelayed(stopNotifications, mBenchmarkDuration / 1000000);
+        }
+    }
+
+    /**
+     * Tell the server to stop notifying and finish the benchmark
+     */
+    private Runnable stopNotifications = new Runnable() {
+        @Override
+        public void run() {
+            if (!mNotifying) {
+                return;
+            }
+            mNotifying = false;
+            mBenchmarkHandler.removeCallbacks(this);
+
+            mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                    BenchmarkProfile.TEST_CHAR, BenchmarkProfile.TEST_DESC,
+                    new byte[] {BenchmarkProfile.CONTROL_STOP}));
+            finishBenchmark();
         }
     };
 
+    /**
+     * Count a notification from the server and record the time since the
+     * previous one. The GATT layer stamps each notification when it arrives.
+     *
+     * @param data - the notification
+     */
+    private void handleNotification (GattData data) {
+        if (!mNotifying) {
+            return; //stragglers after STOP
+        }
+
+        long sequence = -1;
+        if (SequenceTracker.HEADER_LENGTH <= data.mBuffer.length) {
+            sequence = SequenceTracker.readSequence(data.mBuffer);
+            mSequence.record(sequence);
+        }
+        recordArrival(data, sequence);
+        if (!mBenchmarkDurationIsTime && mBenchmarkBytesSent >= mBenchmarkDuration) {
+            mBenchmarkHandler.post(stopNotifications);
+        }
+    }
+
+    /**
+     * Tell the server how big a value to serve, then read the test
+     * characteristic back to back: each read is issued as soon as the
+     * previous one returns. Values longer than the MTU are fetched by the
+     * stack as a long read.
+     */
+    private void startReads () {
+        ByteBuffer control = ByteBuffer.allocate(3);
+        control.put(BenchmarkProfile.CONTROL_READ_SIZE);
+        control.putShort((short) mDataSize);
+
+        mLastArrival = 0;
+        mReading = true;
+        mReadOp.mAddress = mServerAddress;
+        mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                BenchmarkProfile.TEST_CHAR, BenchmarkProfile.TEST_DESC, control.array()));
+        mGattClient.handleCharacteristic(mReadOp);
+    }
+
+    /**
+     * Count a read of the test characteristic and issue the next one, unless
+     * the benchmark is over
+     *
+     * @param data - the value read
+     */
+    private void handleTestRead (GattData data) {
+        if (!mReading) {
+            return;
+        }
+
+        recordArrival(data, mArrivalTimes.size()); //reads are numbered as they come back
+        boolean done;
+        if (mBenchmarkDurationIsTime) {
+            done = SystemClock.elapsedRealtimeNanos() - mBenchmarkStart >= mBenchmarkDuration;
+        } else {
+            done = mBenchmarkBytesSent >= mBenchmarkDuration;
+        }
+
+        if (done || !mRun) {
+            mReading = false;
+            mBenchmarkHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    finishBenchmark();
+                }
+            });
+        } else {
+            mGattClient.handleCharacteristic(mReadOp);
+        }
+    }
+
+    /**
+     * Count the bytes of a notification or read and record the time since
+     * the previous one. The GATT layer stamps each one when it arrives.
+     *
+     * @param data - the notification or read response
+     * @param sequence - its sequence number, -1 if it has none
+     */
+    private void recordArrival (GattData data, long sequence) {
+        mBenchmarkBytesSent += data.mBuffer.length;
+        long interArrival = -1;
+        if (0 != mLastArrival) {
+            interArrival = data.mTimestamp - mLastArrival;
+            mOpLatency.add(interArrival);
+            mOpLatencyHistogram.recordValue(interArrival);
+        }
+        mLiveMetrics.record(data.mTimestamp, data.mBuffer.length, interArrival);
+        mLastArrival = data.mTimestamp;
+        mArrivalTimes.add(data.mTimestamp);
+        mArrivalSequences.add(sequence);
+    }
+
+    /**
+     * Report the end of the benchmark to the application
+     */
+    private void finishBenchmark () {
+        mBenchmarkHandler.removeCallbacks(publishLiveMetrics);
+        if (0 < mOpsDropped) {
+            Log.w(TAG, mOpsDropped + " ops dropped because the GATT queue was full");
+        }
+        if (0 < mWriteLatency.getFailedCount()) {
+            Log.w(TAG, mWriteLatency.getFailedCount() + " writes failed");
+        }
+        mCB.onBenchmarkComplete();
+        mCB.onBytesSentAvailable(mBenchmarkBytesSent);
+    }
+
     /**
      * End the benchmark now. Benchmark should not be considered ended until
      * callback is called
      */
     public void endBenchmark () {
         mRun = false;
+        if (mNotifying) {
+            mBenchmarkHandler.post(stopNotifications);
+        }
     }
 
     /**
      * Request the raw timestamps from the benchmark. Calling this during
-     * the test will affect the results.
-     *
-     * TODO: implement as advanced functionality -- need netstring parser
+     * the test will affect the results. The server's netstring stream is
+     * pulled one chunk per read and parsed as it arrives; the timestamps are
+     * delivered through onRawDataAvailable once the stream ends.
      */
     public void requestRawTimestamps () {
+        mRawData.clear();
+        mRawParser.reset();
+        mRawOffset = 0;
+        seekRawData(mRawOffset);
+        requestRawChunk();
+    }
+
+    /**
+     * Move the server's raw data stream to the given offset
+     *
+     * @param offset - stream offset
+     */
+    private void seekRawData (long offset) {
+        byte [] value = ByteBuffer.allocate(Integer.BYTES).putInt((int) offset).array();
+        ++mRawAcksPending;
+        mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                BenchmarkProfile.RAW_DATA_CHAR,
+                value));
+    }
+
+    private void requestRawChunk () {
+        mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                BenchmarkProfile.RAW_DATA_CHAR,
+                null));
+    }
+
+    /**
+     * Parse a chunk of the raw data stream and ask for the next. A chunk
+     * that does not start where the last one ended (e.g. the server was
+     * moved by someone else) makes us seek back to where we are.
+     *
+     * @param chunk - [4 byte stream offset][stream bytes]
+     */
+    private void handleRawChunk (ByteBuffer chunk) {
+        if (chunk.remaining() < Integer.BYTES) { //server does not implement it
+            mCB.onRawDataAvailable(mRawData.toArray());
+            return;
+        }
 
+        long offset = chunk.getInt() & 0xFFFFFFFFL;
+        if (offset != mRawOffset) {
+            Log.w(TAG, "raw data at " + offset + ", expected " + mRawOffset);
+            seekRawData(mRawOffset);
+            requestRawChunk();
+        } else if (!chunk.hasRemaining()) {
+            if (!mRawParser.isIdle()) {
+                Log.w(TAG, "raw data ended mid netstring");
+            }
+            mCB.onRawDataAvailable(mRawData.toArray());
+        } else {
+            mRawOffset += chunk.remaining();
+            try {
+                mRawParser.feed(chunk);
+                requestRawChunk();
+            } catch (IllegalArgumentException e) {
+                mCB.onBenchmarkError(BenchmarkProfileClientCallback.RAW_DATA_ERROR,
+                        "bad raw data: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -249,23 +836,219 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
     public void requestThroughput () {
         Log.d(TAG, "Requesting throughput");
         long bps = 0;
-        int lastIndex = mServerLatencyIndex - 1 ;
-        if (0 <= lastIndex) {
-            bps = (mBenchmarkBytesSent * 8 * 1000000000) / mServerLatency[lastIndex];
+        if (!mServerLatency.isEmpty()) {
+            bps = (mBenchmarkBytesSent * 8 * 1000000000) / mServerLatency.getLast();
         }
         mCB.onThroughputAvailable(bps);
     }
 
     /**
-     * Request the latency measurements from the server
+     * Request the loss, duplicate and reordering counts of the last run,
+     * from the sequence numbers at the start of each payload. Writes are
+     * counted by the server, so its counts are read back; notifications are
+     * counted here. Reads cannot be lost or reordered. Calling this during
+     * the test will affect the results.
+     */
+    public void requestLossRate () {
+        if (BenchmarkProfile.WRITE_REQ == mCommMethod
+                || BenchmarkProfile.WRITE_CMD == mCommMethod) {
+            mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                    BenchmarkProfile.LOSS_CHAR,
+                    null));
+        } else {
+            reportSequenceStats(mSequence.getStats());
+        }
+    }
+
+    private void reportSequenceStats (SequenceTracker.Stats stats) {
+        Log.d(TAG, "sequence: " + stats);
+        mCB.onSequenceStatsAvailable(stats);
+        mCB.onLossRateAvailable(stats.getLossRate());
+    }
+
+    /**
+     * @return the distribution of op latencies (ns) recorded so far
+     */
+    public LatencyHistogram getOpLatencyHistogram () {
+        return mOpLatencyHistogram;
+    }
+
+    /**
+     * Request the latency measurements from the server. They are pulled in
+     * blocks of delta varints, one read per block, until the server sends an
+     * empty block; from a server without LATENCY_BULK_CHAR they are read one
+     * at a time until it sends -1. A burst of clock probes goes first and,
+     * if it synchronized the clocks, the sequence numbers behind the server's
+     * timestamps, in blocks the same way, so the timestamps can be matched
+     * to our packets and turned into one-way latencies.
      *
      */
     public void requestLatencyMeasurements () {
+        mServerLatency.clear();
+        mServerSequences.clear();
+        startClockSync(true);
+    }
+
+    /**
+     * Send a burst of clock probes, one at a time. The burst before a run
+     * lets the run start; the one after it pulls the latency measurements.
+     * Neither waits on the server for long: a server without CLOCK_CHAR ends
+     * the burst at once, and one that stops answering ends it after
+     * CLOCK_SYNC_TIMEOUT. Either way the run goes on without one-way latency.
+     *
+     * @param afterRun - whether this is the burst after the run
+     */
+    private void startClockSync (boolean afterRun) {
+        synchronized (mClockSync) {
+            mClockAfterRun = afterRun;
+            mClockProbesLeft = mClockProbes;
+            if (0 < mClockProbesLeft) {
+                mPrepHandler.postDelayed(clockSyncTimeout, CLOCK_SYNC_TIMEOUT);
+                sendClockProbe();
+            } else {
+                clockSyncDone();
+            }
+        }
+    }
+
+    private void sendClockProbe () {
+        mClockOp.mAddress = mServerAddress;
+        mClockProbeSent = SystemClock.elapsedRealtimeNanos ();
+        ++mClockProbesInFlight; //before it goes down: a failure may come straight back up
+        if (null != mGattClient.handleCharacteristic(mClockOp)) {
+            --mClockProbesInFlight;
+            Log.w(TAG, "clock probe not sent");
+            endClockBurst();
+        }
+    }
+
+    /**
+     * Add the server's answer to the burst and send the next probe, if any.
+     * The answer is timed here rather than by the GATT layer so that both
+     * ends of the round trip are on the same clock whatever the transport.
+     * Answers come back in order, so any left behind by a burst that timed
+     * out arrive before ours and are skipped.
+     *
+     * @param data - [server time now][server time the run started], empty if
+     *             the probe failed
+     */
+    private void handleClockProbe (GattData data) {
+        long received = SystemClock.elapsedRealtimeNanos ();
+        synchronized (mClockSync) {
+            if (0 < mClockProbesInFlight) {
+                --mClockProbesInFlight;
+            }
+            if (0 == mClockProbesLeft || 0 < mClockProbesInFlight) {
+                return; //not an answer to the current burst
+            }
+
+            ByteBuffer value = ByteBuffer.wrap(data.mBuffer);
+            if (value.remaining() >= 2 * Long.BYTES) {
+                mClockSync.addProbe(mClockProbeSent, value.getLong(), received);
+                mServerStart = value.getLong();
+            }
+
+            if (GattData.STATUS_UNSUPPORTED != data.mStatus && 0 < --mClockProbesLeft) {
+                sendClockProbe();
+            } else {
+                endClockBurst();
+            }
+        }
+    }
+
+    /**
+     * Stop waiting on a burst that is taking too long
+     */
+    private Runnable clockSyncTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mClockSync) {
+                if (0 < mClockProbesLeft) {
+                    Log.w(TAG, "clock sync timed out, " + mClockProbesLeft + " probes unanswered");
+                    endClockBurst();
+                }
+            }
+        }
+    };
+
+    /**
+     * Work out the server's clock from whatever probes were answered and go
+     * on. Called with the mClockSync lock held.
+     */
+    private void endClockBurst () {
+        mClockProbesLeft = 0;
+        mPrepHandler.removeCallbacks(clockSyncTimeout);
+        if (mClockSync.finishBurst()) {
+            Log.d(TAG, "server clock: " + mClockSync);
+        } else if (0 < mClockProbes) {
+            Log.w(TAG, "no usable clock probes");
+        }
+        clockSyncDone();
+    }
+
+    private void clockSyncDone () {
+        if (!mClockAfterRun) {
+            mClockState = true;
+        } else if (mClockSync.isSynchronized() && 0 != mServerStart) {
+            requestSequenceBlock(); //then the latencies
+        } else {
+            requestLatencyBlock();
+        }
+    }
+
+    /**
+     * Read the next block of sequence numbers behind the server's timestamps
+     */
+    private void requestSequenceBlock () {
+        mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                BenchmarkProfile.SEQUENCE_BULK_CHAR,
+                null));
+    }
+
+    /**
+     * Read the next block of latency measurements
+     */
+    private void requestLatencyBlock () {
+        mGattClient.handleCharacteristic(new GattData(mServerAddress,
+                BenchmarkProfile.LATENCY_BULK_CHAR,
+                null));
+    }
+
+    /**
+     * Read a single latency measurement (servers without LATENCY_BULK_CHAR)
+     */
+    private void requestLatencyMeasurement () {
         mGattClient.handleCharacteristic(new GattData(mServerAddress,
                 BenchmarkProfile.LATENCY_CHAR,
                 null));
     }
 
+    private void finishLatencyMeasurements () {
+        Log.d(TAG, "op latency (ns): " + mOpLatencyHistogram.summary());
+        if (mClockSync.isSynchronized() && 0 != mServerStart && !mServerSequences.isEmpty()) {
+            mCB.onOneWayLatencyAvailable(oneWayLatencies(), mClockSync);
+        }
+        mCB.onLatencyMeasurementsAvailable(mOpLatency.toArray(), mServerLatency.toArray());
+    }
+
+    /**
+     * Match the server's timestamps with ours by sequence number and take
+     * the difference on our clock (see OneWayLatency). Our send times are
+     * indexed by sequence number; notifications carry theirs and reads are
+     * numbered in the order they come back. The packet that started the
+     * server's run has no timestamp of its own, so it is left out.
+     *
+     * @return one-way latency (ns) of each packet both sides saw
+     */
+    private long [] oneWayLatencies () {
+        if (BenchmarkProfile.WRITE_REQ == mCommMethod || BenchmarkProfile.WRITE_CMD == mCommMethod) {
+            return OneWayLatency.pair(mSendTimes, null, mServerLatency, mServerSequences,
+                    mServerStart, mClockSync, true);
+        }
+        return OneWayLatency.pair(mArrivalTimes, mArrivalSequences, mServerLatency, mServerSequences,
+                mServerStart, mClockSync, false);
+    }
+
     /**
      * Request the server's ID (useful for data logging)
      */
@@ -276,47 +1059,85 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
     }
 
     /**
-     * Match the incoming message to the appropriate callback
+     * Match the incoming message to the appropriate callback. The data
+     * belongs to the GATT layer, so only copy out what is needed.
      *
      *
      * @param data - the gatt data from the gatt layer
      */
     @Override
     public GattData handleCharacteristic (GattData data) {
-        if (BenchmarkProfile.LATENCY_CHAR.equals(data.mCharID)) {
-            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-            buffer.put(data.mBuffer);
-            buffer.flip();//need flip
-            long measurement = buffer.getLong();
+        if (GattData.STATUS_SUCCESS != data.mStatus) {
+            handleFailure(data);
+        }else if (null != data.mDescID) {
+            //descriptor write acks: only the subscription and reset matter to us
+            if (BenchmarkProfile.CLIENT_CONFIG_DESC.equals(data.mDescID)
+                    && BenchmarkProfile.NOTIFY == mCommMethod) {
+                Log.d(TAG, "Subscribed to notifications");
+                mCommMethodState = true;
+            } else if (BenchmarkProfile.TEST_DESC.equals(data.mDescID) && mResetPending) {
+                //ops go one at a time, so the only control in flight is the reset
+                mResetPending = false;
+                onServerReset();
+            }
+        }else if (BenchmarkProfile.LATENCY_BULK_CHAR.equals(data.mCharID)) {
+            int count = DeltaVarintCodec.decodeBlock(ByteBuffer.wrap(data.mBuffer), mServerLatency);
+            if (0 != count) {
+                requestLatencyBlock();
+            } else {
+                finishLatencyMeasurements();
+            }
+        }else if (BenchmarkProfile.SEQUENCE_BULK_CHAR.equals(data.mCharID)) {
+            int count = DeltaVarintCodec.decodeBlock(ByteBuffer.wrap(data.mBuffer), mServerSequences);
+            if (0 != count) {
+                requestSequenceBlock();
+            } else {
+                requestLatencyBlock();
+            }
+        }else if (BenchmarkProfile.LATENCY_CHAR.equals(data.mCharID)) {
+            long measurement = data.getLong();
             //Log.d(TAG, "measurement: " + measurement);
 
             if (-1 != measurement) {
-                mServerLatency[mServerLatencyIndex] = measurement;
-                ++mServerLatencyIndex;
+                mServerLatency.add(measurement);
 
-                requestLatencyMeasurements();
+                requestLatencyMeasurement();
             } else {
-                long [] opLatency = new long [mLatencyIndex];
-                long [] serverLatency = new long [mServerLatencyIndex];
-                System.arraycopy(mOpLatency, 0, opLatency, 0, opLatency.length);
-                System.arraycopy(mServerLatency, 0, serverLatency, 0, serverLatency.length);
-                mCB.onLatencyMeasurementsAvailable(opLatency, serverLatency);
+                finishLatencyMeasurements();
             }
+        }else if(BenchmarkProfile.TEST_CHAR.equals(data.mCharID)
+                && BenchmarkProfile.NOTIFY == mCommMethod){
+            handleNotification(data);
+        }else if(BenchmarkProfile.TEST_CHAR.equals(data.mCharID)
+                && BenchmarkProfile.READ == mCommMethod){
+            handleTestRead(data);
         }else if(BenchmarkProfile.TEST_CHAR.equals(data.mCharID)){
             //Gatt layer needs to time the operations, so it passes up
             //the operation latency through the test characteristic
             //This makes it easy for the GATT layer to time different
             //things (according to the comm method for example) and let
-            //the profile client manage the times
-            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-            buffer.put(data.mBuffer);
-            buffer.flip();//need flip
-            mOpLatency[mLatencyIndex] = buffer.getLong();
-            ++mLatencyIndex;
-
-            data.mBuffer = null;
+            //the profile client manage the times. It is stamped with
+            //when the write was handed to the stack
+            mWriteLatency.completed(data.getLong(), data.mTimestamp,
+                    SystemClock.elapsedRealtimeNanos(), mDataSize);
+        }else if(BenchmarkProfile.RAW_DATA_CHAR.equals(data.mCharID)){
+            //our offset writes are acknowledged through here too
+            if (0 < mRawAcksPending) {
+                --mRawAcksPending;
+            } else {
+                handleRawChunk(ByteBuffer.wrap(data.mBuffer));
+            }
         }else if(BenchmarkProfile.ID_CHAR.equals(data.mCharID)){
             mCB.onServerIDAvailable(new String(data.mBuffer));
+        }else if(BenchmarkProfile.CLOCK_CHAR.equals(data.mCharID)){
+            handleClockProbe(data);
+        }else if(BenchmarkProfile.LOSS_CHAR.equals(data.mCharID)){
+            SequenceTracker.Stats stats = SequenceTracker.Stats.fromBytes(data.mBuffer);
+            if (null != stats) {
+                reportSequenceStats(stats);
+            } else {
+                Log.w(TAG, "server did not report loss");
+            }
         } else{ //we can't handle this so return null
             data = null;
         }
@@ -324,6 +1145,71 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
         return data;
     }
 
+    /**
+     * An op the GATT layer gave up on, because the server refused it or does
+     * not have the characteristic. Whatever was waiting on its result goes on
+     * without it.
+     *
+     * @param data - the failed op, see GattData.mStatus
+     */
+    private void handleFailure (GattData data) {
+        if (null == data.mDescID && BenchmarkProfile.TEST_CHAR.equals(data.mCharID)
+                && (BenchmarkProfile.WRITE_REQ == mCommMethod
+                || BenchmarkProfile.WRITE_CMD == mCommMethod)) {
+            //keeps the completions lined up with the writes; summed up at the end
+            mWriteLatency.failed();
+            return;
+        }
+
+        Log.w(TAG, "op on " + data.mCharID
+                + ((null != data.mDescID) ? " (descriptor " + data.mDescID + ")" : "")
+                + " failed with status " + data.mStatus);
+
+        if (null != data.mDescID) {
+            if (BenchmarkProfile.CLIENT_CONFIG_DESC.equals(data.mDescID)
+                    && BenchmarkProfile.NOTIFY == mCommMethod) {
+                mCB.onBenchmarkError(BenchmarkProfileClientCallback.SET_COMM_METHOD_ERROR,
+                        "could not subscribe to notifications");
+            } else if (BenchmarkProfile.TEST_DESC.equals(data.mDescID) && mResetPending) {
+                //a server without controls has nothing to forget
+                mResetPending = false;
+                onServerReset();
+            }
+        } else if (BenchmarkProfile.SEQUENCE_BULK_CHAR.equals(data.mCharID)) {
+            //the timestamps can't be matched to our packets: no one-way latency
+            mServerSequences.clear();
+            requestLatencyBlock();
+        } else if (BenchmarkProfile.LATENCY_BULK_CHAR.equals(data.mCharID)
+                && GattData.STATUS_UNSUPPORTED == data.mStatus) {
+            //older servers only serve them one at a time
+            requestLatencyMeasurement();
+        } else if (BenchmarkProfile.LATENCY_BULK_CHAR.equals(data.mCharID)
+                || BenchmarkProfile.LATENCY_CHAR.equals(data.mCharID)) {
+            finishLatencyMeasurements();
+        } else if (BenchmarkProfile.TEST_CHAR.equals(data.mCharID)
+                && BenchmarkProfile.READ == mCommMethod) {
+            if (mReading) {
+                mReading = false;
+                mBenchmarkHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishBenchmark();
+                    }
+                });
+            }
+        } else if (BenchmarkProfile.RAW_DATA_CHAR.equals(data.mCharID)) {
+            if (0 < mRawAcksPending) {
+                --mRawAcksPending;
+            } else {
+                mCB.onRawDataAvailable(mRawData.toArray());
+            }
+        } else if (BenchmarkProfile.CLOCK_CHAR.equals(data.mCharID)) {
+            handleClockProbe(data); //unanswered; ends the burst if there is no CLOCK_CHAR
+        } else if (BenchmarkProfile.LOSS_CHAR.equals(data.mCharID)) {
+            Log.w(TAG, "server did not report loss");
+        }
+    }
+
     /**
      * Request MTU change from GATT layer. Return immediately. Completion
      * of operation communicated through callback.
@@ -350,28 +1236,60 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
 
 
     /**
-     * Set the size of the (random) data to be used for each interaction.
+     * Set the size of the (random) data to be used for each interaction,
+     * according to the sizing mode and the MTU in use. A size that does not
+     * fit is reported as an error; the benchmark will not start with it.
      *
-     * @param dataSize - the size of data to use. Values can range from
-     *                 1 to MTU.
+     * @param dataSize - the size of data to use for SIZE_FIXED. Values can
+     *                 range from 1 to MTU - 3, or up to the longest attribute
+     *                 value for READ since long reads span several MTUs.
      */
     private void setDataSize (int dataSize) {
-        if (0 < dataSize && dataSize <= mMtu) {
+        int fullSize = fullPayload();
+        int maxSize = fullSize;
+        if (BenchmarkProfile.SIZE_FULL == mPayloadSizing) {
+            dataSize = fullSize;
+        } else if (BenchmarkProfile.SIZE_FRACTION == mPayloadSizing) {
+            dataSize = Math.max(1, Math.round(fullSize * mPayloadFraction));
+        } else if (BenchmarkProfile.READ == mCommMethod) {
+            maxSize = PayloadSource.MAX_PAYLOAD;
+        }
+
+        if (0 < dataSize && dataSize <= maxSize) {
+            if (dataSize != mDataSize) {
+                Log.i(TAG, "data size: " + dataSize);
+            }
+            mDataSize = dataSize;
             mDataSizeState = true;
         } else {
             mDataSizeState = false;
+            mCB.onBenchmarkError(BenchmarkProfileClientCallback.SET_DATA_SIZE_ERROR,
+                    "data size " + dataSize + " does not fit in " + maxSize
+                            + " bytes (MTU " + mMtu + ")");
         }
     }
 
+    /**
+     * @return the most value one ATT PDU can carry at the MTU in use, for
+     * the comm method in use
+     */
+    private int fullPayload () {
+        int header = (BenchmarkProfile.READ == mCommMethod)
+                ? BenchmarkProfile.ATT_READ_HEADER : BenchmarkProfile.ATT_HEADER;
+        return Math.min(mMtu - header, PayloadSource.MAX_PAYLOAD);
+    }
+
     /**
      * Set the method of communication to be used by the gatt layer
-     * for the benchmark
+     * for the benchmark. NOTIFY is not ready until the subscription has been
+     * acknowledged.
      *
      * @param commMethod - the method defined in BenchmarkProfile
      */
     private void setCommMethod (int commMethod){
+        mCommMethodState = BenchmarkProfile.NOTIFY != commMethod;
         mGattClient.setCommMethod(commMethod, BenchmarkProfile.TEST_CHAR);
-        mCommMethodState = true;
+        mGattClient.setPipelineWindow(mPipelineWindow);
     }
 
     /**
@@ -380,8 +1298,13 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
     private ConnectionUpdater mConnUpdater = new ConnectionUpdater (){
         @Override
         public void connectionUpdate (String address, int state){
+            if (0 == state && address.equals(mServerAddress)) {
+                Log.d(TAG, "Disconnected");
+                mConnected = false;
+            }
             if (1 == state){
                 Log.d(TAG, "Connected");
+                mConnected = true;
                 mLatencyStartup = SystemClock.elapsedRealtimeNanos () - mStartScanning;
                 mCB.onStartupLatencyAvailable (mLatencyStartup);
 
@@ -405,12 +1328,14 @@ public class BenchmarkProfileClient extends BenchmarkProfile implements Characte
                     mMtu = mtu;
                 }
 
+                mLinkMtu = mtu;
                 mMtuState = true;
             }
 
             setConnInterval(mConnInterval);
             setDataSize(mDataSize);
             setCommMethod(mCommMethod);
+            startClockSync(false);
         }
 
         @Override
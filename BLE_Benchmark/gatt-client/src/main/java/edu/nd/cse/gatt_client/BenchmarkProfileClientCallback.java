@@ -1,15 +1,22 @@
 package edu.nd.cse.gatt_client;
 
+import edu.nd.cse.benchmarkcommon.ClockSync;
+import edu.nd.cse.benchmarkcommon.SequenceTracker;
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
+
 public interface BenchmarkProfileClientCallback {
 
     public static final int SET_MTU_ERROR = -1;
     public static final int SET_CONN_INTERVAL_ERROR = -2;
+    public static final int RAW_DATA_ERROR = -3;
+    public static final int SET_DATA_SIZE_ERROR = -4;
+    public static final int SET_COMM_METHOD_ERROR = -5;
 
     public void onBenchmarkStart ();
 
     public void onBenchmarkComplete ();
 
-    public void onRawDataAvailable (String [] data);
+    public void onRawDataAvailable (long [] data);
 
     public void onBytesSentAvailable (long bytesSent);
 
@@ -19,9 +26,40 @@ public interface BenchmarkProfileClientCallback {
 
     public void onLossRateAvailable (float lossRate);
 
+    /**
+     * Lost, duplicated and reordered packets of the last run, as counted by
+     * the receiving side. Called just before onLossRateAvailable.
+     *
+     * @param stats - the counts
+     */
+    public void onSequenceStatsAvailable (SequenceTracker.Stats stats);
+
     public void onLatencyMeasurementsAvailable (long [] clientMeasurements, long [] serverMeasurements);
 
     public void onBenchmarkError (int code, String details);
 
     public void onServerIDAvailable(String id);
+
+    /**
+     * Throughput, op rate and op latency (inter-arrival time for NOTIFY and
+     * READ) over the last few seconds, while a run is going
+     *
+     * @param metrics - the metrics as of now
+     */
+    public void onLiveMetricsAvailable (SlidingWindowMetrics.Snapshot metrics);
+
+    /**
+     * One-way latency of each packet of the last run, from the moment one
+     * side handed it down to the moment the other side got it: client to
+     * server for writes, server to client for NOTIFY and READ (for NOTIFY
+     * the server can only stamp a notification once its stack reports it
+     * sent, so these come out short). Called just
+     * before onLatencyMeasurementsAvailable, and only if the clocks could be
+     * synchronized.
+     *
+     * @param oneWay - latencies (ns), in packet order
+     * @param clock - how the server's clock was mapped onto ours, e.g. for
+     *              its uncertainty
+     */
+    public void onOneWayLatencyAvailable (long [] oneWay, ClockSync clock);
 }
@@ -0,0 +1,330 @@
+package edu.nd.cse.gatt_client;
+
+import edu.nd.cse.benchmarkcommon.ClockSync;
+import edu.nd.cse.benchmarkcommon.GattClientTransport;
+import edu.nd.cse.benchmarkcommon.SequenceTracker;
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a plan of benchmark configurations one after the other in this
+ * process, over a single connection. Between runs the profile is
+ * reconfigured and the server told to reset, rather than killing the app
+ * and power cycling the adapter, so a configuration costs little more than
+ * its own duration.
+ *
+ * For each run: apply the parameters, run the benchmark, pull the
+ * measurements, hand them to the listener, and move on. A run that does not
+ * finish in time (e.g. the connection interval could not be set) is
+ * reported as an error and skipped.
+ */
+public class BenchmarkSweep {
+    private static final String TAG = BenchmarkSweep.class.getSimpleName();
+
+    private final long DEFAULT_RUN_TIMEOUT = 60000; //ms on top of a timed run's duration
+
+    /**
+     * One configuration of the plan
+     */
+    public static class Run {
+        public final int mIndex;
+        public final int mMtu;
+        public final int mConnInterval;
+        public final int mDataSize;
+        public final int mCommMethod;
+        public final int mRepetition;
+
+        Run (int index, int mtu, int connInterval, int dataSize, int commMethod, int repetition) {
+            mIndex = index;
+            mMtu = mtu;
+            mConnInterval = connInterval;
+            mDataSize = dataSize;
+            mCommMethod = commMethod;
+            mRepetition = repetition;
+        }
+
+        @Override
+        public String toString () {
+            return "run " + mIndex + ": mtu " + mMtu + ", interval " + mConnInterval
+                    + ", size " + mDataSize + ", method " + mCommMethod
+                    + ", repetition " + mRepetition;
+        }
+    }
+
+    /**
+     * Told about the progress of the sweep. Called on the main thread.
+     */
+    public interface SweepListener {
+        public void onRunStart (Run run);
+
+        /**
+         * @param run - the configuration that was run
+         * @param mtu - the MTU actually used
+         * @param bytesSent - bytes moved during the run
+         * @param clientMeasurements - op latencies (or inter-arrival times)
+         * @param serverMeasurements - server timestamps
+         */
+        public void onRunComplete (Run run, int mtu, long bytesSent,
+                                   long [] clientMeasurements, long [] serverMeasurements);
+
+        public void onRunError (Run run, int code, String details);
+
+        public void onSweepComplete ();
+    }
+
+    private final BenchmarkProfileClient mClient;
+    private final SweepListener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private List<Run> mPlan = null;
+    private int mNext = 0;
+    private Run mCurrent = null;
+    private long mDuration;
+    private boolean mDurationIsTime;
+    private long mRunTimeout = DEFAULT_RUN_TIMEOUT;
+
+    private boolean mPrepared = false;
+    private volatile boolean mConnected = false;
+    private String mServerID = "?";
+    private long mStartupLatency = 0;
+
+    /**
+     * @param transport - the GATT client to run over, e.g. a GattClient
+     * @param listener - told about each run
+     */
+    public BenchmarkSweep (GattClientTransport transport, SweepListener listener) {
+        mClient = new BenchmarkProfileClient(transport, mCallback);
+        mListener = listener;
+    }
+
+    /**
+     * Expand parameter lists into a plan: every combination, repeated. The
+     * MTU varies slowest and in increasing order, since many stacks only
+     * let the MTU go up on an open connection.
+     *
+     * @param mtus - MTUs to try
+     * @param connIntervals - connection priorities to try
+     * @param dataSizes - data sizes to try
+     * @param commMethods - methods (as in BenchmarkProfile) to try
+     * @param repetitions - how many times to run each combination
+     * @return the runs, in order
+     */
+    public static List<Run> plan (int [] mtus, int [] connIntervals, int [] dataSizes,
+                                  int [] commMethods, int repetitions) {
+        int [] sortedMtus = mtus.clone();
+        Arrays.sort(sortedMtus);
+
+        List<Run> plan = new ArrayList<Run>();
+        for (int mtu : sortedMtus) {
+            for (int interval : connIntervals) {
+                for (int method : commMethods) {
+                    for (int size : dataSizes) {
+                        for (int rep = 0; rep < repetitions; ++rep) {
+                            plan.add(new Run(plan.size(), mtu, interval, size, method, rep));
+                        }
+                    }
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * How long a run may take before it is given up on. For timed runs
+     * this is on top of the run's duration.
+     *
+     * @param ms - the timeout
+     */
+    public void setRunTimeout (long ms) {
+        mRunTimeout = ms;
+    }
+
+    /**
+     * @param window - as BenchmarkProfileClient.setPipelineWindow, for every run
+     */
+    public void setPipelineWindow (int window) {
+        mClient.setPipelineWindow(window);
+    }
+
+    /**
+     * @param mode - as BenchmarkProfileClient.setPayloadSizing, for every
+     *             run; the data sizes of the plan only count for SIZE_FIXED
+     * @param fraction - the share of the full size for SIZE_FRACTION
+     */
+    public void setPayloadSizing (int mode, float fraction) {
+        mClient.setPayloadSizing(mode, fraction);
+    }
+
+    /**
+     * Connect and work through the plan
+     *
+     * @param plan - the runs, e.g. from plan()
+     * @param duration - duration (in ms or bytes) of each run
+     * @param durationIsTime - whether duration is in ms
+     */
+    public void start (List<Run> plan, long duration, boolean durationIsTime) {
+        mPlan = plan;
+        mNext = 0;
+        mDuration = duration;
+        mDurationIsTime = durationIsTime;
+        mHandler.post(mNextRun);
+    }
+
+    /**
+     * Disconnect. The sweep stops where it is.
+     */
+    public void cleanup () {
+        mHandler.removeCallbacksAndMessages(null);
+        mClient.cleanup();
+    }
+
+    public String getServerID () {
+        return mServerID;
+    }
+
+    public long getStartupLatency () {
+        return mStartupLatency;
+    }
+
+    /**
+     * Start the next run of the plan, or finish. The first run connects;
+     * the rest reuse the connection.
+     */
+    private Runnable mNextRun = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(mRunTimedOut);
+            if (mNext >= mPlan.size()) {
+                mCurrent = null;
+                mListener.onSweepComplete();
+                return;
+            }
+
+            mCurrent = mPlan.get(mNext++);
+            Log.d(TAG, "starting " + mCurrent);
+            mListener.onRunStart(mCurrent);
+
+            if (!mPrepared) {
+                mPrepared = true;
+                mClient.prepare(mCurrent.mMtu, mCurrent.mConnInterval, mCurrent.mDataSize,
+                        mCurrent.mCommMethod);
+            } else if (!mConnected) {
+                //still scanning after a whole run's time: nothing else will work either
+                mListener.onRunError(mCurrent, 0, "never connected");
+                mCurrent = null;
+                mListener.onSweepComplete();
+                return;
+            } else {
+                mClient.reconfigure(mCurrent.mMtu, mCurrent.mConnInterval, mCurrent.mDataSize,
+                        mCurrent.mCommMethod);
+            }
+            mClient.beginBenchmark(mDuration, mDurationIsTime);
+
+            mHandler.postDelayed(mRunTimedOut, (mDurationIsTime ? mDuration : 0) + mRunTimeout);
+        }
+    };
+
+    private Runnable mRunTimedOut = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, mCurrent + " timed out");
+            mListener.onRunError(mCurrent, 0, "run did not finish in time");
+            mNextRun.run();
+        }
+    };
+
+    /**
+     * Drives the sweep from the profile's callbacks, which may arrive on
+     * the GATT callback thread, so everything is moved to the main thread
+     */
+    private BenchmarkProfileClientCallback mCallback = new BenchmarkProfileClientCallback() {
+        @Override
+        public void onBenchmarkStart () {
+        }
+
+        @Override
+        public void onBenchmarkComplete () {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if ("?".equals(mServerID)) {
+                        mClient.requestServerID();
+                    }
+                    mClient.requestLatencyMeasurements();
+                }
+            });
+        }
+
+        @Override
+        public void onLatencyMeasurementsAvailable (final long [] clientMeasurements,
+                                                    final long [] serverMeasurements) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (null == mCurrent) {
+                        return;
+                    }
+                    mListener.onRunComplete(mCurrent, mClient.getMtu(), mClient.getBytesSent(),
+                            clientMeasurements, serverMeasurements);
+                    mNextRun.run();
+                }
+            });
+        }
+
+        @Override
+        public void onBenchmarkError (final int code, final String details) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onRunError(mCurrent, code, details);
+                }
+            });
+        }
+
+        @Override
+        public void onStartupLatencyAvailable (long startLatency) {
+            mStartupLatency = startLatency;
+            mConnected = true;
+        }
+
+        @Override
+        public void onServerIDAvailable (String id) {
+            mServerID = id;
+        }
+
+        @Override
+        public void onRawDataAvailable (long [] data) {
+        }
+
+        @Override
+        public void onBytesSentAvailable (long bytesSent) {
+        }
+
+        @Override
+        public void onThroughputAvailable (float throughput) {
+        }
+
+        @Override
+        public void onLossRateAvailable (float lossRate) {
+        }
+
+        @Override
+        public void onSequenceStatsAvailable (SequenceTracker.Stats stats) {
+        }
+
+        @Override
+        public void onLiveMetricsAvailable (SlidingWindowMetrics.Snapshot metrics) {
+        }
+
+        @Override
+        public void onOneWayLatencyAvailable (long [] oneWay, ClockSync clock) {
+        }
+    };
+}
@@ -2,8 +2,10 @@ package edu.nd.cse.gatt_client;
 
 import edu.nd.cse.benchmarkcommon.CharacteristicHandler;
 import edu.nd.cse.benchmarkcommon.ConnectionUpdater;
-import edu.nd.cse.benchmarkcommon.ConnectionUpdaterIFace;
+import edu.nd.cse.benchmarkcommon.GattClientTransport;
 import edu.nd.cse.benchmarkcommon.GattData;
+import edu.nd.cse.benchmarkcommon.GattDataPool;
+import edu.nd.cse.benchmarkcommon.OpRing;
 import edu.nd.cse.benchmarkcommon.UiUpdate;
 import edu.nd.cse.benchmarkcommon.BenchmarkProfile;
 
@@ -13,6 +15,7 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
@@ -24,49 +27,102 @@ import android.content.BroadcastReceiver;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.SystemClock;
 import android.util.Log;
 import android.content.Context;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.UUID;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that manages the client side of the GATT I/O layer. Responsible
  * for scanning, setting up and managing connections, queuing write (or read)
- * operations, and interfacing with profile layer
+ * operations, and interfacing with profile layer. Each connection gets its
+ * own op queue, so one central can drive several peripherals at once (see
+ * setMaxConnections); ops are routed by their address.
  */
 public class GattClient extends BluetoothGattCallback
-                        implements CharacteristicHandler, ConnectionUpdaterIFace{
+                        implements GattClientTransport{
     private static final String TAG = BenchmarkClient.class.getSimpleName();
 
     private final int MAX_MTU = 517;
+    private final int MAX_WINDOW = 32;
+    //before Android 9 BluetoothGatt refuses every op while one is outstanding
+    //(mDeviceBusy), write commands too, so a wider window only gets refused
+    private final int USABLE_WINDOW = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) ? MAX_WINDOW : 1;
+    private final long MIN_BACKOFF = 1; //ms
+    private final long MAX_BACKOFF = 16; //ms
+    private static final int OP_BUSY = -1; //the stack could not take the op yet
+    private static final byte [] EMPTY = new byte[0];
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothLeScanner mBluetoothLeScanner;
-    private Map<String, BluetoothGatt> mConnectedDevices = new HashMap<String, BluetoothGatt>();
-    private final BlockingQueue<GattData> mOperationQueue = new LinkedBlockingQueue<GattData>(32);
-    private boolean mIsIdle = true;
+    private Map<String, BluetoothGatt> mConnectedDevices = new ConcurrentHashMap<String, BluetoothGatt>();
+    private Map<String, Link> mLinks = new ConcurrentHashMap<String, Link>();
     private UiUpdate mUiUpdate = null;
     private CharacteristicHandler mCharHandler = null;
     private ConnectionUpdater mConnUpdater = null;
 
-    private int mCommMethod;
+    /* op queue state machine */
+    private static final int IDLE = 0; //nobody is dispatching
+    private static final int BUSY = 1; //one thread owns the op queue consumer side
+
+    private volatile int mWindow = 1;
+    private Handler mRetryHandler = new Handler(Looper.getMainLooper());
+    private volatile int mMaxConnections = 1;
+
+    /**
+     * Everything needed to run ops on one connection. Each connection has
+     * its own queue, window and timers, so a slow or stalled peripheral
+     * does not hold up the others.
+     */
+    private class Link {
+        final String mAddress;
+        final OpRing<GattData> mOperationQueue = new OpRing<GattData>(32);
+        final GattDataPool mEnvelopePool = new GattDataPool(8); //this link's callbacks only
+        final AtomicInteger mState = new AtomicInteger(IDLE);
+
+        /* pipelining of write commands */
+        final AtomicLong mOpsStarted = new AtomicLong(0); //written by BUSY owner only
+        final AtomicLong mOpsCompleted = new AtomicLong(0); //written by callbacks only
+        final long [] mOpInits = new long[MAX_WINDOW];
+        volatile GattData mStalledOp = null; //written by BUSY owner only
+        long mBackoff = MIN_BACKOFF; //BUSY owner only
+        final AtomicBoolean mRetryPosted = new AtomicBoolean(false);
+
+        /* write type set up for this connection */
+        volatile int mCommMethod = -1;
+        volatile UUID mCommChar = null;
+
+        final Runnable mRetry = new Runnable() {
+            @Override
+            public void run() {
+                mRetryPosted.set(false);
+                pump(Link.this);
+            }
+        };
+
+        Link (String address) {
+            mAddress = address;
+        }
+    }
 
     private boolean mHasBTSupport;
     private boolean mStopScanningOnConnect;
     private boolean mScanStarted = false;
     private boolean mConnecting = false;
 
-    private long mOpInit = 0;
-
     private Context mContext;
     private UUID mTargetService;
 
@@ -131,39 +187,243 @@ public class GattClient extends BluetoothGattCallback
      *
      * @param charHandler - the handler
      */
+    @Override
     public void setHandler (CharacteristicHandler charHandler) {
         mCharHandler = charHandler;
     }
 
     /**
-     * The handler called by the profile. Adds the data to the operation queue.
+     * Set the connection update handler up the stack
+     *
+     * @param connUpdater - the handler
+     */
+    @Override
+    public void setConnectionUpdater (ConnectionUpdater connUpdater) {
+        mConnUpdater = connUpdater;
+    }
+
+    /**
+     * Set how many write commands may be outstanding at once. With a window
+     * of 1 (the default) every op waits for the previous op's callback. A
+     * larger window only applies to write commands; reads and write requests
+     * still go one at a time. Only Android 9 and later let more than one op
+     * be outstanding, so on older versions the window stays at 1.
+     *
+     * @param window - the number of write commands to keep in flight
+     */
+    @Override
+    public void setPipelineWindow (int window) {
+        if (window > USABLE_WINDOW) {
+            Log.i(TAG, "window of " + window + " not usable here, using " + USABLE_WINDOW);
+        }
+        mWindow = Math.max(1, Math.min(window, USABLE_WINDOW));
+    }
+
+    /**
+     * The handler called by the profile, from whichever thread it is on
+     * (pacer, handlers, our own callbacks). Adds the data to the operation
+     * queue of the connection it is addressed to without blocking and kicks
+     * off dispatching if nobody is. Once the op has been handed to the stack
+     * it is released, so pooled envelopes go back to the profile's pool.
      *
      * @param data - data to be sent
+     * @return null if the op was queued, otherwise the op itself because the
+     * queue was full (the overflow is counted) or the device is not connected
      */
     @Override
     public GattData handleCharacteristic(GattData data) {
         if (null != data) {
-            if (null == data.mBuffer) {
-                //Log.d (TAG, "Adding read request to op queue");
+            Link link = mLinks.get(data.mAddress);
+            if (null == link) {
+                Log.w(TAG, "not connected to " + data.mAddress);
+                return data;
             }
-            try{
-                mOperationQueue.put(data); //blocking if full
-            }catch (InterruptedException e) {
-                //????
-                Log.w(TAG, "Queue put operation was interrupted");
+            if (!link.mOperationQueue.offer(data)) {
+                return data;
             }
 
-            if (mIsIdle) {
-                Log.d (TAG, "op queue is idle");
-                mIsIdle = false;
-                GattData readyData = mOperationQueue.poll();
-                performOperation(readyData);
-            }
+            pump(link);
         }
 
         return null;
     }
 
+    /**
+     * @return how many ops have been refused because an op queue was full
+     */
+    public long getOverflowCount () {
+        long overflows = 0;
+        for (Link link : mLinks.values()) {
+            overflows += link.mOperationQueue.getOverflowCount();
+        }
+        return overflows;
+    }
+
+    /**
+     * Keep scanning until this many devices are connected. Only applies
+     * when scanning stops on connect; the default is one.
+     *
+     * @param connections - the number of devices to connect to
+     */
+    public void setMaxConnections (int connections) {
+        mMaxConnections = Math.max(1, connections);
+    }
+
+    /**
+     * Whoever moves a link's queue from IDLE to BUSY becomes its only
+     * consumer and dispatches until the window is full or the queue is
+     * empty, then drops back to IDLE. Because a producer or a callback may
+     * have made progress possible while we were dropping back, check once
+     * more and try to take over again so that no op is stranded.
+     */
+    private void pump (Link link) {
+        while (link.mState.compareAndSet(IDLE, BUSY)) {
+            dispatch(link);
+            link.mState.set(IDLE);
+
+            if (!canDispatch(link)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return true if the link's next op could be started right now
+     */
+    private boolean canDispatch (Link link) {
+        GattData data = (null != link.mStalledOp) ? link.mStalledOp : link.mOperationQueue.peek();
+        return null != data && inFlight(link) < windowFor(link, data) && !link.mRetryPosted.get();
+    }
+
+    /**
+     * Start as many queued operations as the window allows. Write commands
+     * can fill the whole window; anything else has to wait until nothing is
+     * in flight and then goes alone. If the stack refuses a write (buffer
+     * full) hold on to it and retry on the next callback or after a back-off
+     * delay, whichever comes first. An op that can never run (the peer has no
+     * such characteristic or descriptor, or is gone) is dropped and reported
+     * up instead. Only called by the BUSY owner.
+     */
+    private void dispatch (Link link) {
+        while (true) {
+            GattData data = (null != link.mStalledOp) ? link.mStalledOp : link.mOperationQueue.peek();
+            if (null == data || inFlight(link) >= windowFor(link, data)) {
+                break;
+            }
+
+            if (data == link.mStalledOp) {
+                link.mStalledOp = null;
+            } else {
+                link.mOperationQueue.poll();
+            }
+
+            //count the op before starting it: its callback may beat us back
+            long started = link.mOpsStarted.get();
+            data.mTimestamp = SystemClock.elapsedRealtimeNanos (); //handed to the stack now
+            link.mOpInits[(int) (started % MAX_WINDOW)] = data.mTimestamp;
+            link.mOpsStarted.set(started + 1);
+
+            int result = performOperation(data);
+            if (GattData.STATUS_SUCCESS == result) {
+                link.mBackoff = MIN_BACKOFF;
+                data.release(); //value was copied into the Binder call
+            } else if (OP_BUSY == result) {
+                link.mOpsStarted.set(started);
+                link.mStalledOp = data;
+                scheduleRetry(link);
+                break;
+            } else {
+                link.mOpsStarted.set(started);
+                GattData failure = new GattData(data.mAddress, data.mCharID, data.mDescID, EMPTY);
+                data.release();
+                reportFailure(failure, result);
+            }
+        }
+    }
+
+    private long inFlight (Link link) {
+        return link.mOpsStarted.get() - link.mOpsCompleted.get();
+    }
+
+    private int windowFor (Link link, GattData data) {
+        return isWriteCommand(link, data) ? mWindow : 1;
+    }
+
+    /**
+     * Try the link's stalled operation again after the current back-off
+     * delay and double the delay for next time
+     */
+    private void scheduleRetry (Link link) {
+        if (link.mRetryPosted.compareAndSet(false, true)) {
+            mRetryHandler.postDelayed(link.mRetry, link.mBackoff);
+            link.mBackoff = Math.min(link.mBackoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * @param link - the connection the op is queued on
+     * @param data - a queued operation
+     * @return true if the op is a write without response on the
+     * characteristic configured for write commands
+     */
+    private boolean isWriteCommand (Link link, GattData data) {
+        return null != data.mBuffer
+                && null == data.mDescID
+                && BenchmarkProfile.WRITE_CMD == link.mCommMethod
+                && data.mCharID.equals(link.mCommChar);
+    }
+
+    /**
+     * @return when (ns) the oldest in-flight op of the link was handed to
+     * the stack, 0 if nothing is in flight
+     */
+    private long oldestStart (Link link) {
+        long completed = link.mOpsCompleted.get();
+        if (completed >= link.mOpsStarted.get()) {
+            return 0;
+        }
+        return link.mOpInits[(int) (completed % MAX_WINDOW)];
+    }
+
+    /**
+     * Called from the GATT callbacks: the oldest in-flight op of the link
+     * has finished.
+     *
+     * @return the time (ns) since that op was started
+     */
+    private long completeOperation (Link link) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        long completed = link.mOpsCompleted.get();
+        if (completed >= link.mOpsStarted.get()) {
+            return 0; //nothing was in flight
+        }
+
+        long opInit = link.mOpInits[(int) (completed % MAX_WINDOW)];
+        link.mOpsCompleted.set(completed + 1);
+        return now - opInit;
+    }
+
+    /**
+     * Pass a failed op up to the profile, so whatever waits on its result
+     * can move on
+     *
+     * @param envelope - the op's address, characteristic and descriptor
+     * @param status - why it failed, one of the GattData statuses
+     */
+    private void reportFailure (GattData envelope, int status) {
+        envelope.mStatus = status;
+        mCharHandler.handleCharacteristic(envelope);
+        envelope.release();
+    }
+
+    /**
+     * @param gatt - a connection the stack called us back about
+     * @return its link, null if it has gone (e.g. a callback racing a disconnect)
+     */
+    private Link linkFor (BluetoothGatt gatt) {
+        return mLinks.get(gatt.getDevice().getAddress());
+    }
+
     /**
      * Start scanning for the target service
      *
@@ -171,6 +431,7 @@ public class GattClient extends BluetoothGattCallback
      *                                 after making a connection
      *
      */
+    @Override
     public void start (boolean stopScanningOnConnect) {
         mStopScanningOnConnect = stopScanningOnConnect;
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
@@ -229,6 +490,7 @@ public class GattClient extends BluetoothGattCallback
      * Disconnect vs close: https://stackoverflow.com/questions/23110295/difference-between-close-and-disconnect
      *
      */
+    @Override
     public void stop () {
         for (Map.Entry<String, BluetoothGatt> entry : mConnectedDevices.entrySet()) {
             entry.getValue().close();
@@ -282,7 +544,7 @@ public class GattClient extends BluetoothGattCallback
         @Override
         public void onScanResult ( int callbackType, ScanResult result){
             //Log.i(TAG, "result: " + result);
-            if (!(mStopScanningOnConnect && mConnectedDevices.size() > 0) && !mConnecting) {
+            if (!(mStopScanningOnConnect && mConnectedDevices.size() >= mMaxConnections) && !mConnecting) {
                 if (!mConnectedDevices.containsKey(result.getDevice().getAddress())) {
                     connect(result.getDevice());
                 }
@@ -307,23 +569,67 @@ public class GattClient extends BluetoothGattCallback
     }
 
     /**
-     * Perform the requested operation.
+     * Perform the requested operation. If a descriptor is given the op goes
+     * to that descriptor of the characteristic.
      *
      * @param data - collection of information needed to perform operation
+     * @return STATUS_SUCCESS if the stack accepted the operation, OP_BUSY if
+     * it could not take it yet, otherwise the status the op failed with
      */
-    private void performOperation (GattData data) {
-        BluetoothGattService service = mConnectedDevices.get(data.mAddress).getService(mTargetService);
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(data.mCharID);
+    private int performOperation (GattData data) {
+        BluetoothGatt gatt = mConnectedDevices.get(data.mAddress);
+        if (null == gatt) {
+            Log.w(TAG, "not connected to " + data.mAddress);
+            return GattData.STATUS_FAILED;
+        }
+        BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, data.mCharID);
+        if (null == characteristic) {
+            return GattData.STATUS_UNSUPPORTED;
+        }
+        boolean result;
 
-        if (null == data.mBuffer) { //read
+        if (null != data.mDescID) {
+            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(data.mDescID);
+            if (null == descriptor) {
+                Log.e(TAG, "no descriptor " + data.mDescID.toString());
+                return GattData.STATUS_UNSUPPORTED;
+            }
+
+            if (null == data.mBuffer) {
+                result = gatt.readDescriptor(descriptor);
+            } else {
+                descriptor.setValue(data.mBuffer);
+                result = gatt.writeDescriptor(descriptor);
+            }
+        }
+        else if (null == data.mBuffer) { //read
             //Log.d(TAG, "Characteristic READ");
-            mConnectedDevices.get(data.mAddress).readCharacteristic(characteristic);
+            result = gatt.readCharacteristic(characteristic);
         }
         else { //write
-            mOpInit = SystemClock.elapsedRealtimeNanos ();
             characteristic.setValue(data.mBuffer);
-            mConnectedDevices.get(data.mAddress).writeCharacteristic(characteristic);
+            result = gatt.writeCharacteristic(characteristic);
         }
+
+        return result ? GattData.STATUS_SUCCESS : OP_BUSY;
+    }
+
+    /**
+     * @param gatt - a connected device
+     * @param charUUID - the characteristic to look up in the target service
+     * @return the characteristic, null (logged) if the device does not have it
+     */
+    private BluetoothGattCharacteristic findCharacteristic (BluetoothGatt gatt, UUID charUUID) {
+        BluetoothGattService service = gatt.getService(mTargetService);
+        if (null == service) {
+            Log.e(TAG, "no service " + mTargetService.toString());
+            return null;
+        }
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(charUUID);
+        if (null == characteristic) {
+            Log.e(TAG, "no characteristic " + charUUID.toString());
+        }
+        return characteristic;
     }
 
     /*************************************************************************/
@@ -371,11 +677,39 @@ public class GattClient extends BluetoothGattCallback
     }
 
     /**
+     * Set the write type used on the given characteristic for every
+     * connected device.
      *
-     * @param commMethod
+     * @param commMethod - the method defined in BenchmarkProfile
+     * @param charUUID - the characteristic to configure
      */
+    @Override
     public void setCommMethod (int commMethod, UUID charUUID) {
-        mCommMethod = commMethod; //save because we need for later
+        for (String address : mConnectedDevices.keySet()) {
+            setCommMethod(address, commMethod, charUUID);
+        }
+    }
+
+    /**
+     * Set the write type used on the given characteristic of one connected
+     * device. READ needs no set up. For NOTIFY, turn on notifications for the
+     * characteristic and queue the CCCD write that subscribes to them; the
+     * profile hears about it through the descriptor write callback.
+     *
+     * @param address - the device to configure
+     * @param commMethod - the method defined in BenchmarkProfile
+     * @param charUUID - the characteristic to configure
+     */
+    public void setCommMethod (String address, int commMethod, UUID charUUID) {
+        BluetoothGatt gatt = mConnectedDevices.get(address);
+        Link link = mLinks.get(address);
+        if (null == gatt || null == link) {
+            Log.w(TAG, "not connected to " + address);
+            return;
+        }
+        link.mCommMethod = commMethod; //save because we need for later
+        link.mCommChar = charUUID;
+
         int writeType = -1;
         switch(commMethod){
             case BenchmarkProfile.WRITE_REQ:
@@ -384,11 +718,24 @@ public class GattClient extends BluetoothGattCallback
             case BenchmarkProfile.WRITE_CMD:
                 writeType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
                 break;
+            case BenchmarkProfile.READ:
+                return; //reads need no write type
         }
 
-        for (Map.Entry<String, BluetoothGatt> entry : mConnectedDevices.entrySet()) {
-            BluetoothGattService service = entry.getValue().getService(mTargetService);
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(charUUID);
+        BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, charUUID);
+        if (null == characteristic) {
+            if (BenchmarkProfile.NOTIFY == commMethod) { //the profile waits on the subscription
+                reportFailure(new GattData(address, charUUID, BenchmarkProfile.CLIENT_CONFIG_DESC,
+                        EMPTY), GattData.STATUS_UNSUPPORTED);
+            }
+            return;
+        }
+        if (BenchmarkProfile.NOTIFY == commMethod) {
+            gatt.setCharacteristicNotification(characteristic, true);
+            handleCharacteristic(new GattData(address, charUUID,
+                    BenchmarkProfile.CLIENT_CONFIG_DESC,
+                    BenchmarkProfile.ENABLE_NOTIFICATION_VALUE));
+        } else {
             characteristic.setWriteType(writeType);
         }
     }
@@ -426,8 +773,9 @@ public class GattClient extends BluetoothGattCallback
         if (newState == BluetoothGatt.STATE_CONNECTED) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 mConnectedDevices.put(gatt.getDevice().getAddress(), gatt);
+                mLinks.put(gatt.getDevice().getAddress(), new Link(gatt.getDevice().getAddress()));
 
-                if (mStopScanningOnConnect) {
+                if (mStopScanningOnConnect && mConnectedDevices.size() >= mMaxConnections) {
                     stopScanning();
                 }
                 //gatt.requestMtu(this.mtu);
@@ -448,6 +796,10 @@ public class GattClient extends BluetoothGattCallback
         else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
             // Disconnected, notify callbacks of disconnection.
             mConnectedDevices.remove(gatt.getDevice().getAddress());
+            Link link = mLinks.remove(gatt.getDevice().getAddress());
+            if (null != link) {
+                mRetryHandler.removeCallbacks(link.mRetry);
+            }
             mConnUpdater.connectionUpdate(gatt.getDevice().getAddress(), 0);
 
             //notifyOnDisconnected(this);
@@ -504,8 +856,9 @@ public class GattClient extends BluetoothGattCallback
     }
 
     /**
-     * Pull something from queue (if we can) to initiate
-     * another write
+     * Report the op latency up to the profile, stamped with when the write
+     * was handed to the stack, and pull something from the queue (if we
+     * can) to initiate another write
      *
      * @param gatt - the gatt instance for the connected device
      * @param characteristic - the characteristic to which we wrote
@@ -515,30 +868,31 @@ public class GattClient extends BluetoothGattCallback
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
 
+        Link link = linkFor(gatt);
+        if (null == link) {
+            return;
+        }
+        long sent = oldestStart(link);
+        long timeDiff = completeOperation(link);
+        GattData envelope = link.mEnvelopePool.obtainLong(gatt.getDevice().getAddress(),
+                characteristic.getUuid(), timeDiff);
+        envelope.mTimestamp = sent;
         if (status == BluetoothGatt.GATT_SUCCESS) {
             //Log.d(TAG,"Characteristic write successful");
-            long timeDiff = SystemClock.elapsedRealtimeNanos() - mOpInit;
-            mCharHandler.handleCharacteristic (new GattData(gatt.getDevice().getAddress(),
-                    characteristic.getUuid(),
-                    ByteBuffer.allocate(Long.BYTES).putLong(timeDiff).array()));
-
+            mCharHandler.handleCharacteristic (envelope);
+            envelope.release();
         } else {
             Log.e(TAG,"Characteristic write FAILED");
+            reportFailure(envelope, GattData.STATUS_FAILED);
         }
 
-        GattData data = mOperationQueue.poll();
-
-        if (null == data) { //empty!
-            mIsIdle = true;
-        } else {
-            performOperation(data);
-        }
-
+        pump(link);
     }
 
     /**
      * Handle the returned value from the characteristic read by passing it up
-     * to the profile
+     * to the profile, stamped with the time it arrived. Values longer than
+     * the MTU have already been put together by the stack from blob reads.
      *
      * @param gatt - the gatt instance for the connected device
      * @param characteristic - the characteristic upon which the read was
@@ -549,21 +903,108 @@ public class GattClient extends BluetoothGattCallback
     public void onCharacteristicRead (BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         //super.onCharacteristicRead(gatt, characteristic, status);
 
+        long now = SystemClock.elapsedRealtimeNanos();
+        Link link = linkFor(gatt);
+        if (null == link) {
+            return;
+        }
+        completeOperation(link);
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            mCharHandler.handleCharacteristic(new GattData(gatt.getDevice().getAddress(),
-                                                            characteristic.getUuid(),
-                                                            characteristic.getValue()));
+            GattData envelope = link.mEnvelopePool.obtain(gatt.getDevice().getAddress(),
+                                                    characteristic.getUuid(),
+                                                    characteristic.getValue());
+            envelope.mTimestamp = now;
+            mCharHandler.handleCharacteristic(envelope);
+            envelope.release();
         }
         else {
             Log.w(TAG, "Failed reading characteristic " + characteristic.getUuid().toString());
+            reportFailure(link.mEnvelopePool.obtain(gatt.getDevice().getAddress(),
+                    characteristic.getUuid(), EMPTY), GattData.STATUS_FAILED);
+        }
+
+        pump(link);
+    }
+
+    /**
+     * Pass the notified value up to the profile, stamped with the time it
+     * arrived. Notifications are not ops, so nothing is completed.
+     *
+     * @param gatt - the gatt instance for the connected device
+     * @param characteristic - the characteristic that changed
+     */
+    @Override
+    public void onCharacteristicChanged (BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        Link link = linkFor(gatt);
+        if (null == link) {
+            return;
+        }
+        GattData envelope = link.mEnvelopePool.obtain(gatt.getDevice().getAddress(),
+                                                characteristic.getUuid(),
+                                                characteristic.getValue());
+        envelope.mTimestamp = now;
+        mCharHandler.handleCharacteristic(envelope);
+        envelope.release();
+    }
+
+    /**
+     * Report the op latency up to the profile, same as a characteristic
+     * write, with the descriptor filled in
+     *
+     * @param gatt - the gatt instance for the connected device
+     * @param descriptor - the descriptor to which we wrote
+     * @param status - the status of the write operation
+     */
+    @Override
+    public void onDescriptorWrite (BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        Link link = linkFor(gatt);
+        if (null == link) {
+            return;
+        }
+        long timeDiff = completeOperation(link);
+        GattData envelope = link.mEnvelopePool.obtainLong(gatt.getDevice().getAddress(),
+                descriptor.getCharacteristic().getUuid(), timeDiff);
+        envelope.mDescID = descriptor.getUuid();
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mCharHandler.handleCharacteristic (envelope);
+            envelope.release();
+        } else {
+            Log.e(TAG, "Descriptor write FAILED " + descriptor.getUuid().toString());
+            reportFailure(envelope, GattData.STATUS_FAILED);
         }
 
-        GattData data = mOperationQueue.poll();
+        pump(link);
+    }
 
-        if (null == data) { //empty!
-            mIsIdle = true;
+    /**
+     * Pass the descriptor value up to the profile
+     *
+     * @param gatt - the gatt instance for the connected device
+     * @param descriptor - the descriptor that was read
+     * @param status - whether the read was successful or not
+     */
+    @Override
+    public void onDescriptorRead (BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        Link link = linkFor(gatt);
+        if (null == link) {
+            return;
+        }
+        completeOperation(link);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            GattData envelope = link.mEnvelopePool.obtain(gatt.getDevice().getAddress(),
+                    descriptor.getCharacteristic().getUuid(), descriptor.getValue());
+            envelope.mDescID = descriptor.getUuid();
+            mCharHandler.handleCharacteristic(envelope);
+            envelope.release();
         } else {
-            performOperation(data);
+            Log.w(TAG, "Failed reading descriptor " + descriptor.getUuid().toString());
+            GattData envelope = link.mEnvelopePool.obtain(gatt.getDevice().getAddress(),
+                    descriptor.getCharacteristic().getUuid(), EMPTY);
+            envelope.mDescID = descriptor.getUuid();
+            reportFailure(envelope, GattData.STATUS_FAILED);
         }
+
+        pump(link);
     }
 }
@@ -0,0 +1,556 @@
+package edu.nd.cse.gatt_client;
+
+import edu.nd.cse.benchmarkcommon.BenchmarkProfile;
+import edu.nd.cse.benchmarkcommon.CharacteristicHandler;
+import edu.nd.cse.benchmarkcommon.ClockSync;
+import edu.nd.cse.benchmarkcommon.ConnectionUpdater;
+import edu.nd.cse.benchmarkcommon.GattClientTransport;
+import edu.nd.cse.benchmarkcommon.GattData;
+import edu.nd.cse.benchmarkcommon.SequenceTracker;
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs the benchmark against several servers at the same time from one
+ * central, to see how the central's throughput scales with the number of
+ * connections.
+ *
+ * Every connection gets its own BenchmarkProfileClient, driven from its own
+ * thread, so each link has its own pacing timers, latency recorders and (in
+ * the GattClient) op queue. All of them share one GattClient: ops go down
+ * through a per-link view of it and whatever comes back up is routed to the
+ * link's profile by address.
+ *
+ * The benchmark starts on every link at once, when the requested number of
+ * servers are connected or, failing that, when the connect timeout runs out.
+ * Each link then runs and collects its measurements on its own; once all are
+ * done the per-link and aggregate throughput are reported.
+ */
+public class MultiServerBenchmark implements CharacteristicHandler {
+    private static final String TAG = MultiServerBenchmark.class.getSimpleName();
+
+    private final long DEFAULT_CONNECT_TIMEOUT = 30000; //ms
+
+    /**
+     * What one link did
+     */
+    public static class LinkResult {
+        public final int mIndex;
+        public final String mAddress;
+        public final String mServerID;
+        public final int mMtu;
+        public final long mStartupLatency; //ns from start() to connected
+        public final long mBytesSent;
+        public final long mElapsed; //ns from the link's start to its end
+        public final float mThroughput; //bps
+        public final long [] mClientMeasurements;
+        public final long [] mServerMeasurements;
+
+        LinkResult (Link link, long [] clientMeasurements, long [] serverMeasurements) {
+            mIndex = link.mIndex;
+            mAddress = link.mAddress;
+            mServerID = link.mServerID;
+            mMtu = link.mProfile.getMtu();
+            mStartupLatency = link.mStartupLatency;
+            mBytesSent = link.mProfile.getBytesSent();
+            mElapsed = link.mEnd - link.mStart;
+            mThroughput = throughput(mBytesSent, mElapsed);
+            mClientMeasurements = clientMeasurements;
+            mServerMeasurements = serverMeasurements;
+        }
+    }
+
+    /**
+     * Told about the progress of the benchmark. Called on the main thread.
+     */
+    public interface MultiServerListener {
+        public void onLinkConnected (String address, int connected);
+
+        public void onBenchmarkStart (int links);
+
+        public void onLinkComplete (LinkResult result);
+
+        public void onLinkError (String address, int code, String details);
+
+        /**
+         * @param results - the links that finished, in the order they connected
+         * @param aggregateThroughput - bytes moved over all links (bps), over
+         *                            the time from the first start to the last end
+         */
+        public void onBenchmarkComplete (List<LinkResult> results, float aggregateThroughput);
+    }
+
+    /**
+     * One connection: its profile, the thread driving it and the view of
+     * the shared GattClient it sees
+     */
+    private class Link implements GattClientTransport {
+        final int mIndex;
+        final String mAddress;
+        final HandlerThread mThread;
+        final Handler mHandler;
+        BenchmarkProfileClient mProfile; //set on mThread
+        volatile CharacteristicHandler mCharHandler;
+        volatile ConnectionUpdater mConnUpdater;
+
+        final long mStartupLatency;
+        volatile String mServerID = "?";
+        volatile long mStart = 0;
+        volatile long mEnd = 0;
+        volatile boolean mFinished = false;
+
+        Link (int index, String address, long startupLatency) {
+            mIndex = index;
+            mAddress = address;
+            mStartupLatency = startupLatency;
+            mThread = new HandlerThread("link-" + index);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        /* the GattClient as seen by this link's profile */
+
+        @Override
+        public void setHandler (CharacteristicHandler charHandler) {
+            mCharHandler = charHandler;
+        }
+
+        @Override
+        public void setConnectionUpdater (ConnectionUpdater connUpdater) {
+            mConnUpdater = connUpdater;
+        }
+
+        /**
+         * Already connected: tell the profile so, once prepare() has returned
+         */
+        @Override
+        public void start (boolean stopScanningOnConnect) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mConnUpdater.connectionUpdate(mAddress, 1);
+                }
+            });
+        }
+
+        /**
+         * The connection is shared with the GattClient; cleanup() closes it
+         */
+        @Override
+        public void stop () {
+        }
+
+        @Override
+        public void setCommMethod (int commMethod, UUID charUUID) {
+            mGattClient.setCommMethod(mAddress, commMethod, charUUID);
+        }
+
+        @Override
+        public void setPipelineWindow (int window) {
+            mGattClient.setPipelineWindow(window);
+        }
+
+        @Override
+        public GattData handleCharacteristic (GattData data) {
+            return mGattClient.handleCharacteristic(data);
+        }
+
+        @Override
+        public void mtuUpdate (String address, int mtu) {
+            mGattClient.mtuUpdate(address, mtu);
+        }
+
+        @Override
+        public void connIntervalUpdate (String address, int interval) {
+            mGattClient.connIntervalUpdate(address, interval);
+        }
+
+        @Override
+        public void connectionUpdate (String address, int state) {
+            mGattClient.connectionUpdate(address, state);
+        }
+    }
+
+    private final GattClient mGattClient;
+    private final MultiServerListener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, Link> mLinks = new ConcurrentHashMap<String, Link>();
+    private final List<Link> mOrder = new ArrayList<Link>(); //main thread only
+    private final List<LinkResult> mResults = new ArrayList<LinkResult>(); //main thread only
+
+    private int mServers = 1;
+    private int mMtu;
+    private int mConnInterval;
+    private int mDataSize;
+    private int mPayloadSizing = BenchmarkProfile.SIZE_FIXED;
+    private float mPayloadFraction = 1;
+    private int mCommMethod;
+    private int mPipelineWindow = 1;
+    private long mDuration;
+    private boolean mDurationIsTime;
+    private long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    private long mStartScanning = 0;
+    private boolean mStarted = false; //main thread only
+    private boolean mComplete = false; //main thread only
+
+    /**
+     * @param context - the application context
+     * @param listener - told about each link and the totals
+     */
+    public MultiServerBenchmark (Context context, MultiServerListener listener) {
+        mGattClient = new GattClient(context, BenchmarkProfile.BENCHMARK_SERVICE);
+        mGattClient.setHandler(this);
+        mGattClient.setConnectionUpdater(mConnUpdater);
+        mListener = listener;
+    }
+
+    /**
+     * How long to wait for all the servers before starting with those found
+     *
+     * @param ms - the timeout
+     */
+    public void setConnectTimeout (long ms) {
+        mConnectTimeout = ms;
+    }
+
+    /**
+     * @param window - as BenchmarkProfileClient.setPipelineWindow, on every link
+     */
+    public void setPipelineWindow (int window) {
+        mPipelineWindow = window;
+    }
+
+    /**
+     * @param mode - as BenchmarkProfileClient.setPayloadSizing, on every link
+     * @param fraction - the share of the full size for SIZE_FRACTION
+     */
+    public void setPayloadSizing (int mode, float fraction) {
+        mPayloadSizing = mode;
+        mPayloadFraction = fraction;
+    }
+
+    /**
+     * Connect to the given number of servers and run the benchmark on all
+     * of them at once, each with the same parameters
+     *
+     * @param servers - how many servers to connect to
+     * @param mtu - the maximum transmission unit to be used by LL.
+     * @param interval - the connection interval to be used.
+     * @param dataSize - the amount of data to send in each packet (see
+     *                 setPayloadSizing).
+     * @param commMethod - the method defined in BenchmarkProfile
+     * @param duration - duration (in ms or bytes) of the run on each link
+     * @param durationIsTime - whether duration is in ms
+     */
+    public void start (int servers, int mtu, int interval, int dataSize, int commMethod,
+                       long duration, boolean durationIsTime) {
+        mServers = Math.max(1, servers);
+        mMtu = mtu;
+        mConnInterval = interval;
+        mDataSize = dataSize;
+        mCommMethod = commMethod;
+        mDuration = duration;
+        mDurationIsTime = durationIsTime;
+
+        Log.d(TAG, "looking for " + mServers + " servers");
+        mStartScanning = SystemClock.elapsedRealtimeNanos();
+        mGattClient.setMaxConnections(mServers);
+        mGattClient.start(true);
+        mMainHandler.postDelayed(mConnectTimedOut, mConnectTimeout);
+    }
+
+    /**
+     * Disconnect from every server and stop the link threads
+     */
+    public void cleanup () {
+        mMainHandler.removeCallbacksAndMessages(null);
+        mGattClient.stop();
+        for (Link link : mLinks.values()) {
+            link.mThread.quitSafely();
+        }
+    }
+
+    /**
+     * A server is connected: give it a profile of its own, on its own
+     * thread, and start everyone once the last one is ready
+     */
+    private void addLink (String address) {
+        if (mStarted || mLinks.containsKey(address) || mOrder.size() >= mServers) {
+            return;
+        }
+
+        final Link link = new Link(mOrder.size(), address,
+                SystemClock.elapsedRealtimeNanos() - mStartScanning);
+        mLinks.put(address, link);
+        mOrder.add(link);
+        mListener.onLinkConnected(address, mOrder.size());
+
+        link.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //profile handlers must be created on the link's thread
+                link.mProfile = new BenchmarkProfileClient(link, new LinkCallback(link));
+                link.mProfile.setPipelineWindow(mPipelineWindow);
+                link.mProfile.setPayloadSizing(mPayloadSizing, mPayloadFraction);
+                link.mProfile.prepare(mMtu, mConnInterval, mDataSize, mCommMethod);
+            }
+        });
+
+        if (mOrder.size() == mServers) {
+            mMainHandler.removeCallbacks(mConnectTimedOut);
+            beginAll();
+        }
+    }
+
+    /**
+     * Start the benchmark on every link. Each profile still waits for its
+     * own connection parameters before sending anything.
+     */
+    private void beginAll () {
+        mStarted = true;
+        Log.d(TAG, "starting on " + mOrder.size() + " links");
+        mListener.onBenchmarkStart(mOrder.size());
+        for (final Link link : mOrder) {
+            link.mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    link.mProfile.beginBenchmark(mDuration, mDurationIsTime);
+                }
+            });
+        }
+    }
+
+    private Runnable mConnectTimedOut = new Runnable() {
+        @Override
+        public void run() {
+            if (mStarted) {
+                return;
+            }
+            Log.w(TAG, "only " + mOrder.size() + " of " + mServers + " servers found");
+            if (mOrder.isEmpty()) {
+                mListener.onLinkError(null, 0, "no server found");
+                complete();
+            } else {
+                beginAll();
+            }
+        }
+    };
+
+    /**
+     * A link is done, with or without results. Once all are, report the
+     * totals.
+     *
+     * @param link - the link
+     * @param result - what it did, null if it failed
+     */
+    private void finishLink (Link link, LinkResult result) {
+        if (link.mFinished) {
+            return;
+        }
+        link.mFinished = true;
+        if (null != result) {
+            mResults.add(result);
+            mListener.onLinkComplete(result);
+        }
+
+        for (Link l : mOrder) {
+            if (!l.mFinished) {
+                return;
+            }
+        }
+        complete();
+    }
+
+    /**
+     * Report every link's result and the aggregate throughput: all bytes
+     * over the time from the first link's start to the last link's end
+     */
+    private void complete () {
+        if (mComplete) {
+            return;
+        }
+        mComplete = true;
+
+        long bytes = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (Link link : mOrder) {
+            if (0 != link.mStart) {
+                first = Math.min(first, link.mStart);
+                last = Math.max(last, link.mEnd);
+            }
+        }
+        for (LinkResult result : mResults) {
+            bytes += result.mBytesSent;
+        }
+
+        float aggregate = (first < last) ? throughput(bytes, last - first) : 0;
+        Log.d(TAG, mResults.size() + " links, aggregate throughput " + aggregate + " bps");
+        mListener.onBenchmarkComplete(mResults, aggregate);
+    }
+
+    /**
+     * @param bytes - bytes moved
+     * @param elapsed - in ns
+     * @return bits per second, 0 if no time passed
+     */
+    private static float throughput (long bytes, long elapsed) {
+        return (0 < elapsed) ? (bytes * 8 * 1e9f) / elapsed : 0;
+    }
+
+    /**
+     * Route whatever the GattClient hands up to the profile of the link it
+     * came from
+     *
+     * @param data - the gatt data from the gatt layer
+     */
+    @Override
+    public GattData handleCharacteristic (GattData data) {
+        Link link = mLinks.get(data.mAddress);
+        if (null == link || null == link.mCharHandler) {
+            return null;
+        }
+        return link.mCharHandler.handleCharacteristic(data);
+    }
+
+    /**
+     * Connection updates from the GattClient. New connections become links;
+     * everything else goes to the link's profile.
+     */
+    private ConnectionUpdater mConnUpdater = new ConnectionUpdater() {
+        @Override
+        public void connectionUpdate (final String address, final int state) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Link link = mLinks.get(address);
+                    if (1 == state) {
+                        addLink(address);
+                    } else if (null != link && !link.mFinished) {
+                        mListener.onLinkError(address, 0, "disconnected");
+                        finishLink(link, null);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void mtuUpdate (String address, int mtu) {
+            Link link = mLinks.get(address);
+            if (null != link && null != link.mConnUpdater) {
+                link.mConnUpdater.mtuUpdate(address, mtu);
+            }
+        }
+
+        @Override
+        public void connIntervalUpdate (String address, int interval) {
+            Link link = mLinks.get(address);
+            if (null != link && null != link.mConnUpdater) {
+                link.mConnUpdater.connIntervalUpdate(address, interval);
+            }
+        }
+    };
+
+    /**
+     * The profile callback of one link: time the run, then pull the link's
+     * measurements
+     */
+    private class LinkCallback implements BenchmarkProfileClientCallback {
+        private final Link mLink;
+
+        LinkCallback (Link link) {
+            mLink = link;
+        }
+
+        @Override
+        public void onBenchmarkStart () {
+            mLink.mStart = SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public void onBenchmarkComplete () {
+            mLink.mEnd = SystemClock.elapsedRealtimeNanos();
+            mLink.mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mLink.mProfile.requestServerID();
+                    mLink.mProfile.requestLatencyMeasurements();
+                }
+            });
+        }
+
+        @Override
+        public void onLatencyMeasurementsAvailable (long [] clientMeasurements,
+                                                    long [] serverMeasurements) {
+            final LinkResult result = new LinkResult(mLink, clientMeasurements, serverMeasurements);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    finishLink(mLink, result);
+                }
+            });
+        }
+
+        @Override
+        public void onBenchmarkError (final int code, final String details) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onLinkError(mLink.mAddress, code, details);
+                }
+            });
+        }
+
+        @Override
+        public void onServerIDAvailable (String id) {
+            mLink.mServerID = id;
+        }
+
+        @Override
+        public void onStartupLatencyAvailable (long startLatency) {
+            //measured from start() instead, since the link was connected before its profile existed
+        }
+
+        @Override
+        public void onRawDataAvailable (long [] data) {
+        }
+
+        @Override
+        public void onBytesSentAvailable (long bytesSent) {
+        }
+
+        @Override
+        public void onThroughputAvailable (float throughput) {
+        }
+
+        @Override
+        public void onLossRateAvailable (float lossRate) {
+        }
+
+        @Override
+        public void onSequenceStatsAvailable (SequenceTracker.Stats stats) {
+        }
+
+        @Override
+        public void onLiveMetricsAvailable (SlidingWindowMetrics.Snapshot metrics) {
+        }
+
+        @Override
+        public void onOneWayLatencyAvailable (long [] oneWay, ClockSync clock) {
+        }
+    }
+}
@@ -1,13 +1,27 @@
 package edu.nd.cse.gatt_server;
 
+import edu.nd.cse.benchmarkcommon.ArrivalRecorder;
 import edu.nd.cse.benchmarkcommon.BenchmarkProfile;
 import edu.nd.cse.benchmarkcommon.SaveToFileRunnable;
 import edu.nd.cse.benchmarkcommon.CharacteristicHandler;
 import edu.nd.cse.benchmarkcommon.GattData;
+import edu.nd.cse.benchmarkcommon.GattDataPool;
 import edu.nd.cse.benchmarkcommon.ConnectionUpdater;
+import edu.nd.cse.benchmarkcommon.DeltaVarintCodec;
+import edu.nd.cse.benchmarkcommon.GattServerTransport;
+import edu.nd.cse.benchmarkcommon.LatencyHistogram;
+import edu.nd.cse.benchmarkcommon.LongRecorder;
+import edu.nd.cse.benchmarkcommon.NetstringEncoder;
+import edu.nd.cse.benchmarkcommon.NotificationHandler;
+import edu.nd.cse.benchmarkcommon.PayloadSource;
+import edu.nd.cse.benchmarkcommon.SequenceTracker;
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
 
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
@@ -15,7 +29,9 @@ import android.content.Context;
 import android.os.Build;
 
 import java.io.File;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.nio.ByteBuffer;
 
 /**
@@ -35,19 +51,92 @@ public class BenchmarkProfileServer extends BenchmarkProfile
                                     implements CharacteristicHandler {
     private static final String TAG = BenchmarkProfileServer.class.getSimpleName();
 
-    private long [] mTimeDiffs; //array to hold the delta between packet ends
-    private long mStartTS = 0; //timestamp from when we're told to start timing
-    private int mDiffsIndex = 0;
-    private int mSentDiffsIndex = 0;
-    private final int MAX_DIFFS = 16000;
-    private long mBytesReceived = 0;
-    private long mPacketsReceived = 0;
-    private int mMtu = 0;
-    private int mConnInterval = 0;
-
-    private GattServer mGattServer;
+    private final int MAX_ATTR_LEN = 512; //longest value a (long) read can return
+    private final int MIN_BULK_BLOCK = 64; //below this use a short long read
+    private final int DEFAULT_MTU = 23;
+    private final int RAW_OFFSET_SIZE = 4; //stream offset at the head of a raw chunk
+
+    private GattServerTransport mGattServer;
     private BenchmarkProfileServerCallback mCB;
-    private boolean mBenchmarkStarted = false;
+
+    /* notification benchmark */
+    private final int ATT_NOTIFY_HEADER = 3;
+    private final long MIN_NOTIFY_RETRY_DELAY = 1; //ms, doubled on each refusal
+    private final long MAX_NOTIFY_RETRY_DELAY = 64; //ms
+    private final long NOTIFY_GIVE_UP = 2000; //ms refused in a row (e.g. central left)
+    private Handler mRetryHandler = new Handler(Looper.getMainLooper());
+
+    private long mLiveMetricsPeriod = 0; //ms, 0 for none
+
+    /* everything measured, per connected central */
+    private final Map<String, Central> mCentrals = new ConcurrentHashMap<String, Central>();
+
+    /**
+     * The statistics and benchmark state of one central. Several centrals
+     * may run at once without disturbing each other's timing; each one's
+     * state is guarded by its own lock.
+     */
+    private class Central {
+        final String mAddress;
+
+        final LongRecorder mTimeDiffs = new LongRecorder(); //the delta between packet ends
+        final NetstringEncoder mRawEncoder = new NetstringEncoder(mTimeDiffs);
+        int mSentDiffsIndex = 0;
+        final LongRecorder mDiffSequences = new LongRecorder(); //of the packet behind each time diff
+        int mSentSequencesIndex = 0;
+        //packet inter-arrival (or, when notifying, inter-send) times
+        final LatencyHistogram mInterArrival = newInterArrivalHistogram();
+        final SlidingWindowMetrics mLiveMetrics = new SlidingWindowMetrics();
+        final SequenceTracker mSequence = new SequenceTracker(); //of the writes
+        final ArrivalRecorder mArrivals = new ArrivalRecorder(mTimeDiffs, mDiffSequences,
+                mInterArrival, mLiveMetrics, mSequence);
+        volatile int mMtu = 0;
+        volatile int mConnInterval = 0;
+
+        boolean mBenchmarkStarted = false;
+        boolean mSweeping = false; //runs follow each other on one connection
+        boolean mDone = false; //measurements handed over
+
+        /* notification benchmark */
+        PayloadSource mPayloadSource = null; //made on first use
+        final GattDataPool mNotifyPool = new GattDataPool(1);
+        boolean mNotifying = false;
+        int mNotifySize = 0;
+        boolean mWithStack = false; //a notification waits for onNotificationSent
+        long mRetryDelay = 0; //ms until the next try, 0 if the last was taken
+        long mRefusedSince = 0; //ms (uptime) of the first refusal in a row, 0 if none
+        long mBytesSent = 0;
+        long mPacketsSent = 0;
+        long mNotifySequence = 0; //of the next notification
+        long mNotifyCompleted = 0; //sequence of the oldest one with the stack
+        boolean mRetryPosted = false;
+
+        /* read benchmark: every read is served the same pre-generated value */
+        GattData mReadResponse = null;
+        long mBytesRead = 0;
+        long mReadsServed = 0;
+
+        final Runnable mRetryNotify = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Central.this) {
+                    mRetryPosted = false;
+                    pumpNotifications(Central.this);
+                }
+            }
+        };
+
+        Central (String address) {
+            mAddress = address;
+        }
+
+        PayloadSource payloadSource () {
+            if (null == mPayloadSource) {
+                mPayloadSource = new PayloadSource();
+            }
+            return mPayloadSource;
+        }
+    }
 
 
     /**
@@ -59,24 +148,40 @@ public class BenchmarkProfileServer extends BenchmarkProfile
      */
     public BenchmarkProfileServer(Context context,
                                   BenchmarkProfileServerCallback cb){
-        mCB = cb;
+        this(new GattServer (context, createBenchmarkService()), cb);
+    }
 
-        mTimeDiffs = new long[MAX_DIFFS];
+    /**
+     * Initialize the time diffs array and run the profile on top of the
+     * given transport, e.g. a
+     * {@link edu.nd.cse.benchmarkcommon.LoopbackTransport}
+     *
+     * @param transport - the GATT layer to use
+     * @param cb - callback defined by the application to handle interactions
+     */
+    public BenchmarkProfileServer(GattServerTransport transport,
+                                  BenchmarkProfileServerCallback cb){
+        mCB = cb;
 
-        mGattServer = new GattServer (context, createBenchmarkService());
+        mGattServer = transport;
         mGattServer.setCharacteristicHandler(this);
+        mGattServer.setNotificationHandler(mNotificationHandler);
         mGattServer.setConnectionUpdateCallback(new ConnectionUpdater (){
-            public void mtuUpdate(int mtu) {
-                mMtu = mtu;
+            @Override
+            public void mtuUpdate(String address, int mtu) {
+                centralFor(address).mMtu = mtu;
             }
 
-            public void connIntervalUpdate (int interval){
-                mConnInterval = interval;
+            @Override
+            public void connIntervalUpdate (String address, int interval){
+                centralFor(address).mConnInterval = interval;
             }
 
+            @Override
+
             public void connectionUpdate (String address, int state){
                 if (0 == state) {
-                    mCB.onBenchmarkComplete();
+                    centralLeft(address);
                 }
             }
         });
@@ -84,6 +189,41 @@ public class BenchmarkProfileServer extends BenchmarkProfile
     }
 
 
+    /**
+     * Publish each running central's live metrics (see SlidingWindowMetrics)
+     * through onLiveMetricsAvailable every period
+     *
+     * @param ms - the period, 0 (the default) to publish nothing
+     */
+    public void setLiveMetricsPeriod (long ms) {
+        mLiveMetricsPeriod = Math.max(0, ms);
+        mRetryHandler.removeCallbacks(publishLiveMetrics);
+        if (0 < mLiveMetricsPeriod) {
+            mRetryHandler.postDelayed(publishLiveMetrics, mLiveMetricsPeriod);
+        }
+    }
+
+    /**
+     * Hand the application the last few seconds of every central that is
+     * in the middle of a run
+     */
+    private Runnable publishLiveMetrics = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtimeNanos();
+            for (Central central : mCentrals.values()) {
+                boolean running;
+                synchronized (central) {
+                    running = central.mBenchmarkStarted && !central.mDone;
+                }
+                if (running) {
+                    mCB.onLiveMetricsAvailable(central.mAddress, central.mLiveMetrics.snapshot(now));
+                }
+            }
+            mRetryHandler.postDelayed(this, mLiveMetricsPeriod);
+        }
+    };
+
     /**
      * Start the gatt server
      */
@@ -102,15 +242,22 @@ public class BenchmarkProfileServer extends BenchmarkProfile
      * Return a configured {@link BluetoothGattService} instance for the
      * {@link BluetoothGattServer}
      */
-    private BluetoothGattService createBenchmarkService() {
+    private static BluetoothGattService createBenchmarkService() {
         BluetoothGattService service = new BluetoothGattService(BENCHMARK_SERVICE,
                 BluetoothGattService.SERVICE_TYPE_PRIMARY);
 
-        BluetoothGattCharacteristic writeChar = new BluetoothGattCharacteristic(BenchmarkProfile.TEST_CHAR,
-                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        BluetoothGattCharacteristic testChar = new BluetoothGattCharacteristic(BenchmarkProfile.TEST_CHAR,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        testChar.addDescriptor(new BluetoothGattDescriptor(BenchmarkProfile.CLIENT_CONFIG_DESC,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        testChar.addDescriptor(new BluetoothGattDescriptor(BenchmarkProfile.TEST_DESC,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
 
         BluetoothGattCharacteristic rawDataChar = new BluetoothGattCharacteristic(BenchmarkProfile.RAW_DATA_CHAR,
-                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
 
         BluetoothGattCharacteristic latencyChar = new BluetoothGattCharacteristic(BenchmarkProfile.LATENCY_CHAR,
                 BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
@@ -118,18 +265,90 @@ public class BenchmarkProfileServer extends BenchmarkProfile
         BluetoothGattCharacteristic idChar = new BluetoothGattCharacteristic(BenchmarkProfile.ID_CHAR,
                 BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
 
-        service.addCharacteristic (writeChar);
+        BluetoothGattCharacteristic latencyBulkChar = new BluetoothGattCharacteristic(BenchmarkProfile.LATENCY_BULK_CHAR,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+
+        BluetoothGattCharacteristic clockChar = new BluetoothGattCharacteristic(BenchmarkProfile.CLOCK_CHAR,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+
+        BluetoothGattCharacteristic lossChar = new BluetoothGattCharacteristic(BenchmarkProfile.LOSS_CHAR,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+
+        BluetoothGattCharacteristic sequenceBulkChar = new BluetoothGattCharacteristic(BenchmarkProfile.SEQUENCE_BULK_CHAR,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+
+        service.addCharacteristic (testChar);
         service.addCharacteristic (rawDataChar);
         service.addCharacteristic (latencyChar);
         service.addCharacteristic (idChar);
+        service.addCharacteristic (latencyBulkChar);
+        service.addCharacteristic (clockChar);
+        service.addCharacteristic (lossChar);
+        service.addCharacteristic (sequenceBulkChar);
 
         return service;
     }
 
 
+    /**
+     * @param address - a central's address
+     * @return its state, made the first time it is seen
+     */
+    private Central centralFor (String address) {
+        String key = (null == address) ? "" : address;
+        Central central = mCentrals.get(key);
+        if (null == central) {
+            Central created = new Central(key);
+            central = mCentrals.putIfAbsent(key, created);
+            if (null == central) {
+                central = created;
+            }
+        }
+        return central;
+    }
+
+    /**
+     * A central has disconnected: forget it. The benchmark is over once
+     * every central still connected has its measurements.
+     *
+     * @param address - the central
+     */
+    private void centralLeft (String address) {
+        Central central = mCentrals.remove((null == address) ? "" : address);
+        if (null != central) {
+            stopNotifying(central);
+        }
+        checkComplete();
+    }
+
+    /**
+     * A central has pulled all of its measurements
+     */
+    private void centralDone (Central central) {
+        synchronized (central) {
+            logResults(central);
+            if (central.mSweeping) {
+                return; //more runs to come
+            }
+            central.mDone = true;
+        }
+        checkComplete();
+    }
+
+    private void checkComplete () {
+        for (Central central : mCentrals.values()) {
+            if (!central.mDone) {
+                return;
+            }
+        }
+        mCB.onBenchmarkComplete();
+    }
+
     /**
      * Callback to be called by GATT layer to handle a characteristic. All the
      * parsing and interpretation of the data from the GATT layer occurs here.
+     * Everything is measured and answered per central, by the address the
+     * data came from.
      *
      * @param data - the data from the GATT layer if any (can be null)
      * @return a response. null if there was a problem with the action on the
@@ -138,49 +357,322 @@ public class BenchmarkProfileServer extends BenchmarkProfile
     @Override
     public GattData handleCharacteristic (GattData data) {
         GattData response = null;
-        if (BenchmarkProfile.TEST_CHAR.equals(data.mCharID))
+        Central central = centralFor(data.mAddress);
+        if (null != data.mDescID)
+        {
+            response = handleDescriptor(central, data);
+        }
+        else if (BenchmarkProfile.TEST_CHAR.equals(data.mCharID))
         {
-            response = handleTestCharacteristic(data);
+            response = handleTestCharacteristic(central, data);
         }
         else if (BenchmarkProfile.RAW_DATA_CHAR.equals(data.mCharID)){
-            response = handleRawDataRequest();
+            response = handleRawDataRequest(central, data);
         }
         else if (BenchmarkProfile.LATENCY_CHAR.equals(data.mCharID)){
-            response = handleLatencyRequest();
+            response = handleLatencyRequest(central);
+        }
+        else if (BenchmarkProfile.LATENCY_BULK_CHAR.equals(data.mCharID)){
+            response = handleLatencyBulkRequest(central);
         }
         else if (BenchmarkProfile.ID_CHAR.equals(data.mCharID)){
             response = handleIDRequest();
         }
+        else if (BenchmarkProfile.CLOCK_CHAR.equals(data.mCharID)){
+            response = handleClockRequest(central);
+        }
+        else if (BenchmarkProfile.LOSS_CHAR.equals(data.mCharID)){
+            response = handleLossRequest(central);
+        }
+        else if (BenchmarkProfile.SEQUENCE_BULK_CHAR.equals(data.mCharID)){
+            response = handleSequenceBulkRequest(central);
+        }
 
         return response;
     }
 
     /**
-     * Since the data will be junk, just count the number of bytes received,
-     * increment the number of packets, and record the time
+     * Only the test characteristic's control descriptor is handled here;
+     * the GATT layer takes care of the client configuration descriptor.
      *
-     * @return data with sender address, char uuid, and null buffer
+     * @param central - the central that wrote
+     * @param data - a descriptor read or write
+     * @return the data if the control was understood, null otherwise
      */
-    private GattData handleTestCharacteristic (GattData data){
-        if (!mBenchmarkStarted) {
+    private GattData handleDescriptor (Central central, GattData data) {
+        GattData response = null;
+
+        if (BenchmarkProfile.TEST_DESC.equals(data.mDescID) && null != data.mBuffer
+                && 0 < data.mBuffer.length) {
+            ByteBuffer control = ByteBuffer.wrap(data.mBuffer);
+            byte opcode = control.get();
+            if (BenchmarkProfile.CONTROL_START == opcode && 3 <= control.remaining()) {
+                int size = control.getShort() & 0xFFFF;
+                int window = control.get() & 0xFF;
+                startNotifying(central, size, window);
+                response = data;
+            } else if (BenchmarkProfile.CONTROL_STOP == opcode) {
+                stopNotifying(central);
+                response = data;
+            } else if (BenchmarkProfile.CONTROL_READ_SIZE == opcode && 2 <= control.remaining()) {
+                setReadSize(central, control.getShort() & 0xFFFF);
+                response = data;
+            } else if (BenchmarkProfile.CONTROL_RESET == opcode) {
+                reset(central);
+                response = data;
+            } else {
+                Log.w(TAG, "bad control opcode: " + opcode);
+            }
+        }
+
+        return response;
+    }
+
+    /**
+     * Drop everything recorded for the central's last run so the next one
+     * starts clean, without the app having to restart. Once a client has
+     * reset us it is sweeping through runs, so handing over the measurements
+     * no longer ends the benchmark; the client disconnecting does.
+     */
+    private void reset (Central central) {
+        synchronized (central) {
+            stopNotifying(central);
+            central.mSweeping = true;
+            central.mBenchmarkStarted = false;
+            central.mDone = false;
+
+            central.mTimeDiffs.clear();
+            central.mSentDiffsIndex = 0;
+            central.mDiffSequences.clear();
+            central.mSentSequencesIndex = 0;
+            central.mRawEncoder.seek(0);
+            central.mArrivals.reset();
+            central.mInterArrival.reset();
+            central.mLiveMetrics.reset();
+            central.mSequence.reset();
+            central.mReadResponse = null;
+            central.mBytesRead = 0;
+            central.mReadsServed = 0;
+        }
+        Log.d(TAG, central.mAddress + " reset for the next run");
+    }
+
+    /**
+     * Tell the application the first time a central starts a run
+     */
+    private void benchmarkStarted (Central central) {
+        boolean first;
+        synchronized (central) {
+            first = !central.mBenchmarkStarted;
+            central.mBenchmarkStarted = true;
+        }
+        if (first) {
             mCB.onBenchmarkStart();
-            mBenchmarkStarted = true;
         }
+    }
 
-        GattData response = null;
+    /**
+     * Begin pushing notifications of the given size to the central. The
+     * stack takes one notification at a time, so the next is handed down
+     * from onNotificationSent of the last; the window the central asked
+     * for is only logged.
+     *
+     * @param central - the central to notify
+     * @param size - bytes per notification, capped at what fits in the MTU
+     * @param window - notifications the central asked to keep in flight
+     */
+    private void startNotifying (Central central, int size, int window) {
+        benchmarkStarted(central);
+
+        synchronized (central) {
+            int mtu = (0 == central.mMtu) ? DEFAULT_MTU : central.mMtu;
+            central.mNotifySize = Math.max(1, Math.min(size,
+                    Math.min(mtu - ATT_NOTIFY_HEADER, PayloadSource.MAX_PAYLOAD)));
+            central.mWithStack = false;
+            central.mRetryDelay = 0;
+            central.mRefusedSince = 0;
+            central.mBytesSent = 0;
+            central.mPacketsSent = 0;
+            central.mNotifySequence = 0;
+            central.mNotifyCompleted = 0;
+            central.mNotifying = true;
+            Log.d(TAG, "notifying " + central.mAddress + " " + central.mNotifySize
+                    + " byte packets (window of " + window + " asked, 1 used)");
+
+            central.mArrivals.start(SystemClock.elapsedRealtimeNanos());
+            pumpNotifications(central);
+        }
+    }
+
+    private void stopNotifying (Central central) {
+        synchronized (central) {
+            if (central.mNotifying) {
+                central.mNotifying = false;
+                mRetryHandler.removeCallbacks(central.mRetryNotify);
+                central.mRetryPosted = false;
+                Log.d(TAG, "sent " + central.mAddress + " " + central.mPacketsSent
+                        + " notifications, " + central.mBytesSent + " bytes");
+                Log.d(TAG, "inter-send (ns): " + central.mInterArrival.summary());
+            }
+        }
+    }
 
-        if (null != data && null != data.mBuffer) {
-            mBytesReceived += data.mBuffer.length;
-            mPacketsReceived += 1;
-            if (!timerStarted()) {
-                startTiming();
+    /**
+     * Hand the next notification to the GATT layer unless one is still with
+     * the stack. If the stack refuses it (busy with another central's, say)
+     * try again when any notification completes, or after a delay that
+     * doubles with each refusal. Called holding the central's lock.
+     */
+    private void pumpNotifications (Central central) {
+        if (central.mNotifying && !central.mWithStack) {
+            GattData data = central.mNotifyPool.obtain(central.mAddress, BenchmarkProfile.TEST_CHAR,
+                    central.mNotifySize);
+            central.payloadSource().fill(data.mBuffer, 0, central.mNotifySize);
+            if (SequenceTracker.HEADER_LENGTH <= central.mNotifySize) {
+                SequenceTracker.writeSequence(data.mBuffer, central.mNotifySequence);
             }
-            else {
-                recordTimeDiff();
+            boolean sent = mGattServer.sendNotification(data);
+            data.release();
+
+            if (!sent) {
+                long now = SystemClock.uptimeMillis();
+                if (0 == central.mRefusedSince) {
+                    central.mRefusedSince = now;
+                }
+                central.mRetryDelay = Math.min(MAX_NOTIFY_RETRY_DELAY,
+                        Math.max(MIN_NOTIFY_RETRY_DELAY, 2 * central.mRetryDelay));
+                if (now - central.mRefusedSince > NOTIFY_GIVE_UP) {
+                    Log.w(TAG, central.mAddress + " stopped taking notifications");
+                    stopNotifying(central);
+                } else if (!central.mRetryPosted) {
+                    central.mRetryPosted = true;
+                    mRetryHandler.postDelayed(central.mRetryNotify, central.mRetryDelay);
+                }
+                return;
+            }
+
+            central.mWithStack = true;
+            ++central.mNotifySequence;
+            central.mRetryDelay = 0;
+            central.mRefusedSince = 0;
+            central.mBytesSent += central.mNotifySize;
+        }
+    }
+
+    /**
+     * A notification has left the stack, so it may take one now: try the
+     * centrals waiting out a refusal instead of letting them sleep on.
+     *
+     * @param done - the central whose notification completed
+     */
+    private void retryWaitingCentrals (Central done) {
+        for (Central central : mCentrals.values()) {
+            if (central == done) {
+                continue;
+            }
+            synchronized (central) {
+                if (central.mRetryPosted) {
+                    mRetryHandler.removeCallbacks(central.mRetryNotify);
+                    central.mRetryNotify.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Each completed notification is timed like a received write, and lets
+     * its central hand down the next one
+     */
+    private NotificationHandler mNotificationHandler = new NotificationHandler() {
+        @Override
+        public void onNotificationSent (String address, boolean success) {
+            Central central = mCentrals.get((null == address) ? "" : address);
+            if (null == central) {
+                return;
+            }
+
+            synchronized (central) {
+                if (central.mNotifying) {
+                    central.mWithStack = false;
+                    //notifications complete in the order they were handed down
+                    long sequence = central.mNotifyCompleted++;
+                    if (success) {
+                        ++central.mPacketsSent;
+                        central.mArrivals.record(SystemClock.elapsedRealtimeNanos(), central.mNotifySize,
+                                (SequenceTracker.HEADER_LENGTH <= central.mNotifySize) ? sequence : -1);
+                    }
+                    pumpNotifications(central);
+                }
+            }
+            retryWaitingCentrals(central);
+        }
+    };
+
+    /**
+     * Generate the value that reads of the test characteristic return to the
+     * central. It is made once, from the same random pool as the
+     * notifications, and then handed to the GATT layer as is for every read,
+     * which copies it out MTU - 1 bytes at a time for long reads.
+     *
+     * @param central - the central that will read
+     * @param size - bytes per read, capped at the longest attribute value
+     */
+    private void setReadSize (Central central, int size) {
+        size = Math.max(1, Math.min(size, MAX_ATTR_LEN));
+        byte [] value = new byte[size];
+        synchronized (central) {
+            central.payloadSource().fill(value, 0, size);
+            central.mReadResponse = new GattData(null, null, value);
+            central.mBytesRead = 0;
+            central.mReadsServed = 0;
+        }
+        Log.d(TAG, "serving " + central.mAddress + " " + size + " byte reads");
+    }
+
+    /**
+     * Serve a read of the test characteristic. Reads are timed like received
+     * writes: the first starts the clock and each one after records the time
+     * since.
+     *
+     * @return the cached value
+     */
+    private GattData handleTestRead (Central central) {
+        if (null == central.mReadResponse) {
+            setReadSize(central, DEFAULT_MTU - 1);
+        }
+
+        synchronized (central) {
+            int length = central.mReadResponse.mBuffer.length;
+            central.mBytesRead += length;
+            central.mArrivals.record(SystemClock.elapsedRealtimeNanos(), length, central.mReadsServed);
+            central.mReadsServed += 1;
+
+            return central.mReadResponse;
+        }
+    }
+
+    /**
+     * Reads are served from the cached value. For writes, since the data
+     * will be junk, just count the number of bytes received,
+     * increment the number of packets, and record the time. The data belongs
+     * to the GATT layer (it is recycled after we return) so it is not
+     * modified or kept.
+     *
+     * @return the data that was handled, null on error
+     */
+    private GattData handleTestCharacteristic (Central central, GattData data){
+        benchmarkStarted(central);
+
+        GattData response = null;
+
+        if (null != data && null == data.mBuffer) {
+            response = handleTestRead(central);
+        } else if (null != data) {
+            synchronized (central) {
+                central.mArrivals.recordWrite(SystemClock.elapsedRealtimeNanos(), data.mBuffer);
             }
 
             response = data;
-            response.mBuffer = null;
         } else {
             Log.w (TAG, "null data received!");
         }
@@ -189,21 +681,42 @@ public class BenchmarkProfileServer extends BenchmarkProfile
     }
 
     /**
-     * Streams all of the raw timing data back to caller in netstring format:
-     * [num bytes].[bytes]
+     * Streams all of the central's raw timing data back to it in netstring
+     * format:
+     * [num bytes]:[bytes],
      * This means that it is the caller's responsibility to request more reads
-     * on this characteristic if all bytes have not been received. Here we need
-     * to keep track of how many bytes have been sent and how many still need to
-     * be sent.
-     *
-     * TODO: implement
+     * on this characteristic if all bytes have not been received. Each read
+     * returns the stream offset of the chunk followed by as much of the
+     * stream as fits in one MTU; an empty chunk is the end. A write of a
+     * 4 byte offset moves the stream so the client can resume from the last
+     * byte it has.
      *
-     * @return barebones response with only buffer set
+     * @param central - the central asking
+     * @param data - a read request, or a write holding the offset to resume from
+     * @return barebones response with only buffer set, null on a bad write
      */
-    private GattData handleRawDataRequest () {
+    private GattData handleRawDataRequest (Central central, GattData data) {
         GattData response = null;
 
-        //get a new chunk of netstring to send and put in response.mBuffer
+        synchronized (central) {
+            if (null != data.mBuffer) { //client is moving the stream
+                if (RAW_OFFSET_SIZE <= data.mBuffer.length) {
+                    central.mRawEncoder.seek(ByteBuffer.wrap(data.mBuffer).getInt() & 0xFFFFFFFFL);
+                    response = data;
+                }
+            } else {
+                //one chunk per read so there are no blob reads to line up
+                int mtu = (0 == central.mMtu) ? DEFAULT_MTU : central.mMtu;
+                int chunkSize = Math.min(MAX_ATTR_LEN, mtu - 1);
+                ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+                chunk.putInt((int) central.mRawEncoder.position());
+                central.mRawEncoder.encode(chunk);
+
+                byte [] value = new byte[chunk.position()];
+                System.arraycopy(chunk.array(), 0, value, 0, value.length);
+                response = new GattData(null, null, value);
+            }
+        }
 
         return response;
     }
@@ -215,15 +728,14 @@ public class BenchmarkProfileServer extends BenchmarkProfile
      *
      * @return barebones response with only buffer set
      */
-    private GattData handleThroughputRequest () {
+    private GattData handleThroughputRequest (Central central) {
         GattData response = null;
 
         //if we have actually recorded time diffs
-        if (0 != mDiffsIndex){
-            int lastTimeIndex = mDiffsIndex - 1;
-            Log.d(TAG, "received " + mBytesReceived + " bytes");
-            Log.d(TAG, "elapsed time: " + mTimeDiffs[lastTimeIndex]);
-            long bps = (mBytesReceived * 8 * 1000000000) / mTimeDiffs[lastTimeIndex];
+        if (!central.mTimeDiffs.isEmpty()){
+            Log.d(TAG, "received " + central.mArrivals.getBytesReceived() + " bytes");
+            Log.d(TAG, "elapsed time: " + central.mTimeDiffs.getLast());
+            long bps = (central.mArrivals.getBytesReceived() * 8 * 1000000000) / central.mTimeDiffs.getLast();
             Log.d(TAG, "bps: " + bps);
             if (0 > bps) {
                 bps = 0;
@@ -243,20 +755,23 @@ public class BenchmarkProfileServer extends BenchmarkProfile
     }
 
     /**
-     * Return the latency timestamps, 1 read at a time until all
+     * Return the central's latency timestamps, 1 read at a time until all
      * timestamps have been sent. When no more data is available, send
      * -1
      *
      * @return barebones response with only buffer set
      */
-    private GattData handleLatencyRequest () {
+    private GattData handleLatencyRequest (Central central) {
         long returnVal = -1;
 
-        if (mSentDiffsIndex < mDiffsIndex) {
-            returnVal = mTimeDiffs[mSentDiffsIndex];
-            ++mSentDiffsIndex;
-        } else {
-            mCB.onBenchmarkComplete();
+        synchronized (central) {
+            if (central.mSentDiffsIndex < central.mTimeDiffs.size()) {
+                returnVal = central.mTimeDiffs.get(central.mSentDiffsIndex);
+                ++central.mSentDiffsIndex;
+            }
+        }
+        if (-1 == returnVal) {
+            centralDone(central);
         }
 
         return new GattData (null,
@@ -265,48 +780,135 @@ public class BenchmarkProfileServer extends BenchmarkProfile
     }
 
     /**
-     * Get the display ID for this device and return
-     * @return Build.DISPLAY
+     * Return the next block of the central's latency timestamps as delta
+     * varints. The block fills one read at the negotiated MTU; at small MTUs
+     * it is grown to a short long read so each read still carries a useful
+     * batch. An empty block (count 0) means all timestamps have been sent.
+     *
+     * @return barebones response with only buffer set
      */
-    private GattData handleIDRequest () {
-        return new GattData (null, null, Build.DISPLAY.getBytes());
-    }
+    private GattData handleLatencyBulkRequest (Central central) {
+        int blockSize = Math.min(MAX_ATTR_LEN, Math.max(central.mMtu - 1, MIN_BULK_BLOCK));
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+
+        int count;
+        synchronized (central) {
+            count = DeltaVarintCodec.encodeBlock(central.mTimeDiffs, central.mSentDiffsIndex, block);
+            central.mSentDiffsIndex += count;
+        }
+        if (0 == count) {
+            centralDone(central);
+        }
 
+        byte [] value = new byte[block.position()];
+        System.arraycopy(block.array(), 0, value, 0, value.length);
+        return new GattData (null, null, value);
+    }
 
     /**
-     * Grab the time stamp so that we can track the duration of an event
+     * Return the next block of sequence numbers behind the central's latency
+     * timestamps, in the same delta varint blocks as the timestamps. An
+     * empty block (count 0) means all of them have been sent.
+     *
+     * @return barebones response with only buffer set
      */
-    private void startTiming() {
-        mStartTS = SystemClock.elapsedRealtimeNanos();
+    private GattData handleSequenceBulkRequest (Central central) {
+        int blockSize = Math.min(MAX_ATTR_LEN, Math.max(central.mMtu - 1, MIN_BULK_BLOCK));
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+
+        synchronized (central) {
+            central.mSentSequencesIndex += DeltaVarintCodec.encodeBlock(central.mDiffSequences,
+                    central.mSentSequencesIndex, block);
+        }
+
+        byte [] value = new byte[block.position()];
+        System.arraycopy(block.array(), 0, value, 0, value.length);
+        return new GattData (null, null, value);
+    }
+
+    private void logResults (Central central) {
+        if (0 < central.mReadsServed) {
+            Log.d(TAG, "served " + central.mAddress + " " + central.mReadsServed + " reads, "
+                    + central.mBytesRead + " bytes");
+        }
+        if (0 < central.mArrivals.getPacketsReceived()) {
+            Log.d(TAG, central.mAddress + " writes: " + central.mSequence.getStats());
+        }
+        Log.d(TAG, central.mAddress + " inter-arrival (ns): " + central.mInterArrival.summary());
     }
 
     /**
+     * Answer a clock probe with our time now and the time the central's run
+     * started, so the central can put our timestamps on its own timeline.
+     * Answered straight from the request so that the time read is as close
+     * to the middle of the round trip as we can make it.
      *
-     * @return true if the timer has been started, false otherwise
+     * @param central - the central asking
+     * @return [time now][start of the run], 0 for the start if not started
      */
-    private boolean timerStarted() { return !(0 == mStartTS); }
+    private GattData handleClockRequest (Central central) {
+        ByteBuffer value = ByteBuffer.allocate(2 * Long.BYTES);
+        value.putLong(SystemClock.elapsedRealtimeNanos());
+        synchronized (central) {
+            value.putLong(central.mArrivals.getStartTime());
+        }
+        return new GattData (null, null, value.array());
+    }
 
     /**
-     * Record the time difference from when startTiming() was called. If we
-     * have filled the array then write the array to a file (if the file has
-     * been set).
+     * @param central - the central asking
+     * @return the loss, duplicate and reordering counts of its writes
      */
-    private void recordTimeDiff() {
-        long ts = SystemClock.elapsedRealtimeNanos();
-        long diff = 0;
+    private GattData handleLossRequest (Central central) {
+        synchronized (central) {
+            return new GattData (null, null, central.mSequence.getStats().toBytes());
+        }
+    }
 
-        if (0 == mStartTS) {
-            Log.w (TAG, "Tried to record time stamp when timing not started");
+    /**
+     * Get the display ID for this device and return. The same for every
+     * central.
+     * @return Build.DISPLAY
+     */
+    private GattData handleIDRequest () {
+        return new GattData (null, null, Build.DISPLAY.getBytes());
+    }
 
-        } else {
-            diff = ts - mStartTS;
 
-            mTimeDiffs[mDiffsIndex] = diff;
-            //Log.d(TAG, "recording time difff: " +  mTimeDiffs[mDiffsIndex]);
-            ++mDiffsIndex;
+    /**
+     * 1us resolution up to a minute, 3 significant digits
+     */
+    private static LatencyHistogram newInterArrivalHistogram () {
+        return new LatencyHistogram(1000, 60000000000L, 3);
+    }
 
+    /**
+     * @return the distribution of packet inter-arrival times (ns) over all
+     * connected centrals
+     */
+    public LatencyHistogram getInterArrivalHistogram () {
+        LatencyHistogram total = newInterArrivalHistogram();
+        for (Central central : mCentrals.values()) {
+            synchronized (central) {
+                total.add(central.mInterArrival);
+            }
         }
+        return total;
+    }
 
+    /**
+     * @param address - a connected central
+     * @return a copy of the distribution of that central's packet
+     * inter-arrival times (ns), null if it is not connected
+     */
+    public LatencyHistogram getInterArrivalHistogram (String address) {
+        Central central = mCentrals.get(address);
+        if (null == central) {
+            return null;
+        }
+        synchronized (central) {
+            return central.mInterArrival.copy();
+        }
     }
 
     /**
@@ -1,5 +1,7 @@
 package edu.nd.cse.gatt_server;
 
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
+
 /**
  * The intention of this callback interface is to allow the server side
  * of the profile to provide updates to the application layer.
@@ -8,4 +10,13 @@ public interface BenchmarkProfileServerCallback {
     public void onBenchmarkStart ();
     public void onBenchmarkComplete ();
     public void onBenchmarkError (int code, String details);
+
+    /**
+     * Throughput, packet rate and inter-arrival times of one central over
+     * the last few seconds, while it is running
+     *
+     * @param address - the central
+     * @param metrics - its metrics as of now
+     */
+    public void onLiveMetricsAvailable (String address, SlidingWindowMetrics.Snapshot metrics);
 }
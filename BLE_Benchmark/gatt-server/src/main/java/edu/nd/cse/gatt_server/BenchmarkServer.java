@@ -15,6 +15,7 @@ import java.util.Date;
 import java.sql.Timestamp;
 
 import edu.nd.cse.benchmarkcommon.BluetoothRestarter;
+import edu.nd.cse.benchmarkcommon.SlidingWindowMetrics;
 
 /**
  * Activity that runs the gatt server. Receives operating parameters
@@ -34,6 +35,8 @@ public class BenchmarkServer extends Activity{
 
     private Handler mCloseHandler = new Handler();
 
+    private final long LIVE_METRICS_PERIOD = 1000; //ms
+
     /**
      * Convenience method to write text to the screen
      * @param text - the text to write to the screen
@@ -168,7 +171,13 @@ public class BenchmarkServer extends Activity{
                 writeUpdate("Error " + code + ": " + details);
 
             }
+
+            @Override
+            public void onLiveMetricsAvailable (String address, SlidingWindowMetrics.Snapshot metrics) {
+                writeUpdate("Live " + address + ": " + metrics);
+            }
         });
+        mBenchmarkServer.setLiveMetricsPeriod(LIVE_METRICS_PERIOD);
 
         Log.i(TAG, "Starting benchmark server...");
         mBenchmarkServer.start();
@@ -1,8 +1,12 @@
 package edu.nd.cse.gatt_server;
 
+import edu.nd.cse.benchmarkcommon.BenchmarkProfile;
 import edu.nd.cse.benchmarkcommon.CharacteristicHandler;
 import edu.nd.cse.benchmarkcommon.GattData;
+import edu.nd.cse.benchmarkcommon.GattDataPool;
 import edu.nd.cse.benchmarkcommon.ConnectionUpdater;
+import edu.nd.cse.benchmarkcommon.GattServerTransport;
+import edu.nd.cse.benchmarkcommon.NotificationHandler;
 
 /* BLE imports */
 import android.bluetooth.BluetoothAdapter;
@@ -14,6 +18,7 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
@@ -31,6 +36,10 @@ import android.util.Log;
 
 /* misc imports */
 import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class that implements the gatt server that implements all of the callbacks
@@ -38,7 +47,8 @@ import java.io.File;
  * outgoing information is not included here. At this layer we only deal with
  * in and out-bound bytes.
  */
-public class GattServer extends BluetoothGattServerCallback {
+public class GattServer extends BluetoothGattServerCallback
+                        implements GattServerTransport {
     private static final String TAG = BenchmarkServer.class.getSimpleName();
 
     /* Bluetooth API */
@@ -48,8 +58,31 @@ public class GattServer extends BluetoothGattServerCallback {
     private BluetoothGattService mBluetoothGattService;
 
     private CharacteristicHandler mHandler;
-    private GattData mCharReadResponse;
+    private final int DEFAULT_MTU = 23;
     private ConnectionUpdater mConnUpdater;
+    private NotificationHandler mNotificationHandler;
+
+    //connected centrals and the ones that enabled notifications
+    private final Map<String, BluetoothDevice> mDevices = new ConcurrentHashMap<String, BluetoothDevice>();
+    private final Set<String> mSubscribers = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> mMtus = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Central> mCentrals = new ConcurrentHashMap<String, Central>();
+    //the characteristics are shared by every central, so is the value being notified
+    private final Object mNotifyLock = new Object();
+
+    /**
+     * What the server keeps per central between callbacks. A long read
+     * spans several requests from one central and other centrals can read
+     * in between, so the value being served is kept here, as are the
+     * envelopes, since the stack may call back for different centrals on
+     * different threads.
+     */
+    private static class Central {
+        byte [] mReadValue = null; //value being served to (long) reads
+        byte [] mReadChunk = new byte[0]; //full MTU chunks of it
+        byte [] mReadTail = new byte[0]; //the last, shorter chunk
+        final GattDataPool mEnvelopePool = new GattDataPool(8); //this central's callbacks only
+    }
 
     public boolean mHasBTSupport = true;
 
@@ -85,6 +118,7 @@ public class GattServer extends BluetoothGattServerCallback {
      * @param func
      * @return
      */
+    @Override
     public boolean setCharacteristicHandler(CharacteristicHandler func) {
         if (null != func) {
             mHandler = func;
@@ -101,6 +135,7 @@ public class GattServer extends BluetoothGattServerCallback {
      * @param stopAdvOnConnect - boolean to indicate whether to stop
      *                         advertising once a connection has been made
      */
+    @Override
     public void start(boolean stopAdvOnConnect) {
         mStopAdvOnConnect = stopAdvOnConnect;
         // Register for system Bluetooth events
@@ -122,6 +157,7 @@ public class GattServer extends BluetoothGattServerCallback {
      * Stop the GATT server and stop advertising. Unregister broadcast
      * receiver
      */
+    @Override
     public void stop(){
         BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
         if (bluetoothAdapter.isEnabled()) {
@@ -137,10 +173,46 @@ public class GattServer extends BluetoothGattServerCallback {
      * parameter changes up the stack
      * @param updater - the callback
      */
+    @Override
     public void setConnectionUpdateCallback(ConnectionUpdater updater) {
         mConnUpdater = updater;
     }
 
+    /**
+     * Set the callback used to report that a notification was sent
+     *
+     * @param handler - the callback
+     */
+    @Override
+    public void setNotificationHandler(NotificationHandler handler) {
+        mNotificationHandler = handler;
+    }
+
+    /**
+     * Push a new value of the characteristic to a subscribed central. The
+     * stack only takes one notification at a time; the next one may be sent
+     * once onNotificationSent has been called. The characteristic holds a
+     * single value for all centrals, so it is set and sent under a lock that
+     * spans the server: another central's notification could overwrite it
+     * in between otherwise.
+     *
+     * @param data - address, characteristic, and value to send
+     * @return true if the stack took the notification
+     */
+    @Override
+    public boolean sendNotification(GattData data) {
+        BluetoothDevice device = mDevices.get(data.mAddress);
+        if (null == device || !mSubscribers.contains(data.mAddress) || null == mBluetoothGattServer) {
+            return false;
+        }
+
+        BluetoothGattCharacteristic characteristic = mBluetoothGattService.getCharacteristic(data.mCharID);
+        synchronized (mNotifyLock) {
+            characteristic.setValue(data.mBuffer);
+            return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
+        }
+    }
+
     /**
      * Verify the level of Bluetooth support provided by the hardware.
      * @param bluetoothAdapter System {@link BluetoothAdapter}.
@@ -275,6 +347,7 @@ public class GattServer extends BluetoothGattServerCallback {
     public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
         if (newState == BluetoothProfile.STATE_CONNECTED) {
             Log.i(TAG, "BluetoothDevice CONNECTED: " + device);
+            mDevices.put(device.getAddress(), device);
             /*
             Based on a comment here: https://stackoverflow.com/questions/47676988/the-device-gattserver-stops-advertising-after-connecting-to-it
             The peripheral is supposed to stop advertising after a connection per the spec.... This
@@ -287,6 +360,13 @@ public class GattServer extends BluetoothGattServerCallback {
 //            }
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
             Log.i(TAG, "BluetoothDevice DISCONNECTED: " + device);
+            mDevices.remove(device.getAddress());
+            mSubscribers.remove(device.getAddress());
+            mMtus.remove(device.getAddress());
+            mCentrals.remove(device.getAddress());
+            if (null != mConnUpdater) {
+                mConnUpdater.connectionUpdate(device.getAddress(), 0); //its statistics can go
+            }
         }
     }
 
@@ -316,13 +396,17 @@ public class GattServer extends BluetoothGattServerCallback {
 //        Log.i(TAG, "Received: " + String.valueOf(value));
 //        Log.i(TAG, "handler is null? " + (null == mHandler));
 
-        //callback to hand data up
-        mHandler.handleCharacteristic(new GattData (device.getAddress(), characteristic.getUuid(), value));
+        //callback to hand data up in a recycled envelope
+        GattData data = centralFor(device).mEnvelopePool.obtain(device.getAddress(),
+                characteristic.getUuid(), value);
+        boolean accepted = null != mHandler.handleCharacteristic(data);
+        data.release();
 
         if (responseNeeded) {
             //Presumably the client's onCharacteristicWrite only gets called on receipt of
             //an acknowledgement
-            mBluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            mBluetoothGattServer.sendResponse(device, requestId,
+                    accepted ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE, 0, null);
         }
 
     }
@@ -336,6 +420,11 @@ public class GattServer extends BluetoothGattServerCallback {
      *  question: what do you do when you want to read > 512bytes?
      *  answer: multiple req's which is coordinated by profile
      *
+     * Values longer than MTU - 1 are read in pieces (read blob requests) at
+     * increasing offsets. Each piece is copied straight out of the value the
+     * profile handed us into a reused array no bigger than one MTU. The value
+     * and the arrays are the reading central's own.
+     *
      * @param device - the bluetooth device sending the read request
      * @param requestId  - the ID of the request
      * @param offset - the desired offset into the characteristic value to read
@@ -348,32 +437,46 @@ public class GattServer extends BluetoothGattServerCallback {
         super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
 
 
+        Central central = centralFor(device);
         if (0 == offset) {
-            mCharReadResponse = null;
+            central.mReadValue = null;
             //hand off to profile layer to ready the characteristic
-            mCharReadResponse = mHandler.handleCharacteristic(new GattData
-                    (device.getAddress(), characteristic.getUuid(), null));
+            GattData readResponse = mHandler.handleCharacteristic(
+                    new GattData(device.getAddress(), characteristic.getUuid(), null));
 
-            characteristic.setValue(mCharReadResponse.mBuffer);
+            if (null != readResponse && null != readResponse.mBuffer) {
+                central.mReadValue = readResponse.mBuffer;
+            }
         }
 
         //null if the profile has no idea what to do with this request
         //otherwise the response has the complete response information
-        if (null != mCharReadResponse) {
-            int length = characteristic.getValue().length;
+        byte [] readValue = central.mReadValue;
+        if (null != readValue) {
+            int length = readValue.length;
             if (offset > length) {
-                //Log.i("BlueNet", "sending read response end");
-                mBluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[]{0});
+                mBluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
                 return;
             }
 
-            int size = length - offset;
-            byte[] response = new byte[size];
-
-            for (int i = offset; i < length; i++) {
-                response[i - offset] = characteristic.getValue()[i];
+            Integer mtu = mMtus.get(device.getAddress());
+            int chunkSize = ((null == mtu) ? DEFAULT_MTU : mtu) - 1;
+            int size = Math.min(length - offset, chunkSize);
+            byte [] response;
+            if (size == chunkSize) {
+                if (central.mReadChunk.length != size) {
+                    central.mReadChunk = new byte[size];
+                }
+                response = central.mReadChunk;
+            } else {
+                if (central.mReadTail.length != size) {
+                    central.mReadTail = new byte[size];
+                }
+                response = central.mReadTail;
             }
+            System.arraycopy(readValue, offset, response, 0, size);
 
+            //the value is copied into the Binder call, so the arrays can be reused
             mBluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, response);
             return;
         }
@@ -384,6 +487,119 @@ public class GattServer extends BluetoothGattServerCallback {
 
     }
 
+    /**
+     * Writes to the client configuration descriptor turn notifications on or
+     * off for that central and are handled here. Any other descriptor write
+     * is handed up to the profile, which decides whether it succeeded.
+     *
+     * @param device - the central writing
+     * @param requestId - the ID of the request
+     * @param descriptor - the descriptor being written
+     * @param preparedWrite - whether this is a queued (long) write
+     * @param responseNeeded - whether the central expects a response
+     * @param offset - offset of the value
+     * @param value - the value
+     */
+    @Override
+    public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+                                         BluetoothGattDescriptor descriptor,
+                                         boolean preparedWrite, boolean responseNeeded,
+                                         int offset, byte[] value) {
+        super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite,
+                responseNeeded, offset, value);
+
+        int status = BluetoothGatt.GATT_SUCCESS;
+        if (BenchmarkProfile.CLIENT_CONFIG_DESC.equals(descriptor.getUuid())) {
+            if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, value)) {
+                mSubscribers.add(device.getAddress());
+            } else {
+                mSubscribers.remove(device.getAddress());
+            }
+        } else {
+            GattData data = centralFor(device).mEnvelopePool.obtain(device.getAddress(),
+                    descriptor.getCharacteristic().getUuid(), value);
+            data.mDescID = descriptor.getUuid();
+            if (null == mHandler.handleCharacteristic(data)) {
+                status = BluetoothGatt.GATT_FAILURE;
+            }
+            data.release();
+        }
+
+        if (responseNeeded) {
+            mBluetoothGattServer.sendResponse(device, requestId, status, 0, null);
+        }
+    }
+
+    /**
+     * Answer the client configuration descriptor here and hand any other
+     * descriptor read up to the profile
+     *
+     * @param device - the central reading
+     * @param requestId - the ID of the request
+     * @param offset - offset into the value
+     * @param descriptor - the descriptor being read
+     */
+    @Override
+    public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                        BluetoothGattDescriptor descriptor) {
+        super.onDescriptorReadRequest(device, requestId, offset, descriptor);
+
+        byte [] value = null;
+        if (BenchmarkProfile.CLIENT_CONFIG_DESC.equals(descriptor.getUuid())) {
+            value = mSubscribers.contains(device.getAddress())
+                    ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else {
+            GattData response = mHandler.handleCharacteristic(new GattData(device.getAddress(),
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), null));
+            if (null != response) {
+                value = response.mBuffer;
+            }
+        }
+
+        if (null == value || offset > value.length) {
+            mBluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+        } else {
+            mBluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                    Arrays.copyOfRange(value, offset, value.length));
+        }
+    }
+
+    /**
+     * The stack has handed the last notification to the controller, so
+     * there is room for the next one
+     *
+     * @param device - the central the notification went to
+     * @param status - success or failure
+     */
+    @Override
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        super.onNotificationSent(device, status);
+
+        if (null != mNotificationHandler) {
+            mNotificationHandler.onNotificationSent(device.getAddress(),
+                    BluetoothGatt.GATT_SUCCESS == status);
+        }
+    }
+
+    /**
+     * @param device - a connected central
+     * @return what we keep for it, created on first use since callbacks can
+     * race the connection state change
+     */
+    private Central centralFor (BluetoothDevice device) {
+        String address = device.getAddress();
+        Central central = mCentrals.get(address);
+        if (null == central) {
+            Central created = new Central();
+            central = mCentrals.putIfAbsent(address, created);
+            if (null == central) {
+                central = created;
+            }
+        }
+        return central;
+    }
+
     /**
      * Report updated mtu to profile server
      *
@@ -394,6 +610,7 @@ public class GattServer extends BluetoothGattServerCallback {
     public void onMtuChanged (BluetoothDevice device, int mtu) {
         super.onMtuChanged(device, mtu);
         Log.i("Gatt", "MTU set to: " + String.valueOf(mtu));
+        mMtus.put(device.getAddress(), mtu);
         mConnUpdater.mtuUpdate(device.getAddress(), mtu);
     }
 